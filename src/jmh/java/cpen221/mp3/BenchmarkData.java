@@ -0,0 +1,44 @@
+package cpen221.mp3;
+
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.EventCsvParser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Shared inputs of the benchmarks. The data directory is passed by the jmh gradle task as the
+ * cpen221.data system property, and defaults to data/tests relative to the working directory.
+ */
+public class BenchmarkData {
+    public static final String IN_ORDER = "single_client_1000_events_in-order.csv";
+    public static final String OUT_OF_ORDER = "single_client_1000_events_out-of-order.csv";
+
+    private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+    /**
+     * Reads the events of a CSV in the data/tests format, see EventCsvParser
+     * @param fileName the name of the file in the data directory
+     * @return the events in file order
+     */
+    public static List<Event> readEvents(String fileName) {
+        Path path = Path.of(System.getProperty("cpen221.data", "data/tests"), fileName);
+        try {
+            return EventCsvParser.readEvents(path.toString());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't read benchmark data " + path, e);
+        }
+    }
+
+    /**
+     * Discards everything printed to System.out, the server prints a line per event and
+     * would otherwise benchmark the console
+     */
+    public static void silenceStdout() {
+        System.setOut(DISCARD);
+    }
+}
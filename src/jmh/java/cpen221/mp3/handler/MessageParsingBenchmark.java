@@ -0,0 +1,80 @@
+package cpen221.mp3.handler;
+
+import cpen221.mp3.client.Request;
+import cpen221.mp3.client.RequestCommand;
+import cpen221.mp3.client.RequestType;
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.SensorEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+
+/**
+ * Parsing of the lines a MessageHandlerThread receives, from the raw line to the event or
+ * request handed to the server (the routing to the server is not included)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageParsingBenchmark {
+    private String sensorLine;
+    private String actuatorLine;
+    private String requestLine;
+
+    @Setup
+    public void setUp() {
+        double now = System.currentTimeMillis();
+        sensorLine = new SensorEvent(now, 0, 164, "CO2Sensor", 420.71039502174506) + ",0,client0@test.ca";
+        actuatorLine = new ActuatorEvent(now, 0, 97, "Switch", true) + ",0,client0@test.ca";
+
+        Request request = new Request(now, RequestType.ANALYSIS, RequestCommand.ANALYSIS_GET_LATEST_EVENTS, "10", 0, "client0@test.ca");
+        requestLine = request.toString();
+    }
+
+    @Benchmark
+    public Object parseSensorEvent() {
+        return parseEvent(sensorLine);
+    }
+
+    @Benchmark
+    public Object parseActuatorEvent() {
+        return parseEvent(actuatorLine);
+    }
+
+    @Benchmark
+    public Object parseRequest() {
+        MessageHandlerThread.messageType(requestLine);
+        Matcher matcher = MessageHandlerThread.REQUEST_PATTERN.matcher(requestLine);
+        if (!matcher.find()) {
+            throw new IllegalStateException("Request did not parse: " + requestLine);
+        }
+        Integer.parseInt(matcher.group(6).trim());
+        return MessageHandlerThread.parseRequest(matcher);
+    }
+
+    /**
+     * Does what MessageHandlerThread.messageHandler does with an event line before routing it
+     */
+    private static Object parseEvent(String line) {
+        String eventType = MessageHandlerThread.messageType(line);
+        Matcher matcher = MessageHandlerThread.EVENT_PATTERN.matcher(line);
+        if (!matcher.find()) {
+            throw new IllegalStateException("Event did not parse: " + line);
+        }
+        Integer.parseInt(matcher.group(7).trim());
+        return MessageHandlerThread.parseEvent(matcher, eventType);
+    }
+}
@@ -0,0 +1,96 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.BenchmarkData;
+import cpen221.mp3.event.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The analysis queries of the Server over a server holding a whole recording. The prediction
+ * queries are not benchmarked, they are not implemented yet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalysisQueryBenchmark {
+
+    @Param({BenchmarkData.IN_ORDER, BenchmarkData.OUT_OF_ORDER})
+    public String recording;
+
+    private List<Event> events;
+    private Filter filter;
+    private Server server;
+    private TimeWindow window;
+
+    @Setup
+    public void setUp() {
+        BenchmarkData.silenceStdout();
+        events = BenchmarkData.readEvents(recording);
+        filter = new Filter("value", DoubleOperator.GREATER_THAN, 400);
+        server = new Server();
+        server.logIf(filter);
+        for (Event event : events) {
+            server.runEvent(event);
+        }
+        //the middle tenth of the recording
+        window = new TimeWindow(45, 55);
+    }
+
+    /**
+     * readLogs clears the logs, so this server is rebuilt before every call
+     */
+    @State(Scope.Thread)
+    public static class LoggingServer {
+        Server server;
+
+        @Setup(Level.Invocation)
+        public void setUp(AnalysisQueryBenchmark benchmark) {
+            server = new Server();
+            server.logIf(benchmark.filter);
+            for (Event event : benchmark.events) {
+                server.runEvent(event);
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Integer> readLogs(LoggingServer logging) {
+        return logging.server.readLogs();
+    }
+
+    @Benchmark
+    public List<Event> eventsInTimeWindow() {
+        return server.eventsInTimeWindow(window);
+    }
+
+    @Benchmark
+    public List<Integer> getAllEntities() {
+        return server.getAllEntities();
+    }
+
+    @Benchmark
+    public List<Event> lastNEvents() {
+        return server.lastNEvents(10);
+    }
+
+    @Benchmark
+    public int mostActiveEntity() {
+        return server.mostActiveEntity();
+    }
+}
@@ -0,0 +1,83 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.BenchmarkData;
+import cpen221.mp3.event.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filter.satisfies and Filter.sift over the in-order recording, with a single double filter,
+ * a single boolean filter and a composed filter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+    private List<Event> events;
+    private Filter valueFilter;
+    private Filter booleanFilter;
+    private Filter composedFilter;
+
+    @Setup
+    public void setUp() {
+        events = BenchmarkData.readEvents(BenchmarkData.IN_ORDER);
+        valueFilter = new Filter("value", DoubleOperator.GREATER_THAN, 400);
+        booleanFilter = new Filter(BooleanOperator.EQUALS, true);
+        composedFilter = new Filter(List.of(
+                new Filter("timestamp", DoubleOperator.GREATER_THAN_OR_EQUALS, 10),
+                new Filter("value", DoubleOperator.LESS_THAN, 1000)));
+    }
+
+    @Benchmark
+    public void satisfiesValue(Blackhole blackhole) {
+        for (Event event : events) {
+            blackhole.consume(valueFilter.satisfies(event));
+        }
+    }
+
+    @Benchmark
+    public void satisfiesBoolean(Blackhole blackhole) {
+        for (Event event : events) {
+            blackhole.consume(booleanFilter.satisfies(event));
+        }
+    }
+
+    @Benchmark
+    public void satisfiesComposed(Blackhole blackhole) {
+        for (Event event : events) {
+            blackhole.consume(composedFilter.satisfies(event));
+        }
+    }
+
+    @Benchmark
+    public boolean satisfiesAll() {
+        return valueFilter.satisfies(events);
+    }
+
+    @Benchmark
+    public List<Event> siftList() {
+        return composedFilter.sift(events);
+    }
+
+    @Benchmark
+    public void siftEach(Blackhole blackhole) {
+        for (Event event : events) {
+            blackhole.consume(composedFilter.sift(event));
+        }
+    }
+}
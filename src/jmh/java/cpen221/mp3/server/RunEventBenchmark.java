@@ -0,0 +1,64 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.BenchmarkData;
+import cpen221.mp3.event.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server.runEvent over a whole recording into a fresh server, the out-of-order recording
+ * exercises the reprocessing of late events. The wait for maxWaitTime in processDue is not
+ * included, only the work done per event once it is released.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RunEventBenchmark {
+
+    @Param({BenchmarkData.IN_ORDER, BenchmarkData.OUT_OF_ORDER})
+    public String recording;
+
+    private List<Event> events;
+    private Filter filter;
+
+    @Setup
+    public void setUp() {
+        BenchmarkData.silenceStdout();
+        events = BenchmarkData.readEvents(recording);
+        filter = new Filter("value", DoubleOperator.GREATER_THAN, 400);
+    }
+
+    @Benchmark
+    public Server runEvents() {
+        Server server = new Server();
+        for (Event event : events) {
+            server.runEvent(event);
+        }
+        return server;
+    }
+
+    @Benchmark
+    public Server runEventsWithLogging() {
+        Server server = new Server();
+        server.logIf(filter);
+        for (Event event : events) {
+            server.runEvent(event);
+        }
+        return server;
+    }
+}
@@ -0,0 +1,17 @@
+package cpen221.mp3.loadgen;
+
+import cpen221.mp3.event.Event;
+
+/**
+ * Produces the events sent on one fleet connection. A source is used by a single
+ * connection thread and need not be thread-safe.
+ */
+public interface EventSource {
+
+    /**
+     * Produces the next event
+     * @param now the current time, in ms
+     * @return the next event to send
+     */
+    Event next(long now);
+}
@@ -0,0 +1,143 @@
+package cpen221.mp3.loadgen;
+
+import cpen221.mp3.entity.BatchingWriter;
+import cpen221.mp3.event.Event;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//REP INVARIANTS: source, sent, disordered != null, ratePerSecond >= 0, 0 <= disorder <= 1,
+//                maxLag >= 1, batchSize >= 1, lingerMillis >= 0
+public class FleetConnection implements Runnable {
+    // the most events sent in one go when the connection has fallen behind its schedule
+    private static final int MAX_BURST = 256;
+    private static final long IDLE_PARK = 1_000_000; //in ns
+
+    private final int index;
+    private final String host;
+    private final int port;
+    private final EventSource source;
+    private final double ratePerSecond;
+    private final double disorder;
+    private final long maxLag;
+    private final int batchSize;
+    private final long lingerMillis;
+
+    private final LongAdder sent;
+    private final LongAdder disordered;
+
+    private volatile boolean running = true;
+    private volatile boolean failed = false;
+
+    /**
+     * Creates one connection of the fleet, it sends in the same line format as Client.sendEvent:
+     * the event followed by the client id and email of its owner
+     *
+     * @param index the index of the connection in the fleet, used in messages
+     * @param host the host of the MessageHandler, null for the loopback address
+     * @param port the port of the MessageHandler
+     * @param source the events sent on this connection
+     * @param ratePerSecond the target rate of this connection in events/s, 0 for as fast as possible
+     * @param disorder the fraction of events sent with a time stamp in the past, in [0, 1]
+     * @param maxLag the max time a disordered event is moved into the past, in ms, must be >= 1
+     * @param batchSize the number of lines per flush, 1 sends every line immediately
+     * @param lingerMillis the max time a line waits before it is sent, in ms
+     * @param sent counts the events sent, shared by the fleet
+     * @param disordered counts the disordered events sent, shared by the fleet
+     */
+    public FleetConnection(int index, String host, int port, EventSource source, double ratePerSecond,
+                           double disorder, long maxLag, int batchSize, long lingerMillis,
+                           LongAdder sent, LongAdder disordered) {
+        this.index = index;
+        this.host = host;
+        this.port = port;
+        this.source = source;
+        this.ratePerSecond = ratePerSecond;
+        this.disorder = disorder;
+        this.maxLag = maxLag;
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        this.sent = sent;
+        this.disordered = disordered;
+    }
+
+    /**
+     * Sends events on the schedule given by the target rate until stopped or the connection fails.
+     * The schedule is absolute, a connection that falls behind catches up in bursts instead of
+     * drifting below the target rate.
+     */
+    @Override
+    public void run() {
+        InetSocketAddress address = host == null
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                : new InetSocketAddress(host, port);
+
+        try (Socket socket = new Socket()) {
+            socket.connect(address);
+            socket.setTcpNoDelay(true);
+            BatchingWriter out = new BatchingWriter(socket.getOutputStream());
+            out.setBatching(batchSize, lingerMillis);
+
+            long start = System.nanoTime();
+            long sentHere = 0;
+            while (running) {
+                long due = ratePerSecond == 0
+                        ? sentHere + MAX_BURST
+                        : (long) ((System.nanoTime() - start) * ratePerSecond / 1e9);
+
+                if (sentHere >= due) {
+                    LockSupport.parkNanos(IDLE_PARK);
+                    continue;
+                }
+
+                long burst = Math.min(due - sentHere, MAX_BURST);
+                for (long i = 0; i < burst; i++) {
+                    out.writeLine(nextLine());
+                }
+                sentHere += burst;
+                sent.add(burst);
+            }
+            out.flush();
+        } catch (IOException e) {
+            failed = true;
+            System.out.println("ERROR -> connection " + index + " to " + address + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Asks the connection to stop, it flushes what is buffered and closes
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Returns true if the connection stopped because of an error
+     * @return true if the connection failed
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Formats the next event, moving its time stamp into the past for the disordered share
+     * @return the line to send
+     */
+    private String nextLine() {
+        Event event = source.next(System.currentTimeMillis());
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (disorder > 0 && random.nextDouble() < disorder) {
+            event = ReplayEventSource.withTimeStamp(event, event.getTimeStamp() - 1 - random.nextLong(maxLag));
+            disordered.increment();
+        }
+
+        int clientId = event.getClientId();
+        return event + "," + clientId + "," + LoadGenerator.emailOf(clientId);
+    }
+}
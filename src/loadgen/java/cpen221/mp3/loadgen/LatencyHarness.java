@@ -0,0 +1,233 @@
+package cpen221.mp3.loadgen;
+
+import cpen221.mp3.client.Client;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.handler.MessageHandler;
+import cpen221.mp3.metrics.LatencyHistogram;
+import cpen221.mp3.server.Server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the end to end latency of events through a real MessageHandler on loopback. The
+ * events of a CSV recording are sent through a Client at a target rate, and every processed
+ * event is timed twice:
+ * <ul>
+ *     <li>arrival to processed: from Event.getTimeArrived, set by the MessageHandlerThread</li>
+ *     <li>send to processed: from the moment the harness handed the event to the Client</li>
+ * </ul>
+ * One run is made per combination of maxWaitTime and rate, each with its own client and
+ * server, and a table of p50/p99/p99.9/max latencies in ms is printed. Run with e.g.
+ * <pre>
+ *   gradle latency --args="--wait-times=0.1,0.5,2 --rates=100,1000 --events=2000"
+ * </pre>
+ * Options, all of the form --name=value:
+ * <ul>
+ *     <li>port: the port of the MessageHandler started by the harness (default 4700)</li>
+ *     <li>replay: the recording to send (default data/tests/single_client_1000_events_out-of-order.csv)</li>
+ *     <li>wait-times: the maxWaitTime values to try, in s (default 0.1,0.5,2)</li>
+ *     <li>rates: the send rates to try, in events/s (default 100,1000,5000)</li>
+ *     <li>events: the number of events sent per run, the recording loops (default 1000)</li>
+ *     <li>verbose: true to keep the output of the server and handler (default false)</li>
+ * </ul>
+ */
+//REP INVARIANTS: waitTimes, rates not empty and > 0, events >= 1
+public class LatencyHarness {
+    private static final long DRAIN_GRACE = 10_000; //in ms, the time allowed after maxWaitTime for the last event
+
+    private int port = 4700;
+    private String replay = "data/tests/single_client_1000_events_out-of-order.csv";
+    private double[] waitTimes = {0.1, 0.5, 2};
+    private double[] rates = {100, 1000, 5000};
+    private int events = 1000;
+    private boolean verbose = false;
+
+    private MessageHandler messageHandler = null;
+
+    /**
+     * Creates a harness from command line options
+     * @param args the options, each of the form --name=value
+     * @throws IllegalArgumentException if an option is unknown or its value is invalid
+     */
+    public LatencyHarness(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Options must be of the form --name=value: " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "port" -> port = Integer.parseInt(value);
+                case "replay" -> replay = value;
+                case "wait-times" -> waitTimes = parseList(value);
+                case "rates" -> rates = parseList(value);
+                case "events" -> events = Integer.parseInt(value);
+                case "verbose" -> verbose = Boolean.parseBoolean(value);
+                default -> throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        if (waitTimes.length == 0 || rates.length == 0 || events < 1) {
+            throw new IllegalArgumentException("Option out of range, see the LatencyHarness documentation");
+        }
+        for (double value : waitTimes) {
+            if (value <= 0) {
+                throw new IllegalArgumentException("Wait times must be > 0");
+            }
+        }
+        for (double value : rates) {
+            if (value <= 0) {
+                throw new IllegalArgumentException("Rates must be > 0");
+            }
+        }
+    }
+
+    /**
+     * Runs every combination of maxWaitTime and rate and prints the latency table
+     * @throws IOException if the recording can't be read
+     */
+    public void run() throws IOException {
+        List<Event> recording = ReplayEventSource.readCsv(replay);
+        PrintStream report = System.out;
+        if (!verbose) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        messageHandler = new MessageHandler(port);
+        //give the handler a moment to bind before the first client connects
+        sleep(200);
+
+        report.printf("%d events per run from %s%n", events, replay);
+        report.printf("%8s %8s %10s | %-36s | %-36s%n", "wait(s)", "rate", "achieved",
+                "arrival->processed p50/p99/p99.9/max", "send->processed p50/p99/p99.9/max");
+
+        int clientId = 1000;
+        for (double waitTime : waitTimes) {
+            for (double rate : rates) {
+                Result result = runOnce(recording, clientId++, waitTime, rate);
+                report.printf("%8.2f %8.0f %10.0f | %-36s | %-36s%s%n", waitTime, rate, result.achievedRate,
+                        summary(result.arrivalLatency), summary(result.sendLatency),
+                        result.missing == 0 ? "" : "  (" + result.missing + " events not processed)");
+            }
+        }
+        System.setOut(report);
+    }
+
+    /**
+     * Sends the events through a new client and server and times them
+     * @param recording the events to send
+     * @param clientId the id of the client used for this run, so runs don't share a server
+     * @param waitTime the maxWaitTime of the server, in s
+     * @param rate the send rate, in events/s
+     * @return the latencies of the run
+     */
+    private Result runOnce(List<Event> recording, int clientId, double waitTime, double rate) {
+        Map<Double, Long> sendTimes = new ConcurrentHashMap<>();
+        LatencyHistogram arrivalLatency = new LatencyHistogram();
+        LatencyHistogram sendLatency = new LatencyHistogram();
+        AtomicLong processed = new AtomicLong();
+
+        Client client = new Client(clientId, "latency" + clientId + "@loadgen.test", "localhost", port);
+        Server server = new Server(client);
+        server.updateMaxWaitTime(waitTime);
+        server.addEventListener(event -> {
+            long now = System.currentTimeMillis();
+            arrivalLatency.record(now - event.getTimeArrived());
+            Long sent = sendTimes.remove(event.getTimeStamp());
+            if (sent != null) {
+                sendLatency.record(now - sent);
+            }
+            processed.incrementAndGet();
+        });
+        //the handler matches servers by client, so events of this client go to this server
+        messageHandler.addServer(server);
+
+        ReplayEventSource source = new ReplayEventSource(recording, System.currentTimeMillis());
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            long due = start + (long) (i * 1e9 / rate);
+            long delay = due - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            Event event = source.next(System.currentTimeMillis());
+            sendTimes.put(event.getTimeStamp(), System.currentTimeMillis());
+            client.sendEvent(event);
+        }
+        double achievedRate = events * 1e9 / Math.max(1, System.nanoTime() - start);
+
+        long deadline = System.currentTimeMillis() + (long) (waitTime * 1000) + DRAIN_GRACE;
+        while (processed.get() < events && System.currentTimeMillis() < deadline) {
+            sleep(10);
+        }
+        return new Result(achievedRate, arrivalLatency, sendLatency, events - processed.get());
+    }
+
+    /**
+     * Formats the percentiles of a histogram of latencies in ms
+     */
+    private static String summary(LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return "-";
+        }
+        return histogram.getValueAtPercentile(50) + "/" + histogram.getValueAtPercentile(99) + "/"
+                + histogram.getValueAtPercentile(99.9) + "/" + histogram.getMax() + " ms";
+    }
+
+    private static double[] parseList(String value) {
+        String[] parts = value.split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The latencies of one run
+     */
+    private static class Result {
+        final double achievedRate;
+        final LatencyHistogram arrivalLatency;
+        final LatencyHistogram sendLatency;
+        final long missing;
+
+        Result(double achievedRate, LatencyHistogram arrivalLatency, LatencyHistogram sendLatency, long missing) {
+            this.achievedRate = achievedRate;
+            this.arrivalLatency = arrivalLatency;
+            this.sendLatency = sendLatency;
+            this.missing = missing;
+        }
+    }
+
+    /**
+     * Runs the harness, see the class documentation for the options
+     * @param args the command line options
+     */
+    public static void main(String[] args) {
+        try {
+            new LatencyHarness(args).run();
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR -> " + e.getMessage());
+            System.exit(2);
+        } catch (IOException e) {
+            System.out.println("ERROR -> " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,251 @@
+package cpen221.mp3.loadgen;
+
+import cpen221.mp3.event.Event;
+import cpen221.mp3.handler.MessageHandler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives a MessageHandler with a fleet of virtual sensors and actuators. The entities share a
+ * configurable number of connections (the fan-in), send at a target total rate and can send a
+ * share of their events out of order. Run with the loadgen gradle task, e.g.
+ * <pre>
+ *   gradle loadgen --args="--entities=50000 --connections=200 --rate=20000 --disorder=5"
+ * </pre>
+ * Options, all of the form --name=value:
+ * <ul>
+ *     <li>host, port: the MessageHandler to drive (default: loopback, MessageHandler.MESSAGE_HANDLER_PORT)</li>
+ *     <li>start-handler: true to start a MessageHandler on the port in this process (default false)</li>
+ *     <li>entities: the number of virtual entities (default 50000)</li>
+ *     <li>actuators: the fraction of the entities that are actuators (default 0.1)</li>
+ *     <li>clients: the number of clients the entities are registered for (default 10)</li>
+ *     <li>connections: the number of connections the entities share (default 100)</li>
+ *     <li>rate: the target total rate in events/s, 0 for as fast as possible (default 10000)</li>
+ *     <li>duration: how long to run, in s (default 30)</li>
+ *     <li>disorder: the percentage of events sent with a time stamp in the past (default 0)</li>
+ *     <li>max-lag: how far in the past a disordered event can be, in ms (default 1000)</li>
+ *     <li>replay: a CSV in the data/tests format to replay instead of generating readings</li>
+ *     <li>batch, linger: the batching of each connection, see BatchingWriter (default 64, 5ms)</li>
+ *     <li>report: the interval between throughput reports, in s (default 1)</li>
+ *     <li>seed: the seed of the fleet layout (default 221)</li>
+ * </ul>
+ */
+//REP INVARIANTS: entities, clients, connections >= 1, 0 <= actuators <= 1, rate >= 0,
+//                duration > 0, 0 <= disorder <= 100, maxLag >= 1, batch >= 1, linger >= 0, report > 0
+public class LoadGenerator {
+    private String host = null;
+    private int port = MessageHandler.MESSAGE_HANDLER_PORT;
+    private boolean startHandler = false;
+    private int entities = 50000;
+    private double actuators = 0.1;
+    private int clients = 10;
+    private int connections = 100;
+    private double rate = 10000;
+    private double duration = 30;
+    private double disorder = 0;
+    private long maxLag = 1000;
+    private String replay = null;
+    private int batch = 64;
+    private long linger = 5;
+    private double report = 1;
+    private long seed = 221;
+
+    /**
+     * Creates a load generator from command line options
+     * @param args the options, each of the form --name=value
+     * @throws IllegalArgumentException if an option is unknown or its value is invalid
+     */
+    public LoadGenerator(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Options must be of the form --name=value: " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "host" -> host = value;
+                case "port" -> port = Integer.parseInt(value);
+                case "start-handler" -> startHandler = Boolean.parseBoolean(value);
+                case "entities" -> entities = Integer.parseInt(value);
+                case "actuators" -> actuators = Double.parseDouble(value);
+                case "clients" -> clients = Integer.parseInt(value);
+                case "connections" -> connections = Integer.parseInt(value);
+                case "rate" -> rate = Double.parseDouble(value);
+                case "duration" -> duration = Double.parseDouble(value);
+                case "disorder" -> disorder = Double.parseDouble(value);
+                case "max-lag" -> maxLag = Long.parseLong(value);
+                case "replay" -> replay = value;
+                case "batch" -> batch = Integer.parseInt(value);
+                case "linger" -> linger = Long.parseLong(value);
+                case "report" -> report = Double.parseDouble(value);
+                case "seed" -> seed = Long.parseLong(value);
+                default -> throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        if (entities < 1 || clients < 1 || connections < 1 || actuators < 0 || actuators > 1 || rate < 0
+                || duration <= 0 || disorder < 0 || disorder > 100 || maxLag < 1 || batch < 1 || linger < 0 || report <= 0) {
+            throw new IllegalArgumentException("Option out of range, see the LoadGenerator documentation");
+        }
+    }
+
+    /**
+     * Gets the email the load generator uses for a client
+     * @param clientId the id of the client
+     * @return the email of the client
+     */
+    static String emailOf(int clientId) {
+        return "client" + clientId + "@loadgen.test";
+    }
+
+    /**
+     * Runs the fleet for the configured duration, printing the achieved throughput
+     * every report interval and a summary at the end
+     * @return the achieved average rate, in events/s
+     * @throws IOException if the replay file can't be read
+     */
+    public double run() throws IOException {
+        if (startHandler) {
+            new MessageHandler(port);
+        }
+
+        List<EventSource> sources = replay == null ? syntheticSources() : replaySources();
+        double ratePerConnection = rate / sources.size();
+        LongAdder sent = new LongAdder();
+        LongAdder disordered = new LongAdder();
+
+        List<FleetConnection> fleet = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            FleetConnection connection = new FleetConnection(i, host, port, sources.get(i), ratePerConnection,
+                    disorder / 100, maxLag, batch, linger, sent, disordered);
+            Thread thread = new Thread(connection, "loadgen-connection-" + i);
+            thread.setDaemon(true);
+            fleet.add(connection);
+            threads.add(thread);
+        }
+
+        System.out.println("Load generator: " + entities + " entities over " + fleet.size() + " connections (fan-in "
+                + entities / fleet.size() + "), target " + (rate == 0 ? "unthrottled" : rate + " events/s")
+                + ", disorder " + disorder + "%" + (replay == null ? "" : ", replaying " + replay));
+
+        long start = System.nanoTime();
+        long end = start + (long) (duration * 1e9);
+        threads.forEach(Thread::start);
+
+        long lastReport = start;
+        long lastSent = 0;
+        try {
+            while (System.nanoTime() < end) {
+                Thread.sleep(Math.max(1, Math.min((long) (report * 1000), (end - System.nanoTime()) / 1_000_000)));
+                long now = System.nanoTime();
+                long total = sent.sum();
+                System.out.printf("t=%.1fs sent=%d rate=%.0f events/s%n",
+                        (now - start) / 1e9, total, (total - lastSent) * 1e9 / Math.max(1, now - lastReport));
+                lastReport = now;
+                lastSent = total;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        fleet.forEach(FleetConnection::stop);
+        for (Thread thread : threads) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long total = sent.sum();
+        long failed = fleet.stream().filter(FleetConnection::hasFailed).count();
+        double achieved = total / elapsed;
+        System.out.printf("Sent %d events (%d disordered) in %.2fs: %.0f events/s achieved, target %s, %d/%d connections failed%n",
+                total, disordered.sum(), elapsed, achieved, rate == 0 ? "unthrottled" : String.format("%.0f events/s", rate),
+                failed, fleet.size());
+        return achieved;
+    }
+
+    /**
+     * Lays out the virtual fleet: each entity is an actuator with the configured probability,
+     * otherwise a sensor of a random type, and entity i is behind connection i mod connections
+     * @return one source per connection
+     */
+    private List<EventSource> syntheticSources() {
+        Random random = new Random(seed);
+        int used = Math.min(connections, entities);
+        List<List<VirtualEntity>> partitions = new ArrayList<>();
+        for (int i = 0; i < used; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (int id = 0; id < entities; id++) {
+            boolean isActuator = random.nextDouble() < actuators;
+            String type = isActuator
+                    ? VirtualEntity.ACTUATOR_TYPE
+                    : VirtualEntity.SENSOR_TYPES[random.nextInt(VirtualEntity.SENSOR_TYPES.length)];
+            partitions.get(id % used).add(new VirtualEntity(id, id % clients, type, isActuator));
+        }
+
+        List<EventSource> sources = new ArrayList<>();
+        for (List<VirtualEntity> partition : partitions) {
+            sources.add(new SyntheticEventSource(partition));
+        }
+        return sources;
+    }
+
+    /**
+     * Splits the recording by entity, entity id mod connections picks the connection, so every
+     * entity's events stay in recorded order on one connection
+     * @return one source per connection that has events
+     * @throws IOException if the replay file can't be read
+     */
+    private List<EventSource> replaySources() throws IOException {
+        List<Event> recorded = ReplayEventSource.readCsv(replay);
+        List<List<Event>> partitions = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        Set<Integer> entityIds = new HashSet<>();
+        for (Event event : recorded) {
+            partitions.get(event.getEntityId() % connections).add(event);
+            entityIds.add(event.getEntityId());
+        }
+        entities = Math.max(1, entityIds.size());
+
+        long start = System.currentTimeMillis();
+        List<EventSource> sources = new ArrayList<>();
+        for (List<Event> partition : partitions) {
+            if (!partition.isEmpty()) {
+                sources.add(new ReplayEventSource(partition, start));
+            }
+        }
+        if (sources.isEmpty()) {
+            throw new IOException("No events in " + replay);
+        }
+        return sources;
+    }
+
+    /**
+     * Runs the load generator, see the class documentation for the options
+     * @param args the command line options
+     */
+    public static void main(String[] args) {
+        try {
+            new LoadGenerator(args).run();
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR -> " + e.getMessage());
+            System.exit(2);
+        } catch (IOException e) {
+            System.out.println("ERROR -> " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
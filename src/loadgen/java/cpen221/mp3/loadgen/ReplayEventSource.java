@@ -0,0 +1,83 @@
+package cpen221.mp3.loadgen;
+
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.EventCsvParser;
+import cpen221.mp3.event.SensorEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+//REP INVARIANTS: events is not empty, 0 <= next < events.size(), span > 0, startTime >= 0
+public class ReplayEventSource implements EventSource {
+    private final List<Event> events;
+    private final double firstTimeStamp;
+    private final double span; //in ms, the time covered by one pass over the events
+    private final long startTime;
+
+    private int next = 0;
+    private long loop = 0;
+
+    /**
+     * Creates a source that replays recorded events in file order, looping when it runs out.
+     * Time stamps are rebased so the recording starts at startTime and every loop continues
+     * where the previous one ended, the order within the recording (including any disorder)
+     * is kept.
+     *
+     * @param events the recorded events with time stamps in seconds, must not be empty
+     * @param startTime the time the replay starts, in ms
+     */
+    public ReplayEventSource(List<Event> events, long startTime) {
+        if (events.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to replay");
+        }
+        this.events = new ArrayList<>(events);
+        this.startTime = startTime;
+
+        double first = Double.MAX_VALUE;
+        double last = -Double.MAX_VALUE;
+        for (Event event : events) {
+            first = Math.min(first, event.getTimeStamp());
+            last = Math.max(last, event.getTimeStamp());
+        }
+        this.firstTimeStamp = first;
+        this.span = (last - first) * 1000 + 1;
+    }
+
+    @Override
+    public Event next(long now) {
+        Event recorded = events.get(next);
+        double timeStamp = startTime + loop * span + (recorded.getTimeStamp() - firstTimeStamp) * 1000;
+
+        next++;
+        if (next == events.size()) {
+            next = 0;
+            loop++;
+        }
+        return withTimeStamp(recorded, timeStamp);
+    }
+
+    /**
+     * Reads the events of a CSV file in the data/tests format, see EventCsvParser
+     * @param filePath the path of the CSV file
+     * @return the events in file order
+     * @throws IOException if the file can't be read or is not in the expected format
+     */
+    public static List<Event> readCsv(String filePath) throws IOException {
+        return EventCsvParser.readEvents(filePath);
+    }
+
+    /**
+     * Copies an event with a new time stamp
+     * @param event the event to copy
+     * @param timeStamp the time stamp of the copy
+     * @return the copy
+     */
+    static Event withTimeStamp(Event event, double timeStamp) {
+        if (event instanceof ActuatorEvent) {
+            return new ActuatorEvent(timeStamp, event.getClientId(), event.getEntityId(), event.getEntityType(), event.getValueBoolean());
+        }
+        return new SensorEvent(timeStamp, event.getClientId(), event.getEntityId(), event.getEntityType(), event.getValueDouble());
+    }
+}
@@ -0,0 +1,31 @@
+package cpen221.mp3.loadgen;
+
+import cpen221.mp3.event.Event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//REP INVARIANTS: entities is not empty, 0 <= next < entities.size()
+public class SyntheticEventSource implements EventSource {
+    private final List<VirtualEntity> entities;
+    private int next = 0;
+
+    /**
+     * Creates a source that cycles through the entities sharing one connection,
+     * each produces a fresh reading stamped with the current time
+     * @param entities the entities behind the connection, must not be empty
+     */
+    public SyntheticEventSource(List<VirtualEntity> entities) {
+        if (entities.isEmpty()) {
+            throw new IllegalArgumentException("A connection needs at least one entity");
+        }
+        this.entities = new ArrayList<>(entities);
+    }
+
+    @Override
+    public Event next(long now) {
+        VirtualEntity entity = entities.get(next);
+        next = (next + 1) % entities.size();
+        return entity.nextEvent(now);
+    }
+}
@@ -0,0 +1,86 @@
+package cpen221.mp3.loadgen;
+
+import cpen221.mp3.entity.Actuator;
+import cpen221.mp3.entity.Sensor;
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+
+//REP INVARIANTS: type != null, clientId >= 0
+public class VirtualEntity {
+    public static final String[] SENSOR_TYPES = {"TempSensor", "PressureSensor", "CO2Sensor"};
+    public static final String ACTUATOR_TYPE = "Switch";
+
+    private final int id;
+    private final int clientId;
+    private final String type;
+    private final boolean isActuator;
+
+    /**
+     * Creates a virtual entity, it has no socket of its own and only produces events
+     * @param id the unique id of the entity
+     * @param clientId the id of the client the entity is registered for
+     * @param type the type of the entity
+     * @param isActuator true if the entity produces ActuatorEvents
+     */
+    public VirtualEntity(int id, int clientId, String type, boolean isActuator) {
+        this.id = id;
+        this.clientId = clientId;
+        this.type = type;
+        this.isActuator = isActuator;
+    }
+
+    /**
+     * Gets the id of the entity
+     * @return the id of the entity
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Gets the id of the client the entity is registered for
+     * @return the id of the client
+     */
+    public int getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Gets the type of the entity
+     * @return the type of the entity
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Checks whether the entity is an actuator
+     * @return true if the entity produces ActuatorEvents
+     */
+    public boolean isActuator() {
+        return isActuator;
+    }
+
+    /**
+     * Generates the next reading of this entity, with the same value distributions as
+     * the real Sensor and Actuator
+     * @param timeStamp the time stamp of the event, in ms
+     * @return the generated event
+     */
+    public Event nextEvent(double timeStamp) {
+        if (isActuator) {
+            return new ActuatorEvent(timeStamp, clientId, id, type, Actuator.generateSwitchValue());
+        }
+        switch (type) {
+            case "TempSensor":
+                return new SensorEvent(timeStamp, clientId, id, type, Sensor.generateTempSensorValue());
+            case "PressureSensor":
+                return new SensorEvent(timeStamp, clientId, id, type, Sensor.generatePressureSensorValue());
+            case "CO2Sensor":
+                return new SensorEvent(timeStamp, clientId, id, type, Sensor.generateCO2SensorValue());
+            default:
+                return new SensorEvent(timeStamp, clientId, id, type, Sensor.generateSwitchValue());
+        }
+    }
+}
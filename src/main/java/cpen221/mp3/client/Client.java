@@ -1,10 +1,14 @@
 package cpen221.mp3.client;
 
+import cpen221.mp3.entity.BatchingWriter;
+import cpen221.mp3.entity.CreditGate;
 import cpen221.mp3.entity.Entity;
 import cpen221.mp3.event.ActuatorEvent;
 import cpen221.mp3.event.Event;
 import cpen221.mp3.event.SensorEvent;
 import cpen221.mp3.handler.MessageHandler;
+import cpen221.mp3.logging.Level;
+import cpen221.mp3.logging.Logger;
 
 import java.io.*;
 import java.net.ServerSocket;
@@ -14,6 +18,10 @@ import java.util.regex.*;
 
 //REP INVARIANTS: clientId not null, serverIP not null, serverPort not null, email not null
 public class Client {
+    public static final int ENTITY_CREDIT_WINDOW = 64; //in events, granted to flow-controlled entities
+
+    private static final Logger LOG = Logger.get("client");
+    private static final Logger EVENT_LOG = Logger.get("client.events");
 
     private final int clientId;
     private final String email;
@@ -23,7 +31,9 @@ public class Client {
     // Rep invariant: socket, in, out != null
     private final ServerSocket entitySocket; //acts as a server for an entity
     private Socket destinationSocket; //holds the socket of the server
-    private final PrintWriter out;
+    private final BatchingWriter out;
+    // the credit granted by the server when flow control is on, null when it is off
+    private volatile CreditGate credits = null;
 
     public final Map<Integer, Integer> eventsReceived;
 
@@ -52,7 +62,7 @@ public class Client {
             destinationSocket = new Socket(this.serverIP, this.serverPort);
             entitySocket = new ServerSocket(0); //basically assign a random port that is empty
             System.out.println("Assigned port: " + entitySocket.getLocalPort()); //print the port number
-            out = new PrintWriter(new OutputStreamWriter(destinationSocket.getOutputStream()));
+            out = new BatchingWriter(destinationSocket.getOutputStream());
 
             //Set the entity port chosen by random 0 default val
             entityPort = entitySocket.getLocalPort();
@@ -89,6 +99,13 @@ public class Client {
             if (entity.registerForClient(this.clientId)) {
                 //successfully registered for this client
                 this.eventsReceived.put(entity.getId(), 0);
+                if (entity.isActuator()) {
+                    //tell the server where to send commands for this actuator
+                    Request registration = new Request(RequestType.CONFIG, RequestCommand.CONFIG_REGISTER_ACTUATOR, entity.toString());
+                    registration.setClientId(this.clientId);
+                    registration.setEmail(this.email);
+                    sendRequest(registration);
+                }
                 return true;
             }
         }
@@ -107,13 +124,88 @@ public class Client {
      * @param request the request to be sent
      */
     public void sendRequest(Request request) {
-        out.println(request.toString() + "\n");
-        out.flush(); //makes sure that the server gets the request
+        try {
+            awaitCredit();
+            out.writeLine(request.toString());
+            out.flush(); //makes sure that the server gets the request, even in batched mode
+        } catch (IOException e) {
+            System.out.println("Error sending request: " + e.getMessage());
+        }
     }
 
+    /**
+     * Forwards an event to the server, tagged with this client's id and email
+     * @param event the event to be sent
+     */
     public void sendEvent(Event event) {
-        out.println(event.toString() + "," + this.clientId + "," + this.email + "\n");
-        out.flush(); //makes sure that the server gets the request
+        try {
+            awaitCredit();
+            out.writeLine(event.toString() + "," + this.clientId + "," + this.email);
+        } catch (IOException e) {
+            System.out.println("Error sending event: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Turns batched forwarding of events on or off. In batched mode events are flushed to the
+     * server once batchSize of them are buffered or the oldest has waited lingerMillis.
+     * Requests are always sent immediately.
+     *
+     * @param batchSize the number of events per flush, 1 sends every event immediately
+     * @param lingerMillis the max time an event waits before it is sent, in ms
+     */
+    public void setBatching(int batchSize, long lingerMillis) {
+        try {
+            out.setBatching(batchSize, lingerMillis);
+        } catch (IOException e) {
+            System.out.println("Error sending event: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Turns credit-based flow control towards the server on or off, see CreditGate. With it on,
+     * forwarding an event or sending a request waits for credit from the server, and the
+     * entities this client grants credit to are held back in turn.
+     *
+     * @param enabled true to send only as fast as the server grants credit
+     */
+    public synchronized void setFlowControl(boolean enabled) {
+        if (enabled == (credits != null)) {
+            return;
+        }
+        if (!enabled) {
+            credits.close();
+            credits = null;
+            return;
+        }
+        try {
+            CreditGate gate = new CreditGate();
+            out.writeLine(CreditGate.HELLO);
+            out.flush();
+            gate.readGrants(destinationSocket.getInputStream(), "Client " + clientId + " credits");
+            credits = gate;
+        } catch (IOException e) {
+            System.out.println("Error starting flow control: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits for a credit from the server if flow control is on. Buffered lines are flushed
+     * first, the server only grants more once it has read them.
+     * @throws IOException if flushing the buffered lines fails
+     */
+    private void awaitCredit() throws IOException {
+        CreditGate gate = this.credits;
+        if (gate == null || gate.tryAcquire()) {
+            return;
+        }
+        out.flush();
+        try {
+            //false if the server closed the connection, the write that follows reports it
+            gate.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -166,7 +258,7 @@ public class Client {
      * @throws IOException if the event is ill-formatted, we return 0
      */
     private void handle(Socket socket) throws IOException {
-        System.out.println("client connected");
+        LOG.info("client connected");
 
         BufferedReader input = new BufferedReader(new InputStreamReader(
                 socket.getInputStream()));
@@ -174,11 +266,21 @@ public class Client {
         PrintWriter out = new PrintWriter(new OutputStreamWriter(
                 socket.getOutputStream())); //we may not need this, depends on how we communicate with actuators
 
+        // lines forwarded since the entity was last granted credit, -1 if it did not ask for flow control
+        int forwarded = -1;
         try {
             // each event is a single line
             for (String line = input.readLine(); line != null; line = input.readLine()) {
+                if (CreditGate.isHello(line)) {
+                    out.println(CreditGate.creditLine(ENTITY_CREDIT_WINDOW));
+                    out.flush();
+                    forwarded = 0;
+                    continue;
+                }
 
-                System.out.println("request: " + line);
+                if (EVENT_LOG.isEnabled(Level.DEBUG)) {
+                    EVENT_LOG.sampled(Level.DEBUG, "request: " + line);
+                }
                 try {
                     Event newEvent = parseEvent(line);
                     assert newEvent != null;
@@ -186,11 +288,17 @@ public class Client {
                     passedEvents.add(newEvent);
                     sendEvent(newEvent);
                     if(newEvent instanceof ActuatorEvent) {
-                        System.out.println("the event received is from an actuator.");
+                        EVENT_LOG.sampled(Level.DEBUG, "the event received is from an actuator.");
                     }
                 } catch (NumberFormatException|Error e) {
                     // complain about ill-formatted request
-                    System.out.println("reply: err");
+                    EVENT_LOG.sampled(Level.WARN, "reply: err");
+                }
+                if (forwarded >= 0 && ++forwarded >= ENTITY_CREDIT_WINDOW / 2) {
+                    //sendEvent waits for the server's credit, so the entity is paced by the server
+                    out.println(CreditGate.creditLine(forwarded));
+                    out.flush();
+                    forwarded = 0;
                 }
             }
         } finally {
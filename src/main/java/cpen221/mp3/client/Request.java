@@ -119,6 +119,14 @@ public class Request {
         this.email = email;
     }
 
+    /**
+     * Gets the clientID of the request
+     * @return the clientID, 0 if it was never set
+     */
+    public int getClientId() {
+        return clientId;
+    }
+
     /**
      * Sets the clientID of the request
      * @param clientId the clientID it should be set to
@@ -2,6 +2,8 @@ package cpen221.mp3.client;
 
 public enum RequestCommand {
     CONFIG_UPDATE_MAX_WAIT_TIME,
+    CONFIG_REGISTER_ACTUATOR,
+    CONFIG_UPDATE_COMMAND_COALESCING_WINDOW,
     CONTROL_SET_ACTUATOR_STATE,
     CONTROL_TOGGLE_ACTUATOR_STATE,
     CONTROL_NOTIFY_IF,
@@ -9,6 +11,10 @@ public enum RequestCommand {
     ANALYSIS_GET_ALL_ENTITIES,
     ANALYSIS_GET_LATEST_EVENTS,
     ANALYSIS_GET_MOST_ACTIVE_ENTITY,
+    ANALYSIS_GET_AGGREGATE_IN_WINDOW,
+    ANALYSIS_GET_QUANTILE_IN_WINDOW,
+    ANALYSIS_GET_HEAVY_HITTERS,
+    ANALYSIS_GET_DISTINCT_ENTITY_COUNT,
     PREDICT_NEXT_N_TIMESTAMPS,
     PREDICT_NEXT_N_VALUES,
     SET_STATE,
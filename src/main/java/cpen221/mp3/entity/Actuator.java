@@ -5,6 +5,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.sql.Timestamp;
 import java.text.DecimalFormat;
+import java.util.concurrent.ScheduledFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -15,11 +16,15 @@ import cpen221.mp3.client.RequestType;
 import cpen221.mp3.event.ActuatorEvent;
 import cpen221.mp3.event.Event;
 import cpen221.mp3.handler.MessageHandler;
+import cpen221.mp3.logging.Level;
+import cpen221.mp3.logging.Logger;
 import cpen221.mp3.server.Server;
 import cpen221.mp3.server.SeverCommandToActuator;
 
 //REP INVARIANTS: id, type, init_state != null
 public class Actuator implements Entity {
+    private static final Logger COMMAND_LOG = Logger.get("actuator.commands");
+
     private final int id;
     private int clientId;
     private final String type;
@@ -33,7 +38,9 @@ public class Actuator implements Entity {
 
 
     private BufferedReader serverIn;
-    private PrintWriter clientOutput;
+
+    // the connection events are sent on, it reconnects on its own and spools events while down
+    private final EntityConnection clientOutput;
 
     private String host = null;
 
@@ -41,12 +48,12 @@ public class Actuator implements Entity {
     private boolean hasSentEvent = false;
 
 
-    // Socket to send events to
-    private Socket eventSocket;
-
     // Socket to receive server messages
     private ServerSocket serverSocket;
 
+    // the periodic event generation task on the shared scheduler, null if not generating
+    private ScheduledFuture<?> generationTask = null;
+
 
     /**
      * Create a new actuator with the given id, type, and initial state and unset client Id.
@@ -59,6 +66,7 @@ public class Actuator implements Entity {
         this.clientId = -1;         // remains unregistered
         this.type = type;
         this.state = init_state;
+        this.clientOutput = new EntityConnection("Actuator " + id);
     }
 
     /**
@@ -73,6 +81,7 @@ public class Actuator implements Entity {
         this.clientId = clientId;   // registered for the client
         this.type = type;
         this.state = init_state;
+        this.clientOutput = new EntityConnection("Actuator " + id);
 
     }
 
@@ -89,6 +98,7 @@ public class Actuator implements Entity {
         this.clientId = -1;         // remains unregistered
         this.type = type;
         this.state = init_state;
+        this.clientOutput = new EntityConnection("Actuator " + id);
         this.serverIP = serverIP;
         this.entityPort = entityPort;
 
@@ -111,6 +121,7 @@ public class Actuator implements Entity {
         this.clientId = clientId;   // registered for the client
         this.type = type;
         this.state = init_state;
+        this.clientOutput = new EntityConnection("Actuator " + id);
         this.serverIP = serverIP;
         this.entityPort = entityPort;
 
@@ -125,27 +136,9 @@ public class Actuator implements Entity {
      * @param entityPort the port number of the endpoint
      */
     private void createEntitySocket(String serverIP, int entityPort){
-        Socket socket = null;
-
-        try{
-
-            socket = new Socket(serverIP, entityPort);
-            clientOutput = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()));
-
-
-            entityPort = socket.getLocalPort();
-
-            Thread startActuator = new Thread(() -> {
-                setEventGenerationFrequency(eventGenerationFrequency); // start the actuator event generation
-            });
-            startActuator.start();
-
-        }
-        catch (Exception e){
-            System.out.println("ERROR setting Entity Constructor Endpoint: "+e);
-        }
-
+        clientOutput.connect(serverIP, entityPort);
 
+        setEventGenerationFrequency(eventGenerationFrequency); // start the actuator event generation
     }
 
     /**
@@ -164,8 +157,9 @@ public class Actuator implements Entity {
     public void createServerSocket(int serverport){
         try {
 
-            this.serverPort = serverport;
             serverSocket = new ServerSocket(serverport);
+            // port 0 binds to any free port, keep the one actually chosen so servers can reach us
+            this.serverPort = serverSocket.getLocalPort();
 
             // start the entity Server
             Thread startActuatorServer = new Thread(this::start);
@@ -264,44 +258,45 @@ public class Actuator implements Entity {
     }
 
     /**
-     * Sets the frequency of event generation for the actuator and start the generation of events
-     * @param frequency the frequency of event generation in Hz (1/s)
+     * Sets the frequency of event generation for the actuator and start the generation of events.
+     * Events are generated on the shared EventGenerationScheduler, this method does not block.
+     * No events are generated while the actuator is not registered for a client.
+     *
+     * @param frequency the frequency of event generation in Hz (1/s), must be > 0
      */
-    public void setEventGenerationFrequency(double frequency){
-        int tryCount = 0;
-
+    public synchronized void setEventGenerationFrequency(double frequency){
         this.eventGenerationFrequency = frequency;
 
+        if (generationTask != null) {
+            generationTask.cancel(false);
+        }
+        generationTask = EventGenerationScheduler.shared().scheduleAtFrequency(this::generateEvent, frequency);
+    }
+
+    /**
+     * Stops generating events
+     */
+    public synchronized void stopEventGeneration() {
+        if (generationTask != null) {
+            generationTask.cancel(false);
+            generationTask = null;
+        }
+    }
+
+    /**
+     * Generates and sends one event, called by the scheduler at the event generation frequency
+     */
+    private void generateEvent() {
         double commandTime = System.currentTimeMillis();
+        if (this.clientId == -1) {
+            return;
+        }
 
-        while (this.clientId != -1) {
-            double currentTime = System.currentTimeMillis();
-            if(currentTime-commandTime >=  1000/frequency) {
-                //wait 5 seconds
-                //Start by getting time at beginning of loop, this is used for while loop frequency
-                commandTime = System.currentTimeMillis();
-
-                if (tryCount >= 5) {
-                    try {
-                        System.out.println("WARNING -> Actuator: " + this.id + " has failed to connect to server 5 consecutive times, thread will sleep for 10s and retry ");
-                        tryCount = 0;
-                        Thread.sleep(10000); //sleep 10 * 1000 ms = 10s
-                        break;
-
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                } else {
-
-                    tryCount = 0;
-                    try {
-                        sendEvent(new ActuatorEvent(commandTime, this.clientId, this.id, this.type, generateSwitchValue()));
-                    } catch (Exception e) {
-                        System.out.println("ERROR setting new Entity Endpoint, retrying connection..... " + e);
-                        tryCount += 1;
-                    }
-                }
-            }
+        try {
+            sendEvent(new ActuatorEvent(commandTime, this.clientId, this.id, this.type, generateSwitchValue()));
+        } catch (Exception e) {
+            // an exception escaping the tick would cancel it on the scheduler
+            System.out.println("ERROR generating Entity event: " + e);
         }
     }
 
@@ -322,14 +317,42 @@ public class Actuator implements Entity {
     }
 
     /**
-     * Sends an event to the entity endpoint
+     * Sends an event to the entity endpoint. If the connection is down the event is spooled
+     * and sent as soon as the connection comes back, this method does not block on it
      * @param event the event to be sent
      */
     public void sendEvent(Event event) {
+        clientOutput.send(event.toString());
+    }
 
-        clientOutput.println(event.toString());
-        clientOutput.flush();
+    /**
+     * Turns batched sending on or off. In batched mode events are flushed to the endpoint
+     * once batchSize of them are buffered or the oldest has waited lingerMillis
+     *
+     * @param batchSize the number of events per flush, 1 sends every event immediately
+     * @param lingerMillis the max time an event waits before it is sent, in ms
+     */
+    public void setBatching(int batchSize, long lingerMillis) {
+        clientOutput.setBatching(batchSize, lingerMillis);
+    }
 
+    /**
+     * Turns credit-based flow control on or off. With it on the endpoint paces the events:
+     * ones it has no room for wait in the spool, which keeps the most recent, instead of
+     * piling up at the endpoint
+     *
+     * @param enabled true to send only as fast as the endpoint grants credit
+     */
+    public void setFlowControl(boolean enabled) {
+        clientOutput.setFlowControl(enabled);
+    }
+
+    /**
+     * Gets the number of events waiting for the connection to the endpoint to come back
+     * @return the number of spooled events
+     */
+    public int getSpooledEvents() {
+        return clientOutput.spooledEvents();
     }
 
     /**
@@ -362,10 +385,14 @@ public class Actuator implements Entity {
      * @throws IOException
      */
     public void close() throws IOException {
-        serverIn.close();
+        stopEventGeneration();
+        if (serverIn != null) {
+            serverIn.close();
+        }
         clientOutput.close();
-        eventSocket.close();
-        serverSocket.close();
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
     }
 
     /**
@@ -408,39 +435,43 @@ public class Actuator implements Entity {
                 Socket incomingSocket = serverSocket.accept();
                 System.out.println("Server connected: " + incomingSocket.getInetAddress().getHostAddress());
 
-                // deserializer ServerMessageToActuator
-                serverIn = new BufferedReader(new InputStreamReader(incomingSocket.getInputStream()));
-                try {
-                    // each event is a single line
-                    for (String line = serverIn.readLine(); line != null; line = serverIn.readLine()) {
-
-                        System.out.println("request: " + line);
-
-                        Pattern patternR = Pattern.compile("TimeStamp=([-+]?[0-9]+\\.[0-9]+),RequestType=(.+),RequestCommand=(.+),requestData=(.+), clientId=(.+), email=(.+)");
-                        Matcher matcherR = patternR.matcher(line);
-
-                        //parsing the event data
-                        if (matcherR.find()) {
+                // servers keep their connection open and send many commands over it,
+                // so each connection is read on its own thread
+                Thread serverConnection = new Thread(() -> handleServerConnection(incomingSocket));
+                serverConnection.start();
+            }
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
 
-                            //Registering a new entity ?? NOT SURE IF THIS WORKS
-                            Request request = new Request(Double.parseDouble(matcherR.group(1)),
-                                    RequestType.valueOf(matcherR.group(2).trim()),
-                                    RequestCommand.valueOf(matcherR.group(3).trim()),
-                                    matcherR.group(4).trim());
+    /**
+     * Reads commands from a server connection until the server closes it
+     * @param incomingSocket the connection to the server
+     */
+    private void handleServerConnection(Socket incomingSocket) {
+        Pattern patternR = Pattern.compile("TimeStamp=([-+]?\\d+\\.\\d+(E\\d+)?),RequestType=(.+),RequestCommand=(.+),requestData=\\{(.*)},clientId=(.+),email=(.*)}");
 
+        // deserializer ServerMessageToActuator
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(incomingSocket.getInputStream()))) {
+            serverIn = in;
+            // each command is a single line
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
 
-                            processServerMessage(request);
+                COMMAND_LOG.sampled(Level.INFO, "request: " + line);
 
-                            break;
+                Matcher matcherR = patternR.matcher(line);
 
-                        }
-                    }
-                } finally {
-                    serverIn.close();
+                //parsing the command data
+                if (matcherR.find()) {
+                    Request request = new Request(Double.parseDouble(matcherR.group(1)),
+                            RequestType.valueOf(matcherR.group(3).trim()),
+                            RequestCommand.valueOf(matcherR.group(4).trim()),
+                            matcherR.group(5).trim());
 
+                    processServerMessage(request);
                 }
-
-
             }
         } catch (Exception e) {
             System.err.println("Error: " + e.getMessage());
@@ -0,0 +1,149 @@
+package cpen221.mp3.entity;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+//REP INVARIANTS: out != null, batchSize >= 1, lingerMillis >= 0, 0 <= pendingLines < batchSize,
+//                unflushed holds the lines written since the last successful flush, oldest first
+public class BatchingWriter implements Closeable {
+    public static final int BUFFER_SIZE = 8192; //in chars
+
+    private final Writer out;
+
+    // lines are flushed once batchSize of them are buffered, or lingerMillis after the first one
+    // a batch size of 1 flushes every line, which is the unbatched mode
+    private int batchSize = 1;
+    private long lingerMillis = 0;
+
+    private int pendingLines = 0;
+    private final List<String> unflushed = new ArrayList<>();
+    private ScheduledFuture<?> lingerFlush = null;
+
+    // a failed background flush is reported to the next caller
+    private IOException deferredFailure = null;
+
+    /**
+     * Creates an unbatched writer for a connection, every line is flushed as soon as it is written
+     * @param out the output stream of the connection
+     */
+    public BatchingWriter(OutputStream out) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Turns batched mode on or off. In batched mode lines are kept in the buffer until batchSize
+     * of them are waiting or the oldest has waited lingerMillis, so many lines share one flush.
+     *
+     * @param batchSize the number of lines per flush, 1 turns batching off, must be >= 1
+     * @param lingerMillis the max time a line waits in the buffer, must be >= 0
+     * @throws IOException if flushing the lines already buffered fails
+     */
+    public synchronized void setBatching(int batchSize, long lingerMillis) throws IOException {
+        if (batchSize < 1 || lingerMillis < 0) {
+            throw new IllegalArgumentException("Batch size must be >= 1 and linger time >= 0");
+        }
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        flush();
+    }
+
+    /**
+     * Writes one line, flushing it now or later depending on the batching mode
+     * @param line the line to write, without the line separator
+     * @throws IOException if this or an earlier background flush failed, the line is then
+     *                     kept with the other lines not flushed yet, see takeUnflushed
+     */
+    public synchronized void writeLine(String line) throws IOException {
+        unflushed.add(line);
+        throwDeferredFailure();
+
+        out.write(line);
+        out.write('\n');
+        pendingLines++;
+
+        if (pendingLines >= batchSize) {
+            flush();
+        } else if (lingerFlush == null) {
+            lingerFlush = EventGenerationScheduler.shared().schedule(this::flushLingering, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes every buffered line to the connection
+     * @throws IOException if the write fails
+     */
+    public synchronized void flush() throws IOException {
+        if (lingerFlush != null) {
+            lingerFlush.cancel(false);
+            lingerFlush = null;
+        }
+        pendingLines = 0;
+        out.flush();
+        unflushed.clear();
+    }
+
+    /**
+     * Removes the lines written since the last successful flush. After a failed write they may
+     * or may not have reached the other end, a caller that must not lose them sends them again.
+     * @return the lines, oldest first
+     */
+    public synchronized List<String> takeUnflushed() {
+        List<String> lines = new ArrayList<>(unflushed);
+        unflushed.clear();
+        return lines;
+    }
+
+    /**
+     * Gets the number of lines written but not flushed yet
+     * @return the number of buffered lines
+     */
+    public synchronized int pendingLines() {
+        return pendingLines;
+    }
+
+    /**
+     * Flushes the buffered lines and closes the connection's output stream
+     * @throws IOException if the flush or close fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (lingerFlush != null) {
+            lingerFlush.cancel(false);
+            lingerFlush = null;
+        }
+        out.close();
+    }
+
+    /**
+     * Called by the scheduler once the linger time of the oldest buffered line has passed
+     */
+    private synchronized void flushLingering() {
+        lingerFlush = null;
+        try {
+            flush();
+        } catch (IOException e) {
+            deferredFailure = e;
+        }
+    }
+
+    /**
+     * Reports a failure of a background flush to the caller, once
+     * @throws IOException the failure of the last background flush, if there was one
+     */
+    private void throwDeferredFailure() throws IOException {
+        if (deferredFailure != null) {
+            IOException failure = deferredFailure;
+            deferredFailure = null;
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package cpen221.mp3.entity;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The sender's side of credit-based flow control on a connection. A sender that wants flow
+ * control sends HELLO as a line of its own; the receiver then grants it credit with
+ * "CREDIT n" lines on the same connection, and the sender sends one line per credit. A
+ * receiver that falls behind stops granting, so its senders hold their lines back instead of
+ * piling them up in the receiver's memory.
+ */
+//REP INVARIANTS: credits >= 0
+public class CreditGate {
+    public static final String HELLO = "FLOW_CONTROL";
+    public static final String CREDIT_PREFIX = "CREDIT ";
+
+    private long credits = 0;
+    private boolean closed = false;
+
+    // run on the reading thread after every grant, null if none
+    private volatile Runnable onGrant = null;
+
+    /**
+     * Checks whether a line asks for flow control
+     * @param line a line read from a connection
+     * @return true if the line is HELLO
+     */
+    public static boolean isHello(String line) {
+        return HELLO.equals(line);
+    }
+
+    /**
+     * Makes the line that grants credit
+     * @param credits the number of lines the sender may send, > 0
+     * @return the line, without the line separator
+     */
+    public static String creditLine(int credits) {
+        return CREDIT_PREFIX + credits;
+    }
+
+    /**
+     * Reads a credit line
+     * @param line a line read from a connection
+     * @return the number of lines granted, -1 if the line does not grant credit
+     */
+    public static int parseCredit(String line) {
+        if (line == null || !line.startsWith(CREDIT_PREFIX)) {
+            return -1;
+        }
+        try {
+            int credits = Integer.parseInt(line.substring(CREDIT_PREFIX.length()).trim());
+            return credits > 0 ? credits : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Adds credit, waking a sender waiting for it
+     * @param credits the number of lines granted, >= 0
+     */
+    public synchronized void grant(long credits) {
+        this.credits += credits;
+        notifyAll();
+    }
+
+    /**
+     * Uses a credit if there is one, never blocks
+     * @return true if a line may be sent
+     */
+    public synchronized boolean tryAcquire() {
+        if (credits == 0) {
+            return false;
+        }
+        credits--;
+        return true;
+    }
+
+    /**
+     * Waits for a credit and uses it
+     * @return true if a line may be sent, false if the connection closed without granting one
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean acquire() throws InterruptedException {
+        while (credits == 0 && !closed) {
+            wait();
+        }
+        if (credits == 0) {
+            return false;
+        }
+        credits--;
+        return true;
+    }
+
+    /**
+     * Gets the credit left
+     * @return the number of lines that may be sent now
+     */
+    public synchronized long available() {
+        return credits;
+    }
+
+    /**
+     * Sets what runs after every grant, e.g. sending lines held back for lack of credit
+     * @param onGrant run on the reading thread, outside the gate's lock, null for nothing
+     */
+    public void setOnGrant(Runnable onGrant) {
+        this.onGrant = onGrant;
+    }
+
+    /**
+     * Marks the connection closed, a sender waiting for credit gives up
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Starts a thread that reads the credit lines the receiver sends on a connection, until
+     * the connection closes. Other lines are ignored.
+     * @param in the input stream of the connection
+     * @param name the name of the thread
+     * @return the started thread
+     */
+    public Thread readGrants(InputStream in, String name) {
+        Thread reader = new Thread(() -> {
+            try {
+                BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+                    int granted = parseCredit(line);
+                    if (granted > 0) {
+                        grant(granted);
+                        Runnable callback = onGrant;
+                        if (callback != null) {
+                            callback.run();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // the connection closed under us, the writer finds out on its own
+            } finally {
+                close();
+            }
+        }, name);
+        reader.setDaemon(true);
+        reader.start();
+        return reader;
+    }
+}
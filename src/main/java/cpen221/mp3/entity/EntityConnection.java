@@ -0,0 +1,389 @@
+package cpen221.mp3.entity;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//REP INVARIANTS: name, spool, backoff != null, writer != null iff socket != null,
+//                credits != null only while connected with flow control on,
+//                the spool is empty while connected unless the connection is out of credit
+public class EntityConnection implements Closeable {
+    public static final int DEFAULT_SPOOL_CAPACITY = 1024; //in events
+    public static final int CONNECT_TIMEOUT = 1000; //in ms
+    public static final int RECONNECT_THREADS = 2;
+
+    //a reconnect attempt blocks for up to CONNECT_TIMEOUT, so attempts get threads of their own
+    //instead of holding up the event generation scheduler
+    private static final ScheduledThreadPoolExecutor RECONNECTS = newReconnectExecutor();
+
+    private final String name;
+    private final EventSpool spool;
+    private final ReconnectBackoff backoff;
+
+    private String serverIP = null;
+    private int serverPort = 0;
+    private boolean hasEndpoint = false;
+
+    private Socket socket = null;
+    private BatchingWriter writer = null;
+    private int batchSize = 1;
+    private long lingerMillis = 0;
+
+    // with flow control on, a line is only sent with a credit granted by the endpoint,
+    // lines without one wait in the spool
+    private boolean flowControl = false;
+    private CreditGate credits = null;
+
+    // the pending reconnect attempt, null if none is pending
+    private ScheduledFuture<?> reconnectTask = null;
+    private boolean closed = false;
+
+    /**
+     * Creates a connection with the default spool capacity and backoff, it is not connected
+     * until an endpoint is given
+     * @param name the name of the entity used in messages, e.g. "Sensor 3"
+     */
+    public EntityConnection(String name) {
+        this(name, DEFAULT_SPOOL_CAPACITY, new ReconnectBackoff());
+    }
+
+    /**
+     * Creates a connection, it is not connected until an endpoint is given
+     * @param name the name of the entity used in messages, e.g. "Sensor 3"
+     * @param spoolCapacity the max number of events kept while disconnected, must be > 0
+     * @param backoff the delays between reconnect attempts
+     */
+    public EntityConnection(String name, int spoolCapacity, ReconnectBackoff backoff) {
+        this.name = name;
+        this.spool = new EventSpool(spoolCapacity);
+        this.backoff = backoff;
+    }
+
+    /**
+     * Connects to a new endpoint, dropping the current connection. If the endpoint can't be
+     * reached now, reconnect attempts continue in the background with a jittered exponential
+     * backoff and events are spooled in the meantime. Lines the current connection had not
+     * flushed yet go back in front of the spool, so they are sent to the new endpoint.
+     *
+     * @param serverIP the IP address of the endpoint, null for the loopback address
+     * @param serverPort the port number of the endpoint
+     */
+    public void connect(String serverIP, int serverPort) {
+        synchronized (this) {
+            this.serverIP = serverIP;
+            this.serverPort = serverPort;
+            this.hasEndpoint = true;
+            this.closed = false;
+            if (reconnectTask != null) {
+                reconnectTask.cancel(false);
+                reconnectTask = null;
+            }
+            backoff.reset();
+            if (writer != null) {
+                spool.addFirst(writer.takeUnflushed());
+            }
+            disconnect();
+        }
+        attemptConnect();
+    }
+
+    /**
+     * Sends one line, or spools it if the connection is down. This never blocks on a
+     * reconnect and never throws: a failed write starts the reconnect attempts.
+     * @param line the line to send, without the line separator
+     */
+    public synchronized void send(String line) {
+        if (writer == null) {
+            spool.add(line);
+            return;
+        }
+        if (credits != null && (spool.size() > 0 || !credits.tryAcquire())) {
+            //out of credit, the endpoint is behind, lines wait their turn in the spool
+            spool.add(line);
+            return;
+        }
+        try {
+            writer.writeLine(line);
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+    }
+
+    /**
+     * Turns batched sending on or off, see BatchingWriter.setBatching
+     * @param batchSize the number of lines per flush, 1 sends every line immediately
+     * @param lingerMillis the max time a line waits before it is sent, in ms
+     */
+    public synchronized void setBatching(int batchSize, long lingerMillis) {
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        if (writer != null) {
+            try {
+                writer.setBatching(batchSize, lingerMillis);
+            } catch (IOException e) {
+                connectionLost(e);
+            }
+        }
+    }
+
+    /**
+     * Turns credit-based flow control on or off, see CreditGate. With it on, the endpoint
+     * paces the sending: lines it has not granted credit for wait in the spool, which drops
+     * the oldest once full, so a slow endpoint makes the entity shed stale events instead of
+     * the endpoint running out of memory. Requires an endpoint that answers CreditGate.HELLO,
+     * such as Client and MessageHandler.
+     * @param enabled true to send only with credit
+     */
+    public synchronized void setFlowControl(boolean enabled) {
+        if (enabled == flowControl) {
+            return;
+        }
+        this.flowControl = enabled;
+        if (writer == null) {
+            return;
+        }
+        if (enabled) {
+            try {
+                startFlowControl(socket, writer);
+            } catch (IOException e) {
+                connectionLost(e);
+            }
+        } else {
+            credits.close();
+            credits = null;
+            sendSpooled();
+        }
+    }
+
+    /**
+     * Gets the credit left on the connection
+     * @return the number of lines that may be sent now, -1 if flow control is off or there is
+     *         no connection
+     */
+    public synchronized long availableCredits() {
+        return credits == null ? -1 : credits.available();
+    }
+
+    /**
+     * Returns true if there is an open connection to the endpoint
+     * @return true if connected
+     */
+    public synchronized boolean isConnected() {
+        return writer != null;
+    }
+
+    /**
+     * Gets the number of events waiting for the connection to come back
+     * @return the number of spooled events
+     */
+    public int spooledEvents() {
+        return spool.size();
+    }
+
+    /**
+     * Gets the number of events dropped because the spool was full
+     * @return the number of dropped events
+     */
+    public long droppedEvents() {
+        return spool.dropped();
+    }
+
+    /**
+     * Stops reconnecting and closes the connection, after sending what is buffered
+     * @throws IOException if closing the socket fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (reconnectTask != null) {
+            reconnectTask.cancel(false);
+            reconnectTask = null;
+        }
+        if (writer != null) {
+            writer.close();
+        }
+        disconnect();
+    }
+
+    /**
+     * Tries to open the connection. On success the spooled events are sent in one batch,
+     * on failure the next attempt is scheduled. The connect itself happens without holding
+     * the lock, so senders keep spooling instead of waiting for it.
+     */
+    private void attemptConnect() {
+        String ip;
+        int port;
+        synchronized (this) {
+            reconnectTask = null;
+            if (closed || !hasEndpoint || writer != null) {
+                return;
+            }
+            ip = this.serverIP;
+            port = this.serverPort;
+        }
+
+        Socket candidate = new Socket();
+        try {
+            InetSocketAddress address = ip == null
+                    ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                    : new InetSocketAddress(ip, port);
+            candidate.connect(address, CONNECT_TIMEOUT);
+            BatchingWriter candidateWriter = new BatchingWriter(candidate.getOutputStream());
+
+            synchronized (this) {
+                if (closed || writer != null || port != this.serverPort || !sameHost(ip, this.serverIP)) {
+                    //the endpoint changed or someone else connected while we were connecting
+                    candidate.close();
+                    return;
+                }
+
+                if (flowControl) {
+                    //the spooled events wait for the endpoint's credit like any other
+                    startFlowControl(candidate, candidateWriter);
+                    this.socket = candidate;
+                    this.writer = candidateWriter;
+                    backoff.reset();
+                    return;
+                }
+
+                List<String> spooled = spool.drain();
+                try {
+                    //all the spooled events share one flush
+                    candidateWriter.setBatching(Math.max(1, spooled.size() + 1), lingerMillis);
+                    for (String line : spooled) {
+                        candidateWriter.writeLine(line);
+                    }
+                    candidateWriter.setBatching(batchSize, lingerMillis);
+                } catch (IOException e) {
+                    //we can't tell how many got through, keep them all to be sent again
+                    spool.addFirst(spooled);
+                    throw e;
+                }
+
+                this.socket = candidate;
+                this.writer = candidateWriter;
+                if (backoff.attempts() > 0 || !spooled.isEmpty()) {
+                    System.out.println(name + " reconnected to the server, sent " + spooled.size() + " spooled events");
+                }
+                backoff.reset();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            try {
+                candidate.close();
+            } catch (IOException ignored) {
+                // nothing to do, the socket was never usable
+            }
+            synchronized (this) {
+                System.out.println("WARNING -> " + name + " could not connect to server " + ip + ":" + port + ": " + e.getMessage());
+                scheduleReconnect();
+            }
+        }
+    }
+
+    /**
+     * Asks the endpoint for credit and starts reading its grants
+     * @throws IOException if sending the request fails
+     */
+    private void startFlowControl(Socket socket, BatchingWriter writer) throws IOException {
+        CreditGate gate = new CreditGate();
+        writer.writeLine(CreditGate.HELLO);
+        writer.flush();
+        gate.setOnGrant(() -> sendGranted(gate));
+        gate.readGrants(socket.getInputStream(), name + " credits");
+        this.credits = gate;
+    }
+
+    /**
+     * Called by the credit reader after a grant, sends the spooled lines it has credit for
+     * @param gate the gate that was granted credit, ignored if the connection moved on
+     */
+    private synchronized void sendGranted(CreditGate gate) {
+        if (gate == credits) {
+            sendSpooled();
+        }
+    }
+
+    /**
+     * Sends spooled lines in order while there is credit, or all of them without flow control
+     */
+    private void sendSpooled() {
+        while (writer != null && spool.size() > 0 && (credits == null || credits.tryAcquire())) {
+            try {
+                writer.writeLine(spool.poll());
+            } catch (IOException e) {
+                connectionLost(e);
+            }
+        }
+    }
+
+    /**
+     * Drops a connection whose write failed and starts the reconnect attempts. The lines the
+     * writer had not flushed go back in front of the spool in order, the line that failed
+     * among them, so they are sent again before anything newer.
+     * @param e the failure
+     */
+    private void connectionLost(IOException e) {
+        System.out.println("WARNING -> " + name + " lost its connection to the server: " + e.getMessage());
+        spool.addFirst(writer.takeUnflushed());
+        disconnect();
+        scheduleReconnect();
+    }
+
+    /**
+     * Schedules the next reconnect attempt after the backoff delay, unless one is pending
+     */
+    private void scheduleReconnect() {
+        if (closed || reconnectTask != null) {
+            return;
+        }
+        reconnectTask = RECONNECTS.schedule(this::attemptConnect, backoff.nextDelay(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the daemon threads the reconnect attempts of every connection run on
+     */
+    private static ScheduledThreadPoolExecutor newReconnectExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(RECONNECT_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "entity-reconnect-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        //a connection that reconnects or closes cancels its pending attempt
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Closes the socket, if any, without flushing
+     */
+    private void disconnect() {
+        if (credits != null) {
+            credits.close();
+            credits = null;
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.out.println("ERROR closing " + name + " connection: " + e.getMessage());
+            }
+        }
+        socket = null;
+        writer = null;
+    }
+
+    /**
+     * Compares two host names, either of which may be null
+     */
+    private static boolean sameHost(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,71 @@
+package cpen221.mp3.entity;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//REP INVARIANTS: executor != null
+public class EventGenerationScheduler {
+    //a handful of threads drive every entity, ticks are short (build and write one event)
+    public static final int DEFAULT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static EventGenerationScheduler shared = null;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Creates a scheduler backed by the given number of threads
+     * @param threads the number of threads driving the entities, must be > 0
+     */
+    public EventGenerationScheduler(int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(threads, runnable -> {
+            Thread thread = new Thread(runnable, "event-generation-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        //entities come and go, don't keep their cancelled ticks in the queue
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Gets the scheduler shared by all entities
+     * @return the shared scheduler, created on first use
+     */
+    public static synchronized EventGenerationScheduler shared() {
+        if (shared == null) {
+            shared = new EventGenerationScheduler(DEFAULT_THREADS);
+        }
+        return shared;
+    }
+
+    /**
+     * Runs a task at the given frequency, the first run happens one period from now.
+     * Runs are paced from the schedule, not from the end of the previous run, so a slow
+     * run does not shift the ones after it. A task must not block, as it shares its thread
+     * with the other entities.
+     *
+     * @param task the task to run, if it throws it is not run again
+     * @param frequency the frequency in Hz (1/s), must be > 0
+     * @return a handle used to cancel the task
+     */
+    public ScheduledFuture<?> scheduleAtFrequency(Runnable task, double frequency) {
+        if (frequency <= 0) {
+            throw new IllegalArgumentException("Event generation frequency must be positive");
+        }
+        long periodNanos = Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / frequency));
+        return executor.scheduleAtFixedRate(task, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Runs a task once after the given delay
+     * @param task the task to run, must not block
+     * @param delay the time to wait before running the task
+     * @param unit the unit of the delay
+     * @return a handle used to cancel the task
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return executor.schedule(task, delay, unit);
+    }
+}
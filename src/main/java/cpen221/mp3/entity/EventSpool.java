@@ -0,0 +1,111 @@
+package cpen221.mp3.entity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//REP INVARIANTS: lines != null, 0 <= size <= lines.length, 0 <= head < lines.length, dropped >= 0
+public class EventSpool {
+    private final String[] lines;
+    private int head = 0;   // index of the oldest line
+    private int size = 0;
+    private long dropped = 0;
+
+    /**
+     * Creates an empty spool
+     * @param capacity the max number of lines kept, must be > 0
+     */
+    public EventSpool(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Spool capacity must be positive");
+        }
+        this.lines = new String[capacity];
+    }
+
+    /**
+     * Adds a line to the spool. If the spool is full the oldest line is dropped,
+     * recent readings are worth more than stale ones
+     * @param line the line to keep until it can be sent
+     */
+    public synchronized void add(String line) {
+        if (size == lines.length) {
+            lines[head] = line;
+            head = (head + 1) % lines.length;
+            dropped++;
+        } else {
+            lines[(head + size) % lines.length] = line;
+            size++;
+        }
+    }
+
+    /**
+     * Puts lines back in front of the spool, e.g. lines that were taken out to be sent but
+     * could not be. If the spool runs full the oldest of them are dropped.
+     * @param older the lines, oldest first, all older than the lines in the spool
+     */
+    public synchronized void addFirst(List<String> older) {
+        for (int i = older.size() - 1; i >= 0; i--) {
+            if (size == lines.length) {
+                dropped += i + 1;
+                return;
+            }
+            head = (head - 1 + lines.length) % lines.length;
+            lines[head] = older.get(i);
+            size++;
+        }
+    }
+
+    /**
+     * Removes every line from the spool
+     * @return the lines, oldest first
+     */
+    public synchronized List<String> drain() {
+        List<String> drained = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % lines.length;
+            drained.add(lines[index]);
+            lines[index] = null;
+        }
+        head = 0;
+        size = 0;
+        return drained;
+    }
+
+    /**
+     * Removes the oldest line from the spool
+     * @return the line, null if the spool is empty
+     */
+    public synchronized String poll() {
+        if (size == 0) {
+            return null;
+        }
+        String line = lines[head];
+        lines[head] = null;
+        head = (head + 1) % lines.length;
+        size--;
+        return line;
+    }
+
+    /**
+     * Gets the number of lines waiting in the spool
+     * @return the number of spooled lines
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Gets the max number of lines the spool keeps
+     * @return the capacity of the spool
+     */
+    public int capacity() {
+        return lines.length;
+    }
+
+    /**
+     * Gets the number of lines dropped because the spool was full
+     * @return the number of dropped lines since the spool was created
+     */
+    public synchronized long dropped() {
+        return dropped;
+    }
+}
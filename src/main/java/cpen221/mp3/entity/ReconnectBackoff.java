@@ -0,0 +1,64 @@
+package cpen221.mp3.entity;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+//REP INVARIANTS: 0 < baseDelay <= maxDelay, attempts >= 0
+public class ReconnectBackoff {
+    public static final long DEFAULT_BASE_DELAY = 100; //in ms
+    public static final long DEFAULT_MAX_DELAY = 10000; //in ms
+
+    private final long baseDelay;
+    private final long maxDelay;
+    private int attempts = 0;
+
+    /**
+     * Creates a backoff with the default delays: 100ms doubling up to 10s
+     */
+    public ReconnectBackoff() {
+        this(DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Creates a backoff
+     * @param baseDelay the delay before the first retry in ms, must be > 0
+     * @param maxDelay the longest delay between retries in ms, must be >= baseDelay
+     */
+    public ReconnectBackoff(long baseDelay, long maxDelay) {
+        if (baseDelay <= 0 || maxDelay < baseDelay) {
+            throw new IllegalArgumentException("Delays must satisfy 0 < baseDelay <= maxDelay");
+        }
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Gets the delay before the next retry and counts the attempt. The delay doubles with every
+     * attempt up to the max, and is jittered between half and all of that value so a fleet of
+     * entities that lost the same server does not reconnect in lockstep.
+     * @return the delay in ms
+     */
+    public synchronized long nextDelay() {
+        long ceiling = baseDelay << Math.min(attempts, 30);
+        if (ceiling <= 0 || ceiling > maxDelay) {
+            ceiling = maxDelay;
+        }
+        attempts++;
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+    }
+
+    /**
+     * Gets the number of retries since the last reset
+     * @return the number of attempts
+     */
+    public synchronized int attempts() {
+        return attempts;
+    }
+
+    /**
+     * Starts over from the base delay, called once a connection succeeds
+     */
+    public synchronized void reset() {
+        attempts = 0;
+    }
+}
@@ -6,8 +6,8 @@ import cpen221.mp3.event.SensorEvent;
 
 import java.io.BufferedReader;
 import java.io.*;
-import java.net.Socket;
 import java.sql.Timestamp;
+import java.util.concurrent.ScheduledFuture;
 
 //REP INVARIANTS: id, type != null
 public class Sensor implements Entity {
@@ -18,8 +18,11 @@ public class Sensor implements Entity {
     private int serverPort = 0;
     private double eventGenerationFrequency = 0.2; // default value in Hz (1/s)
 
-    // the following specifies the socket that the actuator should be able to receive commands on from server
-    private Socket eventSocket;
+    // the connection events are sent on, it reconnects on its own and spools events while down
+    private final EntityConnection connection;
+
+    // the periodic event generation task on the shared scheduler, null if not generating
+    private ScheduledFuture<?> generationTask = null;
 
     /** Creates a new sensor with the given id and type.
      *
@@ -30,6 +33,7 @@ public class Sensor implements Entity {
         this.id = id;
         this.clientId = -1;         // remains unregistered
         this.type = type;
+        this.connection = new EntityConnection("Sensor " + id);
     }
 
     /** Creates a new sensor with the given id, type and client id.
@@ -42,14 +46,7 @@ public class Sensor implements Entity {
         this.id = id;
         this.clientId = clientId;   // registered for the client
         this.type = type;
-
-        try{
-            eventSocket = new Socket();
-        }
-        catch (Exception e){
-            System.out.println("ERROR setting Entity Constructor Endpoint: "+e);
-        }
-
+        this.connection = new EntityConnection("Sensor " + id);
     }
 
     /** Creates a new sensor with the given id, type, server ip and server port.
@@ -65,13 +62,9 @@ public class Sensor implements Entity {
         this.type = type;
         this.serverIP = serverIP;
         this.serverPort = serverPort;
+        this.connection = new EntityConnection("Sensor " + id);
 
-        try{
-            eventSocket = new Socket(serverIP, serverPort);
-        }
-        catch (Exception e){
-            System.out.println("ERROR setting Entity Constructor Endpoint: "+e);
-        }
+        connection.connect(serverIP, serverPort);
     }
 
     /** Creates a new sensor with the given id, client id, type, server ip and server port.
@@ -88,13 +81,9 @@ public class Sensor implements Entity {
         this.type = type;
         this.serverIP = serverIP;
         this.serverPort = serverPort;
+        this.connection = new EntityConnection("Sensor " + id);
 
-        try{
-            eventSocket = new Socket(serverIP, serverPort);
-        }
-        catch (Exception e){
-            System.out.println("ERROR setting Entity Constructor Endpoint: "+e);
-        }
+        connection.connect(serverIP, serverPort);
     }
 
     /**
@@ -149,90 +138,110 @@ public class Sensor implements Entity {
      * @param serverPort the port number of the endpoint
      */
     public void setEndpoint(String serverIP, int serverPort){
-        try{
-            this.serverIP = serverIP;
-            this.serverPort = serverPort;
-
-            eventSocket = new Socket(serverIP, serverPort);
-
-        }catch (IOException e){
-            System.out.println("ERROR setting Entity Constructor Endpoint: "+e);
-        }
+        this.serverIP = serverIP;
+        this.serverPort = serverPort;
 
+        connection.connect(serverIP, serverPort);
     }
 
     /**
-     * Sets the frequency of event generation
+     * Sets the frequency of event generation and starts generating events at that frequency.
+     * Events are generated on the shared EventGenerationScheduler, this method does not block.
+     * No events are generated while the sensor is not registered for a client.
      *
-     * @param frequency the frequency of event generation in Hz (1/s)
+     * @param frequency the frequency of event generation in Hz (1/s), must be > 0
      */
-    public void setEventGenerationFrequency(double frequency){
+    public synchronized void setEventGenerationFrequency(double frequency){
+        this.eventGenerationFrequency = frequency;
 
-        int tryCount = 0;
+        if (generationTask != null) {
+            generationTask.cancel(false);
+        }
+        generationTask = EventGenerationScheduler.shared().scheduleAtFrequency(this::generateEvent, frequency);
+    }
 
-        this.eventGenerationFrequency = frequency;
+    /**
+     * Stops generating events
+     */
+    public synchronized void stopEventGeneration() {
+        if (generationTask != null) {
+            generationTask.cancel(false);
+            generationTask = null;
+        }
+    }
 
+    /**
+     * Generates and sends one event, called by the scheduler at the event generation frequency
+     */
+    private void generateEvent() {
         double commandTime = System.currentTimeMillis();
+        if (this.clientId == -1) {
+            return;
+        }
 
-        while (System.currentTimeMillis() < commandTime + 1000/frequency && this.clientId != -1) {
-            if (tryCount >= 5){
-                try {
-                    System.out.println("WARNING -> Sensor: "+this.id+" has failed to connect to server 5 consecutive times, thread will sleep for 10s and retry ");
-                    tryCount = 0;
-                    Thread.sleep(10000);
-                    break;
+        try{
+            switch (this.type) {
 
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }else {
-                commandTime = System.currentTimeMillis();
-                try{
-                    switch (this.type) {
-
-                        case "TempSensor":
-                            SensorEvent tempEvent = new SensorEvent(commandTime, this.clientId, this.id, this.type, generateTempSensorValue());
-                            sendEvent(tempEvent);
-                            break;
-                        case "PressureSensor":
-                            SensorEvent pressureEvent = new SensorEvent(commandTime, this.clientId, this.id, this.type, generatePressureSensorValue());
-                            sendEvent(pressureEvent);
-                            break;
-                        case "CO2Sensor":
-                            SensorEvent co2Event = new SensorEvent(commandTime, this.clientId, this.id, this.type, generateCO2SensorValue());
-                            sendEvent(co2Event);
-                            break;
-                        case "Switch":
-                            SensorEvent switchEvent = new SensorEvent(commandTime, this.clientId, this.id, this.type, generateSwitchValue());
-                            sendEvent(switchEvent);
-                            break;
-                        default:
-                            System.out.println("ERROR: Invalid Sensor Type");
-                            break;
-                    }
-                }catch (Exception e) {
-                    System.out.println("ERROR setting new Entity Endpoint: " + e);
-                    tryCount += 1;
-                }
+                case "TempSensor":
+                    sendEvent(new SensorEvent(commandTime, this.clientId, this.id, this.type, generateTempSensorValue()));
+                    break;
+                case "PressureSensor":
+                    sendEvent(new SensorEvent(commandTime, this.clientId, this.id, this.type, generatePressureSensorValue()));
+                    break;
+                case "CO2Sensor":
+                    sendEvent(new SensorEvent(commandTime, this.clientId, this.id, this.type, generateCO2SensorValue()));
+                    break;
+                case "Switch":
+                    sendEvent(new SensorEvent(commandTime, this.clientId, this.id, this.type, generateSwitchValue()));
+                    break;
+                default:
+                    System.out.println("ERROR: Invalid Sensor Type");
+                    break;
             }
+        }catch (Exception e) {
+            // an exception escaping the tick would cancel it on the scheduler
+            System.out.println("ERROR generating Entity event: " + e);
         }
     }
 
 
     /**
-     * Sends an event to the entity endpoint
+     * Sends an event to the entity endpoint. If the connection is down the event is spooled
+     * and sent as soon as the connection comes back, this method does not block on it
      * @param event the event to be sent
      */
     public void sendEvent(Event event) {
-        try {
-            PrintWriter out = new PrintWriter(new OutputStreamWriter(eventSocket.getOutputStream()));
-            out.println(event.toString());
-            out.flush();
-        } catch (IOException e) {
-            System.out.println("ERROR setting new Entity Endpoint: ");
-            e.printStackTrace();
-            throw new RuntimeException(e);
-        }
+        connection.send(event.toString());
+    }
+
+    /**
+     * Turns batched sending on or off. In batched mode events are flushed to the endpoint
+     * once batchSize of them are buffered or the oldest has waited lingerMillis
+     *
+     * @param batchSize the number of events per flush, 1 sends every event immediately
+     * @param lingerMillis the max time an event waits before it is sent, in ms
+     */
+    public void setBatching(int batchSize, long lingerMillis) {
+        connection.setBatching(batchSize, lingerMillis);
+    }
+
+    /**
+     * Turns credit-based flow control on or off. With it on the endpoint paces the events:
+     * ones it has no room for wait in the spool, which keeps the most recent, instead of
+     * piling up at the endpoint
+     *
+     * @param enabled true to send only as fast as the endpoint grants credit
+     */
+    public void setFlowControl(boolean enabled) {
+        connection.setFlowControl(enabled);
+    }
+
+    /**
+     * Gets the number of events waiting for the connection to the endpoint to come back
+     * @return the number of spooled events
+     */
+    public int getSpooledEvents() {
+        return connection.spooledEvents();
     }
 
     /**
@@ -0,0 +1,59 @@
+package cpen221.mp3.event;
+
+import com.opencsv.CSVReader;
+import com.opencsv.exceptions.CsvException;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads recorded events from CSV files in the data/tests format, a header line followed by
+ * one event per line:
+ * TimeStamp,ClientId,EntityId,EntityType,ValueType,Value
+ * A ValueType of boolean makes an ActuatorEvent whose Value is 0 or 1, anything else makes a
+ * SensorEvent with a double Value.
+ */
+public final class EventCsvParser {
+
+    private EventCsvParser() {
+    }
+
+    /**
+     * Reads the events of a CSV file
+     * @param filePath the path of the CSV file
+     * @return the events in file order
+     * @throws IOException if the file can't be read or is not in the expected format
+     */
+    public static List<Event> readEvents(String filePath) throws IOException {
+        try (CSVReader reader = new CSVReader(new FileReader(filePath))) {
+            List<String[]> rows = reader.readAll();
+            List<Event> events = new ArrayList<>(rows.size());
+            for (String[] row : rows.subList(Math.min(1, rows.size()), rows.size())) {
+                events.add(parseRow(row));
+            }
+            return events;
+        } catch (CsvException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed CSV " + filePath + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Makes the event of one CSV row
+     * @param row the fields of the row, in the order of the header
+     * @return the event
+     * @throws IllegalArgumentException if a number can't be parsed
+     * @throws ArrayIndexOutOfBoundsException if the row has fewer than 6 fields
+     */
+    public static Event parseRow(String[] row) {
+        double timeStamp = Double.parseDouble(row[0]);
+        int clientId = Integer.parseInt(row[1]);
+        int entityId = Integer.parseInt(row[2]);
+        String entityType = row[3];
+        if (row[4].equals("boolean")) {
+            return new ActuatorEvent(timeStamp, clientId, entityId, entityType, Integer.parseInt(row[5]) != 0);
+        }
+        return new SensorEvent(timeStamp, clientId, entityId, entityType, Double.parseDouble(row[5]));
+    }
+}
@@ -1,6 +1,13 @@
 package cpen221.mp3.handler;
 
 import cpen221.mp3.client.Client;
+import cpen221.mp3.logging.Level;
+import cpen221.mp3.logging.Logger;
+import cpen221.mp3.metrics.Counter;
+import cpen221.mp3.metrics.MetricsRegistry;
+import cpen221.mp3.server.AdmissionController;
+import cpen221.mp3.server.HeavyHitters;
+import cpen221.mp3.server.HyperLogLog;
 import cpen221.mp3.server.Server;
 
 import java.io.BufferedReader;
@@ -8,17 +15,71 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashSet;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 //REP INVARIANTS: port != null
 public class MessageHandler {
     public static final int MESSAGE_HANDLER_PORT = 1;
+
+    //set this system property to a file name to get a text dump of the metrics every few seconds
+    public static final String METRICS_DUMP_PROPERTY = "cpen221.metrics.dump";
+    public static final String METRICS_DUMP_PERIOD_PROPERTY = "cpen221.metrics.dumpPeriod"; //in ms
+    public static final long DEFAULT_METRICS_DUMP_PERIOD = 5000; //in ms
+
+    //set this system property to a directory to give every server a write-ahead log there
+    public static final String WAL_DIR_PROPERTY = "cpen221.wal.dir";
+    public static final String WAL_FSYNC_INTERVAL_PROPERTY = "cpen221.wal.fsyncInterval"; //in ms
+
+    //set this system property to a directory to seal the history of every server into mapped segments there
+    public static final String SEGMENT_DIR_PROPERTY = "cpen221.segments.dir";
+    public static final String SEGMENT_SIZE_PROPERTY = "cpen221.segments.size"; //in events
+
+    //set this system property to a directory to snapshot every server there, and restore them on startup
+    public static final String SNAPSHOT_DIR_PROPERTY = "cpen221.snapshot.dir";
+    public static final String SNAPSHOT_INTERVAL_PROPERTY = "cpen221.snapshot.interval"; //in ms
+
+    //set any of these system properties to limit the history every server keeps, a property with
+    //".client-<id>" appended sets the limit of one client instead
+    public static final String RETENTION_MAX_AGE_PROPERTY = "cpen221.retention.maxAge"; //in s of event time
+    public static final String RETENTION_MAX_EVENTS_PROPERTY = "cpen221.retention.maxEvents";
+    public static final String RETENTION_MAX_BYTES_PROPERTY = "cpen221.retention.maxBytes"; //of sealed segments
+    public static final String RETENTION_ARCHIVE_DIR_PROPERTY = "cpen221.retention.archiveDir"; //unset deletes evicted segments
+    public static final String RETENTION_INTERVAL_PROPERTY = "cpen221.retention.interval"; //in ms
+
+    //set this system property to the share of its worker every client gets when the worker is overloaded,
+    //relative to the other clients on it (default 1), ".client-<id>" appended sets the weight of one client
+    public static final String SCHEDULER_WEIGHT_PROPERTY = "cpen221.scheduler.weight";
+
+    //a connection that starts with CreditGate.HELLO is granted this many lines of credit, and more as the
+    //server has room for them; set the ingest capacity property to bound the events queued per server
+    //(".client-<id>" appended sets it for one client), senders without flow control wait on it instead
+    public static final String CREDIT_WINDOW_PROPERTY = "cpen221.flow.window"; //in lines
+    public static final int DEFAULT_CREDIT_WINDOW = 256; //in lines
+    public static final String INGEST_CAPACITY_PROPERTY = "cpen221.ingest.capacity"; //in events
+
+    //set these system properties with "." and a traffic class appended (e.g. ".SENSOR_EVENT") to change when
+    //(as a fraction of the ingest capacity, "never" to keep every item) and how (DROP_OLDEST, SAMPLE or
+    //REJECT) the class is shed by the admission controller of every server
+    public static final String ADMISSION_THRESHOLD_PROPERTY = "cpen221.admission.threshold";
+    public static final String ADMISSION_POLICY_PROPERTY = "cpen221.admission.policy";
+
+    //set this system property to true to keep heavy hitter and distinct entity sketches on every server,
+    //ANALYSIS_GET_HEAVY_HITTERS and ANALYSIS_GET_DISTINCT_ENTITY_COUNT requests with data "all" merge them
+    public static final String ENTITY_SKETCHES_PROPERTY = "cpen221.sketches.entities";
+
+    private static final Counter ACCEPTED_CONNECTIONS = MetricsRegistry.shared().counter("handler.accepted_connections");
+    private static final Logger CONNECTION_LOG = Logger.get("handler.connections");
+
     private ServerSocket serverSocket;
     private int port;
 
-    private HashSet<Server> servers;
+    //one server per client, by client id
+    private ConcurrentMap<Integer, Server> servers;
 
     /**
      * The constructor for the message handler,
@@ -27,7 +88,17 @@ public class MessageHandler {
      */
     public MessageHandler(int port) {
         this.port = port;
-        this.servers = new HashSet<>();
+        this.servers = new ConcurrentHashMap<>();
+
+        MetricsRegistry metrics = MetricsRegistry.shared();
+        metrics.gauge("handler.servers", servers::size);
+        metrics.registerMBean();
+        configureAdmission(AdmissionController.shared());
+        String dumpFile = System.getProperty(METRICS_DUMP_PROPERTY);
+        if (dumpFile != null) {
+            metrics.startDump(Path.of(dumpFile), Long.getLong(METRICS_DUMP_PERIOD_PROPERTY, DEFAULT_METRICS_DUMP_PERIOD));
+        }
+
         //starts the server upon instantiation
         System.out.println("******SERVER IS STARTING******");
         Thread startServer = new Thread(new Runnable() {
@@ -42,10 +113,105 @@ public class MessageHandler {
     /**
      * Used for testing purposes,
      * Adds a server into our collection of available servers for the clients to chose from
-     * @param server the server to be added into our collection
+     * @param server the server to be added into our collection, ignored if its client already has one
      */
     public void addServer(Server server) {
-        this.servers.add(server);
+        this.servers.putIfAbsent(server.getClientId(), server);
+    }
+
+    /**
+     * Lists the most active entities over every client, see mergeHeavyHitters
+     * @param k the max number of entities, at most Server.HEAVY_HITTER_CAPACITY
+     * @return up to k entity IDs, most events first, empty if no server keeps entity sketches
+     */
+    public List<Integer> topEntities(int k) {
+        HeavyHitters merged = mergeHeavyHitters(servers.values());
+        return merged == null ? List.of() : merged.top(k);
+    }
+
+    /**
+     * Counts the distinct entities over every client, see mergeDistinctEntities
+     * @return the estimated number of entities, 0 if no server keeps entity sketches
+     */
+    public long distinctEntityCount() {
+        HyperLogLog merged = mergeDistinctEntities(servers.values());
+        return merged == null ? 0 : merged.estimate();
+    }
+
+    /**
+     * Merges the heavy hitter sketches of servers. An entity's merged count is overestimated by
+     * at most Server.HEAVY_HITTER_EPSILON of the events of every server, with probability
+     * 1 - Server.HEAVY_HITTER_DELTA. Servers without entity sketches are left out.
+     * @param servers the servers
+     * @return the merged sketch, null if none of the servers keeps entity sketches
+     */
+    public static HeavyHitters mergeHeavyHitters(Collection<Server> servers) {
+        HeavyHitters merged = null;
+        for (Server server : copyOf(servers)) {
+            HeavyHitters hitters = server.getHeavyHitters();
+            if (hitters == null) {
+                continue;
+            }
+            if (merged == null) {
+                merged = hitters.copy();
+            } else {
+                merged.merge(hitters);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Merges the distinct entity sketches of servers, an entity sending events to several
+     * servers is counted once. The estimate has a relative standard error of about 1.6%.
+     * Servers without entity sketches are left out.
+     * @param servers the servers
+     * @return the merged sketch, null if none of the servers keeps entity sketches
+     */
+    public static HyperLogLog mergeDistinctEntities(Collection<Server> servers) {
+        HyperLogLog merged = null;
+        for (Server server : copyOf(servers)) {
+            HyperLogLog distinct = server.getDistinctEntities();
+            if (distinct == null) {
+                continue;
+            }
+            if (merged == null) {
+                merged = distinct.copy();
+            } else {
+                merged.merge(distinct);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Copies a collection of servers that handler threads may be adding to, requires the
+     * collection is thread-safe
+     */
+    private static List<Server> copyOf(Collection<Server> servers) {
+        return new ArrayList<>(servers);
+    }
+
+    /**
+     * Sets the shedding of every traffic class given in the admission properties
+     * @param controller the controller to configure
+     */
+    static void configureAdmission(AdmissionController controller) {
+        for (AdmissionController.TrafficClass trafficClass : AdmissionController.TrafficClass.values()) {
+            String threshold = System.getProperty(ADMISSION_THRESHOLD_PROPERTY + "." + trafficClass);
+            String policy = System.getProperty(ADMISSION_POLICY_PROPERTY + "." + trafficClass);
+            if (threshold == null && policy == null) {
+                continue;
+            }
+            try {
+                controller.setShedding(trafficClass,
+                        threshold == null ? controller.getThreshold(trafficClass)
+                                : threshold.trim().equalsIgnoreCase("never") ? AdmissionController.NEVER : Double.parseDouble(threshold),
+                        policy == null ? controller.getPolicy(trafficClass) : AdmissionController.Policy.valueOf(policy.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                System.out.println("ERROR reading the admission of " + trafficClass + ", it keeps the default: " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -63,7 +229,8 @@ public class MessageHandler {
 
 
                 Socket incomingSocket = serverSocket.accept();
-                System.out.println("Client/Entity connected: " + incomingSocket.getInetAddress().getHostAddress());
+                ACCEPTED_CONNECTIONS.increment();
+                CONNECTION_LOG.sampled(Level.INFO, "Client/Entity connected: " + incomingSocket.getInetAddress().getHostAddress());
 
                 // create a new thread to handle the client request or entity event
                 Thread handlerThread = new Thread(new MessageHandlerThread(incomingSocket, servers));
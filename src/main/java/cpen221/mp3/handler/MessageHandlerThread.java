@@ -4,17 +4,36 @@ import cpen221.mp3.client.Client;
 import cpen221.mp3.client.Request;
 import cpen221.mp3.client.RequestCommand;
 import cpen221.mp3.client.RequestType;
+import cpen221.mp3.entity.CreditGate;
 import cpen221.mp3.event.ActuatorEvent;
 import cpen221.mp3.event.Event;
 import cpen221.mp3.event.SensorEvent;
+import cpen221.mp3.metrics.Counter;
+import cpen221.mp3.metrics.HandleMessageJfrEvent;
+import cpen221.mp3.metrics.JfrEvents;
+import cpen221.mp3.metrics.LatencyHistogram;
+import cpen221.mp3.metrics.MetricsRegistry;
+import cpen221.mp3.server.AdmissionController;
+import cpen221.mp3.server.HeavyHitters;
+import cpen221.mp3.server.HyperLogLog;
+import cpen221.mp3.server.RetentionPolicy;
 import cpen221.mp3.server.Server;
+import cpen221.mp3.server.ServerWorkers;
+import cpen221.mp3.storage.SegmentedEventStore;
+import cpen221.mp3.storage.WriteAheadLog;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.Socket;
-import java.util.HashSet;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,10 +42,48 @@ import static cpen221.mp3.server.Server.*;
 
 //REP INVARIANTS: Socket != null
 class MessageHandlerThread implements Runnable {
+    static final Pattern INPUT_TYPE_PATTERN = Pattern.compile("^(SensorEvent|ActuatorEvent|Request)\\b");
+
+    //Match 1: TimeStamp (double)
+    //Match 2: Exponent (int)
+    //Match 3: ClientId (int)
+    //Match 4: EntityId (int)
+    //Match 5: EntityType (String)
+    //Match 6: Value (double)
+    //Match 7: clientId (int)
+    //Match 8: email (String)
+    static final Pattern EVENT_PATTERN = Pattern.compile("TimeStamp=([-+]?\\d+\\.\\d+E?(\\d+)?),ClientId=(\\d+),EntityId=(\\d+),EntityType=(.+),Value=(.+)},(.+),(.+)");
+
+    //Match 1: TimeStamp (double)
+    //Match 2: Exponent (int)
+    //Match 3: RequestType (String)
+    //Match 4: RequestCommand (String)
+    //Match 5: requestData (String)
+    //Match 6: clientId (int)
+    //Match 7: email (String)
+    static final Pattern REQUEST_PATTERN = Pattern.compile("TimeStamp=([-+]?\\d+\\.\\d+E?(\\d+)?),RequestType=(.+),RequestCommand=(.+),requestData=\\{(.+)},clientId=(\\d+),email=(.+)}");
+
+    private static final Counter LINES = MetricsRegistry.shared().counter("handler.lines");
+    private static final Counter PARSE_FAILURES = MetricsRegistry.shared().counter("handler.parse_failures");
+    private static final Counter CREDITS_GRANTED = MetricsRegistry.shared().counter("handler.credits_granted");
+    private static final LatencyHistogram PARSE_TIME = MetricsRegistry.shared().histogram("handler.parse_time_ns");
+
+    static {
+        JfrEvents.register();
+    }
+
     private final Socket incomingSocket;
 
+    //where credit is granted if the connection asked for flow control, null if it did not
+    private Writer creditOut = null;
+    private int creditWindow;
+    //lines read since credit was last granted
+    private int consumed = 0;
+    //the server the last event went to, credit is granted once it has room
+    private Server lastServer = null;
 
-    HashSet<Server> servers;
+
+    ConcurrentMap<Integer, Server> servers;
 
     /**
      * Creates an instance of MessageHandlerThread
@@ -40,9 +97,9 @@ class MessageHandlerThread implements Runnable {
      * Creates an instance of MessageHandlerThread, also gives it access to a collection of servers shared
      * among all instances of MessageHandlerThread to ensure that each client only has one associated server
      * @param incomingSocket the socket associated with the message to process
-     * @param servers the collection of servers shared among all instances of MessageHandlerThread
+     * @param servers the servers shared among all instances of MessageHandlerThread, by client id
      */
-    public MessageHandlerThread(Socket incomingSocket, HashSet<Server> servers) {
+    public MessageHandlerThread(Socket incomingSocket, ConcurrentMap<Integer, Server> servers) {
         this.incomingSocket = incomingSocket;
         this.servers = servers;
     }
@@ -61,7 +118,14 @@ class MessageHandlerThread implements Runnable {
                 if(line.equals("exit") || line.equals("")){
                     continue;
                 }
+                if (CreditGate.isHello(line)) {
+                    startFlowControl();
+                    continue;
+                }
                 messageHandler(line);
+                if (creditOut != null && ++consumed >= creditWindow / 2) {
+                    grantConsumed();
+                }
             }
 
             // Close the socket when done
@@ -72,134 +136,352 @@ class MessageHandlerThread implements Runnable {
     }
 
     /**
-     * Gets the server associated with a client
-     * @param server the server associated with a specific client
-     * @return the shared server for the single client
+     * Answers a connection that asked for flow control with its first window of credit
+     * @throws IOException if the credit can't be sent
      */
-    private synchronized Server getMapServer(Server server) {
-        for (Server s : servers) {
-            if (s.equals(server)) {
-                return s;
-            }
+    private void startFlowControl() throws IOException {
+        if (creditOut != null) {
+            return;
         }
-        servers.add(server);
-        return server;
+        creditWindow = Math.max(2, Integer.getInteger(MessageHandler.CREDIT_WINDOW_PROPERTY, MessageHandler.DEFAULT_CREDIT_WINDOW));
+        creditOut = new BufferedWriter(new OutputStreamWriter(incomingSocket.getOutputStream(), StandardCharsets.UTF_8));
+        grant(creditWindow);
     }
 
     /**
-     * Helper function to parse the message received
-     * @param reply the message to be parsed
-     * @throws IOException if the message is not formatted correctly
+     * Grants credit for the lines read since the last grant, once the server they went to has
+     * room for as many events. Until then the sender is out of credit and holds its events back.
+     * @throws IOException if the credit can't be sent
      */
-    private void messageHandler(String reply) throws IOException {
-        try {
-            long timestamp = System.currentTimeMillis();
-
-            Pattern inputType = Pattern.compile("^(SensorEvent|ActuatorEvent|Request)\\b");
-
-            // Create a Matcher object
-            Matcher matcherType = inputType.matcher(reply);
-
-            if (matcherType.find()) {
-                // Get the matched word
-                String eventType = matcherType.group(1);
-
-                switch (eventType) {
-                    case "SensorEvent", "ActuatorEvent":
-                        //,ClientId=(\d+),EntityId=(\d+),EntityType=(.+),Value=(.+)}(.+)(.+)
-                        Pattern patternSE = Pattern.compile("TimeStamp=([-+]?\\d+\\.\\d+E?(\\d+)?),ClientId=(\\d+),EntityId=(\\d+),EntityType=(.+),Value=(.+)},(.+),(.+)");
-                        Matcher matcherSE = patternSE.matcher(reply);
-
-                        //Match 1: TimeStamp (double)
-                        //Match 2: Exponent (int)
-                        //Match 3: ClientId (int)
-                        //Match 4: EntityId (int)
-                        //Match 5: EntityType (String)
-                        //Match 6: Value (double)
-                        //Match 7: clientId (int)
-                        //Match 8: email (String)
-
-
-                        //parsing the event data
-                        if (matcherSE.find()) {
-                            Event event = null;
+    private void grantConsumed() throws IOException {
+        Server server = lastServer;
+        if (server != null) {
+            server.awaitIngestCapacity(consumed);
+        }
+        grant(consumed);
+        consumed = 0;
+    }
 
-                            Client client = new Client(Integer.parseInt(matcherSE.group(7).trim()), matcherSE.group(8).trim(), incomingSocket.getLocalAddress().getHostAddress(), incomingSocket.getLocalPort());
-                            Server server = new Server(client);
+    /**
+     * Sends a credit line
+     */
+    private void grant(int credits) throws IOException {
+        creditOut.write(CreditGate.creditLine(credits));
+        creditOut.write('\n');
+        creditOut.flush();
+        CREDITS_GRANTED.add(credits);
+    }
 
-                            server = getMapServer(server);
+    /**
+     * Gets the server associated with a client, creating it on the client's first message.
+     * Threads racing on a new client get the same server, which has its storage opened before
+     * any of them can use it.
+     * @param clientId the id of the client
+     * @param email the email of the client
+     * @return the shared server for the single client
+     */
+    private Server getMapServer(int clientId, String email) {
+        return servers.computeIfAbsent(clientId, id -> {
+            Client client = new Client(id, email, incomingSocket.getLocalAddress().getHostAddress(), incomingSocket.getLocalPort());
+            Server server = new Server(client);
+            openStorage(server, id);
+            setWeight(id);
+            setIngestCapacity(server, id);
+            return server;
+        });
+    }
 
-                            if (eventType.equalsIgnoreCase("ActuatorEvent")) {
-                                //it is an actuator event
-                                //Math.pow(Double.parseDouble(matcherSE.group(1)),Integer.parseInt(matcherSE.group(2))
-                                //We skip group 2 because it is the exponent of the time stamp
-                                event = new ActuatorEvent(Double.parseDouble(matcherSE.group(1)),
-                                        Integer.parseInt(matcherSE.group(3).trim()),
-                                        Integer.parseInt(matcherSE.group(4).trim()),
-                                        matcherSE.group(5).trim(),
-                                        Boolean.parseBoolean(matcherSE.group(6).trim()));
+    /**
+     * Gives a new server the ingest capacity set by the ingest capacity properties
+     * @param server the new server
+     * @param clientId the id of its client
+     */
+    private static void setIngestCapacity(Server server, int clientId) {
+        String capacity = clientProperty(MessageHandler.INGEST_CAPACITY_PROPERTY, clientId);
+        if (capacity == null) {
+            return;
+        }
+        try {
+            server.setIngestCapacity(Integer.parseInt(capacity));
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR reading the ingest capacity of client " + clientId + ", it keeps the default: " + e.getMessage());
+        }
+    }
 
-                                event.setTimeArrived(System.currentTimeMillis());
-                            } else {
-                                //it is a sensor event
-                                event = new SensorEvent(Double.parseDouble(matcherSE.group(1)),
-                                        Integer.parseInt(matcherSE.group(3).trim()),
-                                        Integer.parseInt(matcherSE.group(4).trim()),
-                                        matcherSE.group(5).trim(),
-                                        Double.parseDouble(matcherSE.group(6).trim()));
+    /**
+     * Gives a new client the share of its worker set by the scheduler weight properties
+     * @param clientId the id of the client
+     */
+    private static void setWeight(int clientId) {
+        String weight = clientProperty(MessageHandler.SCHEDULER_WEIGHT_PROPERTY, clientId);
+        if (weight == null) {
+            return;
+        }
+        try {
+            ServerWorkers.shared().setWeight(clientId, Double.parseDouble(weight));
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR reading the scheduler weight of client " + clientId + ", it gets an equal share: " + e.getMessage());
+        }
+    }
 
-                                event.setTimeArrived(System.currentTimeMillis());
-                            }
+    /**
+     * Gives a new server the snapshots, segment storage and write-ahead log the handler was
+     * started with, restoring the client's last snapshot and replaying the events logged after it
+     * @param server the new server
+     * @param clientId the id of its client, which names its files
+     */
+    private static void openStorage(Server server, int clientId) {
+        String snapshots = System.getProperty(MessageHandler.SNAPSHOT_DIR_PROPERTY);
+        Path snapshot = snapshots == null ? null : Path.of(snapshots, "client-" + clientId + ".snap");
+        if (snapshot != null && Files.exists(snapshot)) {
+            try {
+                long restored = server.restoreSnapshot(snapshot);
+                System.out.println("Restored " + restored + " events of client " + clientId + " from " + snapshot);
+            } catch (IOException e) {
+                System.out.println("ERROR restoring snapshot " + snapshot + ", client " + clientId
+                        + " starts from its write-ahead log: " + e.getMessage());
+            }
+        }
 
+        String segments = System.getProperty(MessageHandler.SEGMENT_DIR_PROPERTY);
+        if (segments != null) {
+            Path directory = Path.of(segments, "client-" + clientId);
+            try {
+                server.enableSegmentStorage(directory, Integer.getInteger(MessageHandler.SEGMENT_SIZE_PROPERTY,
+                        SegmentedEventStore.DEFAULT_SEGMENT_SIZE));
+            } catch (IOException e) {
+                System.out.println("ERROR opening segment storage " + directory + ", events of client " + clientId
+                        + " stay on the heap: " + e.getMessage());
+            }
+        }
 
+        String logs = System.getProperty(MessageHandler.WAL_DIR_PROPERTY);
+        if (logs != null) {
+            Path file = Path.of(logs, "client-" + clientId + ".wal");
+            try {
+                long replayed = server.enableWriteAheadLog(file,
+                        Long.getLong(MessageHandler.WAL_FSYNC_INTERVAL_PROPERTY, WriteAheadLog.DEFAULT_FSYNC_INTERVAL));
+                if (replayed > 0) {
+                    System.out.println("Replayed " + replayed + " events of client " + clientId + " from " + file);
+                }
+            } catch (IOException e) {
+                System.out.println("ERROR opening write-ahead log " + file + ", events of client " + clientId
+                        + " are not logged: " + e.getMessage());
+            }
+        }
 
-                            event.setTimeArrived(System.currentTimeMillis());
-                            server.processIncomingEvent(event);
+        if (Boolean.getBoolean(MessageHandler.ENTITY_SKETCHES_PROPERTY)) {
+            server.enableEntitySketches();
+        }
 
+        RetentionPolicy retention = retentionPolicy(clientId);
+        if (retention != null) {
+            server.enableRetention(retention, Long.getLong(MessageHandler.RETENTION_INTERVAL_PROPERTY, DEFAULT_RETENTION_INTERVAL));
+        }
 
-                        }
-                        break;
+        if (snapshot != null) {
+            try {
+                Files.createDirectories(snapshot.getParent());
+                server.enableSnapshots(snapshot, Long.getLong(MessageHandler.SNAPSHOT_INTERVAL_PROPERTY, DEFAULT_SNAPSHOT_INTERVAL));
+            } catch (IOException e) {
+                System.out.println("ERROR creating snapshot directory " + snapshot.getParent() + ": " + e.getMessage());
+            }
+        }
+    }
 
-                    case "Request":
-                        //\s?RequestCommand=(.+),\s?requestData=\{(.+)},\s?clientId=(\d+),\s?email=(.+)
+    /**
+     * Reads the retention policy of a client from the system properties
+     * @param clientId the id of the client
+     * @return the policy, null if no limit is set
+     */
+    private static RetentionPolicy retentionPolicy(int clientId) {
+        String maxAge = clientProperty(MessageHandler.RETENTION_MAX_AGE_PROPERTY, clientId);
+        String maxEvents = clientProperty(MessageHandler.RETENTION_MAX_EVENTS_PROPERTY, clientId);
+        String maxBytes = clientProperty(MessageHandler.RETENTION_MAX_BYTES_PROPERTY, clientId);
+        if (maxAge == null && maxEvents == null && maxBytes == null) {
+            return null;
+        }
+        String archive = clientProperty(MessageHandler.RETENTION_ARCHIVE_DIR_PROPERTY, clientId);
+        try {
+            return new RetentionPolicy(maxAge == null ? 0 : Double.parseDouble(maxAge),
+                    maxEvents == null ? 0 : Long.parseLong(maxEvents),
+                    maxBytes == null ? 0 : Long.parseLong(maxBytes),
+                    archive == null ? null : Path.of(archive, "client-" + clientId));
+        } catch (NumberFormatException e) {
+            System.out.println("ERROR reading the retention of client " + clientId + ", it keeps every event: " + e.getMessage());
+            return null;
+        }
+    }
 
-                        Pattern patternR = Pattern.compile("TimeStamp=([-+]?\\d+\\.\\d+E?(\\d+)?),RequestType=(.+),RequestCommand=(.+),requestData=\\{(.+)},clientId=(\\d+),email=(.+)}");
-                        Matcher matcherR = patternR.matcher(reply);
+    /**
+     * Reads a property that can be set per client, the one of the client if it is set
+     */
+    private static String clientProperty(String property, int clientId) {
+        return System.getProperty(property + ".client-" + clientId, System.getProperty(property));
+    }
 
-                        //Match 1: TimeStamp (double)
-                        //Match 2: Exponent (int)
-                        //Match 3: RequestType (String)
-                        //Match 4: RequestCommand (String)
-                        //Match 5: requestData (String)
-                        //Match 6: clientId (int)
-                        //Match 7: email (String)
+    /**
+     * Helper function to parse the message received
+     * @param reply the message to be parsed
+     * @throws IOException if the message is not formatted correctly
+     */
+    private void messageHandler(String reply) throws IOException {
+        LINES.increment();
+        HandleMessageJfrEvent jfr = new HandleMessageJfrEvent();
+        jfr.begin();
+        try {
+            long timestamp = System.currentTimeMillis();
+            long parseStart = System.nanoTime();
 
-                        //parsing the event data
-                        if (matcherR.find()) {
-                            Client client = new Client(Integer.parseInt(matcherR.group(6).trim()), matcherR.group(7).trim(), incomingSocket.getLocalAddress().getHostAddress(), incomingSocket.getLocalPort());
-                            Server server = new Server(client);
+            String eventType = messageType(reply);
+            jfr.messageType = eventType;
+            if (eventType == null) {
+                PARSE_FAILURES.increment();
+                return;
+            }
 
-                            server = getMapServer(server);
+            switch (eventType) {
+                case "SensorEvent", "ActuatorEvent":
+                    Matcher matcherSE = EVENT_PATTERN.matcher(reply);
 
+                    //parsing the event data
+                    if (matcherSE.find()) {
+                        Event event = parseEvent(matcherSE, eventType);
+                        int clientId = Integer.parseInt(matcherSE.group(7).trim());
+                        PARSE_TIME.record(System.nanoTime() - parseStart);
+                        jfr.parsed = true;
+                        jfr.clientId = clientId;
+                        jfr.entityId = event.getEntityId();
 
-                            //Registering a new entity ?? NOT SURE IF THIS WORKS
-                            Request request = new Request(Double.parseDouble(matcherR.group(1)),
-                                    RequestType.valueOf(matcherR.group(3).trim()),
-                                    RequestCommand.valueOf(matcherR.group(4).trim()),
-                                    matcherR.group(5).trim());
+                        Server server = getMapServer(clientId, matcherSE.group(8).trim());
 
-                            request.setReceptionTime(timestamp); //set reception timestamp
+                        lastServer = server;
+                        if (!AdmissionController.shared().admit(server, event)) {
+                            break;
+                        }
+                        event.setTimeArrived(System.currentTimeMillis());
+                        server.processIncomingEvent(event);
+                    } else {
+                        PARSE_FAILURES.increment();
+                    }
+                    break;
+
+                case "Request":
+                    Matcher matcherR = REQUEST_PATTERN.matcher(reply);
+
+                    //parsing the request data
+                    if (matcherR.find()) {
+                        Request request = parseRequest(matcherR);
+                        int clientId = Integer.parseInt(matcherR.group(6).trim());
+                        PARSE_TIME.record(System.nanoTime() - parseStart);
+                        jfr.parsed = true;
+                        jfr.clientId = clientId;
+
+                        if (answerFleetRequest(request)) {
+                            break;
+                        }
 
-                            server.processIncomingRequest(request);
+                        Server server = getMapServer(clientId, matcherR.group(7).trim());
 
+                        if (!AdmissionController.shared().admit(server, request)) {
                             break;
-
                         }
+                        request.setReceptionTime(timestamp); //set reception timestamp
 
-                }
+                        server.processIncomingRequest(request);
+                    } else {
+                        PARSE_FAILURES.increment();
+                    }
+                    break;
             }
         } catch (NumberFormatException e) {
+            PARSE_FAILURES.increment();
             throw new IOException("misformatted reply: " + reply);
+        } catch (IllegalArgumentException e) {
+            //an unknown request type or command
+            PARSE_FAILURES.increment();
+            throw e;
+        } finally {
+            jfr.end();
+            if (jfr.shouldCommit()) {
+                jfr.commit();
+            }
+        }
+    }
+
+    /**
+     * Finds the kind of a message
+     * @param reply the message
+     * @return "SensorEvent", "ActuatorEvent" or "Request", null if the message is none of them
+     */
+    static String messageType(String reply) {
+        Matcher matcherType = INPUT_TYPE_PATTERN.matcher(reply);
+        return matcherType.find() ? matcherType.group(1) : null;
+    }
+
+    /**
+     * Builds the event of a message matched by EVENT_PATTERN
+     * @param matcherSE the matcher after a successful find
+     * @param eventType "SensorEvent" or "ActuatorEvent"
+     * @return the event, its arrival time is not set
+     * @throws NumberFormatException if a number in the message is malformed
+     */
+    static Event parseEvent(Matcher matcherSE, String eventType) {
+        //We skip group 2 because it is the exponent of the time stamp
+        if (eventType.equalsIgnoreCase("ActuatorEvent")) {
+            return new ActuatorEvent(Double.parseDouble(matcherSE.group(1)),
+                    Integer.parseInt(matcherSE.group(3).trim()),
+                    Integer.parseInt(matcherSE.group(4).trim()),
+                    matcherSE.group(5).trim(),
+                    Boolean.parseBoolean(matcherSE.group(6).trim()));
         }
+        return new SensorEvent(Double.parseDouble(matcherSE.group(1)),
+                Integer.parseInt(matcherSE.group(3).trim()),
+                Integer.parseInt(matcherSE.group(4).trim()),
+                matcherSE.group(5).trim(),
+                Double.parseDouble(matcherSE.group(6).trim()));
+    }
+
+    /**
+     * Answers an entity sketch request over every client, which no single server can: an
+     * ANALYSIS_GET_HEAVY_HITTERS or ANALYSIS_GET_DISTINCT_ENTITY_COUNT request with data "all"
+     * merges the sketches of every server
+     * @param request the request
+     * @return true if it was answered here, false if it goes to the client's server
+     */
+    boolean answerFleetRequest(Request request) {
+        if (servers == null || request.getRequestData() == null || !request.getRequestData().trim().equals("all")) {
+            return false;
+        }
+        switch (request.getRequestCommand()) {
+            case ANALYSIS_GET_HEAVY_HITTERS:
+                HeavyHitters hitters = MessageHandler.mergeHeavyHitters(servers.values());
+                if (hitters != null) {
+                    hitters.top(Server.HEAVY_HITTER_CAPACITY);
+                }
+                return true;
+            case ANALYSIS_GET_DISTINCT_ENTITY_COUNT:
+                HyperLogLog distinct = MessageHandler.mergeDistinctEntities(servers.values());
+                if (distinct != null) {
+                    distinct.estimate();
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Builds the request of a message matched by REQUEST_PATTERN
+     * @param matcherR the matcher after a successful find
+     * @return the request, its reception time is not set
+     * @throws NumberFormatException if a number in the message is malformed
+     * @throws IllegalArgumentException if the request type or command is unknown
+     */
+    static Request parseRequest(Matcher matcherR) {
+        return new Request(Double.parseDouble(matcherR.group(1)),
+                RequestType.valueOf(matcherR.group(3).trim()),
+                RequestCommand.valueOf(matcherR.group(4).trim()),
+                matcherR.group(5).trim());
     }
 }
\ No newline at end of file
@@ -0,0 +1,177 @@
+package cpen221.mp3.logging;
+
+import cpen221.mp3.metrics.MetricsRegistry;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes log lines on a background thread so the threads that log never wait on the console.
+ * Lines go through a bounded lock-free ring buffer: any number of threads add lines, the single
+ * drainer thread takes them out in order and writes each batch with one print. If the ring is
+ * full the line is dropped and counted, logging never blocks.
+ *
+ * The ring follows Vyukov's bounded queue: every slot carries a sequence number that tells
+ * producers whether it is free for their ticket and the consumer whether it holds the next line.
+ */
+//REP INVARIANTS: capacity is a power of 2, head <= tail, tail - head <= capacity,
+//                slot i holds a line iff sequences[i] == ticket + 1 for the ticket that claimed it
+public class AsyncLog {
+    public static final int DEFAULT_CAPACITY = 8192; //in lines
+    private static final long IDLE_PARK = 500_000; //in ns, how long the drainer waits when the ring is empty
+    private static final long FLUSH_TIMEOUT = 2000; //in ms
+
+    private static AsyncLog shared = null;
+
+    private final int mask;
+    private final String[] lines;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();   // the next ticket handed to a producer
+    private volatile long head = 0;                      // the next ticket the drainer takes, only it writes this
+    private final AtomicLong dropped = new AtomicLong();
+
+    // where lines are written, null means whatever System.out is when they are written
+    private final PrintStream output;
+
+    /**
+     * Gets the log shared by every logger of the process, writing to System.out. It is
+     * flushed when the JVM shuts down, and its drops and backlog are the metrics
+     * log.dropped and log.pending.
+     * @return the shared log
+     */
+    public static synchronized AsyncLog shared() {
+        if (shared == null) {
+            shared = new AsyncLog(DEFAULT_CAPACITY, null, true);
+            AsyncLog log = shared;
+            Runtime.getRuntime().addShutdownHook(new Thread(log::flush, "async-log-shutdown"));
+            MetricsRegistry.shared().gauge("log.dropped", log::dropped);
+            MetricsRegistry.shared().gauge("log.pending", log::pending);
+        }
+        return shared;
+    }
+
+    /**
+     * Creates a log
+     * @param capacity the max number of lines waiting to be written, rounded up to a power of 2
+     * @param output where lines are written, null for System.out at the time they are written
+     * @param startDrainer true to start the drainer thread, false leaves draining to the caller
+     */
+    AsyncLog(int capacity, PrintStream output, boolean startDrainer) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.lines = new String[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.output = output;
+
+        if (startDrainer) {
+            Thread drainer = new Thread(this::drainForever, "async-log");
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+    }
+
+    /**
+     * Adds a line to be written, without waiting
+     * @param line the line, without the line separator
+     * @return true if the line was queued, false if the ring was full and it was dropped
+     */
+    public boolean publish(String line) {
+        while (true) {
+            long ticket = tail.get();
+            int slot = (int) (ticket & mask);
+            long sequence = sequences.get(slot);
+            if (sequence == ticket) {
+                if (tail.compareAndSet(ticket, ticket + 1)) {
+                    lines[slot] = line;
+                    sequences.set(slot, ticket + 1); // publishes the line to the drainer
+                    return true;
+                }
+            } else if (sequence < ticket) {
+                //the slot still holds the line of the previous lap, the ring is full
+                dropped.incrementAndGet();
+                return false;
+            }
+            //another producer took this ticket, try the next one
+        }
+    }
+
+    /**
+     * Waits until every line published before this call has been written, or two seconds
+     */
+    public void flush() {
+        long target = tail.get();
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT;
+        while (head < target && System.currentTimeMillis() < deadline) {
+            LockSupport.parkNanos(IDLE_PARK);
+        }
+    }
+
+    /**
+     * Gets the number of lines dropped because the ring was full
+     * @return the number of dropped lines
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Gets the number of lines waiting to be written
+     * @return the number of queued lines
+     */
+    public int pending() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    /**
+     * Takes every line that is ready out of the ring and writes them with one print.
+     * Only one thread may drain.
+     * @return the number of lines written
+     */
+    int drain() {
+        StringBuilder batch = null;
+        int count = 0;
+        long ticket = head;
+        while (true) {
+            int slot = (int) (ticket & mask);
+            if (sequences.get(slot) != ticket + 1) {
+                break;
+            }
+            if (batch == null) {
+                batch = new StringBuilder();
+            }
+            batch.append(lines[slot]).append(System.lineSeparator());
+            lines[slot] = null;
+            sequences.set(slot, ticket + lines.length); // frees the slot for the next lap
+            ticket++;
+            count++;
+        }
+        if (batch != null) {
+            PrintStream out = output == null ? System.out : output;
+            out.print(batch);
+            out.flush();
+        }
+        head = ticket;
+        return count;
+    }
+
+    /**
+     * The drainer thread: drains, and parks briefly whenever there is nothing to write
+     */
+    private void drainForever() {
+        while (true) {
+            try {
+                if (drain() == 0) {
+                    LockSupport.parkNanos(IDLE_PARK);
+                }
+            } catch (RuntimeException e) {
+                //a broken output stream must not stop the drainer, the lines are lost
+                System.err.println("ERROR writing log lines: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package cpen221.mp3.logging;
+
+/**
+ * The severity of a log message, a logger at some level writes messages at that level and above
+ */
+public enum Level {
+    TRACE,
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+    OFF
+}
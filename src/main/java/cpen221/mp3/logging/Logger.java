@@ -0,0 +1,196 @@
+package cpen221.mp3.logging;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs the messages of one category, e.g. "server.events", through an AsyncLog.
+ * A message below the level of its logger costs one comparison and is never formatted,
+ * so hot paths should log through isEnabled or pass messages that are cheap to build.
+ *
+ * The level of a category starts at the system property cpen221.log.[category] if set,
+ * else cpen221.log.level, else INFO, e.g. -Dcpen221.log.server.events=WARN.
+ *
+ * Messages logged once per event or line can be sampled: at most samplesPerSecond of them
+ * are written each second and the rest are counted, the next written message says how many
+ * were suppressed since the one before.
+ */
+//REP INVARIANTS: category, level, log != null, samplesPerSecond >= 0
+public class Logger {
+    public static final String LEVEL_PROPERTY = "cpen221.log.level";
+    public static final String CATEGORY_PROPERTY_PREFIX = "cpen221.log.";
+    public static final int DEFAULT_SAMPLES_PER_SECOND = 100;
+
+    private static final Map<String, Logger> loggers = new ConcurrentHashMap<>();
+
+    private final String category;
+    private final AsyncLog log;
+    private volatile Level level;
+    private volatile int samplesPerSecond = DEFAULT_SAMPLES_PER_SECOND;
+
+    // the second the sample window started, in ms, and the messages written in it
+    private final AtomicLong windowStart = new AtomicLong();
+    private final AtomicLong windowCount = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong totalSuppressed = new AtomicLong();
+
+    /**
+     * Gets the logger of a category, writing to the shared AsyncLog
+     * @param category the category, dotted like a metric name
+     * @return the logger, the same one every time for the same category
+     */
+    public static Logger get(String category) {
+        return loggers.computeIfAbsent(category, key -> new Logger(key, AsyncLog.shared()));
+    }
+
+    /**
+     * Creates a logger
+     * @param category the category of the logger
+     * @param log where the messages are written
+     */
+    Logger(String category, AsyncLog log) {
+        this.category = category;
+        this.log = log;
+        this.level = initialLevel(category);
+    }
+
+    /**
+     * Gets the category of this logger
+     * @return the category
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    /**
+     * Gets the level of this logger
+     * @return the lowest level written
+     */
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets the level of this logger, messages below it are discarded
+     * @param level the lowest level to write, OFF to write nothing
+     */
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * Sets how many sampled messages are written each second
+     * @param samplesPerSecond the max messages per second, must be >= 0
+     */
+    public void setSamplesPerSecond(int samplesPerSecond) {
+        this.samplesPerSecond = samplesPerSecond;
+    }
+
+    /**
+     * Checks if messages at a level are written
+     * @param level the level of the message
+     * @return true if the message would be written
+     */
+    public boolean isEnabled(Level level) {
+        return level != Level.OFF && level.compareTo(this.level) >= 0;
+    }
+
+    /**
+     * Logs a message
+     * @param level the level of the message
+     * @param message the message
+     */
+    public void log(Level level, String message) {
+        if (isEnabled(level)) {
+            log.publish(message);
+        }
+    }
+
+    /**
+     * Logs a message that is one of many alike, writing at most samplesPerSecond of them each second
+     * @param level the level of the message
+     * @param message the message
+     */
+    public void sampled(Level level, String message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        if (!takeSample(System.currentTimeMillis())) {
+            suppressed.incrementAndGet();
+            totalSuppressed.incrementAndGet();
+            return;
+        }
+        long skipped = suppressed.getAndSet(0);
+        log.publish(skipped == 0 ? message : message + " (" + skipped + " similar suppressed)");
+    }
+
+    /**
+     * Logs a message at DEBUG
+     * @param message the message
+     */
+    public void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    /**
+     * Logs a message at INFO
+     * @param message the message
+     */
+    public void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    /**
+     * Logs a message at WARN
+     * @param message the message
+     */
+    public void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    /**
+     * Logs a message at ERROR
+     * @param message the message
+     */
+    public void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    /**
+     * Gets the number of sampled messages suppressed since this logger was created
+     * @return the number of suppressed messages
+     */
+    public long getSuppressedCount() {
+        return totalSuppressed.get();
+    }
+
+    /**
+     * Takes one of the samples of the current second, starting a new second if the last one is over
+     * @param now the current time, in ms
+     * @return true if the message may be written
+     */
+    boolean takeSample(long now) {
+        long start = windowStart.get();
+        if (now - start >= 1000 && windowStart.compareAndSet(start, now)) {
+            windowCount.set(0);
+        }
+        return windowCount.incrementAndGet() <= samplesPerSecond;
+    }
+
+    /**
+     * Reads the level of a category from the system properties
+     */
+    private static Level initialLevel(String category) {
+        String value = System.getProperty(CATEGORY_PROPERTY_PREFIX + category, System.getProperty(LEVEL_PROPERTY));
+        if (value == null) {
+            return Level.INFO;
+        }
+        try {
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("WARNING -> unknown log level " + value + " for " + category + ", using INFO");
+            return Level.INFO;
+        }
+    }
+}
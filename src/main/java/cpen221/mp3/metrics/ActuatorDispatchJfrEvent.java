@@ -0,0 +1,31 @@
+package cpen221.mp3.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a command sent to an actuator, from its dispatch to its write on the
+ * actuator's socket. It is committed on the dispatcher thread.
+ */
+@Name("cpen221.mp3.ActuatorDispatch")
+@Label("Actuator Dispatch")
+@Category({"CPEN221", "Actuator"})
+@Description("A command was written to an actuator, or failed")
+@StackTrace(false)
+public class ActuatorDispatchJfrEvent extends jdk.jfr.Event {
+    @Label("Client Id")
+    public int clientId;
+
+    @Label("Actuator")
+    @Description("The host:port the actuator receives commands on")
+    public String actuator;
+
+    @Label("Command")
+    public String command;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+}
@@ -0,0 +1,42 @@
+package cpen221.mp3.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free counter for hot paths. Updates from many threads don't contend, reading sums
+ * the per-thread cells. It may also go down, which makes it usable for queue depths.
+ */
+//REP INVARIANTS: value != null
+public class Counter {
+    private final LongAdder value = new LongAdder();
+
+    /**
+     * Adds one to the counter
+     */
+    public void increment() {
+        value.increment();
+    }
+
+    /**
+     * Subtracts one from the counter
+     */
+    public void decrement() {
+        value.decrement();
+    }
+
+    /**
+     * Adds to the counter
+     * @param amount the amount to add, may be negative
+     */
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    /**
+     * Gets the current value of the counter
+     * @return the value
+     */
+    public long get() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,32 @@
+package cpen221.mp3.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for MessageHandlerThread.messageHandler, the handling of one received
+ * line from parsing to queueing it on its server
+ */
+@Name("cpen221.mp3.HandleMessage")
+@Label("Handle Message")
+@Category({"CPEN221", "Handler"})
+@Description("The message handler parsed a line and queued it on its server")
+@StackTrace(false)
+public class HandleMessageJfrEvent extends jdk.jfr.Event {
+    @Label("Message Type")
+    @Description("SensorEvent, ActuatorEvent or Request, null if the line was not recognized")
+    public String messageType;
+
+    @Label("Client Id")
+    public int clientId = -1;
+
+    @Label("Entity Id")
+    @Description("The entity of an event, -1 for requests")
+    public int entityId = -1;
+
+    @Label("Parsed")
+    public boolean parsed;
+}
@@ -0,0 +1,28 @@
+package cpen221.mp3.metrics;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * The flight recorder events of the pipeline. Gate their use with shouldCommit, so the only cost
+ * while no recording is on is the begin/end pair, which the JIT removes.
+ */
+public class JfrEvents {
+    private static boolean registered = false;
+
+    /**
+     * Registers every event type up front. The first use of an event type sets up the flight
+     * recorder, which takes a few hundred ms; the classes of the pipeline call this when they
+     * are loaded so that cost is not paid by the first event processed.
+     */
+    public static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        registered = true;
+        FlightRecorder.register(HandleMessageJfrEvent.class);
+        FlightRecorder.register(RunEventJfrEvent.class);
+        FlightRecorder.register(ReprocessEventJfrEvent.class);
+        FlightRecorder.register(RunRequestJfrEvent.class);
+        FlightRecorder.register(ActuatorDispatchJfrEvent.class);
+    }
+}
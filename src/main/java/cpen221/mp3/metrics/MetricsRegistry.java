@@ -0,0 +1,191 @@
+package cpen221.mp3.metrics;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics of the processing pipeline: counters, gauges and latency histograms, by name.
+ * Metrics are created on first use and live as long as the registry, looking one up is a
+ * map read so hot paths should keep the returned object in a field.
+ *
+ * The shared registry can be read over JMX (registerMBean) and dumped as text to a file
+ * every few seconds (startDump). Names are dotted, e.g. "server.events_run", and units
+ * are part of the name, e.g. "handler.parse_time_ns".
+ */
+//REP INVARIANTS: counters, gauges, histograms != null, a name is in at most one of them
+public class MetricsRegistry {
+    public static final String OBJECT_NAME = "cpen221.mp3:type=Metrics";
+    public static final double[] PERCENTILES = {50, 99, 99.9};
+
+    private static MetricsRegistry shared = null;
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService dumper = null;
+    private ScheduledFuture<?> dumpTask = null;
+
+    /**
+     * Gets the registry shared by the MessageHandler, servers and dispatcher of this process
+     * @return the shared registry
+     */
+    public static synchronized MetricsRegistry shared() {
+        if (shared == null) {
+            shared = new MetricsRegistry();
+        }
+        return shared;
+    }
+
+    /**
+     * Gets a counter, creating it at 0 if it does not exist
+     * @param name the name of the counter
+     * @return the counter
+     */
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, key -> new Counter());
+    }
+
+    /**
+     * Registers a gauge, a value read from elsewhere whenever the metrics are read.
+     * A gauge registered again under the same name replaces the old one.
+     * @param name the name of the gauge
+     * @param value reads the current value, it must be cheap and thread-safe
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Gets a histogram, creating it empty if it does not exist
+     * @param name the name of the histogram, ending in its unit
+     * @return the histogram
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    /**
+     * Reads every metric. Histograms are flattened into name.count, name.mean, name.max and
+     * one name.pNN entry per percentile in PERCENTILES.
+     * @return the metrics by name, sorted by name
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.get()));
+        gauges.forEach((name, gauge) -> {
+            try {
+                values.put(name, gauge.getAsLong());
+            } catch (RuntimeException e) {
+                //a gauge reading a structure mid-update is skipped rather than failing the read
+            }
+        });
+        histograms.forEach((name, histogram) -> {
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".mean", histogram.getMean());
+            values.put(name + ".max", histogram.getMax());
+            for (double percentile : PERCENTILES) {
+                values.put(name + ".p" + percentileName(percentile), histogram.getValueAtPercentile(percentile));
+            }
+        });
+        return values;
+    }
+
+    /**
+     * Formats every metric as one "name value" line, sorted by name
+     * @return the text dump
+     */
+    public String dump() {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        out.println("# metrics at " + System.currentTimeMillis());
+        snapshot().forEach((name, value) -> out.println(name + " " + value));
+        out.flush();
+        return text.toString();
+    }
+
+    /**
+     * Registers the registry with the platform MBean server, so tools like jconsole show every
+     * metric as an attribute of OBJECT_NAME. Registering twice has no effect.
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new MetricsMBean(this), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            //already visible
+        } catch (JMException e) {
+            System.out.println("ERROR registering metrics over JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the text dump to a file every period, replacing the previous dump. The file is
+     * written next to its final name and moved over it, so readers never see half a dump.
+     * Starting a dump stops the previous one.
+     *
+     * @param file the file to write
+     * @param periodMillis the time between dumps, in ms, must be > 0
+     */
+    public synchronized void startDump(Path file, long periodMillis) {
+        stopDump();
+        if (dumper == null) {
+            dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        dumpTask = dumper.scheduleAtFixedRate(() -> writeDump(file), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the periodic dump, if any
+     */
+    public synchronized void stopDump() {
+        if (dumpTask != null) {
+            dumpTask.cancel(false);
+            dumpTask = null;
+        }
+    }
+
+    /**
+     * Writes one dump to a file
+     * @param file the file to replace
+     */
+    void writeDump(Path file) {
+        try {
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(temporary, dump(), StandardCharsets.UTF_8);
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.println("ERROR writing metrics to " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Formats a percentile for a metric name, 99.9 becomes 999
+     */
+    private static String percentileName(double percentile) {
+        String name = Double.toString(percentile);
+        return name.endsWith(".0") ? name.substring(0, name.length() - 2) : name.replace(".", "");
+    }
+}
@@ -0,0 +1,32 @@
+package cpen221.mp3.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for Server.reprocessEvent, the insertion of a late event into the
+ * events already processed
+ */
+@Name("cpen221.mp3.ReprocessEvent")
+@Label("Reprocess Event")
+@Category({"CPEN221", "Server"})
+@Description("A server inserted a late event among the processed ones")
+@StackTrace(false)
+public class ReprocessEventJfrEvent extends jdk.jfr.Event {
+    @Label("Client Id")
+    public int clientId;
+
+    @Label("Entity Id")
+    public int entityId;
+
+    @Label("Lateness")
+    @Description("How far the event's time stamp is behind the newest processed one")
+    public double lateness;
+
+    @Label("Displaced Events")
+    @Description("The number of processed events that were newer than the late event")
+    public int displacedEvents;
+}
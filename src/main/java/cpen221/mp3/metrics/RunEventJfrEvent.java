@@ -0,0 +1,32 @@
+package cpen221.mp3.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for Server.runEvent, the processing of one event. Late events also
+ * emit a ReprocessEventJfrEvent nested in this one.
+ */
+@Name("cpen221.mp3.RunEvent")
+@Label("Run Event")
+@Category({"CPEN221", "Server"})
+@Description("A server processed an event")
+@StackTrace(false)
+public class RunEventJfrEvent extends jdk.jfr.Event {
+    @Label("Client Id")
+    public int clientId;
+
+    @Label("Entity Id")
+    public int entityId;
+
+    @Label("Lateness")
+    @Description("How far the event's time stamp is behind the newest processed one, 0 if it is in order")
+    public double lateness;
+
+    @Label("Wait Time")
+    @Description("Time from the event's arrival at the handler to its processing, in ms")
+    public long waitTime;
+}
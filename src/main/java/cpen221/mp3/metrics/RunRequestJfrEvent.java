@@ -0,0 +1,27 @@
+package cpen221.mp3.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for Server.runRequestCommand
+ */
+@Name("cpen221.mp3.RunRequest")
+@Label("Run Request")
+@Category({"CPEN221", "Server"})
+@Description("A server ran the command of a request")
+@StackTrace(false)
+public class RunRequestJfrEvent extends jdk.jfr.Event {
+    @Label("Client Id")
+    public int clientId;
+
+    @Label("Command")
+    public String command;
+
+    @Label("Wait Time")
+    @Description("Time from the request's reception to running its command, in ms")
+    public long waitTime;
+}
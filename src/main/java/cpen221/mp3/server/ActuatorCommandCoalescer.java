@@ -0,0 +1,204 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.client.Request;
+import cpen221.mp3.client.RequestCommand;
+import cpen221.mp3.client.RequestType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//REP INVARIANTS: windowMillis >= 0, pending != null
+public class ActuatorCommandCoalescer {
+    public static final long DEFAULT_WINDOW = 5; //in ms
+
+    //one timer thread is enough: it only hands the merged commands to the dispatcher
+    private static final ScheduledExecutorService FLUSH_TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "actuator-command-coalescer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile long windowMillis;
+
+    //commands waiting for their window to close, keyed by actuator id
+    private final Map<Integer, PendingState> pending;
+
+    /**
+     * Creates a coalescer with the default window
+     */
+    public ActuatorCommandCoalescer() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a coalescer
+     * @param windowMillis how long commands to the same actuator are collected before one is sent,
+     *                     0 sends every command immediately, must be >= 0
+     */
+    public ActuatorCommandCoalescer(long windowMillis) {
+        setWindow(windowMillis);
+        this.pending = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Updates how long commands to the same actuator are collected before one is sent
+     * @param windowMillis the new window in ms, 0 disables coalescing and sends the commands
+     *                     still waiting for their window right away
+     */
+    public void setWindow(long windowMillis) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Coalescing window can't be negative");
+        }
+        this.windowMillis = windowMillis;
+        if (windowMillis == 0 && pending != null) {
+            //commands sent from now on must not overtake the ones still waiting
+            for (Integer actuatorId : new ArrayList<>(pending.keySet())) {
+                flush(actuatorId);
+            }
+        }
+    }
+
+    /**
+     * Gets how long commands to the same actuator are collected before one is sent
+     * @return the window in ms
+     */
+    public long getWindow() {
+        return windowMillis;
+    }
+
+    /**
+     * Submits a SET_STATE or TOGGLE_STATE command for an actuator. Commands for the same actuator
+     * within one window are merged into a single command: the last SET_STATE wins and the toggles
+     * after it flip its value, toggles on their own are sent only if there is an odd number of them.
+     * Every callback is notified with the result of the merged command, or with success if the
+     * commands cancelled out and nothing had to be sent.
+     *
+     * @param dispatcher the dispatcher that sends the merged command
+     * @param actuator the actuator to send the command to
+     * @param command a SET_STATE or TOGGLE_STATE command
+     * @param callback notified once the merged command has been sent or has failed, may be null
+     */
+    public void submit(ActuatorCommandDispatcher dispatcher, ActuatorHandle actuator, Request command,
+                       ActuatorCommandDispatcher.Callback callback) {
+        if (windowMillis == 0) {
+            //a window that was just closed may still hold earlier commands for the actuator
+            flush(actuator.getId());
+            dispatcher.dispatch(actuator.getHost(), actuator.getCommandPort(), command, callback);
+            return;
+        }
+
+        pending.compute(actuator.getId(), (id, state) -> {
+            if (state == null) {
+                state = new PendingState();
+                FLUSH_TIMER.schedule(() -> flush(id), windowMillis, TimeUnit.MILLISECONDS);
+            }
+            state.merge(dispatcher, actuator, command, callback);
+            return state;
+        });
+    }
+
+    /**
+     * Gets the number of actuators with commands waiting for their window to close
+     * @return the number of actuators with pending commands
+     */
+    public int pendingActuators() {
+        return pending.size();
+    }
+
+    /**
+     * Sends the merged command for an actuator once its window has closed
+     * @param actuatorId the id of the actuator
+     */
+    private void flush(int actuatorId) {
+        PendingState state = pending.remove(actuatorId);
+        if (state == null) {
+            return;
+        }
+
+        Request merged = state.toCommand();
+        List<ActuatorCommandDispatcher.Callback> callbacks = state.callbacks;
+        if (merged == null) {
+            //the commands cancelled out, the actuator already has the requested state
+            for (ActuatorCommandDispatcher.Callback callback : callbacks) {
+                complete(callback, null, null);
+            }
+            return;
+        }
+
+        state.dispatcher.dispatch(state.actuator.getHost(), state.actuator.getCommandPort(), merged, (command, error) -> {
+            for (ActuatorCommandDispatcher.Callback callback : callbacks) {
+                complete(callback, command, error);
+            }
+        });
+    }
+
+    /**
+     * Notifies a callback, a callback that throws must not keep the others from being notified
+     * or kill the timer thread
+     */
+    private static void complete(ActuatorCommandDispatcher.Callback callback, Request command, Exception error) {
+        try {
+            callback.completed(command, error);
+        } catch (RuntimeException e) {
+            System.out.println("Error in actuator command callback: " + e.getMessage());
+        }
+    }
+
+    //the net effect of the commands submitted for one actuator in the current window
+    private static class PendingState {
+        private ActuatorCommandDispatcher dispatcher;
+        private ActuatorHandle actuator;
+
+        //the value of the last SET_STATE, null if there was none
+        private Boolean setValue = null;
+        //true if an odd number of toggles came after the last SET_STATE
+        private boolean toggleParity = false;
+
+        private final List<ActuatorCommandDispatcher.Callback> callbacks = new ArrayList<>();
+
+        /**
+         * Folds a command into the pending state
+         */
+        private void merge(ActuatorCommandDispatcher dispatcher, ActuatorHandle actuator, Request command,
+                           ActuatorCommandDispatcher.Callback callback) {
+            this.dispatcher = dispatcher;
+            this.actuator = actuator;
+
+            if (command.getRequestCommand() == RequestCommand.SET_STATE) {
+                setValue = Boolean.parseBoolean(command.getRequestData());
+                toggleParity = false;
+            } else {
+                toggleParity = !toggleParity;
+            }
+
+            if (callback != null) {
+                callbacks.add(callback);
+            }
+        }
+
+        /**
+         * Builds the single command with the same effect as all the merged ones
+         * @return the merged command, null if nothing has to be sent
+         */
+        private Request toCommand() {
+            Request command;
+            if (setValue != null) {
+                command = new Request(RequestType.CONTROL, RequestCommand.SET_STATE, String.valueOf(setValue ^ toggleParity));
+            } else if (toggleParity) {
+                command = new Request(RequestType.CONTROL, RequestCommand.TOGGLE_STATE, "toggle");
+            } else {
+                return null;
+            }
+
+            //Need to do this due to toString limitations. They will not be used in Actuator
+            command.setEmail("");
+            command.setClientId(actuator.getClientId());
+            return command;
+        }
+    }
+}
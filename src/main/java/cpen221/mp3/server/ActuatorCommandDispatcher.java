@@ -0,0 +1,389 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.client.Request;
+import cpen221.mp3.metrics.ActuatorDispatchJfrEvent;
+import cpen221.mp3.metrics.Counter;
+import cpen221.mp3.metrics.JfrEvents;
+import cpen221.mp3.metrics.LatencyHistogram;
+import cpen221.mp3.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+//REP INVARIANTS: selector, connections, pendingUpdates != null, queueCapacity > 0
+public class ActuatorCommandDispatcher {
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    //from dispatch() to the command being written to the actuator's socket
+    private static final LatencyHistogram DISPATCH_LATENCY = MetricsRegistry.shared().histogram("actuator.dispatch_latency_us");
+    private static final Counter DISPATCH_FAILURES = MetricsRegistry.shared().counter("actuator.dispatch_failures");
+
+    static {
+        JfrEvents.register();
+    }
+
+    private static ActuatorCommandDispatcher shared = null;
+
+    private final Selector selector;
+    private final int queueCapacity;
+
+    //one persistent connection per actuator endpoint, keyed by "host:port"
+    private final Map<String, Connection> connections;
+
+    //connections whose socket or interest set must be updated by the dispatcher thread,
+    //all channel operations happen on that thread so callers never block on the network
+    private final Queue<Connection> pendingUpdates;
+
+    private volatile boolean running;
+
+    /**
+     * Called once a command has been written to the actuator's socket or has failed.
+     * Callbacks run on the dispatcher thread, so they must not block.
+     */
+    public interface Callback {
+        /**
+         * @param command the command that was dispatched
+         * @param error null if the command was sent, otherwise the reason it could not be sent
+         */
+        void completed(Request command, Exception error);
+    }
+
+    /**
+     * Creates a dispatcher with the default outbound queue capacity per actuator
+     * and starts its network thread
+     */
+    public ActuatorCommandDispatcher() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates a dispatcher and starts its network thread
+     * @param queueCapacity the max number of commands waiting to be sent to a single actuator, must be > 0
+     */
+    public ActuatorCommandDispatcher(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        this.queueCapacity = queueCapacity;
+        this.connections = new ConcurrentHashMap<>();
+        this.pendingUpdates = new ConcurrentLinkedQueue<>();
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.running = true;
+
+        Thread dispatcherThread = new Thread(this::run, "actuator-command-dispatcher");
+        dispatcherThread.setDaemon(true);
+        dispatcherThread.start();
+    }
+
+    /**
+     * Gets the dispatcher shared by all servers that were not given their own
+     * @return the shared dispatcher, created on first use
+     */
+    public static synchronized ActuatorCommandDispatcher shared() {
+        if (shared == null) {
+            shared = new ActuatorCommandDispatcher();
+        }
+        return shared;
+    }
+
+    /**
+     * Queues a command to be sent to the actuator listening on the given endpoint.
+     * This method never blocks: the connection is opened (or reused) and the command
+     * is written by the dispatcher thread.
+     *
+     * @param host the IP address of the actuator, null means the loopback address
+     * @param port the port the actuator receives server commands on
+     * @param command the command to send, requires command is not null
+     * @param callback notified when the command has been sent or has failed, may be null
+     * @return true if the command was queued, false if the actuator's outbound queue is full
+     *         or the dispatcher is shut down (the callback is notified of the failure)
+     */
+    public boolean dispatch(String host, int port, Request command, Callback callback) {
+        String key = host + ":" + port;
+        PendingCommand pending = new PendingCommand(key, command, callback);
+        if (!running) {
+            complete(pending, new IOException("Dispatcher is shut down"));
+            return false;
+        }
+
+        while (true) {
+            Connection connection = connections.computeIfAbsent(key, k -> new Connection(host, port));
+            if (!connection.outbound.offer(pending)) {
+                complete(pending, new IOException("Outbound queue full for actuator at " + key));
+                return false;
+            }
+            if (connection.closed && connection.outbound.remove(pending)) {
+                //the connection was torn down before it could see our command, retry on a fresh one
+                continue;
+            }
+            pendingUpdates.add(connection);
+            selector.wakeup();
+            return true;
+        }
+    }
+
+    /**
+     * Gets the number of commands waiting to be sent to the actuator on the given endpoint
+     * @param host the IP address of the actuator
+     * @param port the port the actuator receives server commands on
+     * @return the number of queued commands, 0 if there is no open connection
+     */
+    public int queuedCommands(String host, int port) {
+        Connection connection = connections.get(host + ":" + port);
+        return connection == null ? 0 : connection.outbound.size();
+    }
+
+    /**
+     * Closes every connection, failing the commands that have not been sent yet,
+     * and stops the dispatcher thread
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * The dispatcher thread: opens connections, writes queued commands and
+     * detects actuators closing their end
+     */
+    private void run() {
+        ByteBuffer readBuffer = ByteBuffer.allocate(256);
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.out.println("Error in actuator command dispatcher: " + e.getMessage());
+                continue;
+            }
+
+            for (Connection connection = pendingUpdates.poll(); connection != null; connection = pendingUpdates.poll()) {
+                try {
+                    connection.update();
+                } catch (IOException e) {
+                    connection.close(e);
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isConnectable()) {
+                        connection.finishConnect();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        readBuffer.clear();
+                        connection.read(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                } catch (IOException e) {
+                    connection.close(e);
+                }
+            }
+        }
+
+        for (Connection connection : connections.values()) {
+            connection.close(new IOException("Dispatcher is shut down"));
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.out.println("Error closing actuator command dispatcher: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Notifies the callback of a command, a misbehaving callback must not kill the dispatcher thread
+     * @param pending the command that completed
+     * @param error null on success, the cause of the failure otherwise
+     */
+    private static void complete(PendingCommand pending, Exception error) {
+        if (error == null) {
+            DISPATCH_LATENCY.record((System.nanoTime() - pending.dispatchedAt) / 1000);
+        } else {
+            DISPATCH_FAILURES.increment();
+        }
+        pending.jfr.end();
+        if (pending.jfr.shouldCommit()) {
+            pending.jfr.clientId = pending.command.getClientId();
+            pending.jfr.actuator = pending.actuator;
+            pending.jfr.command = pending.command.getRequestCommand().toString();
+            pending.jfr.succeeded = error == null;
+            pending.jfr.commit();
+        }
+        if (pending.callback == null) {
+            return;
+        }
+        try {
+            pending.callback.completed(pending.command, error);
+        } catch (RuntimeException e) {
+            System.out.println("Error in actuator command callback: " + e.getMessage());
+        }
+    }
+
+    //a command together with whoever wants to know when it is sent
+    private static class PendingCommand {
+        private final Request command;
+        private final String actuator;
+        private final Callback callback;
+        private final long dispatchedAt = System.nanoTime();
+        private final ActuatorDispatchJfrEvent jfr = new ActuatorDispatchJfrEvent();
+
+        private PendingCommand(String actuator, Request command, Callback callback) {
+            this.actuator = actuator;
+            this.command = command;
+            this.callback = callback;
+            jfr.begin();
+        }
+    }
+
+    //REP INVARIANTS: outbound != null, channel and key are only touched by the dispatcher thread
+    private class Connection {
+        private final String host;
+        private final int port;
+        private final BlockingQueue<PendingCommand> outbound;
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        private boolean connected;
+
+        //the command currently being written and its encoded bytes
+        private PendingCommand inFlight;
+        private ByteBuffer inFlightBytes;
+
+        private volatile boolean closed;
+
+        private Connection(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.outbound = new ArrayBlockingQueue<>(queueCapacity);
+        }
+
+        /**
+         * Opens the channel if needed, otherwise asks to be told when it can be written to
+         * @throws IOException if the connection cannot be started
+         */
+        private void update() throws IOException {
+            if (closed) {
+                return;
+            }
+            if (channel == null) {
+                //a null host behaves like new Socket(null, port), the loopback address
+                InetSocketAddress address = host == null
+                        ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                        : new InetSocketAddress(host, port);
+
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                connected = channel.connect(address);
+                key = channel.register(selector, connected
+                        ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                        : SelectionKey.OP_CONNECT, this);
+            } else if (connected) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * Completes a non-blocking connect and starts writing the queued commands
+         * @throws IOException if the actuator could not be reached
+         */
+        private void finishConnect() throws IOException {
+            if (channel.finishConnect()) {
+                connected = true;
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * Actuators never reply, so reading only tells us when they hang up
+         * @param buffer scratch space for the discarded bytes
+         * @throws IOException if the actuator closed the connection
+         */
+        private void read(ByteBuffer buffer) throws IOException {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Actuator at " + host + ":" + port + " closed the connection");
+            }
+        }
+
+        /**
+         * Writes as many queued commands as the socket accepts without blocking,
+         * one command per line
+         * @throws IOException if the write fails
+         */
+        private void write() throws IOException {
+            while (true) {
+                if (inFlight == null) {
+                    inFlight = outbound.poll();
+                    if (inFlight == null) {
+                        //nothing left to send, stop asking for write readiness
+                        key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                    inFlightBytes = ByteBuffer.wrap((inFlight.command.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+
+                channel.write(inFlightBytes);
+                if (inFlightBytes.hasRemaining()) {
+                    //socket buffer is full, wait until it is writable again
+                    return;
+                }
+
+                PendingCommand sent = inFlight;
+                inFlight = null;
+                inFlightBytes = null;
+                complete(sent, null);
+            }
+        }
+
+        /**
+         * Drops this connection from the pool and fails every command that was not sent,
+         * the next dispatch to the same actuator opens a new connection
+         * @param cause the reason the connection is closed
+         */
+        private void close(Exception cause) {
+            closed = true;
+            connections.remove(host + ":" + port, this);
+
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.out.println("Error closing actuator connection: " + e.getMessage());
+                }
+            }
+
+            if (inFlight != null) {
+                complete(inFlight, cause);
+                inFlight = null;
+            }
+            for (PendingCommand pending = outbound.poll(); pending != null; pending = outbound.poll()) {
+                complete(pending, cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package cpen221.mp3.server;
+
+//REP INVARIANTS: id >= 0, commandPort >= 0
+public class ActuatorHandle {
+    private final int id;
+    private volatile int clientId;
+    private volatile String type;
+
+    // the endpoint the actuator receives server commands on, host == null means the loopback address
+    private volatile String host;
+    private volatile int commandPort;
+    private volatile boolean hasEndpoint;
+
+    // what the server has learned from the actuator's events
+    private volatile boolean state;
+    private volatile boolean hasSentEvent;
+
+    /**
+     * Creates a handle for an actuator the server has not seen an endpoint for yet
+     * @param id the id of the actuator
+     * @param clientId the id of the client the actuator is registered for
+     * @param type the type of the actuator
+     */
+    public ActuatorHandle(int id, int clientId, String type) {
+        this.id = id;
+        this.clientId = clientId;
+        this.type = type;
+        this.host = null;
+        this.commandPort = 0;
+        this.hasEndpoint = false;
+    }
+
+    /**
+     * Creates a handle for an actuator with a known command endpoint
+     * @param id the id of the actuator
+     * @param clientId the id of the client the actuator is registered for
+     * @param type the type of the actuator
+     * @param host the IP address the actuator receives commands on, null for the loopback address
+     * @param commandPort the port the actuator receives commands on
+     */
+    public ActuatorHandle(int id, int clientId, String type, String host, int commandPort) {
+        this.id = id;
+        this.clientId = clientId;
+        this.type = type;
+        this.host = host;
+        this.commandPort = commandPort;
+        this.hasEndpoint = true;
+    }
+
+    /**
+     * Gets the id of the actuator
+     * @return the id of the actuator
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Gets the id of the client the actuator is registered for
+     * @return the client id
+     */
+    public int getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Gets the type of the actuator
+     * @return the type of the actuator
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Gets the IP address the actuator receives commands on
+     * @return the IP address, null means the loopback address
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Gets the port the actuator receives commands on
+     * @return the command port
+     */
+    public int getCommandPort() {
+        return commandPort;
+    }
+
+    /**
+     * Returns true if the server knows where to send commands for this actuator
+     * @return true if a command endpoint has been registered
+     */
+    public boolean hasEndpoint() {
+        return hasEndpoint;
+    }
+
+    /**
+     * Gets the last state the actuator reported in an event
+     * @return the last reported state, false if it never sent an event
+     */
+    public boolean getState() {
+        return state;
+    }
+
+    /**
+     * Returns true if the actuator has sent at least one event to the server
+     * @return true if an event from this actuator has been processed
+     */
+    public boolean hasSentEvent() {
+        return hasSentEvent;
+    }
+
+    /**
+     * Updates where the actuator receives commands and what it is registered as
+     * @param clientId the id of the client the actuator is registered for
+     * @param type the type of the actuator
+     * @param host the IP address the actuator receives commands on, null for the loopback address
+     * @param commandPort the port the actuator receives commands on
+     */
+    void updateEndpoint(int clientId, String type, String host, int commandPort) {
+        this.clientId = clientId;
+        this.type = type;
+        this.host = host;
+        this.commandPort = commandPort;
+        this.hasEndpoint = true;
+    }
+
+    /**
+     * Records the state reported by an event from the actuator
+     * @param state the state in the event
+     */
+    void recordEvent(boolean state) {
+        this.state = state;
+        this.hasSentEvent = true;
+    }
+
+    /**
+     * Records that the actuator sent an event without changing its known state
+     */
+    void recordLateEvent() {
+        this.hasSentEvent = true;
+    }
+
+    /**
+     * Converts the handle to String format
+     * @return the formatted String
+     */
+    @Override
+    public String toString() {
+        return "ActuatorHandle{" +
+                "Id=" + id +
+                ",ClientId=" + clientId +
+                ",EntityType=" + type +
+                ",IP=" + host +
+                ",CommandPort=" + commandPort +
+                '}';
+    }
+}
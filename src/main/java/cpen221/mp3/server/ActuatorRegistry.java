@@ -0,0 +1,121 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.entity.Actuator;
+import cpen221.mp3.event.Event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//REP INVARIANTS: actuators != null, every key is the id of the handle it maps to
+public class ActuatorRegistry {
+    private static final Pattern ACTUATOR_PATTERN = Pattern.compile(
+            "Actuator\\{getId=(\\d+),ClientId=(-?\\d+),EntityType=(.*),IP=(.*),ServerPort=(\\d+),EntityPort=(\\d+)}");
+
+    private final Map<Integer, ActuatorHandle> actuators;
+
+    /**
+     * Creates an empty registry
+     */
+    public ActuatorRegistry() {
+        this.actuators = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Looks up an actuator by id
+     * @param actuatorId the id of the actuator
+     * @return the handle of the actuator, null if the server has never heard of it
+     */
+    public ActuatorHandle get(int actuatorId) {
+        return actuators.get(actuatorId);
+    }
+
+    /**
+     * Registers (or updates) the command endpoint of an actuator
+     * @param actuatorId the id of the actuator
+     * @param clientId the id of the client the actuator is registered for
+     * @param type the type of the actuator
+     * @param host the IP address the actuator receives commands on, null for the loopback address
+     * @param commandPort the port the actuator receives commands on
+     * @return the handle of the actuator
+     */
+    public ActuatorHandle register(int actuatorId, int clientId, String type, String host, int commandPort) {
+        ActuatorHandle handle = actuators.computeIfAbsent(actuatorId,
+                id -> new ActuatorHandle(id, clientId, type, host, commandPort));
+        handle.updateEndpoint(clientId, type, host, commandPort);
+        return handle;
+    }
+
+    /**
+     * Registers (or updates) an actuator from the actuator object itself
+     * @param actuator the actuator to register
+     * @return the handle of the actuator
+     */
+    public ActuatorHandle register(Actuator actuator) {
+        return register(actuator.getId(), actuator.getClientId(), actuator.getType(),
+                actuator.getIP(), actuator.getServerPort());
+    }
+
+    /**
+     * Registers (or updates) an actuator from its string representation (see Actuator.toString())
+     * without creating an Actuator, so no sockets or threads are created
+     * @param actuatorString the string representation of the actuator
+     * @return the handle of the actuator
+     * @throws IllegalArgumentException if the string is not in the Actuator format
+     */
+    public ActuatorHandle register(String actuatorString) {
+        Matcher actuatorMatcher = ACTUATOR_PATTERN.matcher(actuatorString.trim());
+        if (!actuatorMatcher.matches()) {
+            throw new IllegalArgumentException("Invalid input format for Actuator");
+        }
+
+        int id = Integer.parseInt(actuatorMatcher.group(1));
+        int clientId = Integer.parseInt(actuatorMatcher.group(2));
+        String type = actuatorMatcher.group(3);
+        String ip = actuatorMatcher.group(4);
+        int serverPort = Integer.parseInt(actuatorMatcher.group(5));
+
+        return register(id, clientId, type, ip.equals("null") ? null : ip, serverPort);
+    }
+
+    /**
+     * Learns about an actuator from one of its events, the actuator becomes known
+     * even if its command endpoint has not been registered yet
+     * @param event an actuator event, requires event is not null
+     */
+    public void recordEvent(Event event) {
+        ActuatorHandle handle = actuators.computeIfAbsent(event.getEntityId(),
+                id -> new ActuatorHandle(id, event.getClientId(), event.getEntityType()));
+        handle.recordEvent(event.getValueBoolean());
+    }
+
+    /**
+     * Learns about an actuator from an event that arrived out of order: the actuator has sent
+     * an event, but a later one already holds its current state
+     * @param event an actuator event, requires event is not null
+     */
+    public void recordLateEvent(Event event) {
+        ActuatorHandle handle = actuators.computeIfAbsent(event.getEntityId(),
+                id -> new ActuatorHandle(id, event.getClientId(), event.getEntityType()));
+        handle.recordLateEvent();
+    }
+
+    /**
+     * Gets every actuator known to the registry
+     * @return a list of all the handles
+     */
+    public List<ActuatorHandle> getAll() {
+        return new ArrayList<>(actuators.values());
+    }
+
+    /**
+     * Gets the number of actuators known to the registry
+     * @return the number of actuators
+     */
+    public int size() {
+        return actuators.size();
+    }
+}
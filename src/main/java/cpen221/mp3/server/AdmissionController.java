@@ -0,0 +1,214 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.client.Request;
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.metrics.Counter;
+import cpen221.mp3.metrics.MetricsRegistry;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides which incoming events and requests a server takes once it is overloaded. The load of
+ * a server is its queued events and requests as a fraction of its ingest capacity (see
+ * Server.getLoad), so a flood of requests sheds as surely as a flood of events. Each traffic
+ * class starts shedding at its own threshold, so under sustained overload redundant sensor
+ * readings and analysis requests go first while actuator state changes and control requests
+ * are kept; a server at its capacity holds producers of events back instead (see
+ * Server.awaitIngestCapacity).
+ *
+ * Past its threshold a class is shed by its policy:
+ * <ul>
+ *     <li>REJECT drops the incoming item</li>
+ *     <li>SAMPLE takes the incoming item with a probability that falls from 1 at the threshold
+ *     to 0 at full capacity</li>
+ *     <li>DROP_OLDEST takes the incoming item and drops the queued item of its class with the
+ *     earliest time stamp, recent readings being worth more than stale ones</li>
+ * </ul>
+ */
+//REP INVARIANTS: thresholds and policies have an entry per traffic class, every threshold > 0,
+//                shed has an entry per traffic class, each >= 0
+public class AdmissionController {
+    //a threshold that is never reached, the class is not shed
+    public static final double NEVER = Double.POSITIVE_INFINITY;
+
+    private static AdmissionController shared = null;
+
+    /**
+     * The kinds of incoming items, highest priority first
+     */
+    public enum TrafficClass {
+        ACTUATOR_EVENT,
+        CONTROL_REQUEST,
+        SENSOR_EVENT,
+        ANALYSIS_REQUEST;
+
+        //every item of the class shed, whether rejected, not sampled or dropped from a queue
+        final Counter shedCounter = MetricsRegistry.shared().counter("admission.shed." + name().toLowerCase());
+
+        /**
+         * Gets the class of an event
+         * @param event the event
+         * @return ACTUATOR_EVENT or SENSOR_EVENT
+         */
+        public static TrafficClass of(Event event) {
+            return event instanceof ActuatorEvent ? ACTUATOR_EVENT : SENSOR_EVENT;
+        }
+
+        /**
+         * Gets the class of a request, configuration counts as control and prediction as analysis
+         * @param request the request
+         * @return CONTROL_REQUEST or ANALYSIS_REQUEST
+         */
+        public static TrafficClass of(Request request) {
+            switch (request.getRequestType()) {
+                case CONFIG:
+                case CONTROL:
+                    return CONTROL_REQUEST;
+                default:
+                    return ANALYSIS_REQUEST;
+            }
+        }
+    }
+
+    /**
+     * How a class is shed once the load is past its threshold
+     */
+    public enum Policy {
+        DROP_OLDEST,
+        SAMPLE,
+        REJECT
+    }
+
+    private final double[] thresholds = new double[TrafficClass.values().length];
+    private final Policy[] policies = new Policy[TrafficClass.values().length];
+    private final AtomicLongArray shed = new AtomicLongArray(TrafficClass.values().length);
+
+    /**
+     * Creates a controller with the default thresholds and policies: analysis requests are
+     * rejected past 60% of the ingest capacity, the oldest sensor events are dropped past 80%,
+     * and actuator events and control requests are never shed
+     */
+    public AdmissionController() {
+        setShedding(TrafficClass.ACTUATOR_EVENT, NEVER, Policy.REJECT);
+        setShedding(TrafficClass.CONTROL_REQUEST, NEVER, Policy.REJECT);
+        setShedding(TrafficClass.SENSOR_EVENT, 0.8, Policy.DROP_OLDEST);
+        setShedding(TrafficClass.ANALYSIS_REQUEST, 0.6, Policy.REJECT);
+    }
+
+    /**
+     * Gets the controller the message handler admits every incoming item with
+     * @return the shared controller, created with the defaults on first use
+     */
+    public static synchronized AdmissionController shared() {
+        if (shared == null) {
+            shared = new AdmissionController();
+        }
+        return shared;
+    }
+
+    /**
+     * Sets when and how a class is shed
+     * @param trafficClass the class
+     * @param threshold the load at which shedding starts, as a fraction of the ingest capacity,
+     *                  must be > 0, NEVER (or anything past 1) keeps every item of the class
+     * @param policy how the class is shed past the threshold
+     */
+    public synchronized void setShedding(TrafficClass trafficClass, double threshold, Policy policy) {
+        if (!(threshold > 0) || policy == null) {
+            throw new IllegalArgumentException("Shedding threshold must be positive and the policy given");
+        }
+        thresholds[trafficClass.ordinal()] = threshold;
+        policies[trafficClass.ordinal()] = policy;
+    }
+
+    /**
+     * Gets the load at which a class starts to be shed
+     * @param trafficClass the class
+     * @return the threshold as a fraction of the ingest capacity
+     */
+    public synchronized double getThreshold(TrafficClass trafficClass) {
+        return thresholds[trafficClass.ordinal()];
+    }
+
+    /**
+     * Gets how a class is shed
+     * @param trafficClass the class
+     * @return the policy
+     */
+    public synchronized Policy getPolicy(TrafficClass trafficClass) {
+        return policies[trafficClass.ordinal()];
+    }
+
+    /**
+     * Decides whether a server takes an incoming event, dropping its oldest queued event of
+     * the same class instead if that is the policy
+     * @param server the server of the event's client
+     * @param event the incoming event
+     * @return true if the event should be queued, false if it is shed
+     */
+    public boolean admit(Server server, Event event) {
+        return admit(server, TrafficClass.of(event));
+    }
+
+    /**
+     * Decides whether a server takes an incoming request, dropping its oldest queued request
+     * of the same class instead if that is the policy
+     * @param server the server of the request's client
+     * @param request the incoming request
+     * @return true if the request should be queued, false if it is shed
+     */
+    public boolean admit(Server server, Request request) {
+        return admit(server, TrafficClass.of(request));
+    }
+
+    /**
+     * Gets the number of incoming items of a class this controller turned away. Queued items
+     * dropped by DROP_OLDEST are counted by their server, see Server.getShedCount.
+     * @param trafficClass the class
+     * @return the number of items rejected or not sampled
+     */
+    public long getShed(TrafficClass trafficClass) {
+        return shed.get(trafficClass.ordinal());
+    }
+
+    /**
+     * Applies the policy of a class to an incoming item
+     */
+    private boolean admit(Server server, TrafficClass trafficClass) {
+        double threshold;
+        Policy policy;
+        synchronized (this) {
+            threshold = thresholds[trafficClass.ordinal()];
+            policy = policies[trafficClass.ordinal()];
+        }
+        double load = server.getLoad();
+        if (load < threshold) {
+            return true;
+        }
+        switch (policy) {
+            case DROP_OLDEST:
+                server.shedOldest(trafficClass);
+                return true;
+            case SAMPLE:
+                double keep = threshold >= 1 ? 0 : (1 - load) / (1 - threshold);
+                if (ThreadLocalRandom.current().nextDouble() < keep) {
+                    return true;
+                }
+                countShed(trafficClass);
+                return false;
+            default:
+                countShed(trafficClass);
+                return false;
+        }
+    }
+
+    /**
+     * Counts an item of a class turned away, here and in the metrics
+     */
+    private void countShed(TrafficClass trafficClass) {
+        shed.incrementAndGet(trafficClass.ordinal());
+        trafficClass.shedCounter.increment();
+    }
+}
@@ -0,0 +1,119 @@
+package cpen221.mp3.server;
+
+/**
+ * Summary statistics of the values of a group of events. A sensor event counts its value, an
+ * actuator event 1 if it is on and 0 if it is off.
+ */
+//REP INVARIANTS: count >= 0, if count == 0 then sum == sumOfSquares == 0,
+//                min == +infinity and max == -infinity, else min <= max
+public class Aggregate {
+    public static final Aggregate EMPTY = new Aggregate(0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0, 0);
+
+    private final long count;
+    private final double min;
+    private final double max;
+    private final double sum;
+    private final double sumOfSquares;
+
+    /**
+     * Creates an aggregate
+     * @param count the number of values, >= 0
+     * @param min the smallest value, +infinity if there are none
+     * @param max the largest value, -infinity if there are none
+     * @param sum the sum of the values
+     * @param sumOfSquares the sum of the squares of the values
+     */
+    public Aggregate(long count, double min, double max, double sum, double sumOfSquares) {
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.sumOfSquares = sumOfSquares;
+    }
+
+    /**
+     * Combines this aggregate with the aggregate of other events
+     * @param other the aggregate of events not in this one
+     * @return the aggregate of the events of both
+     */
+    public Aggregate merge(Aggregate other) {
+        return new Aggregate(count + other.count, Math.min(min, other.min), Math.max(max, other.max),
+                sum + other.sum, sumOfSquares + other.sumOfSquares);
+    }
+
+    /**
+     * Gets the number of values
+     * @return the count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the smallest value
+     * @return the min, +infinity if there are no values
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * Gets the largest value
+     * @return the max, -infinity if there are no values
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Gets the sum of the values
+     * @return the sum
+     */
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * Gets the sum of the squares of the values
+     * @return the sum of squares
+     */
+    public double getSumOfSquares() {
+        return sumOfSquares;
+    }
+
+    /**
+     * Gets the mean of the values
+     * @return the mean, NaN if there are no values
+     */
+    public double getMean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /**
+     * Gets the population variance of the values
+     * @return the variance, NaN if there are no values
+     */
+    public double getVariance() {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double mean = sum / count;
+        //rounding can take it a little below 0 when every value is the same
+        return Math.max(0, sumOfSquares / count - mean * mean);
+    }
+
+    /**
+     * Converts the Aggregate to String format
+     * @return the formatted String
+     */
+    @Override
+    public String toString() {
+        return "Aggregate{" +
+               "Count=" + count +
+               ",Min=" + min +
+               ",Max=" + max +
+               ",Sum=" + sum +
+               ",SumOfSquares=" + sumOfSquares +
+               '}';
+    }
+}
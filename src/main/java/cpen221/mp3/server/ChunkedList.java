@@ -0,0 +1,290 @@
+package cpen221.mp3.server;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * A list kept in chunks of at most CHUNK_SIZE elements that hands out snapshots of itself in
+ * time proportional to its number of chunks rather than its size. A snapshot shares the chunks
+ * with the list, and the list copies a shared chunk the first time it changes it afterwards,
+ * so the owner pays at most one chunk copy per chunk it touches and the snapshot can be read
+ * on another thread while the owner goes on changing the list.
+ *
+ * Changes at either end are cheap, which is where a server appends its events, inserts late
+ * ones and evicts old ones. Finding an index walks the chunks from the nearer end. The list is
+ * not thread-safe, only its snapshots may be shared.
+ */
+//REP INVARIANTS: chunks != null, every chunk holds at least one element, size is the sum of the
+//                chunk sizes, a shared chunk is never changed, a snapshot is never changed
+public class ChunkedList<E> extends AbstractList<E> {
+    public static final int CHUNK_SIZE = 512;
+
+    /**
+     * Up to CHUNK_SIZE elements, in items[start, end)
+     */
+    private static final class Chunk {
+        final Object[] items = new Object[CHUNK_SIZE];
+        int start = 0;
+        int end = 0;
+        //set once a snapshot holds the chunk, from then on it is copied before it is changed
+        boolean shared = false;
+
+        int size() {
+            return end - start;
+        }
+
+        Chunk copy() {
+            Chunk copy = new Chunk();
+            System.arraycopy(items, start, copy.items, 0, size());
+            copy.end = size();
+            return copy;
+        }
+    }
+
+    private final List<Chunk> chunks;
+    private final boolean readOnly;
+    private int size;
+
+    /**
+     * Creates an empty list
+     */
+    public ChunkedList() {
+        this(new ArrayList<>(), 0, false);
+    }
+
+    /**
+     * Creates a list holding the elements of a collection
+     * @param elements the elements, in the order of the collection
+     */
+    public ChunkedList(Collection<? extends E> elements) {
+        this();
+        addAll(elements);
+    }
+
+    private ChunkedList(List<Chunk> chunks, int size, boolean readOnly) {
+        this.chunks = chunks;
+        this.size = size;
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Takes a snapshot of the list, the list can go on changing without changing the snapshot
+     * @return a read-only list of the elements as of now
+     */
+    public List<E> snapshot() {
+        for (Chunk chunk : chunks) {
+            chunk.shared = true;
+        }
+        return new ChunkedList<>(new ArrayList<>(chunks), size, true);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        Objects.checkIndex(index, size);
+        long position = locate(index);
+        Chunk chunk = chunks.get(chunkOf(position));
+        return (E) chunk.items[chunk.start + offsetOf(position)];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E set(int index, E element) {
+        checkWritable();
+        Objects.checkIndex(index, size);
+        long position = locate(index);
+        Chunk chunk = writable(chunkOf(position));
+        int slot = chunk.start + offsetOf(position);
+        E previous = (E) chunk.items[slot];
+        chunk.items[slot] = element;
+        return previous;
+    }
+
+    @Override
+    public boolean add(E element) {
+        checkWritable();
+        int last = chunks.size() - 1;
+        if (last < 0 || chunks.get(last).end == CHUNK_SIZE) {
+            chunks.add(new Chunk());
+            last++;
+        }
+        Chunk chunk = writable(last);
+        chunk.items[chunk.end++] = element;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        checkWritable();
+        Objects.checkIndex(index, size + 1);
+        if (index == size) {
+            add(element);
+            return;
+        }
+        long position = locate(index);
+        int c = chunkOf(position);
+        int offset = offsetOf(position);
+        Chunk chunk = writable(c);
+        if (chunk.end < CHUNK_SIZE) {
+            int slot = chunk.start + offset;
+            System.arraycopy(chunk.items, slot, chunk.items, slot + 1, chunk.end - slot);
+            chunk.items[slot] = element;
+            chunk.end++;
+        } else if (chunk.start > 0) {
+            int slot = chunk.start + offset - 1;
+            System.arraycopy(chunk.items, chunk.start, chunk.items, chunk.start - 1, offset);
+            chunk.items[slot] = element;
+            chunk.start--;
+        } else {
+            //full, the second half moves to a chunk of its own and the insert is tried again
+            Chunk second = new Chunk();
+            int half = CHUNK_SIZE / 2;
+            System.arraycopy(chunk.items, half, second.items, 0, CHUNK_SIZE - half);
+            Arrays.fill(chunk.items, half, CHUNK_SIZE, null);
+            second.end = CHUNK_SIZE - half;
+            chunk.end = half;
+            chunks.add(c + 1, second);
+            add(index, element);
+            return;
+        }
+        size++;
+        modCount++;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E remove(int index) {
+        checkWritable();
+        Objects.checkIndex(index, size);
+        long position = locate(index);
+        int c = chunkOf(position);
+        int offset = offsetOf(position);
+        Chunk chunk = writable(c);
+        int slot = chunk.start + offset;
+        E removed = (E) chunk.items[slot];
+        if (offset < chunk.size() / 2) {
+            System.arraycopy(chunk.items, chunk.start, chunk.items, chunk.start + 1, offset);
+            chunk.items[chunk.start++] = null;
+        } else {
+            System.arraycopy(chunk.items, slot + 1, chunk.items, slot, chunk.end - slot - 1);
+            chunk.items[--chunk.end] = null;
+        }
+        if (chunk.size() == 0) {
+            chunks.remove(c);
+        }
+        size--;
+        modCount++;
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        checkWritable();
+        //shared chunks are left to the snapshots holding them
+        chunks.clear();
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<>() {
+            private int chunk = 0;
+            private int slot = chunks.isEmpty() ? 0 : chunks.get(0).start;
+            private final int expectedModCount = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return chunk < chunks.size();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public E next() {
+                if (modCount != expectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Chunk current = chunks.get(chunk);
+                E element = (E) current.items[slot++];
+                if (slot == current.end) {
+                    chunk++;
+                    slot = chunk < chunks.size() ? chunks.get(chunk).start : 0;
+                }
+                return element;
+            }
+        };
+    }
+
+    /**
+     * Finds an element, walking the chunks from the nearer end
+     * @param index the index of the element, requires 0 <= index < size
+     * @return the index of its chunk in the upper 32 bits, its offset in the chunk in the lower
+     */
+    private long locate(int index) {
+        if (index < size / 2) {
+            int before = 0;
+            for (int c = 0; ; c++) {
+                int chunkSize = chunks.get(c).size();
+                if (index < before + chunkSize) {
+                    return ((long) c << 32) | (index - before);
+                }
+                before += chunkSize;
+            }
+        }
+        int after = size;
+        for (int c = chunks.size() - 1; ; c--) {
+            after -= chunks.get(c).size();
+            if (index >= after) {
+                return ((long) c << 32) | (index - after);
+            }
+        }
+    }
+
+    private static int chunkOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private static int offsetOf(long position) {
+        return (int) position;
+    }
+
+    /**
+     * Gets a chunk to change, copying it first if a snapshot holds it
+     * @param c the index of the chunk
+     * @return the chunk, not shared
+     */
+    private Chunk writable(int c) {
+        Chunk chunk = chunks.get(c);
+        if (chunk.shared) {
+            chunk = chunk.copy();
+            chunks.set(c, chunk);
+        }
+        return chunk;
+    }
+
+    /**
+     * Rejects changes to a snapshot
+     */
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("A snapshot can't be changed");
+        }
+    }
+}
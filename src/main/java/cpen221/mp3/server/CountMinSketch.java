@@ -0,0 +1,147 @@
+package cpen221.mp3.server;
+
+/**
+ * A Count-Min sketch of how often each int key was seen, in fixed memory. An estimate is never
+ * below the true count, and with probability 1 - delta it is at most epsilon * total above it.
+ * Sketches with the same dimensions hash alike, so sketches of disjoint streams (e.g. of
+ * different servers) merge into the sketch of both.
+ */
+//REP INVARIANTS: width >= 1, depth >= 1, counts.length == depth, counts[i].length == width,
+//                total == the sum of every row
+public class CountMinSketch {
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final int width;
+    private final int depth;
+    private final long[][] counts;
+    private long total = 0;
+
+    /**
+     * Creates an empty sketch
+     * @param epsilon the error of an estimate as a fraction of the total count, in (0, 1)
+     * @param delta the probability that an estimate is past that error, in (0, 1)
+     */
+    public CountMinSketch(double epsilon, double delta) {
+        this((int) Math.ceil(Math.E / checkFraction(epsilon)), (int) Math.ceil(Math.log(1 / checkFraction(delta))));
+    }
+
+    /**
+     * Creates an empty sketch
+     * @param width the number of counters in a row, >= 1
+     * @param depth the number of rows, >= 1
+     */
+    public CountMinSketch(int width, int depth) {
+        if (width < 1 || depth < 1) {
+            throw new IllegalArgumentException("Sketch width and depth must be positive");
+        }
+        this.width = width;
+        this.depth = depth;
+        this.counts = new long[depth][width];
+    }
+
+    private static double checkFraction(double fraction) {
+        if (!(fraction > 0 && fraction < 1)) {
+            throw new IllegalArgumentException("Sketch error and probability must be in (0, 1)");
+        }
+        return fraction;
+    }
+
+    /**
+     * Counts a key
+     * @param key the key
+     * @param count how many times it was seen, or minus how many of the times counted before
+     *              are taken back, no count may go below 0
+     */
+    public synchronized void add(int key, long count) {
+        for (int row = 0; row < depth; row++) {
+            counts[row][column(row, key)] += count;
+        }
+        total += count;
+    }
+
+    /**
+     * Estimates how many times a key was seen
+     * @param key the key
+     * @return the estimate, at least the true count
+     */
+    public synchronized long estimate(int key) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counts[row][column(row, key)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Adds the counts of another sketch to this one
+     * @param other a sketch with the same width and depth, of keys seen apart from this one's
+     */
+    public void merge(CountMinSketch other) {
+        if (other.width != width || other.depth != depth) {
+            throw new IllegalArgumentException("Only sketches with the same dimensions can be merged");
+        }
+        CountMinSketch copy = other.copy();
+        synchronized (this) {
+            for (int row = 0; row < depth; row++) {
+                for (int column = 0; column < width; column++) {
+                    counts[row][column] += copy.counts[row][column];
+                }
+            }
+            total += copy.total;
+        }
+    }
+
+    /**
+     * Gets the number of times any key was seen
+     * @return the total count
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    /**
+     * Gets the number of counters in a row
+     * @return the width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the number of rows
+     * @return the depth
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Copies the sketch
+     * @return a copy that shares nothing with this sketch
+     */
+    public synchronized CountMinSketch copy() {
+        CountMinSketch copy = new CountMinSketch(width, depth);
+        for (int row = 0; row < depth; row++) {
+            System.arraycopy(counts[row], 0, copy.counts[row], 0, width);
+        }
+        copy.total = total;
+        return copy;
+    }
+
+    /**
+     * Gets the counter of a key in a row, each row hashing independently
+     */
+    private int column(int row, int key) {
+        long hash = mix(key + (row + 1) * GOLDEN_GAMMA);
+        return (int) Math.floorMod(hash, (long) width);
+    }
+
+    /**
+     * Scrambles the bits of a value (the splitmix64 finalizer)
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
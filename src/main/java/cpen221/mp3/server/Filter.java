@@ -2,6 +2,9 @@ package cpen221.mp3.server;
 
 import cpen221.mp3.event.Event;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -194,6 +197,60 @@ public class Filter {
         return filteredEvents;
     }
 
+    /**
+     * Writes the filter in a binary form that, unlike toString, also round-trips composite filters
+     * @param out where the filter is written
+     * @throws IOException if the filter cannot be written
+     */
+    void writeTo(DataOutput out) throws IOException {
+        if (boolOperator != null) {
+            out.writeByte(0);
+            out.writeByte(boolOperator.ordinal());
+            out.writeBoolean(boolValue);
+        } else if (doubleOperator != null) {
+            out.writeByte(1);
+            out.writeUTF(field);
+            out.writeByte(doubleOperator.ordinal());
+            out.writeDouble(doubleValue);
+        } else {
+            out.writeByte(2);
+            out.writeInt(composedFilters.size());
+            for (Filter filter : composedFilters) {
+                filter.writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * Reads a filter written by writeTo
+     * @param in where the filter is read from
+     * @return the filter
+     * @throws IOException if the filter cannot be read or is malformed
+     */
+    static Filter readFrom(DataInput in) throws IOException {
+        byte kind = in.readByte();
+        try {
+            switch (kind) {
+                case 0:
+                    return new Filter(BooleanOperator.values()[in.readByte()], in.readBoolean());
+                case 1:
+                    String field = in.readUTF();
+                    return new Filter(field, DoubleOperator.values()[in.readByte()], in.readDouble());
+                case 2:
+                    int size = in.readInt();
+                    List<Filter> filters = new ArrayList<>();
+                    for (int i = 0; i < size; i++) {
+                        filters.add(readFrom(in));
+                    }
+                    return new Filter(filters);
+                default:
+                    throw new IOException("Unknown filter kind " + kind);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Unknown filter operator", e);
+        }
+    }
+
     /**
      * Converts the filter into a formatted string
      * @return the filter in String format
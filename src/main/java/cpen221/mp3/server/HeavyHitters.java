@@ -0,0 +1,183 @@
+package cpen221.mp3.server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * The most frequent int keys of a stream, in fixed memory: a CountMinSketch of every key and a
+ * min-heap of the capacity keys with the highest estimates. An estimate is never below the
+ * true count and, with probability 1 - delta, at most epsilon * total above it, so any key seen
+ * more than epsilon * total times more often than the capacity-th key is in the heap.
+ * HeavyHitters with the same capacity and sketch dimensions merge.
+ */
+//REP INVARIANTS: capacity >= 1, sketch != null, heap and candidates hold the same keys,
+//                at most capacity of them, each with its estimate when it was last updated
+public class HeavyHitters {
+    /**
+     * A key with its estimated count
+     */
+    private static class Candidate {
+        final int key;
+        long estimate;
+
+        Candidate(int key, long estimate) {
+            this.key = key;
+            this.estimate = estimate;
+        }
+    }
+
+    private static final Comparator<Candidate> BY_ESTIMATE = Comparator.comparingLong(candidate -> candidate.estimate);
+
+    private final int capacity;
+    private final CountMinSketch sketch;
+    private final PriorityQueue<Candidate> heap = new PriorityQueue<>(BY_ESTIMATE);
+    private final Map<Integer, Candidate> candidates = new HashMap<>();
+
+    /**
+     * Creates an empty tracker
+     * @param capacity the number of most frequent keys kept, >= 1
+     * @param epsilon the error of an estimate as a fraction of the total count, in (0, 1)
+     * @param delta the probability that an estimate is past that error, in (0, 1)
+     */
+    public HeavyHitters(int capacity, double epsilon, double delta) {
+        this(capacity, new CountMinSketch(epsilon, delta));
+    }
+
+    private HeavyHitters(int capacity, CountMinSketch sketch) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Heavy hitter capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.sketch = sketch;
+    }
+
+    /**
+     * Counts one occurrence of a key
+     * @param key the key
+     */
+    public synchronized void add(int key) {
+        sketch.add(key, 1);
+        offer(key, sketch.estimate(key));
+    }
+
+    /**
+     * Takes back occurrences of a key counted before, e.g. of events that were evicted. A key
+     * kept as one of the most frequent is re-estimated, a key that is not only gets back in
+     * the next time it is counted.
+     * @param key the key
+     * @param count how many of its occurrences, at most the number counted
+     */
+    public synchronized void remove(int key, long count) {
+        sketch.add(key, -count);
+        Candidate candidate = candidates.get(key);
+        if (candidate != null) {
+            heap.remove(candidate);
+            candidate.estimate = sketch.estimate(key);
+            heap.add(candidate);
+        }
+    }
+
+    /**
+     * Adds the keys of another tracker to this one
+     * @param other a tracker with the same capacity and sketch dimensions, of keys seen apart
+     *              from this one's
+     */
+    public void merge(HeavyHitters other) {
+        if (other.capacity != capacity) {
+            throw new IllegalArgumentException("Only heavy hitters with the same capacity can be merged");
+        }
+        HeavyHitters copy = other.copy();
+        synchronized (this) {
+            sketch.merge(copy.sketch);
+            //a key in the top of the union is in the top of one of the two, re-estimate them all
+            Set<Integer> keys = new HashSet<>(candidates.keySet());
+            keys.addAll(copy.candidates.keySet());
+            heap.clear();
+            candidates.clear();
+            for (int key : keys) {
+                offer(key, sketch.estimate(key));
+            }
+        }
+    }
+
+    /**
+     * Gets the most frequent keys
+     * @param k the number of keys, at most the capacity counts
+     * @return up to k keys, most frequent first
+     */
+    public synchronized List<Integer> top(int k) {
+        List<Candidate> sorted = new ArrayList<>(heap);
+        sorted.sort(BY_ESTIMATE.reversed().thenComparingInt(candidate -> candidate.key));
+        List<Integer> top = new ArrayList<>();
+        for (int i = 0; i < Math.min(k, sorted.size()); i++) {
+            top.add(sorted.get(i).key);
+        }
+        return top;
+    }
+
+    /**
+     * Estimates how many times a key was seen, whether or not it is one of the most frequent
+     * @param key the key
+     * @return the estimate, at least the true count
+     */
+    public long estimate(int key) {
+        return sketch.estimate(key);
+    }
+
+    /**
+     * Gets the number of keys seen
+     * @return the total count
+     */
+    public long getTotal() {
+        return sketch.getTotal();
+    }
+
+    /**
+     * Gets the number of most frequent keys kept
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Copies the tracker
+     * @return a copy that shares nothing with this tracker
+     */
+    public synchronized HeavyHitters copy() {
+        HeavyHitters copy = new HeavyHitters(capacity, sketch.copy());
+        for (Candidate candidate : heap) {
+            Candidate copied = new Candidate(candidate.key, candidate.estimate);
+            copy.heap.add(copied);
+            copy.candidates.put(copied.key, copied);
+        }
+        return copy;
+    }
+
+    /**
+     * Puts a key in the heap if it is estimated among the most frequent
+     */
+    private void offer(int key, long estimate) {
+        Candidate candidate = candidates.get(key);
+        if (candidate != null) {
+            heap.remove(candidate);
+            candidate.estimate = estimate;
+            heap.add(candidate);
+        } else if (heap.size() < capacity) {
+            candidate = new Candidate(key, estimate);
+            heap.add(candidate);
+            candidates.put(key, candidate);
+        } else if (estimate > heap.peek().estimate) {
+            candidates.remove(heap.poll().key);
+            candidate = new Candidate(key, estimate);
+            heap.add(candidate);
+            candidates.put(key, candidate);
+        }
+    }
+}
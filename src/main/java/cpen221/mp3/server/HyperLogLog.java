@@ -0,0 +1,110 @@
+package cpen221.mp3.server;
+
+/**
+ * A HyperLogLog count of the distinct int keys of a stream, in 2^precision bytes. The estimate
+ * has a relative standard error of about 1.04 / sqrt(2^precision), e.g. 1.6% at precision 12.
+ * Counters with the same precision merge into the count of the union of their keys, keys seen
+ * by both are counted once.
+ */
+//REP INVARIANTS: MIN_PRECISION <= precision <= MAX_PRECISION,
+//                registers.length == 2^precision, every register <= 64 - precision + 1
+public class HyperLogLog {
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 18;
+    private static final long SEED = 0x2545F4914F6CDD1DL;
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * Creates an empty counter
+     * @param precision log2 of the number of registers, in [MIN_PRECISION, MAX_PRECISION]
+     */
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("Precision must be in [" + MIN_PRECISION + ", " + MAX_PRECISION + "]");
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Counts a key
+     * @param key the key, counted once however often it is added
+     */
+    public synchronized void add(int key) {
+        long hash = mix(key ^ SEED);
+        int register = (int) (hash >>> (Long.SIZE - precision));
+        //the position of the first 1 bit after the register bits, capped by a sentinel bit
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        if (rank > registers[register]) {
+            registers[register] = (byte) rank;
+        }
+    }
+
+    /**
+     * Estimates the number of distinct keys added
+     * @return the estimate
+     */
+    public synchronized long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            //few keys: linear counting of the empty registers is more accurate
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Adds the keys of another counter to this one
+     * @param other a counter with the same precision
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Only counters with the same precision can be merged");
+        }
+        HyperLogLog copy = other.copy();
+        synchronized (this) {
+            for (int i = 0; i < registers.length; i++) {
+                registers[i] = (byte) Math.max(registers[i], copy.registers[i]);
+            }
+        }
+    }
+
+    /**
+     * Gets the precision
+     * @return log2 of the number of registers
+     */
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Copies the counter
+     * @return a copy that shares nothing with this counter
+     */
+    public synchronized HyperLogLog copy() {
+        HyperLogLog copy = new HyperLogLog(precision);
+        System.arraycopy(registers, 0, copy.registers, 0, registers.length);
+        return copy;
+    }
+
+    /**
+     * Scrambles the bits of a value (the splitmix64 finalizer)
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
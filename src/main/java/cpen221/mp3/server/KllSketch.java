@@ -0,0 +1,304 @@
+package cpen221.mp3.server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A KLL quantile sketch: a summary of a stream of values, in bounded memory, that estimates the
+ * value at any rank. Sketches of disjoint streams merge into the sketch of both.
+ *
+ * Values go into a stack of compactors. Each item of level h stands for 2^h values. When the
+ * sketch is over capacity, the lowest full level is sorted and every other item, starting at a
+ * random one, moves up a level with twice the weight. Lower levels get geometrically less
+ * capacity (2/3 of the level above), so the sketch keeps about 3k items however many values it
+ * has seen, and the rank error is about 1.7 / k of the count.
+ */
+//REP INVARIANTS: k >= MIN_CAPACITY, levels.length == sizes.length >= 1,
+//                0 <= sizes[h] <= levels[h].length, count == sum of sizes[h] * 2^h,
+//                if count > 0 then min <= every item <= max
+public class KllSketch {
+    public static final int DEFAULT_K = 200;
+    private static final double CAPACITY_DECAY = 2.0 / 3.0;
+    private static final int MIN_CAPACITY = 2;
+
+    private final int k;
+    private double[][] levels;
+    private int[] sizes;
+    private long count = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Creates an empty sketch with the default accuracy
+     */
+    public KllSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * Creates an empty sketch
+     * @param k the capacity of the top level, >= 2; larger is more accurate and takes more memory
+     */
+    public KllSketch(int k) {
+        if (k < MIN_CAPACITY) {
+            throw new IllegalArgumentException("Sketch capacity must be at least " + MIN_CAPACITY);
+        }
+        this.k = k;
+        this.levels = new double[][] {new double[4]};
+        this.sizes = new int[] {0};
+    }
+
+    /**
+     * Adds a value to the sketch
+     * @param value the value, NaN is ignored
+     */
+    public void update(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        append(0, value);
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        compressIfFull();
+    }
+
+    /**
+     * Adds the values of another sketch to this one
+     * @param other the sketch of values not in this one, it is not changed
+     */
+    public void merge(KllSketch other) {
+        if (other.count == 0) {
+            return;
+        }
+        for (int h = 0; h < other.sizes.length; h++) {
+            for (int i = 0; i < other.sizes[h]; i++) {
+                append(h, other.levels[h][i]);
+            }
+        }
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        compressIfFull();
+    }
+
+    /**
+     * Estimates the value at a rank
+     * @param quantile the rank, as a fraction of the count in [0, 1]
+     * @return the smallest value with at least that fraction of the values at or below it,
+     *         exact for 0 and 1, NaN if the sketch is empty
+     */
+    public double getQuantile(double quantile) {
+        if (!(quantile >= 0 && quantile <= 1)) {
+            throw new IllegalArgumentException("Quantile must be in [0, 1]");
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (quantile == 0) {
+            return min;
+        }
+        if (quantile == 1) {
+            return max;
+        }
+        //walk the items of every level in value order, each weighing 2^level
+        double[][] sorted = new double[sizes.length][];
+        int[] next = new int[sizes.length];
+        for (int h = 0; h < sizes.length; h++) {
+            sorted[h] = Arrays.copyOf(levels[h], sizes[h]);
+            Arrays.sort(sorted[h]);
+        }
+        double target = quantile * count;
+        long weight = 0;
+        while (true) {
+            int smallest = -1;
+            for (int h = 0; h < sorted.length; h++) {
+                if (next[h] < sorted[h].length && (smallest < 0 || sorted[h][next[h]] < sorted[smallest][next[smallest]])) {
+                    smallest = h;
+                }
+            }
+            if (smallest < 0) {
+                break;
+            }
+            weight += 1L << smallest;
+            double value = sorted[smallest][next[smallest]++];
+            if (weight >= target) {
+                return value;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Gets the number of values added
+     * @return the count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the smallest value added
+     * @return the min, +infinity if the sketch is empty
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * Gets the largest value added
+     * @return the max, -infinity if the sketch is empty
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Gets the number of items the sketch keeps
+     * @return the number of items, at most about 3k
+     */
+    public int getItemCount() {
+        int items = 0;
+        for (int size : sizes) {
+            items += size;
+        }
+        return items;
+    }
+
+    /**
+     * Copies the sketch
+     * @return a copy that shares nothing with this sketch
+     */
+    public KllSketch copy() {
+        KllSketch copy = new KllSketch(k);
+        copy.levels = new double[levels.length][];
+        for (int h = 0; h < levels.length; h++) {
+            copy.levels[h] = Arrays.copyOf(levels[h], Math.max(sizes[h], 1));
+        }
+        copy.sizes = sizes.clone();
+        copy.count = count;
+        copy.min = min;
+        copy.max = max;
+        return copy;
+    }
+
+    /**
+     * Writes the sketch: k (4 bytes), count (8), min and max (8 each), the number of levels (4),
+     * then each level as its size (4) and items (8 each)
+     * @param out where to write
+     * @throws IOException if out cannot be written
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(k);
+        out.writeLong(count);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeInt(sizes.length);
+        for (int h = 0; h < sizes.length; h++) {
+            out.writeInt(sizes[h]);
+            for (int i = 0; i < sizes[h]; i++) {
+                out.writeDouble(levels[h][i]);
+            }
+        }
+    }
+
+    /**
+     * Reads a sketch written by writeTo
+     * @param in where to read
+     * @return the sketch
+     * @throws IOException if in cannot be read or does not hold a sketch
+     */
+    public static KllSketch readFrom(DataInput in) throws IOException {
+        int k = in.readInt();
+        if (k < MIN_CAPACITY) {
+            throw new IOException("malformed sketch, k = " + k);
+        }
+        KllSketch sketch = new KllSketch(k);
+        sketch.count = in.readLong();
+        sketch.min = in.readDouble();
+        sketch.max = in.readDouble();
+        int height = in.readInt();
+        if (height < 1 || height > Long.SIZE) {
+            throw new IOException("malformed sketch, " + height + " levels");
+        }
+        sketch.levels = new double[height][];
+        sketch.sizes = new int[height];
+        for (int h = 0; h < height; h++) {
+            int size = in.readInt();
+            if (size < 0) {
+                throw new IOException("malformed sketch, level of " + size + " items");
+            }
+            sketch.levels[h] = new double[Math.max(size, 1)];
+            sketch.sizes[h] = size;
+            for (int i = 0; i < size; i++) {
+                sketch.levels[h][i] = in.readDouble();
+            }
+        }
+        return sketch;
+    }
+
+    /**
+     * Appends an item to a level, adding the level if the sketch is not that high yet
+     */
+    private void append(int level, double value) {
+        while (level >= levels.length) {
+            levels = Arrays.copyOf(levels, levels.length + 1);
+            levels[levels.length - 1] = new double[4];
+            sizes = Arrays.copyOf(sizes, sizes.length + 1);
+        }
+        if (sizes[level] == levels[level].length) {
+            levels[level] = Arrays.copyOf(levels[level], levels[level].length * 2);
+        }
+        levels[level][sizes[level]++] = value;
+    }
+
+    /**
+     * Gets the capacity of a level, which depends on how high the sketch is
+     */
+    private int capacity(int level) {
+        int depth = levels.length - 1 - level;
+        return Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(CAPACITY_DECAY, depth)));
+    }
+
+    /**
+     * Compacts the lowest full level until the sketch is within its capacity
+     */
+    private void compressIfFull() {
+        while (true) {
+            int items = 0;
+            int capacity = 0;
+            for (int h = 0; h < sizes.length; h++) {
+                items += sizes[h];
+                capacity += capacity(h);
+            }
+            if (items <= capacity) {
+                return;
+            }
+            for (int h = 0; h < sizes.length; h++) {
+                if (sizes[h] >= capacity(h)) {
+                    compact(h);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves half of the items of a level to the level above, with twice the weight
+     */
+    private void compact(int level) {
+        double[] items = levels[level];
+        int size = sizes[level];
+        Arrays.sort(items, 0, size);
+        //an odd item out stays, the rest pair up and one of each pair moves up
+        int kept = size % 2;
+        int offset = ThreadLocalRandom.current().nextBoolean() ? 1 : 0;
+        for (int i = kept + offset; i < size; i += 2) {
+            append(level + 1, items[i]);
+        }
+        sizes[level] = kept;
+    }
+}
@@ -0,0 +1,104 @@
+package cpen221.mp3.server;
+
+import java.nio.file.Path;
+
+/**
+ * How much of a client's history a server keeps. Each limit that is 0 or less is not enforced.
+ * The oldest events go first: sealed segments whole, then the events on the heap.
+ */
+//REP INVARIANTS: none, every limit value is allowed
+public class RetentionPolicy {
+    private final double maxAge;
+    private final long maxEvents;
+    private final long maxBytes;
+    private final Path archiveDirectory;
+
+    /**
+     * Creates a retention policy
+     * @param maxAge the max age of an event, in event time (s) behind the latest event
+     * @param maxEvents the max number of stored events
+     * @param maxBytes the max size of the sealed segment files, in bytes. Only servers with segment
+     *                 storage have a size, the events on the heap are limited by the other limits.
+     * @param archiveDirectory where evicted segments are moved, null to delete them
+     */
+    public RetentionPolicy(double maxAge, long maxEvents, long maxBytes, Path archiveDirectory) {
+        this.maxAge = maxAge;
+        this.maxEvents = maxEvents;
+        this.maxBytes = maxBytes;
+        this.archiveDirectory = archiveDirectory;
+    }
+
+    /**
+     * Gets the max age of an event
+     * @return the max age in event time (s), 0 or less if there is none
+     */
+    public double getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Gets the max number of stored events
+     * @return the max number of events, 0 or less if there is none
+     */
+    public long getMaxEvents() {
+        return maxEvents;
+    }
+
+    /**
+     * Gets the max size of the sealed segments
+     * @return the max number of bytes, 0 or less if there is none
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Gets where evicted segments are moved
+     * @return the archive directory, null if evicted segments are deleted
+     */
+    public Path getArchiveDirectory() {
+        return archiveDirectory;
+    }
+
+    /**
+     * Checks if an event is too old to keep
+     * @param timeStamp the time stamp of the event, or the latest of a group of events
+     * @param latestTimeStamp the time stamp of the latest event
+     * @return true if there is a max age and the event is older
+     */
+    public boolean isExpired(double timeStamp, double latestTimeStamp) {
+        return maxAge > 0 && timeStamp < latestTimeStamp - maxAge;
+    }
+
+    /**
+     * Checks if there are too many events
+     * @param events the number of stored events
+     * @return true if there is a max number of events and it is exceeded
+     */
+    public boolean hasTooManyEvents(long events) {
+        return maxEvents > 0 && events > maxEvents;
+    }
+
+    /**
+     * Checks if the sealed segments are too big
+     * @param bytes the size of the sealed segments
+     * @return true if there is a max size and it is exceeded
+     */
+    public boolean hasTooManyBytes(long bytes) {
+        return maxBytes > 0 && bytes > maxBytes;
+    }
+
+    /**
+     * Converts the RetentionPolicy to String format
+     * @return the formatted String
+     */
+    @Override
+    public String toString() {
+        return "RetentionPolicy{" +
+               "MaxAge=" + maxAge +
+               ",MaxEvents=" + maxEvents +
+               ",MaxBytes=" + maxBytes +
+               ",ArchiveDirectory=" + archiveDirectory +
+               '}';
+    }
+}
@@ -7,47 +7,226 @@ import cpen221.mp3.client.Client;
 import cpen221.mp3.event.ActuatorEvent;
 import cpen221.mp3.event.Event;
 import cpen221.mp3.client.Request;
-
-import java.io.*;
-import java.net.*;
-
+import cpen221.mp3.logging.Level;
+import cpen221.mp3.logging.Logger;
+import cpen221.mp3.metrics.Counter;
+import cpen221.mp3.metrics.JfrEvents;
+import cpen221.mp3.metrics.LatencyHistogram;
+import cpen221.mp3.metrics.MetricsRegistry;
+import cpen221.mp3.metrics.ReprocessEventJfrEvent;
+import cpen221.mp3.metrics.RunEventJfrEvent;
+import cpen221.mp3.metrics.RunRequestJfrEvent;
+import cpen221.mp3.storage.EventSegment;
+import cpen221.mp3.storage.SegmentedEventStore;
+import cpen221.mp3.storage.WriteAheadLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
-//REP INVARIANTS: BUFFER_TIME != null
+//REP INVARIANTS: eventsToProcess and requestsToProcess are only used by the server's worker,
+//                scheduled is true while the server is with a worker
 public class Server {
-    public static int BUFFER_TIME = 10; //in ms
+    /**
+     * Notified of every event the server has processed, on the processing thread
+     */
+    public interface EventListener {
+        /**
+         * Called once the event has been stored, and logged if it satisfies the filter
+         * @param event the processed event
+         */
+        void eventProcessed(Event event);
+    }
+
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 60_000; //in ms
+    public static final long DEFAULT_RETENTION_INTERVAL = 1000; //in ms
+    //the max number of heap events evicted after each processed event, so eviction never stalls processing
+    public static final int RETENTION_TRIM_STEP = 16;
+    //entity sketches: the most active entities kept, the Count-Min error (as a fraction of the
+    //events) and its probability, and the HyperLogLog precision (1.6% standard error)
+    public static final int HEAVY_HITTER_CAPACITY = 32;
+    public static final double HEAVY_HITTER_EPSILON = 0.002;
+    public static final double HEAVY_HITTER_DELTA = 0.01;
+    public static final int DISTINCT_ENTITY_PRECISION = 12;
+    //the max number of events queued and not processed yet, producers wait once it is reached
+    public static final int DEFAULT_INGEST_CAPACITY = 100_000;
+
+    //control request data: a filter followed by the actuator id (or the whole actuator)
+    private static final Pattern CONTROL_DATA_PATTERN = Pattern.compile("(.+?),\\s*(\\d+|Actuator\\{.*})");
+    //aggregate request data: an entity id followed by the time window
+    private static final Pattern AGGREGATE_DATA_PATTERN = Pattern.compile("(-?\\d+),\\s*(TimeWindow\\{.*})");
+    //quantile request data: an entity id, the quantile, then the time window
+    private static final Pattern QUANTILE_DATA_PATTERN = Pattern.compile("(-?\\d+),\\s*([^,]+),\\s*(TimeWindow\\{.*})");
+
+    //pipeline metrics, summed over every server of the process
+    private static final Counter EVENTS_QUEUED = MetricsRegistry.shared().counter("server.events_to_process");
+    private static final Counter REQUESTS_QUEUED = MetricsRegistry.shared().counter("server.requests_to_process");
+    private static final Counter INGEST_WAITS = MetricsRegistry.shared().counter("server.ingest_waits");
+    private static final Counter EVENTS_RUN = MetricsRegistry.shared().counter("server.events_run");
+    private static final Counter EVENTS_REPROCESSED = MetricsRegistry.shared().counter("server.events_reprocessed");
+    private static final Counter REQUESTS_RUN = MetricsRegistry.shared().counter("server.requests_run");
+    private static final Counter FILTER_CHECKS = MetricsRegistry.shared().counter("server.filter_checks");
+    private static final Counter FILTER_MATCHES = MetricsRegistry.shared().counter("server.filter_matches");
+    private static final LatencyHistogram EVENT_WAIT = MetricsRegistry.shared().histogram("server.event_wait_ms");
+    private static final LatencyHistogram REQUEST_WAIT = MetricsRegistry.shared().histogram("server.request_wait_ms");
+    private static final Logger EVENT_LOG = Logger.get("server.events");
+    private static final Logger REQUEST_LOG = Logger.get("server.requests");
+    private static final Counter SNAPSHOTS_WRITTEN = MetricsRegistry.shared().counter("server.snapshots_written");
+    private static final Counter SNAPSHOT_FAILURES = MetricsRegistry.shared().counter("server.snapshot_failures");
+    private static final LatencyHistogram SNAPSHOT_WRITE_TIME = MetricsRegistry.shared().histogram("server.snapshot_write_ms");
+    private static final Counter EVENTS_EVICTED = MetricsRegistry.shared().counter("server.events_evicted");
+    private static final Counter SEGMENTS_EVICTED = MetricsRegistry.shared().counter("server.segments_evicted");
+
+    //the order events and requests are processed in, the smaller time stamp first
+    private static final Comparator<Event> EVENT_ORDER = Comparator.comparingDouble(Event::getTimeStamp);
+    private static final Comparator<Request> REQUEST_ORDER = Comparator.comparingDouble(Request::getTimeStamp);
+
+    //writes the snapshots of every server, off their processing threads
+    private static final ExecutorService SNAPSHOT_WRITER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "server-snapshots");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //evicts the sealed segments of every server past its retention policy, off their processing threads
+    private static final ScheduledExecutorService RETENTION_TASK = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "server-retention");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        JfrEvents.register();
+        MetricsRegistry.shared().gauge("server.filter_match_rate_pct", () -> {
+            long checks = FILTER_CHECKS.get();
+            return checks == 0 ? 0 : FILTER_MATCHES.get() * 100 / checks;
+        });
+    }
 
     private Client client;
-    private double maxWaitTime = 2; //in s
+    private volatile double maxWaitTime = 2; //in s
 
     //this is a list of all event (entity) ids that are logged (based on a filter)
-    private List<Event> loggedEvents;
+    //guarded by the server's lock, like allEvents
+    private ChunkedList<Event> loggedEvents;
+
+    //events and requests handed over by other threads, moved to the queues below by the worker
+    private final Queue<Event> incomingEvents = new ConcurrentLinkedQueue<>();
+    private final Queue<Request> incomingRequests = new ConcurrentLinkedQueue<>();
 
-    //this is a buffer list of all the events to process
+    //this is a buffer list of all the events to process, ordered by time stamp
     //events are removed from this list as they are processed
-    //the events to process list is resorted after BUFFER_TIME
     //Public for the purposes of testing
     public Queue<Event> eventsToProcess;
-    //This is a buffer list of all the requests to process
+    //This is a buffer list of all the requests to process, ordered by time stamp
     //request are removed from this list as they are processed
-    //the requests to process list is resorted after BUFFER_TIME
     //Public for the purposes of testing
     public Queue<Request> requestsToProcess;
 
+    //runs the queued events and requests, null means the shared workers are used
+    private volatile ServerWorkers workers = null;
+    //set while the server is with its worker, so it is processed by one thread at a time
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
     //all events currently in the server that HAVE BEEN processed
     //in the order that they were processed
-    public List<Event> allEvents;
+    //with segment storage enabled these are only the newest events, the rest are sealed in eventStore
+    //changed by the worker under the server's lock, queries on other threads take it too
+    public ChunkedList<Event> allEvents;
+    //the size of allEvents, written by the processing thread so other threads can read it
+    private volatile int heapEventCount = 0;
+
+    //the number of events stored for each entity, so entity queries don't scan the history
+    private final Map<Integer, Integer> entityEventCounts = new ConcurrentHashMap<>();
+
+    //the values of each entity summed up over time, answers aggregates without reading every event
+    private volatile TimeRollups rollups = new TimeRollups();
+
+    //estimated event counts and number of distinct entities, over every event processed since
+    //they were enabled, null if the server keeps no entity sketches
+    private volatile HeavyHitters heavyHitters = null;
+    private volatile HyperLogLog distinctEntities = null;
+    //the entities forgotten by eviction since distinctEntities was last rebuilt
+    private final AtomicInteger forgottenEntities = new AtomicInteger(0);
 
+    //older events sealed into memory-mapped segments, null if the server keeps every event on the heap
+    private volatile SegmentedEventStore eventStore = null;
+    private boolean sealingFailed = false;
 
-    //keeps track of whether we are processing events
-    public boolean isRunning;
+
+    //keeps track of whether we are processing events, true while any are queued
+    public volatile boolean isRunning;
 
     private Filter filter = null;
     private double recentTimestamp;
 
+    //sends commands to actuators, null means the shared dispatcher is used
+    private ActuatorCommandDispatcher dispatcher = null;
+
+    //actuators known to this server, keyed by id
+    private final ActuatorRegistry actuatorRegistry = new ActuatorRegistry();
+
+    //merges bursts of commands to the same actuator before they are dispatched
+    private final ActuatorCommandCoalescer commandCoalescer = new ActuatorCommandCoalescer();
+
+    //notified after each event is processed, e.g. by latency measurements
+    private final List<EventListener> eventListeners = new CopyOnWriteArrayList<>();
+
+    //every incoming event is appended here before it is queued, null if the server keeps no log
+    private volatile WriteAheadLog writeAheadLog = null;
+
+    //held while an incoming event is logged and queued, so a snapshot sees it in both or neither
+    private final Object ingestLock = new Object();
+
+    //the events queued and not processed yet, kept to about ingestCapacity: a producer waits on
+    //capacityLock while it is reached, the worker wakes it as it takes events off the queue
+    private volatile int ingestCapacity = DEFAULT_INGEST_CAPACITY;
+    private final AtomicInteger queuedEvents = new AtomicInteger(0);
+    //the requests queued and not processed yet, they count towards the load but are not held back
+    private final AtomicInteger queuedRequests = new AtomicInteger(0);
+    private final AtomicInteger ingestWaiters = new AtomicInteger(0);
+    private final Object capacityLock = new Object();
+
+    //queued items the admission controller asked to drop, by traffic class, and their total;
+    //the worker drops them (see shedQueued), the ones dropped are counted in shedCounts
+    private final AtomicIntegerArray shedDebt = new AtomicIntegerArray(AdmissionController.TrafficClass.values().length);
+    private final AtomicInteger shedPending = new AtomicInteger(0);
+    private final AtomicLongArray shedCounts = new AtomicLongArray(AdmissionController.TrafficClass.values().length);
+
+    //the last write-ahead log lsn in the restored snapshot, replaying the log starts after it
+    private long restoredLsn = 0;
+
+    //where snapshots are written every snapshotInterval ms, null if the server takes none
+    private volatile Path snapshotFile = null;
+    private long snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+    private long nextSnapshotAt = 0;
+    private final AtomicBoolean snapshotWriting = new AtomicBoolean(false);
+
+    //how much history the server keeps, null if it keeps everything
+    private volatile RetentionPolicy retention = null;
+    private ScheduledFuture<?> retentionTask = null;
+    //the latest time stamp processed, ages are measured back from it
+    private volatile double latestTimestamp = Double.NEGATIVE_INFINITY;
+    //held while a segment is evicted and its events uncounted, so a snapshot sees both or neither
+    private final Object retentionLock = new Object();
+
     /**
      * Create a server for a given client.
      *
@@ -56,10 +235,10 @@ public class Server {
     public Server(Client client) {
         // implement the Server constructor
         this.client = client;
-        this.eventsToProcess = new LinkedList<>();
-        this.requestsToProcess = new LinkedList<>();
-        this.allEvents = new LinkedList<>();
-        this.loggedEvents = new ArrayList<>();
+        this.eventsToProcess = new PriorityQueue<>(EVENT_ORDER);
+        this.requestsToProcess = new PriorityQueue<>(REQUEST_ORDER);
+        this.allEvents = new ChunkedList<>();
+        this.loggedEvents = new ChunkedList<>();
         this.isRunning = false;
         this.recentTimestamp = 0;
     }
@@ -69,10 +248,10 @@ public class Server {
     public Server() {
         // implement the Server constructor
         this.client = null;
-        this.eventsToProcess = new LinkedList<>();   // thread-safe, https://www.geeksforgeeks.org/copyonwritearraylist-in-java/
-        this.requestsToProcess = new LinkedList<>();
-        this.allEvents = new LinkedList<>();
-        this.loggedEvents = new ArrayList<>();
+        this.eventsToProcess = new PriorityQueue<>(EVENT_ORDER);
+        this.requestsToProcess = new PriorityQueue<>(REQUEST_ORDER);
+        this.allEvents = new ChunkedList<>();
+        this.loggedEvents = new ChunkedList<>();
         this.isRunning = false;
         this.recentTimestamp = 0;
     }
@@ -84,6 +263,32 @@ public class Server {
         this.client = client;
     }
 
+    /**
+     * Gets the id of the client of the server
+     * @return the client id, -1 if the server has no client
+     */
+    public int getClientId() {
+        Client current = this.client;
+        return current == null ? -1 : current.getClientId();
+    }
+
+    /**
+     * Gets what the server is partitioned onto its worker by
+     * @return the client id, or a per-server value if the server has no client
+     */
+    int partitionKey() {
+        Client current = this.client;
+        return current == null ? System.identityHashCode(this) : current.getClientId();
+    }
+
+    /**
+     * Sets the workers that run the server's queued events and requests
+     * @param workers the workers to use, null to use the shared workers
+     */
+    public void setWorkers(ServerWorkers workers) {
+        this.workers = workers;
+    }
+
     /**
      * Update the max wait time for the client.
      * The max wait time is the maximum amount of time
@@ -101,6 +306,16 @@ public class Server {
         this.maxWaitTime = maxWaitTime;
     }
 
+    /**
+     * Update the window over which commands to the same actuator are merged before being sent.
+     * Within a window the last set wins and toggles only count if there is an odd number of them.
+     *
+     * @param windowMillis the new window in ms, 0 sends every command immediately
+     */
+    public void updateCommandCoalescingWindow(long windowMillis) {
+        commandCoalescer.setWindow(windowMillis);
+    }
+
     /**
      * Set the actuator state if the given filter is satisfied by the latest event.
      * Here the latest event is the event with the latest timestamp not the event
@@ -111,43 +326,61 @@ public class Server {
      * @param actuator the actuator to set the state of as true
      */
     public void setActuatorStateIf(Filter filter, Actuator actuator) {
-        Event latestEvent = getLatestEvent();
-
-        // Check if the latest event satisfies the filter
-        if (latestEvent != null && filter.satisfies(latestEvent)) {
-            // Check if the actuator is registered for this client
-            if (actuator.getClientId() == this.client.getClientId()) {
-
-                // Update the state of the actuator
-                boolean newState = true; // Assuming we are setting the state to true
-
-                String IP = actuator.getIP();
-                int port = actuator.getServerPort();
-
-                try{
-                    Socket actSocket = new Socket(IP, port);
-                    PrintWriter clientOutput = new PrintWriter(new OutputStreamWriter(actSocket.getOutputStream()));
-
-                    Request request = new Request(RequestType.CONTROL, RequestCommand.SET_STATE, "true");
-
-                    //Need to do this due to toString limitations. They will not be used in Actuator
-                    request.setEmail("");
-                    request.setClientId(0);
+        setActuatorStateIf(filter, actuator, logFailedCommand("setActuatorState"));
+    }
 
-                    // Send the actuator event
+    /**
+     * Set the actuator state if the given filter is satisfied by the latest event.
+     * The command is sent asynchronously, this method does not wait for the actuator.
+     * If the actuator is not registered for the client, then this method should do nothing.
+     *
+     * @param filter the filter to check
+     * @param actuator the actuator to set the state of as true
+     * @param callback notified once the command has been sent to the actuator or has failed
+     */
+    public void setActuatorStateIf(Filter filter, Actuator actuator, ActuatorCommandDispatcher.Callback callback) {
+        // Check if the actuator is registered for this client
+        if (actuator.getClientId() == this.client.getClientId()) {
+            setActuatorStateIf(filter, actuatorRegistry.register(actuator).getId(), callback);
+        }
+    }
 
-                    clientOutput.print(request);  //Write to the output stream
-                    clientOutput.flush();  //Close stream
+    /**
+     * Set the state of an actuator known to this server if the given filter is satisfied by the latest event.
+     * The actuator is looked up in the server's actuator registry, so no connection or thread is created for it.
+     * If the actuator is unknown, has no registered command endpoint or is not registered for the client,
+     * then this method should do nothing.
+     *
+     * @param filter the filter to check
+     * @param actuatorId the id of the actuator to set the state of as true
+     */
+    public void setActuatorStateIf(Filter filter, int actuatorId) {
+        setActuatorStateIf(filter, actuatorId, logFailedCommand("setActuatorState"));
+    }
 
-                }catch (IOException e){
-                    System.out.println("Error sending setActuatorState command: " + e.getMessage());
-                    e.printStackTrace();
-                }
+    /**
+     * Set the state of an actuator known to this server if the given filter is satisfied by the latest event.
+     * If the actuator is unknown, has no registered command endpoint or is not registered for the client,
+     * then this method should do nothing.
+     *
+     * @param filter the filter to check
+     * @param actuatorId the id of the actuator to set the state of as true
+     * @param callback notified once the command has been sent to the actuator or has failed
+     */
+    public void setActuatorStateIf(Filter filter, int actuatorId, ActuatorCommandDispatcher.Callback callback) {
+        ActuatorHandle actuator = actuatorRegistry.get(actuatorId);
+        if (actuator == null || !actuator.hasEndpoint() || actuator.getClientId() != this.client.getClientId()) {
+            return;
+        }
 
+        Event latestEvent = getLatestEvent();
 
-            }
+        // Check if the latest event satisfies the filter
+        if (latestEvent != null && filter.satisfies(latestEvent)) {
+            // Assuming we are setting the state to true
+            Request request = new Request(RequestType.CONTROL, RequestCommand.SET_STATE, "true");
+            sendActuatorCommand(actuator, request, callback);
         }
-
     }
 
     /**
@@ -159,8 +392,14 @@ public class Server {
      *
      * @return the latest event of the client
      */
-    private Event getLatestEvent() {
-        return this.allEvents.stream().max(Comparator.comparingDouble(Event::getTimeStamp)).orElse(null);
+    private synchronized Event getLatestEvent() {
+        Event latest = this.allEvents.stream().max(Comparator.comparingDouble(Event::getTimeStamp)).orElse(null);
+        SegmentedEventStore store = this.eventStore;
+        Event sealed = store == null ? null : store.latest();
+        if (sealed != null && (latest == null || sealed.getTimeStamp() > latest.getTimeStamp())) {
+            return sealed;
+        }
+        return latest;
     }
 
     /**
@@ -175,41 +414,141 @@ public class Server {
      * @param actuator the actuator to toggle the state of (true -> false, false -> true)
      */
     public void toggleActuatorStateIf(Filter filter, Actuator actuator) {
-        //TODO: fix the true default state
+        toggleActuatorStateIf(filter, actuator, logFailedCommand("toggleActuatorState"));
+    }
 
-        // Check if the actuator has sent an event and is registered for this client
-        if (actuator.hasSentEvent() && actuator.getClientId() == this.client.getClientId()) {
-            Event latestEvent = getLatestEvent();
+    /**
+     * Toggle the actuator state if the given filter is satisfied by the latest event.
+     * The command is sent asynchronously, this method does not wait for the actuator.
+     *
+     * If the actuator has never sent an event to the server, then this method should do nothing.
+     * If the actuator is not registered for the client, then this method should do nothing.
+     *
+     * @param filter the filter to check
+     * @param actuator the actuator to toggle the state of (true -> false, false -> true)
+     * @param callback notified once the command has been sent to the actuator or has failed
+     */
+    public void toggleActuatorStateIf(Filter filter, Actuator actuator, ActuatorCommandDispatcher.Callback callback) {
+        // Check if the actuator is registered for this client
+        if (actuator.getClientId() == this.client.getClientId()) {
+            toggleActuatorStateIf(filter, actuatorRegistry.register(actuator).getId(), callback);
+        }
+    }
 
-            // Check if the latest event satisfies the filter
-            if (latestEvent != null && filter.satisfies(latestEvent)) {
-                // Toggle the state of the actuator
-                boolean newState = !actuator.getState();
-                String IP = actuator.getIP();
-                int port = actuator.getServerPort();
+    /**
+     * Toggle the state of an actuator known to this server if the given filter is satisfied by the latest event.
+     * The actuator is looked up in the server's actuator registry, so no connection or thread is created for it.
+     *
+     * If the actuator has never sent an event to the server, then this method should do nothing.
+     * If the actuator is unknown, has no registered command endpoint or is not registered for the client,
+     * then this method should do nothing.
+     *
+     * @param filter the filter to check
+     * @param actuatorId the id of the actuator to toggle the state of (true -> false, false -> true)
+     */
+    public void toggleActuatorStateIf(Filter filter, int actuatorId) {
+        toggleActuatorStateIf(filter, actuatorId, logFailedCommand("toggleActuatorState"));
+    }
 
+    /**
+     * Toggle the state of an actuator known to this server if the given filter is satisfied by the latest event.
+     *
+     * If the actuator has never sent an event to the server, then this method should do nothing.
+     * If the actuator is unknown, has no registered command endpoint or is not registered for the client,
+     * then this method should do nothing.
+     *
+     * @param filter the filter to check
+     * @param actuatorId the id of the actuator to toggle the state of (true -> false, false -> true)
+     * @param callback notified once the command has been sent to the actuator or has failed
+     */
+    public void toggleActuatorStateIf(Filter filter, int actuatorId, ActuatorCommandDispatcher.Callback callback) {
+        ActuatorHandle actuator = actuatorRegistry.get(actuatorId);
 
+        // Check if the actuator has sent an event and is registered for this client
+        if (actuator == null || !actuator.hasEndpoint() || !actuator.hasSentEvent()
+                || actuator.getClientId() != this.client.getClientId()) {
+            return;
+        }
 
-                try{
-                    Socket actSocket = new Socket(IP, port);
-                    PrintWriter clientOutput = new PrintWriter(new OutputStreamWriter(actSocket.getOutputStream()));
+        Event latestEvent = getLatestEvent();
 
-                    //new Request(ServerCommandToActuator, actuator.toString() + "," + filter.toString(), System.currentTimeMillis());
+        // Check if the latest event satisfies the filter
+        if (latestEvent != null && filter.satisfies(latestEvent)) {
+            Request request = new Request(RequestType.CONTROL, RequestCommand.TOGGLE_STATE, "toggle");
+            sendActuatorCommand(actuator, request, callback);
+        }
+    }
 
-                    // Send the actuator event
-                    clientOutput.println("CONTROL_SET_ACTUATOR_STATE");
+    /**
+     * Hands a command to the actuator command dispatcher, which sends it over a pooled
+     * connection without blocking event processing. Commands to the same actuator within
+     * the coalescing window are merged into one
+     * @param actuator the actuator to send the command to
+     * @param request the command to send
+     * @param callback notified once the command has been sent or has failed
+     */
+    private void sendActuatorCommand(ActuatorHandle actuator, Request request, ActuatorCommandDispatcher.Callback callback) {
+        //Need to do this due to toString limitations. They will not be used in Actuator
+        request.setEmail("");
+        request.setClientId(this.client.getClientId());
 
-                    clientOutput.print("toggle");  //Write to the output stream
-                    clientOutput.flush();  //Close stream
+        commandCoalescer.submit(getActuatorCommandDispatcher(), actuator, request, callback);
+    }
 
-                }catch (IOException e){
-                    System.out.println("Error sending setActuatorState command: " + e.getMessage());
-                    e.printStackTrace();
-                }
+    /**
+     * Creates a callback that reports commands that could not be sent
+     * @param commandName the name of the command used in the error message
+     * @return the callback
+     */
+    private static ActuatorCommandDispatcher.Callback logFailedCommand(String commandName) {
+        return (command, error) -> {
+            if (error != null) {
+                System.out.println("Error sending " + commandName + " command: " + error.getMessage());
             }
-        }
+        };
     }
 
+    /**
+     * Gets the registry of actuators known to this server, learned from registration
+     * requests and actuator events
+     * @return the actuator registry of this server
+     */
+    public ActuatorRegistry getActuatorRegistry() {
+        return actuatorRegistry;
+    }
+
+    /**
+     * Sets the dispatcher used to send commands to actuators
+     * @param dispatcher the dispatcher to use, null to use the shared dispatcher
+     */
+    public void setActuatorCommandDispatcher(ActuatorCommandDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Gets the dispatcher used to send commands to actuators
+     * @return the dispatcher set for this server, or the shared dispatcher if none was set
+     */
+    private ActuatorCommandDispatcher getActuatorCommandDispatcher() {
+        ActuatorCommandDispatcher current = this.dispatcher;
+        return current != null ? current : ActuatorCommandDispatcher.shared();
+    }
+
+    /**
+     * Adds a listener that is notified of every event processed from now on
+     * @param listener the listener, it must not block the processing thread
+     */
+    public void addEventListener(EventListener listener) {
+        eventListeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added with addEventListener
+     * @param listener the listener to remove
+     */
+    public void removeEventListener(EventListener listener) {
+        eventListeners.remove(listener);
+    }
 
     /**
      * Log the event ID for which a given filter was satisfied.
@@ -217,20 +556,21 @@ public class Server {
      *
      * @param filter the filter to check
      */
-    public void logIf(Filter filter) {
+    public synchronized void logIf(Filter filter) {
         this.filter = filter;
-        this.loggedEvents = new ArrayList<>();
+        this.loggedEvents = new ChunkedList<>();
     }
 
     /**
      * Return all the logs made by the "logIf" method so far.
      * If no logs have been made, then this method should return an empty list.
      * The list should be sorted in the order of event timestamps.
-     * After the logs are read, they should be cleared from the server.
+     * After the logs are read, they should be cleared from the server. Reading and clearing
+     * hold the server's lock, so an event logged meanwhile is kept for the next read.
      *
      * @return list of event IDs
      */
-     public List<Integer> readLogs() {
+    public synchronized List<Integer> readLogs() {
 
         List<Integer> readLogs = loggedEvents.stream()
                 .sorted((x1, x2) -> Double.compare(x2.getTimeStamp(), x1.getTimeStamp()))
@@ -238,7 +578,7 @@ public class Server {
                 .toList();
 
         //remove each logged event that has been read
-        this.loggedEvents = new ArrayList<>();
+        this.loggedEvents = new ChunkedList<>();
 
         return readLogs;
     }
@@ -253,11 +593,20 @@ public class Server {
      * @param timeWindow the time window of events, inclusive of the start and end times
      * @return list of the events for the client in the given time window
      */
-    public List<Event> eventsInTimeWindow(TimeWindow timeWindow) {
+    public synchronized List<Event> eventsInTimeWindow(TimeWindow timeWindow) {
         // implement this method
-        return allEvents.stream()
+        List<Event> active = allEvents.stream()
                 .filter(event -> event.getTimeStamp() >= timeWindow.getStartTime())
                 .filter(event -> event.getTimeStamp() <= timeWindow.getEndTime()).toList();
+
+        SegmentedEventStore store = this.eventStore;
+        if (store == null || store.size() == 0) {
+            return active;
+        }
+        List<Event> events = new ArrayList<>(store.eventsBetween(timeWindow.getStartTime(), timeWindow.getEndTime()));
+        events.addAll(active);
+        events.sort(Comparator.comparingDouble(Event::getTimeStamp));
+        return events;
     }
 
     /**
@@ -268,15 +617,8 @@ public class Server {
      * @return list of all the entities of the client for which we have received events so far
      */
     public List<Integer> getAllEntities() {
-        // implement this method
-        Set<Integer> uniqueEntityIds = new HashSet<>();  //Sets for unique IDs
-
-        for (Event event : allEvents) {
-            uniqueEntityIds.add(event.getEntityId());
-        }
-
-        // Convert set to list to match return type
-        return new ArrayList<>(uniqueEntityIds);
+        // the keys of the per-entity counts are the unique IDs
+        return new ArrayList<>(entityEventCounts.keySet());
     }
 
     /**
@@ -290,9 +632,15 @@ public class Server {
      * @param n the max number of events to list
      * @return list of the latest n events of the client
      */
-    public List<Event> lastNEvents(int n) {
-        // Sort the events in ascending order
-        List<Event> sortedEvents = allEvents.stream()
+    public synchronized List<Event> lastNEvents(int n) {
+        // Sort the events in ascending order, sealed events can only matter if they are among the latest n
+        SegmentedEventStore store = this.eventStore;
+        List<Event> candidates = allEvents;
+        if (store != null && store.size() > 0) {
+            candidates = new ArrayList<>(store.latestCandidates(n));
+            candidates.addAll(allEvents);
+        }
+        List<Event> sortedEvents = candidates.stream()
                 .sorted(Comparator.comparingDouble(Event::getTimeStamp)
                         .thenComparingInt(Event::getEntityId))
                 .toList();
@@ -311,21 +659,330 @@ public class Server {
      * @return the most active entity ID of the client
      */
     public int mostActiveEntity() {
-        // implement this method
-        Map<Integer, Integer> entityEventCounts = new HashMap<>();
+        // the number of events generated by each entity is counted as they are stored
+        return getMostActiveEntityId(entityEventCounts);
+    }
 
-        // Count the number of events generated by each entity
-        for (Event event : allEvents) {
-            int entityId = event.getEntityId();
-            if (entityEventCounts.containsKey(entityId)) {
-                // If the entity is already in the map, increment its count
-                entityEventCounts.put(entityId, entityEventCounts.get(entityId) + 1);
-            } else {
-                // If the entity is not in the map, add it with a count of 1
-                entityEventCounts.put(entityId, 1);
+    /**
+     * Keeps sketches of the entities of the stored events, from the events already stored on:
+     * a Count-Min sketch with a heap of the most active entities, and a HyperLogLog of the
+     * distinct entities. They take fixed memory however many entities there are, and merge
+     * across servers (see MessageHandler). Evicted events are taken out of the Count-Min sketch
+     * as they are evicted; a HyperLogLog cannot forget an entity, so it is rebuilt from the
+     * per-entity counts on the processing thread once more than 1% of the entities were
+     * forgotten. They are built while no events are processed, so they can be enabled at any
+     * time.
+     */
+    public synchronized void enableEntitySketches() {
+        HeavyHitters hitters = new HeavyHitters(HEAVY_HITTER_CAPACITY, HEAVY_HITTER_EPSILON, HEAVY_HITTER_DELTA);
+        HyperLogLog distinct = new HyperLogLog(DISTINCT_ENTITY_PRECISION);
+        forEachStoredEvent(event -> {
+            hitters.add(event.getEntityId());
+            distinct.add(event.getEntityId());
+        });
+        forgottenEntities.set(0);
+        this.distinctEntities = distinct;
+        this.heavyHitters = hitters;
+    }
+
+    /**
+     * Gets the heavy hitter sketch of the entities
+     * @return the sketch, which is thread-safe, or null if the server keeps no entity sketches
+     */
+    public HeavyHitters getHeavyHitters() {
+        return heavyHitters;
+    }
+
+    /**
+     * Gets the distinct entity sketch
+     * @return the sketch, which is thread-safe, or null if the server keeps no entity sketches
+     */
+    public HyperLogLog getDistinctEntities() {
+        return distinctEntities;
+    }
+
+    /**
+     * Lists the most active entities of the client, most events first. With entity sketches,
+     * the ranking is over the stored events and an entity's count
+     * is overestimated by at most HEAVY_HITTER_EPSILON of the events, with probability
+     * 1 - HEAVY_HITTER_DELTA. Without them it is exact, over the stored events.
+     *
+     * @param k the max number of entities, at most HEAVY_HITTER_CAPACITY with entity sketches
+     * @return up to k entity IDs, ties broken by the smaller ID
+     */
+    public List<Integer> topEntities(int k) {
+        HeavyHitters hitters = this.heavyHitters;
+        if (hitters != null) {
+            return hitters.top(k);
+        }
+        return entityEventCounts.entrySet().stream()
+                .sorted(Map.Entry.<Integer, Integer>comparingByValue().reversed()
+                        .thenComparing(Map.Entry.comparingByKey()))
+                .limit(k)
+                .map(Map.Entry::getKey)
+                .toList();
+    }
+
+    /**
+     * Counts the distinct entities of the client. With entity sketches it is an estimate with a
+     * relative standard error of about 1.6%, that may still count up to 1% of the entities
+     * retention has forgotten since. Without them it is the exact number of entities with
+     * stored events.
+     *
+     * @return the number of distinct entities
+     */
+    public long distinctEntityCount() {
+        HyperLogLog distinct = this.distinctEntities;
+        return distinct != null ? distinct.estimate() : entityEventCounts.size();
+    }
+
+    /**
+     * Aggregates the values of an entity in a time window: their count, min, max, sum and sum of
+     * squares. A sensor event counts its value, an actuator event 1 if it is on and 0 if it is off.
+     * The aggregate is built from the coarsest pre-aggregated buckets that fit in the window,
+     * and only the events in the parts of a second at its ends are read. With a retention
+     * policy the aggregate only covers the time stamps after the newest evicted event, so it
+     * never counts an evicted event, nor a late one stored at or before that time stamp.
+     *
+     * @param entityId the id of the entity
+     * @param timeWindow the time window, inclusive of the start and end times
+     * @return the aggregate, Aggregate.EMPTY if the entity has no events in the window
+     */
+    public Aggregate aggregateInTimeWindow(int entityId, TimeWindow timeWindow) {
+        return rollups.aggregate(entityId, timeWindow, this::storedEventsOf);
+    }
+
+    /**
+     * Estimates a quantile of the values of an entity in a time window, e.g. 0.95 for its p95.
+     * Every rollup bucket keeps a KllSketch of its values, so the estimate merges the sketches of
+     * the buckets aggregateInTimeWindow would use rather than sorting the events. The rank of the
+     * value returned is within about 1% of the number of values of the requested rank.
+     *
+     * @param entityId the id of the entity
+     * @param quantile the rank, as a fraction of the values in [0, 1]
+     * @param timeWindow the time window, inclusive of the start and end times
+     * @return the estimated value, NaN if the entity has no events in the window
+     */
+    public double quantileInTimeWindow(int entityId, double quantile, TimeWindow timeWindow) {
+        return rollups.quantile(entityId, quantile, timeWindow, this::storedEventsOf);
+    }
+
+    /**
+     * Lists the stored events of an entity in a time range
+     * @param entityId the id of the entity
+     * @param startTime the start of the range, inclusive
+     * @param endTime the end of the range, inclusive
+     * @return the events of the entity in the range
+     */
+    private List<Event> storedEventsOf(int entityId, double startTime, double endTime) {
+        return eventsInTimeWindow(new TimeWindow(startTime, endTime)).stream()
+                .filter(event -> event.getEntityId() == entityId)
+                .toList();
+    }
+
+    /**
+     * Gets the number of events the server has stored, on the heap and sealed. Safe to call
+     * from any thread: the heap events are counted as of the last event processed.
+     * @return the number of processed events
+     */
+    public long getEventCount() {
+        SegmentedEventStore store = this.eventStore;
+        return heapEventCount + (store == null ? 0 : store.size());
+    }
+
+    /**
+     * Keeps the server's history in memory-mapped segment files: once segmentSize events are
+     * on the heap they are sealed into a new segment in the directory, and queries read the
+     * segments from their mapped pages. Enable it before the write-ahead log, so replayed
+     * events are sealed too. If a segment cannot be written, new events stay on the heap.
+     * If the server was restored from a snapshot with segments in this directory, they are kept.
+     *
+     * @param directory the directory of the segment files, created if needed, old segments in it are deleted
+     * @param segmentSize the number of events per segment, >= 1
+     * @throws IOException if the directory cannot be used
+     */
+    public synchronized void enableSegmentStorage(Path directory, int segmentSize) throws IOException {
+        SegmentedEventStore current = this.eventStore;
+        if (current != null && current.getDirectory().equals(directory)) {
+            //restored from a snapshot, its segments are kept
+            return;
+        }
+        this.eventStore = new SegmentedEventStore(directory, segmentSize);
+        this.sealingFailed = false;
+    }
+
+    /**
+     * Gets the sealed segments of the server
+     * @return the segment store, null if every event is on the heap
+     */
+    public SegmentedEventStore getEventStore() {
+        return eventStore;
+    }
+
+    /**
+     * Takes a snapshot of the server every interval: its stored events (sealed segments by
+     * name), current filter and logged events, per-entity counts and the events still waiting
+     * to be processed. Snapshots are taken on the processing thread between two events, when
+     * the interval has passed, and written on a background thread. The server only changes
+     * while it processes, so an idle server needs no new snapshot. Once a snapshot is written,
+     * the write-ahead log drops the events it holds (see WriteAheadLog.checkpoint).
+     *
+     * @param file the snapshot file, replaced by every snapshot
+     * @param intervalMillis the min time between snapshots, in ms
+     */
+    public synchronized void enableSnapshots(Path file, long intervalMillis) {
+        this.snapshotInterval = intervalMillis;
+        this.nextSnapshotAt = System.currentTimeMillis() + intervalMillis;
+        this.snapshotFile = file;
+    }
+
+    /**
+     * Writes a snapshot of the server now, waiting for it to be written and for the write-ahead
+     * log to drop the events it holds
+     * @param file the snapshot file, replaced if it exists
+     * @throws IOException if the snapshot cannot be written
+     */
+    public synchronized void writeSnapshot(Path file) throws IOException {
+        WriteAheadLog log = this.writeAheadLog;
+        ServerSnapshot snapshot = captureSnapshot();
+        snapshot.write(file);
+        SNAPSHOTS_WRITTEN.increment();
+        checkpointLog(log, snapshot.walLsn);
+    }
+
+    /**
+     * Restores the server to a snapshot, replacing its stored events, filter, logged events and
+     * per-entity counts. The events that were waiting to be processed are processed now. Restore
+     * before enabling segment storage and the write-ahead log, the log then only replays the
+     * events that arrived after the snapshot.
+     *
+     * @param file the snapshot file
+     * @return the number of events the server has after the restore
+     * @throws IOException if the snapshot or its segments cannot be read
+     */
+    public synchronized long restoreSnapshot(Path file) throws IOException {
+        ServerSnapshot snapshot = ServerSnapshot.read(file);
+
+        SegmentedEventStore store = null;
+        if (snapshot.segmentDirectory != null) {
+            store = SegmentedEventStore.restore(Path.of(snapshot.segmentDirectory), snapshot.segmentSize, snapshot.segmentFiles);
+        }
+        this.eventStore = store;
+        this.sealingFailed = false;
+        this.maxWaitTime = snapshot.maxWaitTime;
+        this.recentTimestamp = snapshot.recentTimestamp;
+        this.filter = snapshot.filter;
+        this.allEvents = new ChunkedList<>(snapshot.activeEvents);
+        this.heapEventCount = allEvents.size();
+        this.loggedEvents = new ChunkedList<>(snapshot.loggedEvents);
+        this.entityEventCounts.clear();
+        this.entityEventCounts.putAll(snapshot.entityEventCounts);
+        boolean segmentMissing = store != null && store.getSegments().size() < snapshot.segmentFiles.size();
+        if (store != null) {
+            //the runs that were being sealed when the snapshot was taken
+            for (List<Event> run : snapshot.sealingEvents) {
+                store.sealLater(run);
             }
         }
-        return getMostActiveEntityId(entityEventCounts);
+        if (segmentMissing) {
+            //a segment was evicted after the snapshot, its events are counted in it
+            recountEntities();
+        }
+        this.rollups = snapshot.rollups;
+        this.restoredLsn = snapshot.walLsn;
+        Event latest = getLatestEvent();
+        this.latestTimestamp = latest == null ? Double.NEGATIVE_INFINITY : latest.getTimeStamp();
+
+        for (Event event : snapshot.pendingEvents) {
+            event.setTimeArrived(0);
+            runEvent(event);
+        }
+        return getEventCount();
+    }
+
+    /**
+     * Copies the state of the server into a snapshot, on the processing thread. The stored
+     * events, logged events and rollups are copy-on-write, so taking their snapshots takes time
+     * in the number of chunks and entities rather than events and buckets, and the processing
+     * thread copies only what it changes afterwards.
+     * @return the snapshot
+     */
+    private ServerSnapshot captureSnapshot() {
+        ServerSnapshot snapshot = new ServerSnapshot();
+        synchronized (ingestLock) {
+            WriteAheadLog log = this.writeAheadLog;
+            snapshot.walLsn = log == null ? restoredLsn : log.getLastLsn();
+            snapshot.pendingEvents = new ArrayList<>(eventsToProcess);
+            snapshot.pendingEvents.addAll(incomingEvents);
+        }
+        snapshot.maxWaitTime = maxWaitTime;
+        snapshot.recentTimestamp = recentTimestamp;
+        snapshot.filter = filter;
+        snapshot.activeEvents = allEvents.snapshot();
+        snapshot.loggedEvents = loggedEvents.snapshot();
+
+        SegmentedEventStore store = this.eventStore;
+        synchronized (retentionLock) {
+            snapshot.rollups = rollups.copy();
+            snapshot.entityEventCounts = new HashMap<>(entityEventCounts);
+            if (store != null) {
+                SegmentedEventStore.Contents contents = store.contents();
+                snapshot.segmentDirectory = store.getDirectory().toString();
+                snapshot.segmentSize = store.getSegmentSize();
+                snapshot.segmentFiles = new ArrayList<>();
+                for (EventSegment segment : contents.segments) {
+                    snapshot.segmentFiles.add(segment.getFile().getFileName().toString());
+                }
+                snapshot.sealingEvents = contents.unsealed;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Takes a snapshot in the background if the snapshot interval has passed and the last one is written
+     */
+    private void snapshotIfDue() {
+        Path file = this.snapshotFile;
+        long now = System.currentTimeMillis();
+        if (file == null || now < nextSnapshotAt || !snapshotWriting.compareAndSet(false, true)) {
+            return;
+        }
+        nextSnapshotAt = now + snapshotInterval;
+        WriteAheadLog log = this.writeAheadLog;
+        ServerSnapshot snapshot = captureSnapshot();
+        SNAPSHOT_WRITER.execute(() -> {
+            try {
+                long start = System.currentTimeMillis();
+                snapshot.write(file);
+                SNAPSHOT_WRITE_TIME.record(System.currentTimeMillis() - start);
+                SNAPSHOTS_WRITTEN.increment();
+            } catch (IOException e) {
+                SNAPSHOT_FAILURES.increment();
+                System.out.println("ERROR writing snapshot " + file + ": " + e.getMessage());
+                return;
+            } finally {
+                snapshotWriting.set(false);
+            }
+            checkpointLog(log, snapshot.walLsn);
+        });
+    }
+
+    /**
+     * Drops the events a written snapshot holds from the write-ahead log, so the log only
+     * grows until the next snapshot and a restart replays only the tail after it
+     * @param log the log the snapshot was taken with, null if there was none
+     * @param lsn the last lsn the snapshot holds
+     */
+    private static void checkpointLog(WriteAheadLog log, long lsn) {
+        if (log == null) {
+            return;
+        }
+        try {
+            log.checkpoint(lsn);
+        } catch (IOException e) {
+            System.out.println("ERROR checkpointing write-ahead log " + log.getFile() + ": " + e.getMessage());
+        }
     }
 
     /**
@@ -391,16 +1048,73 @@ public class Server {
     }
 
     /**
-     * Adds an event to the processing queue
+     * Makes the server durable: every incoming event is appended to a write-ahead log before
+     * it is queued for processing. The events already in the log are processed first, so a
+     * server started on the log of one that died gets back the events it had received. After
+     * restoreSnapshot, only the events logged after the snapshot are replayed; a written
+     * snapshot has the log drop the events before it, so that tail is all the log holds.
+     *
+     * @param file the log file, created if it does not exist
+     * @param fsyncIntervalMillis the max time a logged event waits to be forced to disk, in ms
+     * @return the number of events replayed from the log
+     * @throws IOException if the log cannot be read or opened
+     */
+    public synchronized long enableWriteAheadLog(Path file, long fsyncIntervalMillis) throws IOException {
+        disableWriteAheadLog();
+
+        List<Event> replayed = new ArrayList<>();
+        WriteAheadLog.read(file, restoredLsn, replayed::add);
+        for (Event event : replayed) {
+            //replayed events never waited in the queue, so they are kept out of the wait times
+            event.setTimeArrived(0);
+            runEvent(event);
+        }
+
+        //a log checkpointed at the snapshot may be empty, its lsns go on from the snapshot's
+        this.writeAheadLog = new WriteAheadLog(file, fsyncIntervalMillis, restoredLsn);
+        return replayed.size();
+    }
+
+    /**
+     * Stops logging incoming events, after forcing the events logged so far to disk
+     */
+    public synchronized void disableWriteAheadLog() {
+        WriteAheadLog log = this.writeAheadLog;
+        this.writeAheadLog = null;
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                System.out.println("ERROR closing write-ahead log " + log.getFile() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Gets the write-ahead log of the server
+     * @return the log, null if the server keeps none
+     */
+    public WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * Adds an event to the processing queue, waiting while the queue is at the ingest capacity
      * @param event the event to process, requires the event is not null
      */
     public void processIncomingEvent(Event event) {
-        eventsToProcess.add(event);
-        if(!this.isRunning) {
-            //we are not running a processing thread anymore, so start processing events in a new thread
-            Thread processEvents = new Thread(this::processAll);
-            processEvents.start();
+        awaitIngestCapacity(1);
+        //producers that pass the check together may go a few events past the capacity
+        queuedEvents.incrementAndGet();
+        synchronized (ingestLock) {
+            WriteAheadLog log = this.writeAheadLog;
+            if (log != null) {
+                log.append(event);
+            }
+            incomingEvents.add(event);
         }
+        EVENTS_QUEUED.increment();
+        schedule();
     }
 
     /**
@@ -408,85 +1122,312 @@ public class Server {
      * @param request the request to process, requires the requeset is not null
      */
     public void processIncomingRequest(Request request) {
-        this.requestsToProcess.add(request);
-        if(!this.isRunning) {
-            Thread processEvents = new Thread(this::processAll);
-            processEvents.start();
+        queuedRequests.incrementAndGet();
+        incomingRequests.add(request);
+        REQUESTS_QUEUED.increment();
+        schedule();
+    }
+
+    /**
+     * Waits until the processing queue has room for some events. The handler calls this before
+     * granting a flow-controlled connection credit, so credit is only granted for events the
+     * server has room for.
+     * @param events the number of events, more than the ingest capacity waits for an empty queue
+     */
+    public void awaitIngestCapacity(int events) {
+        if (queuedEvents.get() + Math.min(events, ingestCapacity) <= ingestCapacity) {
+            return;
+        }
+        INGEST_WAITS.increment();
+        synchronized (capacityLock) {
+            ingestWaiters.incrementAndGet();
+            try {
+                //checked after counting ourselves as waiting, so a wake-up can't be missed
+                while (queuedEvents.get() + Math.min(events, ingestCapacity) > ingestCapacity) {
+                    capacityLock.wait();
+                }
+            } catch (InterruptedException e) {
+                //give up waiting, the event goes past the capacity
+                Thread.currentThread().interrupt();
+            } finally {
+                ingestWaiters.decrementAndGet();
+            }
         }
     }
 
     /**
-     * Start processing events and requests in their respective queues in another thread
+     * Sets the max number of events queued and not processed yet, producers wait once it is
+     * reached. A client sending faster than it is processed is held back instead of growing
+     * the queue until the process runs out of memory.
+     * @param capacity the capacity in events, must be > 0
+     */
+    public void setIngestCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Ingest capacity must be positive");
+        }
+        this.ingestCapacity = capacity;
+        synchronized (capacityLock) {
+            capacityLock.notifyAll();
+        }
+    }
+
+    /**
+     * Gets the max number of events queued and not processed yet
+     * @return the ingest capacity in events
+     */
+    public int getIngestCapacity() {
+        return ingestCapacity;
+    }
+
+    /**
+     * Gets the number of events queued and not processed yet
+     * @return the number of queued events
+     */
+    public int getQueuedEventCount() {
+        return queuedEvents.get();
+    }
+
+    /**
+     * Gets the number of requests queued and not processed yet
+     * @return the number of queued requests
+     */
+    public int getQueuedRequestCount() {
+        return queuedRequests.get();
+    }
+
+    /**
+     * Gets how loaded the server is, the signal the admission controller sheds by
+     * @return the queued events and requests as a fraction of the ingest capacity, past 1 if
+     *         more are queued than the capacity
+     */
+    public double getLoad() {
+        return (double) (queuedEvents.get() + queuedRequests.get()) / ingestCapacity;
+    }
+
+    /**
+     * Drops the queued event or request of a class with the earliest time stamp, on the
+     * server's worker soon after. Called by the admission controller for the DROP_OLDEST policy.
+     * A dropped event stays in the write-ahead log, if there is one.
+     * @param trafficClass the class of the item to drop
+     */
+    public void shedOldest(AdmissionController.TrafficClass trafficClass) {
+        shedDebt.incrementAndGet(trafficClass.ordinal());
+        if (shedPending.getAndIncrement() == 0 && scheduled.get()) {
+            //the worker may be parked until the next item is due
+            ServerWorkers current = this.workers;
+            (current != null ? current : ServerWorkers.shared()).wake(this);
+        }
+    }
+
+    /**
+     * Gets the number of queued items of a class dropped for the admission controller
+     * @param trafficClass the class
+     * @return the number of items dropped
+     */
+    public long getShedCount(AdmissionController.TrafficClass trafficClass) {
+        return shedCounts.get(trafficClass.ordinal());
+    }
+
+    /**
+     * Hands the server to its worker, unless it is already with it
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            this.isRunning = true;
+            ServerWorkers current = this.workers;
+            (current != null ? current : ServerWorkers.shared()).schedule(this);
+        }
+    }
+
+    /**
+     * Runs the queued events and requests that are due, on the server's worker.
      * This is where we ensure quality of service and that each event (and request) is processed in the order
-     * that it is received
-     */
-    synchronized private void processAll() {
-        this.isRunning = true;
-        //run this while we still have events to process
-        long bufferTime = System.currentTimeMillis();
-        sortEvents();
-        sortRequests();
-        while(!this.eventsToProcess.isEmpty() || !this.requestsToProcess.isEmpty()) {
-            //sort the events and requests if BUFFER_TIME has passed
-            if(System.currentTimeMillis() - bufferTime >= BUFFER_TIME) {
-                if (!this.eventsToProcess.isEmpty()) {
-                    sortEvents();
+     * that it is received: the one with the smaller time stamp goes first, once it has waited the max wait time
+     * for earlier ones to arrive.
+     * @param budget the max number of events and requests to run, >= 0
+     * @return 0 if more is due than the budget allowed, otherwise when the next queued event or
+     *         request is due, in ms since the epoch, or -1 if nothing is queued and the server has
+     *         left its worker
+     */
+    long processDue(int budget) {
+        //uncontended except while a snapshot, storage or retention change is made on another thread
+        synchronized (this) {
+            for (int processed = 0; ; processed++) {
+                moveIncoming();
+                shedQueued();
+                Event event = eventsToProcess.peek();
+                Request request = requestsToProcess.peek();
+                if (event == null && request == null) {
+                    break;
                 }
-
-                if (!this.requestsToProcess.isEmpty()) {
-                    sortRequests();
+                //get event or the request with the smaller timestamp
+                boolean eventFirst = request == null || (event != null && event.getTimeStamp() <= request.getTimeStamp());
+                long due = dueTime(eventFirst ? event.getTimeArrived() : request.getReceptionTime());
+                if (System.currentTimeMillis() < due) {
+                    //we haven't hit the maxWaitTime, come back when we do
+                    return due;
                 }
-                bufferTime = System.currentTimeMillis();
-            }
-
-            //gives the max wait time in seconds, with a little bit of wiggle room
-            double waitTime = maxWaitTime * 1000 - 50;
-
-            //get event or the request with the smaller timestamp
-            if(!this.eventsToProcess.isEmpty() && !this.requestsToProcess.isEmpty()) {
-                //both lists have requests and events
-                assert this.eventsToProcess.peek() != null;
-                assert this.requestsToProcess.peek() != null;
-                if (this.eventsToProcess.peek().getTimeStamp() <= this.requestsToProcess.peek().getTimeStamp()) {
-                    if (System.currentTimeMillis() - this.eventsToProcess.peek().getTimeArrived() < waitTime) {
-                        //we haven't hit the maxWaitTime, skip over the rest of the code
-                        continue;
-                    }
-                    //we have hit the max, run the event first
-                    runEvent(eventsToProcess.remove());
+                if (processed == budget) {
+                    //the other servers of the worker get their turn first
+                    return 0;
+                }
+                if (eventFirst) {
+                    runEvent(dequeueEvent());
                 } else {
-                    //check if the request has hit their max wait time
-                    if (System.currentTimeMillis() - this.requestsToProcess.peek().getReceptionTime() < waitTime) {
-                        //we haven't hit the max, so skip over the rest of the code
-                        continue;
-                    }
-                    //we have hit the max, run the command
-                    runRequestCommand(requestsToProcess.remove());
+                    runRequestCommand(dequeueRequest());
                 }
-            } else if (!eventsToProcess.isEmpty()) {
-                //only the eventsToProcess queue has elements to process
-                assert this.eventsToProcess.peek() != null;
+            }
+        }
+        this.isRunning = false;
+        scheduled.set(false);
+        //an event added after the last check but before scheduled was cleared has not scheduled the server
+        if ((!incomingEvents.isEmpty() || !incomingRequests.isEmpty()) && scheduled.compareAndSet(false, true)) {
+            this.isRunning = true;
+            return 0;
+        }
+        return -1;
+    }
 
-                if (System.currentTimeMillis() - this.eventsToProcess.peek().getTimeArrived() < waitTime) {
-                    //we haven't hit the maxWaitTime, skip over the rest of the code
-                    continue;
+    /**
+     * Takes the server off its worker after processDue failed, so the worker can carry on
+     * without it. The failing event or request is already off the queue; if anything else is
+     * queued the server is handed back to its worker.
+     */
+    void leaveWorker() {
+        boolean queued;
+        synchronized (this) {
+            queued = !eventsToProcess.isEmpty() || !requestsToProcess.isEmpty();
+        }
+        this.isRunning = false;
+        scheduled.set(false);
+        if (queued || !incomingEvents.isEmpty() || !incomingRequests.isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Moves the events and requests handed over by other threads into the processing queues
+     */
+    private void moveIncoming() {
+        for (Event event = incomingEvents.poll(); event != null; event = incomingEvents.poll()) {
+            eventsToProcess.add(event);
+        }
+        for (Request request = incomingRequests.poll(); request != null; request = incomingRequests.poll()) {
+            requestsToProcess.add(request);
+        }
+    }
+
+    /**
+     * Drops the queued items the admission controller asked for, the ones with the earliest
+     * time stamps of their class. Asks that find nothing of their class queued are dropped too.
+     */
+    private void shedQueued() {
+        if (shedPending.get() == 0) {
+            return;
+        }
+        for (AdmissionController.TrafficClass trafficClass : AdmissionController.TrafficClass.values()) {
+            int debt = shedDebt.getAndSet(trafficClass.ordinal(), 0);
+            if (debt == 0) {
+                continue;
+            }
+            shedPending.addAndGet(-debt);
+            int dropped;
+            if (trafficClass == AdmissionController.TrafficClass.ACTUATOR_EVENT
+                    || trafficClass == AdmissionController.TrafficClass.SENSOR_EVENT) {
+                dropped = dropOldest(eventsToProcess, EVENT_ORDER, event -> AdmissionController.TrafficClass.of(event) == trafficClass, debt);
+                for (int i = 0; i < dropped; i++) {
+                    eventLeftQueue();
                 }
-                //we have hit the max, run the event processing
-                runEvent(eventsToProcess.remove());
             } else {
-                //only the requestsToProcess queue has elements to process
-                //check if the request has hit their max wait time
-                assert this.requestsToProcess.peek() != null;
-                if (System.currentTimeMillis() - this.requestsToProcess.peek().getReceptionTime() < waitTime) {
-                    //we haven't hit the max, so skip over the rest of the code
-                    continue;
+                dropped = dropOldest(requestsToProcess, REQUEST_ORDER, request -> AdmissionController.TrafficClass.of(request) == trafficClass, debt);
+                for (int i = 0; i < dropped; i++) {
+                    requestLeftQueue();
+                }
+            }
+            shedCounts.addAndGet(trafficClass.ordinal(), dropped);
+            trafficClass.shedCounter.add(dropped);
+        }
+    }
+
+    /**
+     * Removes the first items of a time-stamp-ordered queue that match, in one pass over the
+     * queue that keeps the oldest matches in a heap of at most count items, and one removeIf
+     * @param queue the queue
+     * @param order the order of the queue
+     * @param matches which items may be dropped
+     * @param count the max number of items to drop, > 0
+     * @return the number of items dropped
+     */
+    private static <T> int dropOldest(Queue<T> queue, Comparator<T> order, Predicate<T> matches, int count) {
+        //the newest of the oldest matches found so far is on top, it goes first when an older one is found
+        PriorityQueue<T> oldest = new PriorityQueue<>(Math.min(count, 64), order.reversed());
+        for (T item : queue) {
+            if (matches.test(item)) {
+                oldest.add(item);
+                if (oldest.size() > count) {
+                    oldest.poll();
                 }
-                //we have hit the max, run the command
-                runRequestCommand(requestsToProcess.remove());
             }
         }
+        if (oldest.isEmpty()) {
+            return 0;
+        }
+        Set<T> dropped = Collections.newSetFromMap(new IdentityHashMap<>());
+        dropped.addAll(oldest);
+        queue.removeIf(dropped::contains);
+        return dropped.size();
+    }
 
-        this.isRunning = false;
+    /**
+     * Gets when a queued event or request has waited the max wait time
+     * @param arrived when it arrived, in ms since the epoch, 0 if it was not set
+     * @return when it is due, in ms since the epoch
+     */
+    private long dueTime(long arrived) {
+        if (arrived <= 0) {
+            return 0;
+        }
+        //gives the max wait time in ms, with a little bit of wiggle room
+        return arrived + (long) Math.ceil(maxWaitTime * 1000 - 50);
+    }
+
+    /**
+     * Takes the next event off the processing queue
+     * @return the event, requires the queue is not empty
+     */
+    private Event dequeueEvent() {
+        eventLeftQueue();
+        return eventsToProcess.remove();
+    }
+
+    /**
+     * Counts an event taken off the processing queue, waking producers waiting for room
+     */
+    private void eventLeftQueue() {
+        EVENTS_QUEUED.decrement();
+        queuedEvents.decrementAndGet();
+        if (ingestWaiters.get() > 0) {
+            synchronized (capacityLock) {
+                capacityLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Takes the next request off the processing queue
+     * @return the request, requires the queue is not empty
+     */
+    private Request dequeueRequest() {
+        requestLeftQueue();
+        return requestsToProcess.remove();
+    }
+
+    /**
+     * Counts a request taken off the processing queue
+     */
+    private void requestLeftQueue() {
+        REQUESTS_QUEUED.decrement();
+        queuedRequests.decrementAndGet();
     }
 
     /**
@@ -495,23 +1436,284 @@ public class Server {
      * satisfies the filter.
      * @param event the event to be processed, requires event must not be null
      */
-    private void runEvent(Event event) {
-        System.out.println("Event processed");
+    void runEvent(Event event) {
+        RunEventJfrEvent jfr = new RunEventJfrEvent();
+        jfr.begin();
+        double lateness = Math.max(0, this.recentTimestamp - event.getTimeStamp());
+        long waitTime = event.getTimeArrived() > 0 ? System.currentTimeMillis() - event.getTimeArrived() : 0;
+
+        EVENT_LOG.sampled(Level.INFO, "Event processed");
+        if (event.getTimeArrived() > 0) {
+            EVENT_WAIT.record(waitTime);
+        }
         //check if this event has a time stamp earlier than the previous one
         if(event.getTimeStamp() < this.recentTimestamp) {
             //the event came earlier, we need to reprocess
+            EVENTS_REPROCESSED.increment();
             reprocessEvent(event);
         } else {
+            EVENTS_RUN.increment();
             //check if there is a filter
             if (this.filter != null) {
                 //logging functionality
+                FILTER_CHECKS.increment();
                 if (this.filter.satisfies(event)) {
+                    FILTER_MATCHES.increment();
                     loggedEvents.add(event);
                 }
             }
             this.allEvents.add(event);
+            countEvent(event);
+            rollups.add(event);
+            if (event instanceof ActuatorEvent) {
+                actuatorRegistry.recordEvent(event);
+            }
         }
+        sealIfFull();
         this.recentTimestamp = event.getTimeStamp();
+        if (event.getTimeStamp() > this.latestTimestamp) {
+            this.latestTimestamp = event.getTimeStamp();
+        }
+        trimHeapEvents();
+        this.heapEventCount = allEvents.size();
+
+        jfr.end();
+        if (jfr.shouldCommit()) {
+            jfr.clientId = event.getClientId();
+            jfr.entityId = event.getEntityId();
+            jfr.lateness = lateness;
+            jfr.waitTime = waitTime;
+            jfr.commit();
+        }
+
+        HeavyHitters hitters = this.heavyHitters;
+        HyperLogLog distinct = this.distinctEntities;
+        if (hitters != null && distinct != null) {
+            hitters.add(event.getEntityId());
+            distinct.add(event.getEntityId());
+            forgetEvictedEntities();
+        }
+
+        for (EventListener listener : eventListeners) {
+            listener.eventProcessed(event);
+        }
+        snapshotIfDue();
+    }
+
+    /**
+     * Adds a stored event to the per-entity counts
+     * @param event the event just stored
+     */
+    private void countEvent(Event event) {
+        entityEventCounts.merge(event.getEntityId(), 1, Integer::sum);
+    }
+
+    /**
+     * Takes evicted events out of the per-entity counts and the heavy hitters, an entity with
+     * none left is forgotten
+     * @param entityId the id of the entity
+     * @param count the number of its events evicted
+     */
+    private void uncountEvents(int entityId, int count) {
+        Integer left = entityEventCounts.computeIfPresent(entityId, (id, current) -> current > count ? current - count : null);
+        HeavyHitters hitters = this.heavyHitters;
+        if (hitters != null) {
+            hitters.remove(entityId, count);
+        }
+        if (left == null) {
+            forgottenEntities.incrementAndGet();
+        }
+    }
+
+    /**
+     * Rebuilds the distinct entity sketch from the per-entity counts once more than 1% of the
+     * entities were forgotten since it was last built, on the processing thread
+     */
+    private void forgetEvictedEntities() {
+        int forgotten = forgottenEntities.get();
+        if (forgotten == 0 || forgotten * 100L <= entityEventCounts.size()) {
+            return;
+        }
+        //entities forgotten while it is rebuilt count towards the next rebuild
+        forgottenEntities.addAndGet(-forgotten);
+        HyperLogLog rebuilt = new HyperLogLog(DISTINCT_ENTITY_PRECISION);
+        entityEventCounts.keySet().forEach(rebuilt::add);
+        this.distinctEntities = rebuilt;
+    }
+
+    /**
+     * Rebuilds the per-entity counts from the stored events
+     */
+    private void recountEntities() {
+        Map<Integer, Integer> counts = new HashMap<>();
+        SegmentedEventStore store = this.eventStore;
+        if (store != null) {
+            SegmentedEventStore.Contents contents = store.contents();
+            for (EventSegment segment : contents.segments) {
+                segment.countByEntity().forEach((id, count) -> counts.merge(id, count, Integer::sum));
+            }
+            for (List<Event> run : contents.unsealed) {
+                for (Event event : run) {
+                    counts.merge(event.getEntityId(), 1, Integer::sum);
+                }
+            }
+        }
+        for (Event event : allEvents) {
+            counts.merge(event.getEntityId(), 1, Integer::sum);
+        }
+        entityEventCounts.clear();
+        entityEventCounts.putAll(counts);
+    }
+
+    /**
+     * Runs an action on every stored event, sealed ones first
+     * @param action the action
+     */
+    private void forEachStoredEvent(Consumer<Event> action) {
+        SegmentedEventStore store = this.eventStore;
+        if (store != null) {
+            SegmentedEventStore.Contents contents = store.contents();
+            for (EventSegment segment : contents.segments) {
+                segment.events(0, segment.size()).forEach(action);
+            }
+            contents.unsealed.forEach(run -> run.forEach(action));
+        }
+        allEvents.forEach(action);
+    }
+
+    /**
+     * Evicts the oldest events on the heap past the retention policy, a few at a time. Only
+     * once nothing is sealed, sealed events are older and go first, on the retention task.
+     */
+    private void trimHeapEvents() {
+        RetentionPolicy policy = this.retention;
+        SegmentedEventStore store = this.eventStore;
+        if (policy == null || (store != null && store.size() > 0)) {
+            return;
+        }
+        for (int i = 0; i < RETENTION_TRIM_STEP && !allEvents.isEmpty(); i++) {
+            Event oldest = allEvents.get(0);
+            if (!policy.hasTooManyEvents(allEvents.size()) && !policy.isExpired(oldest.getTimeStamp(), latestTimestamp)) {
+                return;
+            }
+            allEvents.remove(0);
+            uncountEvents(oldest.getEntityId(), 1);
+            rollups.evictThrough(oldest.getTimeStamp());
+            EVENTS_EVICTED.increment();
+        }
+    }
+
+    /**
+     * Limits how much history the server keeps. The oldest sealed segments past the policy are
+     * evicted whole, by a background task every intervalMillis, so processing never waits for
+     * files to be deleted or archived. Once nothing is sealed, the oldest events on the heap are
+     * evicted on the processing thread, at most RETENTION_TRIM_STEP after each processed event.
+     * Evicted events are taken out of the per-entity counts, the rollups (see
+     * aggregateInTimeWindow) and the entity sketches (see enableEntitySketches). The events
+     * logged by the filter are kept until they are read.
+     *
+     * @param policy the limits, null to keep every event
+     * @param intervalMillis the time between checks of the sealed segments, in ms, > 0
+     */
+    public synchronized void enableRetention(RetentionPolicy policy, long intervalMillis) {
+        if (retentionTask != null) {
+            retentionTask.cancel(false);
+            retentionTask = null;
+        }
+        this.retention = policy;
+        if (policy != null) {
+            retentionTask = RETENTION_TASK.scheduleWithFixedDelay(this::enforceRetention,
+                    intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Gets the retention policy of the server
+     * @return the policy, null if the server keeps every event
+     */
+    public RetentionPolicy getRetentionPolicy() {
+        return retention;
+    }
+
+    /**
+     * Evicts the oldest sealed segments while the server is past its retention policy, the
+     * work of the retention task. A segment is only evicted whole, and for its age only once
+     * every event in it is too old.
+     *
+     * @return the number of events evicted
+     */
+    long enforceRetention() {
+        RetentionPolicy policy = this.retention;
+        SegmentedEventStore store = this.eventStore;
+        if (policy == null || store == null) {
+            return 0;
+        }
+        long evicted = 0;
+        EventSegment oldest;
+        while ((oldest = store.oldest()) != null
+                && (policy.isExpired(oldest.getMaxTimeStamp(), latestTimestamp)
+                    || policy.hasTooManyEvents(getEventCount())
+                    || policy.hasTooManyBytes(store.getByteSize()))) {
+            //decoded before taking the lock, so a snapshot never waits on it
+            Map<Integer, Integer> counts = oldest.countByEntity();
+            synchronized (retentionLock) {
+                if (!store.remove(oldest)) {
+                    continue;
+                }
+                counts.forEach(this::uncountEvents);
+                rollups.evictThrough(oldest.getMaxTimeStamp());
+            }
+            evicted += oldest.size();
+            EVENTS_EVICTED.add(oldest.size());
+            SEGMENTS_EVICTED.increment();
+            archiveSegment(oldest, policy.getArchiveDirectory());
+        }
+        return evicted;
+    }
+
+    /**
+     * Moves an evicted segment to the archive directory, or deletes it if there is none
+     * @param segment the evicted segment
+     * @param archiveDirectory the archive directory, null to delete the segment
+     */
+    private static void archiveSegment(EventSegment segment, Path archiveDirectory) {
+        try {
+            if (archiveDirectory == null) {
+                segment.delete();
+                return;
+            }
+            Files.createDirectories(archiveDirectory);
+            Path target = archiveDirectory.resolve(segment.getFile().getFileName());
+            if (Files.exists(target)) {
+                //segment numbers start over when a store is created, keep the archived one
+                target = archiveDirectory.resolve(System.currentTimeMillis() + "-" + segment.getFile().getFileName());
+            }
+            Files.move(segment.getFile(), target);
+        } catch (IOException e) {
+            System.out.println("ERROR evicting segment " + segment.getFile() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Hands the events on the heap to the store once there are enough of them, and starts a
+     * new list for the next ones. The store seals them on its own thread, so processing does
+     * not wait for the segment to be encoded and written. Once a segment could not be written
+     * the server goes back to keeping every new event on the heap.
+     */
+    private void sealIfFull() {
+        SegmentedEventStore store = this.eventStore;
+        if (store == null || sealingFailed || allEvents.size() < store.getSegmentSize()) {
+            return;
+        }
+        if (store.hasFailed()) {
+            //the store printed the error, the events it could not seal stay readable in it
+            this.sealingFailed = true;
+            return;
+        }
+        //uncounted before the store counts them, so other threads never count them twice
+        this.heapEventCount = 0;
+        store.sealLater(allEvents);
+        this.allEvents = new ChunkedList<>();
     }
 
     /**
@@ -523,16 +1725,18 @@ public class Server {
         List<Event> badEvents = new ArrayList<>();
         double timestamp = event.getTimeStamp();
 
-        for(int k = this.allEvents.size() - 1; k >= 0; k--) {
+        int k = this.allEvents.size() - 1;
+        for(; k >= 0; k--) {
             //start at the end of the array and search until we get to an event with a timestamp that is
             //less than the timestamp provided
             if(this.allEvents.get(k).getTimeStamp() < timestamp) {
                 //the event occurred after this event
-                allEvents.add(k+1, event);
                 break;
             }
             badEvents.add(this.allEvents.get(k));
         }
+        //k is -1 if the event is earlier than every stored event
+        allEvents.add(k+1, event);
 
         return badEvents;
     }
@@ -544,15 +1748,27 @@ public class Server {
      * @param event the event that has caused the reprocessing, requires the event is not null
      */
     private void reprocessEvent(Event event) {
+        ReprocessEventJfrEvent jfr = new ReprocessEventJfrEvent();
+        jfr.begin();
+
         //destroys instances of the bad events
         List<Event> badEvents = destroyBadEvents(event);
+        countEvent(event);
+        //a late event goes to the buckets of its own time stamp, the later buckets are unaffected
+        rollups.add(event);
+
+        if (event instanceof ActuatorEvent) {
+            //a late event does not hold the actuator's current state, but it did send it
+            actuatorRegistry.recordLateEvent(event);
+        }
 
         //check if any logging needs to be updated
         if (filter != null) {
             int size = loggedEvents.size() - badEvents.size();
-            boolean logged = true;
+            //more events displaced than logged, so some displaced event was not logged
+            boolean logged = size >= 0;
             int i = 0;
-            for (int k = loggedEvents.size() - 1; k >= size; k--) {
+            for (int k = loggedEvents.size() - 1; logged && k >= size; k--) {
                 if (loggedEvents.get(k) != badEvents.get(i)) {
                     logged = false;
                 }
@@ -561,29 +1777,22 @@ public class Server {
 
             if (logged) {
                 //add in the new event at the correct spot in the array
+                FILTER_CHECKS.increment();
                 if (this.filter.satisfies(event)) {
+                    FILTER_MATCHES.increment();
                     loggedEvents.add(size, event);
                 }
             }
         }
-    }
 
-    /**
-     * Sorts the events in the event processing queue based off their timestamps in ascending order
-     */
-    private void sortEvents() {
-        this.eventsToProcess = this.eventsToProcess.stream()
-                .sorted(Comparator.comparingDouble(Event::getTimeStamp))
-                .collect(Collectors.toCollection(LinkedList::new));
-    }
-
-    /**
-     * Sorts the requests in the request processing queue based off their timestamps in ascending order
-     */
-    private void sortRequests() {
-        this.requestsToProcess = this.requestsToProcess.stream()
-                .sorted(Comparator.comparingDouble(Request::getTimeStamp))
-                .collect(Collectors.toCollection(LinkedList::new));
+        jfr.end();
+        if (jfr.shouldCommit()) {
+            jfr.clientId = event.getClientId();
+            jfr.entityId = event.getEntityId();
+            jfr.lateness = this.recentTimestamp - event.getTimeStamp();
+            jfr.displacedEvents = badEvents.size();
+            jfr.commit();
+        }
     }
 
     /** deserializeFilter
@@ -641,35 +1850,18 @@ public class Server {
         return filters;
     }
 
-    /** deserializeActuator
-     * This method takes a string representation of an actuator and returns the corresponding Actuator object
-     * @param actuatorString the string representation of the actuator
-     * @return the Actuator object
+    /**
+     * Resolves the actuator named in a control request to its id, registering it if the request
+     * carries the whole actuator (Actuator.toString()) instead of only its id
+     * @param actuatorData the id of the actuator, or its string representation
+     * @return the id of the actuator
      */
-    private Actuator deserializeActuator(String actuatorString){
-        String actuatorPattern = "Actuator\\{getId=(\\d+),ClientId=(\\d+),EntityType=(.*),IP=(.*),ServerPort=(\\d+),EntityPort=(\\d+)}";
-
-        // Match the input against the pattern
-        Matcher actuatorMatcher = Pattern.compile(actuatorPattern).matcher(actuatorString);
-
-        if (actuatorMatcher.matches()) {
-            // Extract values and reconstruct the object for Actuator
-            int id = Integer.parseInt(actuatorMatcher.group(1));
-            int clientId = Integer.parseInt(actuatorMatcher.group(2));
-            String type = actuatorMatcher.group(3);
-            String ip = actuatorMatcher.group(4);
-            int serverPort = Integer.parseInt(actuatorMatcher.group(5));
-            int entityPort = Integer.parseInt(actuatorMatcher.group(6));
-
-            Actuator actuator = new Actuator(id, clientId, type, false, ip, entityPort);
-            actuator.createServerSocket(serverPort);
-
-            return actuator;
-        } else {
-            // Handle the case where the input string doesn't match the expected pattern
-            throw new IllegalArgumentException("Invalid input format for Actuator");
+    private int resolveActuatorId(String actuatorData) {
+        String trimmed = actuatorData.trim();
+        if (trimmed.matches("\\d+")) {
+            return Integer.parseInt(trimmed);
         }
-
+        return actuatorRegistry.register(trimmed).getId();
     }
 
     /** deserializeTimeWindow
@@ -700,7 +1892,15 @@ public class Server {
      * @param request the request to run
      */
     private void runRequestCommand(Request request) {
-        System.out.println("Request processed");
+        RunRequestJfrEvent jfr = new RunRequestJfrEvent();
+        jfr.begin();
+        long waitTime = request.getReceptionTime() > 0 ? System.currentTimeMillis() - request.getReceptionTime() : 0;
+
+        REQUEST_LOG.sampled(Level.INFO, "Request processed");
+        REQUESTS_RUN.increment();
+        if (request.getReceptionTime() > 0) {
+            REQUEST_WAIT.record(waitTime);
+        }
         String data = request.getRequestData();
         switch(request.getRequestCommand()){
             case CONFIG_UPDATE_MAX_WAIT_TIME:
@@ -709,37 +1909,41 @@ public class Server {
                 break;
 
 
-            case CONTROL_SET_ACTUATOR_STATE: //Assume that we need to have data = "Filter.toString()" + "Actuator.toString()
+            case CONFIG_UPDATE_COMMAND_COALESCING_WINDOW:
+                updateCommandCoalescingWindow(Long.parseLong(data.trim()));
+                break;
+
+            case CONFIG_REGISTER_ACTUATOR: //data = "Actuator.toString()"
+                actuatorRegistry.register(data);
+                break;
+
+            case CONTROL_SET_ACTUATOR_STATE: //data = "Filter.toString()" + "," + actuator id (or "Actuator.toString()")
 
-                Pattern patternR = Pattern.compile("(.+),(.+)");
-                Matcher matcherR = patternR.matcher(data);
+                Matcher matcherR = CONTROL_DATA_PATTERN.matcher(data);
 
-                if (matcherR.find()) {
+                if (matcherR.matches()) {
 
                     Filter filter = deserializeFilter(matcherR.group(1));
-                    Actuator actuator = deserializeActuator(matcherR.group(2));
+                    int actuatorId = resolveActuatorId(matcherR.group(2));
 
-                    assert actuator != null;
                     assert filter != null;
 
-                    setActuatorStateIf(filter, actuator);
+                    setActuatorStateIf(filter, actuatorId);
                 }
 
                 break;
 
             case CONTROL_TOGGLE_ACTUATOR_STATE:
 
-                Pattern pattern2 = Pattern.compile("(.+),(.+)");
-                Matcher matcher2 = pattern2.matcher(data);
+                Matcher matcher2 = CONTROL_DATA_PATTERN.matcher(data);
 
-                if (matcher2.find()) {
+                if (matcher2.matches()) {
 
                     Filter filter = deserializeFilter(matcher2.group(1));
-                    Actuator actuator = deserializeActuator(matcher2.group(2));
+                    int actuatorId = resolveActuatorId(matcher2.group(2));
 
-                    assert actuator != null;
                     assert filter != null;
-                    toggleActuatorStateIf(filter, actuator);
+                    toggleActuatorStateIf(filter, actuatorId);
                 }
 
                 break;
@@ -779,6 +1983,33 @@ public class Server {
             case ANALYSIS_GET_MOST_ACTIVE_ENTITY:
                 mostActiveEntity();
 
+                break;
+            case ANALYSIS_GET_AGGREGATE_IN_WINDOW: //data = entity id + "," + "TimeWindow.toString()"
+                Matcher matcherA = AGGREGATE_DATA_PATTERN.matcher(data);
+                if (matcherA.matches()) {
+                    aggregateInTimeWindow(Integer.parseInt(matcherA.group(1)), deserializeTimeWindow(matcherA.group(2)));
+                }
+                break;
+            case ANALYSIS_GET_QUANTILE_IN_WINDOW: //data = entity id + "," + quantile + "," + "TimeWindow.toString()"
+                Matcher matcherQ = QUANTILE_DATA_PATTERN.matcher(data);
+                if (matcherQ.matches()) {
+                    try {
+                        quantileInTimeWindow(Integer.parseInt(matcherQ.group(1)), Double.parseDouble(matcherQ.group(2).trim()),
+                                deserializeTimeWindow(matcherQ.group(3)));
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("ERROR invalid quantile request: " + data);
+                    }
+                }
+                break;
+            case ANALYSIS_GET_HEAVY_HITTERS: //data = the number of entities, or "all" (see MessageHandlerThread)
+                try {
+                    topEntities(data.isBlank() || data.trim().equals("all") ? HEAVY_HITTER_CAPACITY : Integer.parseInt(data.trim()));
+                } catch (NumberFormatException e) {
+                    System.out.println("ERROR invalid heavy hitters request: " + data);
+                }
+                break;
+            case ANALYSIS_GET_DISTINCT_ENTITY_COUNT:
+                distinctEntityCount();
                 break;
             case PREDICT_NEXT_N_TIMESTAMPS:
                 Pattern pattern5 = Pattern.compile("(\\d), (\\d)");
@@ -804,6 +2035,15 @@ public class Server {
 
 
         }
+
+        jfr.end();
+        if (jfr.shouldCommit()) {
+            jfr.clientId = client == null ? -1 : client.getClientId();
+            jfr.command = request.getRequestCommand().toString();
+            jfr.waitTime = waitTime;
+            jfr.commit();
+        }
+        snapshotIfDue();
     }
 
     /**
@@ -815,9 +2055,19 @@ public class Server {
     public boolean equals(Object obj) {
         if (obj instanceof Server) {
             Server other = (Server) obj;
-            return this.client.equals(other.client);
+            //a server without a client is only equal to itself
+            return this.client == null ? this == other : this.client.equals(other.client);
         }
         return false;
     }
 
+    /**
+     * Gets the hash code of the server, equal servers have the same client id
+     * @return the hash code
+     */
+    @Override
+    public int hashCode() {
+        return client == null ? System.identityHashCode(this) : Integer.hashCode(client.getClientId());
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,273 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.Event;
+import cpen221.mp3.storage.EventCodec;
+import cpen221.mp3.storage.EventSegment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The state of a server at one point of its processing, written to and read from a compact
+ * binary file so a restarted server does not start empty.
+ *
+ * A snapshot is taken on the processing thread between two events, by taking copy-on-write
+ * snapshots of the server's lists and rollups, and written on another thread. Sealed segments
+ * are immutable, so they are kept by file name rather than copied, and the events still being
+ * sealed are written like stored events and sealed again on restore. The write-ahead log lsn is the last one whose event
+ * is either processed or in the snapshot's pending events, restoring replays the log after it.
+ *
+ * The file is: MAGIC (4 bytes), VERSION (4), wal lsn (8), max wait time (8), latest time stamp (8),
+ * the filter (a presence byte, then Filter.writeTo), the segment store (a presence byte, then its
+ * directory, segment size and segment file names), the events being sealed (a count of runs,
+ * then each run like the stored events), then the stored, logged and pending events (each a
+ * count, then every event as a length and its EventCodec bytes, see writeLoggedEvents for
+ * logged events), the per-entity counts (a count, then id and count pairs), the rollups
+ * (see TimeRollups.writeTo), and last a CRC32C of everything before it.
+ */
+//REP INVARIANTS: sealingEvents, activeEvents, loggedEvents, pendingEvents, entityEventCounts, rollups != null,
+//                segmentDirectory == null iff segmentFiles == null, sealingEvents is empty if
+//                segmentDirectory == null, no run in sealingEvents is empty
+class ServerSnapshot {
+    static final int MAGIC = 0x534E4150; //"SNAP"
+    static final int VERSION = 5;
+
+    long walLsn;
+    double maxWaitTime;
+    double recentTimestamp;
+    Filter filter;
+    String segmentDirectory;
+    int segmentSize;
+    List<String> segmentFiles;
+    List<List<Event>> sealingEvents = new ArrayList<>();
+    List<Event> activeEvents = new ArrayList<>();
+    List<Event> loggedEvents = new ArrayList<>();
+    List<Event> pendingEvents = new ArrayList<>();
+    Map<Integer, Integer> entityEventCounts = new HashMap<>();
+    TimeRollups rollups = new TimeRollups();
+
+    /**
+     * Writes the snapshot next to the file and moves it over the file, so a crash while writing
+     * leaves the previous snapshot in place
+     * @param file the snapshot file to replace
+     * @throws IOException if the snapshot cannot be written
+     */
+    void write(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32C crc = new CRC32C();
+        try (FileOutputStream stream = new FileOutputStream(temporary.toFile());
+             CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(stream, 1 << 16), crc)) {
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(walLsn);
+            out.writeDouble(maxWaitTime);
+            out.writeDouble(recentTimestamp);
+
+            out.writeBoolean(filter != null);
+            if (filter != null) {
+                filter.writeTo(out);
+            }
+
+            out.writeBoolean(segmentDirectory != null);
+            if (segmentDirectory != null) {
+                out.writeUTF(segmentDirectory);
+                out.writeInt(segmentSize);
+                out.writeInt(segmentFiles.size());
+                for (String name : segmentFiles) {
+                    out.writeUTF(name);
+                }
+            }
+
+            out.writeInt(sealingEvents.size());
+            for (List<Event> run : sealingEvents) {
+                writeEvents(out, run);
+            }
+            writeEvents(out, activeEvents);
+            writeLoggedEvents(out);
+            writeEvents(out, pendingEvents);
+
+            out.writeInt(entityEventCounts.size());
+            for (Map.Entry<Integer, Integer> entry : entityEventCounts.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+            rollups.writeTo(out);
+
+            out.flush();
+            int checksum = (int) crc.getValue();
+            out.writeInt(checksum);
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        //the write-ahead log drops what the snapshot holds, the snapshot must survive a crash first
+        EventSegment.syncDirectory(file.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Reads a snapshot
+     * @param file the snapshot file
+     * @return the snapshot
+     * @throws IOException if the file cannot be read, is not a snapshot or fails its CRC
+     */
+    static ServerSnapshot read(Path file) throws IOException {
+        ServerSnapshot snapshot = new ServerSnapshot();
+        CRC32C crc = new CRC32C();
+        try (InputStream stream = Files.newInputStream(file);
+             CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(stream, 1 << 16), crc)) {
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a server snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + " is a version " + version + " snapshot, only version " + VERSION + " can be read");
+            }
+            snapshot.walLsn = in.readLong();
+            snapshot.maxWaitTime = in.readDouble();
+            snapshot.recentTimestamp = in.readDouble();
+
+            if (in.readBoolean()) {
+                snapshot.filter = Filter.readFrom(in);
+            }
+
+            if (in.readBoolean()) {
+                snapshot.segmentDirectory = in.readUTF();
+                snapshot.segmentSize = in.readInt();
+                int count = in.readInt();
+                snapshot.segmentFiles = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    snapshot.segmentFiles.add(in.readUTF());
+                }
+            }
+
+            int runs = in.readInt();
+            if (runs < 0 || (runs > 0 && snapshot.segmentDirectory == null)) {
+                throw new IOException(file + " holds events being sealed without a segment store");
+            }
+            for (int i = 0; i < runs; i++) {
+                List<Event> run = readEvents(in);
+                if (run.isEmpty()) {
+                    throw new IOException(file + " holds an empty run of events being sealed");
+                }
+                snapshot.sealingEvents.add(run);
+            }
+            snapshot.activeEvents = readEvents(in);
+            snapshot.readLoggedEvents(in);
+            snapshot.pendingEvents = readEvents(in);
+
+            int entities = in.readInt();
+            snapshot.entityEventCounts = new HashMap<>(Math.max(16, entities * 2));
+            for (int i = 0; i < entities; i++) {
+                snapshot.entityEventCounts.put(in.readInt(), in.readInt());
+            }
+            snapshot.rollups = TimeRollups.readFrom(in);
+
+            int expected = (int) crc.getValue();
+            if (in.readInt() != expected) {
+                throw new IOException(file + " is corrupt, its CRC does not match");
+            }
+        } catch (IllegalArgumentException | java.nio.BufferUnderflowException e) {
+            throw new IOException(file + " holds a malformed event", e);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Writes a count, then every event as its length and encoded bytes
+     */
+    private static void writeEvents(DataOutputStream out, List<Event> events) throws IOException {
+        out.writeInt(events.size());
+        for (Event event : events) {
+            writeEvent(out, event);
+        }
+    }
+
+    /**
+     * Reads events written by writeEvents
+     */
+    private static List<Event> readEvents(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Event> events = new ArrayList<>(Math.max(0, Math.min(count, 1 << 16)));
+        for (int i = 0; i < count; i++) {
+            events.add(readEvent(in));
+        }
+        return events;
+    }
+
+    /**
+     * Writes the logged events. The server tells whether an event is logged by identity, so a
+     * logged event that is also stored is written as its position among the stored events
+     * rather than as a copy, and -1 followed by the event otherwise
+     */
+    private void writeLoggedEvents(DataOutputStream out) throws IOException {
+        Map<Event, Integer> positions = new IdentityHashMap<>();
+        int position = 0;
+        for (Event event : activeEvents) {
+            positions.put(event, position++);
+        }
+        out.writeInt(loggedEvents.size());
+        for (Event event : loggedEvents) {
+            Integer stored = positions.get(event);
+            out.writeInt(stored == null ? -1 : stored);
+            if (stored == null) {
+                writeEvent(out, event);
+            }
+        }
+    }
+
+    /**
+     * Reads the logged events written by writeLoggedEvents, after the stored events are read
+     */
+    private void readLoggedEvents(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        loggedEvents = new ArrayList<>(Math.max(0, Math.min(count, 1 << 16)));
+        for (int i = 0; i < count; i++) {
+            int position = in.readInt();
+            if (position >= activeEvents.size()) {
+                throw new IOException("logged event " + position + " is not a stored event");
+            }
+            loggedEvents.add(position < 0 ? readEvent(in) : activeEvents.get(position));
+        }
+    }
+
+    /**
+     * Writes one event as its length and encoded bytes
+     */
+    private static void writeEvent(DataOutputStream out, Event event) throws IOException {
+        byte[] encoded = EventCodec.encode(event);
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    /**
+     * Reads one event written by writeEvent
+     */
+    private static Event readEvent(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > (1 << 20)) {
+            throw new IOException("malformed event length " + length);
+        }
+        byte[] encoded = new byte[length];
+        in.readFully(encoded);
+        return EventCodec.decode(ByteBuffer.wrap(encoded));
+    }
+}
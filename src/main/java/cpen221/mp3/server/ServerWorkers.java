@@ -0,0 +1,247 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.metrics.Counter;
+import cpen221.mp3.metrics.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed set of worker threads, by default one per core, that run the queued events and
+ * requests of servers. Each server is hash-partitioned onto a worker by its client id, and
+ * only ever has one worker at a time, so the processing of a client is single-threaded while
+ * clients on different workers are processed in parallel.
+ *
+ * A server with new work is handed to its worker through a concurrent queue. The worker serves
+ * its servers by deficit round robin: each round a server may run up to quantum * its client's
+ * weight due items, and the part of that it could not use because of the quantum carries over
+ * to the next round. A client flooding events therefore gets its share of the worker, not all of
+ * it, and a client sending few events waits at most a round for its worker. Once nothing is due
+ * the worker parks until the earliest item that is not due yet, or until a server hands it new
+ * work; it never spins.
+ */
+//REP INVARIANTS: workers.length >= 1, quantum >= 1, every weight > 0
+public class ServerWorkers {
+    public static final int DEFAULT_QUANTUM = 32; //due items per round, for a weight of 1
+    public static final double DEFAULT_WEIGHT = 1;
+
+    private static final Counter WORKER_FAILURES = MetricsRegistry.shared().counter("server.worker_failures");
+    private static final Counter QUANTUM_EXHAUSTED = MetricsRegistry.shared().counter("server.worker_quantum_exhausted");
+
+    private static ServerWorkers shared = null;
+
+    /**
+     * A server with work queued, and how many items it is owed from earlier rounds
+     */
+    private static class Slot {
+        final Server server;
+        double deficit = 0;
+
+        Slot(Server server) {
+            this.server = server;
+        }
+    }
+
+    /**
+     * One worker thread and the servers it processes
+     */
+    //REP INVARIANTS: active is only used by thread, a server is in active at most once
+    private class Worker implements Runnable {
+        //servers handed over by other threads, moved to active by the worker
+        private final Queue<Server> scheduled = new ConcurrentLinkedQueue<>();
+        private final List<Slot> active = new ArrayList<>();
+        private final Thread thread;
+
+        Worker(String name) {
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        void schedule(Server server) {
+            scheduled.add(server);
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                for (Server server = scheduled.poll(); server != null; server = scheduled.poll()) {
+                    active.add(new Slot(server));
+                }
+                //one round
+                long nextDue = Long.MAX_VALUE;
+                Iterator<Slot> iterator = active.iterator();
+                while (iterator.hasNext()) {
+                    Slot slot = iterator.next();
+                    slot.deficit += quantum * getWeight(slot.server.getClientId());
+                    int budget = (int) slot.deficit;
+                    long due;
+                    try {
+                        due = slot.server.processDue(budget);
+                    } catch (Throwable e) {
+                        //the failing event or request is already off the queue, the server leaves
+                        //the worker and is handed back if it has more, the other servers carry on
+                        WORKER_FAILURES.increment();
+                        System.out.println("ERROR processing events of client " + slot.server.getClientId() + ": " + e);
+                        iterator.remove();
+                        slot.server.leaveWorker();
+                        continue;
+                    }
+                    if (due == 0) {
+                        //more is due than the budget allowed, it is owed what is left over
+                        QUANTUM_EXHAUSTED.increment();
+                        slot.deficit -= budget;
+                    } else {
+                        //nothing due is left, a server does not save up for later bursts
+                        slot.deficit = 0;
+                    }
+                    if (due < 0) {
+                        iterator.remove();
+                    } else {
+                        nextDue = Math.min(nextDue, due);
+                    }
+                }
+                if (!scheduled.isEmpty()) {
+                    continue;
+                }
+                if (nextDue == Long.MAX_VALUE) {
+                    //nothing queued, wait for a server to hand over work
+                    LockSupport.park(this);
+                } else {
+                    long wait = nextDue - System.currentTimeMillis();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(this, wait * 1_000_000);
+                    }
+                }
+            }
+        }
+    }
+
+    private final Worker[] workers;
+    private final int quantum;
+    //the weights of clients that do not have the default weight, by client id
+    private final ConcurrentMap<Integer, Double> weights = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a worker per core and starts them
+     */
+    public ServerWorkers() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates workers and starts them
+     * @param threads the number of workers, must be > 0
+     */
+    public ServerWorkers(int threads) {
+        this(threads, DEFAULT_QUANTUM);
+    }
+
+    /**
+     * Creates workers and starts them
+     * @param threads the number of workers, must be > 0
+     * @param quantum the number of due items a server of weight 1 may run per round, must be > 0
+     */
+    public ServerWorkers(int threads, int quantum) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Worker count must be positive");
+        }
+        if (quantum <= 0) {
+            throw new IllegalArgumentException("Quantum must be positive");
+        }
+        this.quantum = quantum;
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker("server-worker-" + i);
+            workers[i].thread.start();
+        }
+    }
+
+    /**
+     * Gets the workers shared by all servers that were not given their own
+     * @return the shared workers, one per core, created on first use
+     */
+    public static synchronized ServerWorkers shared() {
+        if (shared == null) {
+            shared = new ServerWorkers();
+        }
+        return shared;
+    }
+
+    /**
+     * Gets the number of workers
+     * @return the number of worker threads
+     */
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    /**
+     * Sets the share of its worker a client gets when the worker is overloaded, relative to
+     * the other clients on the worker. Takes effect from the next round.
+     * @param clientId the id of the client
+     * @param weight the weight, must be > 0, DEFAULT_WEIGHT is an equal share
+     */
+    public void setWeight(int clientId, double weight) {
+        if (!(weight > 0) || Double.isInfinite(weight)) {
+            throw new IllegalArgumentException("Weight must be positive");
+        }
+        if (weight == DEFAULT_WEIGHT) {
+            weights.remove(clientId);
+        } else {
+            weights.put(clientId, weight);
+        }
+    }
+
+    /**
+     * Gets the weight of a client
+     * @param clientId the id of the client
+     * @return the weight set for it, DEFAULT_WEIGHT if none was
+     */
+    public double getWeight(int clientId) {
+        return weights.getOrDefault(clientId, DEFAULT_WEIGHT);
+    }
+
+    /**
+     * Gets the number of due items a server of weight 1 may run per round
+     * @return the quantum
+     */
+    public int getQuantum() {
+        return quantum;
+    }
+
+    /**
+     * Gets the worker a server is processed on
+     * @param server the server
+     * @return the index of its worker, the same for every server of a client
+     */
+    public int workerOf(Server server) {
+        //spread consecutive client ids over the workers
+        long hash = server.partitionKey() * 0x9E3779B97F4A7C15L;
+        return (int) Math.floorMod(hash ^ (hash >>> 32), (long) workers.length);
+    }
+
+    /**
+     * Wakes the worker of a server that is already with it, so it runs the server before the
+     * next item is due
+     * @param server the server
+     */
+    void wake(Server server) {
+        LockSupport.unpark(workers[workerOf(server)].thread);
+    }
+
+    /**
+     * Hands a server with new work to its worker, requires the server is not already with a
+     * worker (see Server.schedule)
+     * @param server the server
+     */
+    void schedule(Server server) {
+        workers[workerOf(server)].schedule(server);
+    }
+}
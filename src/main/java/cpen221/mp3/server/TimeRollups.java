@@ -0,0 +1,514 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pre-aggregated values of each entity over time, at several resolutions: the count, min, max,
+ * sum and sum of squares of the values in every 1 s, 1 min and 1 h bucket that has any, and a
+ * KllSketch of them for quantiles.
+ *
+ * Events are added as the server stores them, a late event simply goes to the buckets of its
+ * time stamp. Each level only keeps the buckets within its span behind the latest event, so
+ * an entity has at most 3600 + 10080 + 720 buckets however long the server runs. An aggregate
+ * over a window takes the coarsest buckets that fit in it, finer buckets at its edges, and the
+ * stored events for the parts of a second at its ends and for the parts whose buckets were
+ * dropped.
+ *
+ * The rollups cover the events the server keeps: once events are evicted (see evictThrough)
+ * an aggregate only covers the time stamps after the newest evicted one, so neither a bucket
+ * nor an edge of a window ever counts an evicted event.
+ */
+//REP INVARIANTS: entities != null, every entity has one Level per resolution,
+//                a bucket holds the values of the events of its entity in its time range
+class TimeRollups {
+    static final long[] RESOLUTIONS = {1, 60, 3600}; //in s, each a multiple of the one before
+    static final long[] SPANS = {3600, 7 * 24 * 3600, 30 * 24 * 3600}; //in s
+    private static final long PRUNE_INTERVAL = 60; //in s of event time
+
+    /**
+     * Reads the stored events of an entity, for what the buckets do not cover
+     */
+    interface StoredEvents {
+        /**
+         * Reads the stored events of an entity in a time range
+         * @param entityId the id of the entity
+         * @param startTime the start of the range, inclusive
+         * @param endTime the end of the range, inclusive
+         * @return the events of the entity in the range
+         */
+        List<Event> between(int entityId, double startTime, double endTime);
+    }
+
+    /**
+     * The values of one time range, mutable
+     */
+    //REP INVARIANTS: the sketch of a stored bucket is not null, it is null in a result that
+    //                only needs the aggregate
+    private static class Bucket {
+        long count = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        double sumOfSquares = 0;
+        final KllSketch sketch;
+        //the generation of the rollups the bucket was made in, see TimeRollups.copy
+        long generation = 0;
+
+        Bucket() {
+            this(true);
+        }
+
+        Bucket(boolean withSketch) {
+            this(withSketch ? new KllSketch() : null);
+        }
+
+        Bucket(KllSketch sketch) {
+            this.sketch = sketch;
+        }
+
+        void add(double value) {
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            sumOfSquares += value * value;
+            if (sketch != null) {
+                sketch.update(value);
+            }
+        }
+
+        void addAll(Bucket other) {
+            count += other.count;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sum += other.sum;
+            sumOfSquares += other.sumOfSquares;
+            if (sketch != null && other.sketch != null) {
+                sketch.merge(other.sketch);
+            }
+        }
+
+        Bucket copy() {
+            Bucket copy = new Bucket(sketch == null ? null : sketch.copy());
+            copy.count = count;
+            copy.min = min;
+            copy.max = max;
+            copy.sum = sum;
+            copy.sumOfSquares = sumOfSquares;
+            return copy;
+        }
+
+        Aggregate toAggregate() {
+            return count == 0 ? Aggregate.EMPTY : new Aggregate(count, min, max, sum, sumOfSquares);
+        }
+    }
+
+    /**
+     * The buckets of one entity at one resolution, keyed by start time / resolution
+     */
+    //REP INVARIANTS: buckets != null, every key >= firstKept
+    private static class Level {
+        final TreeMap<Long, Bucket> buckets;
+        //the buckets before this one were dropped
+        long firstKept = Long.MIN_VALUE;
+        //the generation of the rollups the level was made in, see TimeRollups.copy
+        final long generation;
+
+        Level(long generation) {
+            this(new TreeMap<>(), generation);
+        }
+
+        Level(TreeMap<Long, Bucket> buckets, long generation) {
+            this.buckets = buckets;
+            this.generation = generation;
+        }
+    }
+
+    private final Map<Integer, Level[]> entities = new HashMap<>();
+    private double latestTimeStamp = Double.NEGATIVE_INFINITY;
+    private long prunedAt = Long.MIN_VALUE;
+    //the newest time stamp evicted, aggregates only cover the time stamps after it
+    private double evictedThrough = Double.NEGATIVE_INFINITY;
+    //the whole second the buckets of every level were last dropped through
+    private long evictedAt = Long.MIN_VALUE;
+
+    //levels and buckets of an older generation may be shared with a copy, they are copied
+    //before they are changed
+    private long generation = 0;
+
+    /**
+     * Adds the value of a stored event to the buckets of its time stamp
+     * @param event the event
+     */
+    synchronized void add(Event event) {
+        Level[] levels = entities.computeIfAbsent(event.getEntityId(), id -> newLevels(generation));
+        double value = valueOf(event);
+        for (int i = 0; i < RESOLUTIONS.length; i++) {
+            long key = Math.floorDiv((long) Math.floor(event.getTimeStamp()), RESOLUTIONS[i]);
+            if (key >= levels[i].firstKept) {
+                writableBucket(writableLevel(levels, i), key).add(value);
+            }
+        }
+        if (event.getTimeStamp() > latestTimeStamp) {
+            latestTimeStamp = event.getTimeStamp();
+            long now = (long) Math.floor(latestTimeStamp);
+            if (prunedAt == Long.MIN_VALUE || now - prunedAt >= PRUNE_INTERVAL) {
+                prune(now);
+                prunedAt = now;
+            }
+        }
+    }
+
+    /**
+     * Aggregates the values of an entity in a time window
+     * @param entityId the id of the entity
+     * @param timeWindow the window, inclusive of its start and end
+     * @param stored the stored events, read for what the buckets do not cover
+     * @return the aggregate of the values in the window
+     */
+    synchronized Aggregate aggregate(int entityId, TimeWindow timeWindow, StoredEvents stored) {
+        Bucket result = new Bucket(false);
+        collectRetained(entityId, timeWindow, stored, result);
+        return result.toAggregate();
+    }
+
+    /**
+     * Estimates a quantile of the values of an entity in a time window, from the merged
+     * sketches of the same buckets an aggregate is built from
+     * @param entityId the id of the entity
+     * @param quantile the rank, as a fraction of the values in [0, 1]
+     * @param timeWindow the window, inclusive of its start and end
+     * @param stored the stored events, read for what the buckets do not cover
+     * @return the estimated value at that rank, NaN if there are no values in the window
+     */
+    synchronized double quantile(int entityId, double quantile, TimeWindow timeWindow, StoredEvents stored) {
+        if (!(quantile >= 0 && quantile <= 1)) {
+            throw new IllegalArgumentException("Quantile must be in [0, 1]");
+        }
+        Bucket result = new Bucket(true);
+        collectRetained(entityId, timeWindow, stored, result);
+        return result.sketch.getQuantile(quantile);
+    }
+
+    /**
+     * Adds the values of an entity in the retained part of a time window to a bucket
+     */
+    private void collectRetained(int entityId, TimeWindow timeWindow, StoredEvents stored, Bucket result) {
+        if (timeWindow.getEndTime() <= evictedThrough) {
+            return;
+        }
+        if (timeWindow.getStartTime() <= evictedThrough) {
+            timeWindow = new TimeWindow(Math.nextUp(evictedThrough), timeWindow.getEndTime());
+        }
+        collectWindow(entityId, timeWindow, stored, result);
+    }
+
+    /**
+     * Adds the values of an entity in a time window to a bucket
+     */
+    private void collectWindow(int entityId, TimeWindow timeWindow, StoredEvents stored, Bucket result) {
+        double startTime = timeWindow.getStartTime();
+        double endTime = timeWindow.getEndTime();
+        Level[] levels = entities.get(entityId);
+        if (levels == null) {
+            //the entity never sent an event
+            return;
+        }
+        long first = (long) Math.ceil(startTime);
+        long last = (long) Math.floor(endTime);
+        if (first >= last) {
+            addStored(entityId, startTime, endTime, true, stored, result);
+            return;
+        }
+        addStored(entityId, startTime, first, false, stored, result);
+        collect(levels, RESOLUTIONS.length - 1, first, last, entityId, stored, result);
+        addStored(entityId, last, endTime, true, stored, result);
+    }
+
+    /**
+     * Adds the values in whole seconds [from, to) to a bucket: the buckets of a level that fit,
+     * and finer levels (or the stored events, below the finest) for the rest
+     */
+    private void collect(Level[] levels, int level, long from, long to, int entityId, StoredEvents stored, Bucket result) {
+        if (from >= to) {
+            return;
+        }
+        long resolution = RESOLUTIONS[level];
+        long firstKey = Math.max(Math.floorDiv(from, resolution) + (Math.floorMod(from, resolution) == 0 ? 0 : 1),
+                levels[level].firstKept);
+        long lastKey = Math.floorDiv(to, resolution);
+        if (firstKey >= lastKey) {
+            collectFiner(levels, level, from, to, entityId, stored, result);
+            return;
+        }
+        collectFiner(levels, level, from, firstKey * resolution, entityId, stored, result);
+        for (Bucket bucket : levels[level].buckets.subMap(firstKey, lastKey).values()) {
+            result.addAll(bucket);
+        }
+        collectFiner(levels, level, lastKey * resolution, to, entityId, stored, result);
+    }
+
+    /**
+     * Adds the values in whole seconds [from, to) from the level below, or the stored events
+     */
+    private void collectFiner(Level[] levels, int level, long from, long to, int entityId, StoredEvents stored, Bucket result) {
+        if (from >= to) {
+            return;
+        }
+        if (level == 0) {
+            addStored(entityId, from, to, false, stored, result);
+        } else {
+            collect(levels, level - 1, from, to, entityId, stored, result);
+        }
+    }
+
+    /**
+     * Adds the values of the stored events of an entity in a time range to a bucket
+     * @param includeEnd true if the range includes its end time
+     */
+    private static void addStored(int entityId, double startTime, double endTime, boolean includeEnd,
+                                  StoredEvents stored, Bucket result) {
+        if (startTime > endTime || (!includeEnd && startTime == endTime)) {
+            return;
+        }
+        for (Event event : stored.between(entityId, startTime, endTime)) {
+            if (includeEnd || event.getTimeStamp() < endTime) {
+                result.add(valueOf(event));
+            }
+        }
+    }
+
+    /**
+     * Drops the buckets of every level that are past its span
+     * @param now the latest time stamp, in whole seconds
+     */
+    private void prune(long now) {
+        for (int i = 0; i < RESOLUTIONS.length; i++) {
+            dropBefore(i, Math.floorDiv(now - SPANS[i], RESOLUTIONS[i]));
+        }
+    }
+
+    /**
+     * Leaves evicted events out of the rollups: aggregates no longer cover the time stamps up to
+     * and including timeStamp, and the buckets of every level that end before it are dropped,
+     * at most once every PRUNE_INTERVAL of event time.
+     * @param timeStamp the newest time stamp evicted
+     */
+    synchronized void evictThrough(double timeStamp) {
+        if (!(timeStamp > evictedThrough)) {
+            return;
+        }
+        evictedThrough = timeStamp;
+        long evicted = (long) Math.floor(timeStamp);
+        if (evictedAt != Long.MIN_VALUE && evicted - evictedAt < PRUNE_INTERVAL) {
+            return;
+        }
+        evictedAt = evicted;
+        for (int i = 0; i < RESOLUTIONS.length; i++) {
+            //the bucket holding the evicted second is kept, the seconds after it are retained
+            dropBefore(i, Math.floorDiv(evicted, RESOLUTIONS[i]));
+        }
+    }
+
+    /**
+     * Drops the buckets of a level before a key, for every entity. An entity keeps its levels
+     * when they are empty, their first keys kept tell a query to read its older events from
+     * the stored events.
+     * @param i the index of the level
+     * @param firstKept the first key kept
+     */
+    private void dropBefore(int i, long firstKept) {
+        for (Level[] levels : entities.values()) {
+            if (firstKept > levels[i].firstKept) {
+                Level level = writableLevel(levels, i);
+                level.buckets.headMap(firstKept).clear();
+                level.firstKept = firstKept;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of buckets kept, over every entity and level
+     * @return the number of buckets
+     */
+    synchronized int bucketCount() {
+        int count = 0;
+        for (Level[] levels : entities.values()) {
+            for (Level level : levels) {
+                count += level.buckets.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copies the rollups, e.g. for a snapshot. The copy shares the levels and buckets, and
+     * whichever side changes one of them later copies it first, so copying takes time in the
+     * number of entities rather than buckets and neither side sees the other's changes.
+     * @return a copy
+     */
+    synchronized TimeRollups copy() {
+        //everything made so far is now shared
+        generation++;
+        TimeRollups copy = new TimeRollups();
+        copy.latestTimeStamp = latestTimeStamp;
+        copy.prunedAt = prunedAt;
+        copy.evictedThrough = evictedThrough;
+        copy.evictedAt = evictedAt;
+        copy.generation = generation;
+        for (Map.Entry<Integer, Level[]> entry : entities.entrySet()) {
+            copy.entities.put(entry.getKey(), entry.getValue().clone());
+        }
+        return copy;
+    }
+
+    /**
+     * Gets a level of an entity to change, copying it first if it may be shared
+     * @param levels the levels of the entity
+     * @param i the index of the level
+     * @return the level, of the current generation
+     */
+    private Level writableLevel(Level[] levels, int i) {
+        Level level = levels[i];
+        if (level.generation != generation) {
+            Level copy = new Level(new TreeMap<>(level.buckets), generation);
+            copy.firstKept = level.firstKept;
+            levels[i] = copy;
+            level = copy;
+        }
+        return level;
+    }
+
+    /**
+     * Gets a bucket of a level to change, creating it if there is none and copying it first if
+     * it may be shared
+     * @param level a level of the current generation
+     * @param key the key of the bucket
+     * @return the bucket, of the current generation
+     */
+    private Bucket writableBucket(Level level, long key) {
+        Bucket bucket = level.buckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket();
+        } else if (bucket.generation != generation) {
+            bucket = bucket.copy();
+        } else {
+            return bucket;
+        }
+        bucket.generation = generation;
+        level.buckets.put(key, bucket);
+        return bucket;
+    }
+
+    /**
+     * Writes the rollups: the latest time stamp (8 bytes), when they were last pruned (8), the
+     * newest evicted time stamp (8), when buckets were last dropped for it (8), the number of
+     * entities (4), then for each its id (4) and for each level the first key kept (8),
+     * the number of buckets (4) and each bucket as its key (8), count (8), min, max, sum and sum
+     * of squares (8 each) and its sketch (see KllSketch.writeTo)
+     * @param out where to write
+     * @throws IOException if out cannot be written
+     */
+    synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeDouble(latestTimeStamp);
+        out.writeLong(prunedAt);
+        out.writeDouble(evictedThrough);
+        out.writeLong(evictedAt);
+        out.writeInt(entities.size());
+        for (Map.Entry<Integer, Level[]> entry : entities.entrySet()) {
+            out.writeInt(entry.getKey());
+            for (Level level : entry.getValue()) {
+                out.writeLong(level.firstKept);
+                out.writeInt(level.buckets.size());
+                for (Map.Entry<Long, Bucket> bucket : level.buckets.entrySet()) {
+                    out.writeLong(bucket.getKey());
+                    out.writeLong(bucket.getValue().count);
+                    out.writeDouble(bucket.getValue().min);
+                    out.writeDouble(bucket.getValue().max);
+                    out.writeDouble(bucket.getValue().sum);
+                    out.writeDouble(bucket.getValue().sumOfSquares);
+                    bucket.getValue().sketch.writeTo(out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads rollups written by writeTo
+     * @param in where to read
+     * @return the rollups
+     * @throws IOException if in cannot be read or does not hold rollups
+     */
+    static TimeRollups readFrom(DataInput in) throws IOException {
+        TimeRollups rollups = new TimeRollups();
+        rollups.latestTimeStamp = in.readDouble();
+        rollups.prunedAt = in.readLong();
+        rollups.evictedThrough = in.readDouble();
+        rollups.evictedAt = in.readLong();
+        int entityCount = in.readInt();
+        if (entityCount < 0) {
+            throw new IOException("malformed rollups, " + entityCount + " entities");
+        }
+        for (int e = 0; e < entityCount; e++) {
+            int entityId = in.readInt();
+            Level[] levels = newLevels(0);
+            for (Level level : levels) {
+                level.firstKept = in.readLong();
+                int bucketCount = in.readInt();
+                if (bucketCount < 0) {
+                    throw new IOException("malformed rollups, " + bucketCount + " buckets");
+                }
+                for (int b = 0; b < bucketCount; b++) {
+                    long key = in.readLong();
+                    long count = in.readLong();
+                    double min = in.readDouble();
+                    double max = in.readDouble();
+                    double sum = in.readDouble();
+                    double sumOfSquares = in.readDouble();
+                    Bucket bucket = new Bucket(KllSketch.readFrom(in));
+                    bucket.count = count;
+                    bucket.min = min;
+                    bucket.max = max;
+                    bucket.sum = sum;
+                    bucket.sumOfSquares = sumOfSquares;
+                    level.buckets.put(key, bucket);
+                }
+            }
+            rollups.entities.put(entityId, levels);
+        }
+        return rollups;
+    }
+
+    /**
+     * Creates the empty levels of an entity
+     * @param generation the generation of the rollups they are made in
+     */
+    private static Level[] newLevels(long generation) {
+        Level[] levels = new Level[RESOLUTIONS.length];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new Level(generation);
+        }
+        return levels;
+    }
+
+    /**
+     * Gets the value an event adds to its buckets
+     * @param event the event
+     * @return the value of a sensor event, 1 or 0 for an actuator event that is on or off
+     */
+    static double valueOf(Event event) {
+        if (event instanceof ActuatorEvent) {
+            return event.getValueBoolean() ? 1 : 0;
+        }
+        return event.getValueDouble();
+    }
+}
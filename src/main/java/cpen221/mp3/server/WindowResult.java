@@ -0,0 +1,83 @@
+package cpen221.mp3.server;
+
+/**
+ * The aggregate of one closed window of a WindowedAggregation, for one entity or entity type
+ */
+//REP INVARIANTS: key != null, timeWindow != null, aggregate != null and aggregate.getCount() > 0
+public class WindowResult {
+    private final String key;
+    private final TimeWindow timeWindow;
+    private final Aggregate aggregate;
+    private final double last;
+    private final double lastTimeStamp;
+
+    /**
+     * Creates a window result
+     * @param key the entity id or entity type the window aggregates
+     * @param timeWindow the window, its events are at or after its start and before its end
+     * @param aggregate the aggregate of the values of its events, with at least one value
+     * @param last the value of its latest event
+     * @param lastTimeStamp the time stamp of its latest event
+     */
+    public WindowResult(String key, TimeWindow timeWindow, Aggregate aggregate, double last, double lastTimeStamp) {
+        this.key = key;
+        this.timeWindow = timeWindow;
+        this.aggregate = aggregate;
+        this.last = last;
+        this.lastTimeStamp = lastTimeStamp;
+    }
+
+    /**
+     * Gets what the window aggregates
+     * @return the entity id, or the entity type, of its events
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Gets the window
+     * @return the window, which includes its start and excludes its end
+     */
+    public TimeWindow getTimeWindow() {
+        return timeWindow;
+    }
+
+    /**
+     * Gets the aggregate of the values in the window
+     * @return the count, min, max, sum and sum of squares of the values
+     */
+    public Aggregate getAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * Gets the value of the latest event in the window
+     * @return the last value
+     */
+    public double getLast() {
+        return last;
+    }
+
+    /**
+     * Gets the time stamp of the latest event in the window
+     * @return the time stamp of the last value
+     */
+    public double getLastTimeStamp() {
+        return lastTimeStamp;
+    }
+
+    /**
+     * Converts the WindowResult to String format
+     * @return the formatted String
+     */
+    @Override
+    public String toString() {
+        return "WindowResult{" +
+               "Key=" + key +
+               ",TimeWindow=" + timeWindow +
+               ",Aggregate=" + aggregate +
+               ",Last=" + last +
+               '}';
+    }
+}
@@ -0,0 +1,326 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.Event;
+import cpen221.mp3.metrics.Counter;
+import cpen221.mp3.metrics.MetricsRegistry;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Continuous aggregates of the events a server processes, per entity or per entity type, over
+ * tumbling or sliding event-time windows. Add it to a server with Server.addEventListener.
+ *
+ * Time is cut into panes one slide long. An event only updates the pane of its time stamp; a
+ * window is the panes it spans, combined with two stacks so each pane is merged a constant
+ * number of times however many windows it is in. The watermark is the latest time stamp
+ * processed minus the allowed lateness: a pane closes once the watermark passes its end, and a
+ * window is emitted once its last pane closes, if it has any events. An event whose pane is
+ * already closed is late and dropped.
+ */
+//REP INVARIANTS: size > 0, slide > 0, size is panesPerWindow slides, allowedLateness >= 0,
+//                groups != null, every open pane of a group is >= closedPanes,
+//                every pane in the stacks of a group is < closedPanes
+public class WindowedAggregation implements Server.EventListener {
+    /**
+     * What the windows aggregate over
+     */
+    public enum GroupBy {
+        ENTITY,
+        ENTITY_TYPE
+    }
+
+    /**
+     * Notified of every window that closes with events in it, on the thread that closed it
+     */
+    public interface Listener {
+        /**
+         * Called once a window closes
+         * @param result the aggregate of the window
+         */
+        void windowClosed(WindowResult result);
+    }
+
+    private static final Counter WINDOWS_EMITTED = MetricsRegistry.shared().counter("windows.emitted");
+    private static final Counter LATE_EVENTS = MetricsRegistry.shared().counter("windows.late_events");
+
+    /**
+     * The values of a group of events, and their latest one
+     */
+    private static class Partial {
+        static final Partial EMPTY = new Partial();
+
+        Aggregate aggregate = Aggregate.EMPTY;
+        double last = Double.NaN;
+        double lastTimeStamp = Double.NEGATIVE_INFINITY;
+
+        void add(double value, double timeStamp) {
+            aggregate = aggregate.merge(new Aggregate(1, value, value, value, value * value));
+            if (timeStamp >= lastTimeStamp) {
+                last = value;
+                lastTimeStamp = timeStamp;
+            }
+        }
+
+        static Partial combine(Partial older, Partial newer) {
+            if (older.aggregate.getCount() == 0) {
+                return newer;
+            }
+            if (newer.aggregate.getCount() == 0) {
+                return older;
+            }
+            Partial combined = new Partial();
+            combined.aggregate = older.aggregate.merge(newer.aggregate);
+            Partial latest = newer.lastTimeStamp >= older.lastTimeStamp ? newer : older;
+            combined.last = latest.last;
+            combined.lastTimeStamp = latest.lastTimeStamp;
+            return combined;
+        }
+    }
+
+    /**
+     * A closed pane in the stacks of a group
+     */
+    private static class StackEntry {
+        final long pane;
+        final Partial partial;
+        //in the front stack: this pane combined with every newer pane below it
+        Partial combined;
+
+        StackEntry(long pane, Partial partial) {
+            this.pane = pane;
+            this.partial = partial;
+        }
+    }
+
+    /**
+     * The panes of one entity or entity type
+     */
+    //REP INVARIANTS: the panes in front are older than those in back, the top of front is the
+    //                oldest and the top of back the newest, backCombined combines the panes in back
+    private static class Group {
+        //the panes that are still open, keyed by pane index
+        final TreeMap<Long, Partial> openPanes = new TreeMap<>();
+        final ArrayDeque<StackEntry> front = new ArrayDeque<>();
+        final ArrayDeque<StackEntry> back = new ArrayDeque<>();
+        Partial backCombined = Partial.EMPTY;
+        //the first window of this group not emitted yet
+        long nextWindow = Long.MIN_VALUE;
+
+        void push(StackEntry entry) {
+            back.push(entry);
+            backCombined = Partial.combine(backCombined, entry.partial);
+        }
+
+        long oldestPane() {
+            return front.isEmpty() ? back.peekLast().pane : front.peek().pane;
+        }
+
+        void popOldest() {
+            if (front.isEmpty()) {
+                //move every pane to the front, combining from the newest down
+                Partial combined = Partial.EMPTY;
+                while (!back.isEmpty()) {
+                    StackEntry entry = back.pop();
+                    combined = Partial.combine(entry.partial, combined);
+                    entry.combined = combined;
+                    front.push(entry);
+                }
+                backCombined = Partial.EMPTY;
+            }
+            front.pop();
+        }
+
+        boolean isStacked() {
+            return !front.isEmpty() || !back.isEmpty();
+        }
+
+        Partial window() {
+            return front.isEmpty() ? backCombined : Partial.combine(front.peek().combined, backCombined);
+        }
+    }
+
+    private final double size;
+    private final double slide;
+    private final int panesPerWindow;
+    private final double allowedLateness;
+    private final GroupBy groupBy;
+    private final Listener listener;
+
+    private final Map<String, Group> groups = new HashMap<>();
+    private double watermark = Double.NEGATIVE_INFINITY;
+    //the panes before this index are closed
+    private long closedPanes = Long.MIN_VALUE;
+
+    /**
+     * Creates an aggregation over tumbling windows, with no allowed lateness
+     * @param size the length of each window, in s of event time, > 0
+     * @param groupBy what each window aggregates over
+     * @param listener notified of every closed window, it must not block
+     */
+    public WindowedAggregation(double size, GroupBy groupBy, Listener listener) {
+        this(size, size, 0, groupBy, listener);
+    }
+
+    /**
+     * Creates an aggregation over sliding windows
+     * @param size the length of each window, in s of event time, a whole number of slides
+     * @param slide the time between the starts of windows, in s of event time, > 0.
+     *              A slide equal to the size gives tumbling windows.
+     * @param allowedLateness how far behind the latest time stamp processed an event can be
+     *                        and still be aggregated, in s of event time, >= 0
+     * @param groupBy what each window aggregates over
+     * @param listener notified of every closed window, it must not block
+     */
+    public WindowedAggregation(double size, double slide, double allowedLateness, GroupBy groupBy, Listener listener) {
+        if (!(size > 0) || !(slide > 0) || !(allowedLateness >= 0)) {
+            throw new IllegalArgumentException("Window size and slide must be positive and lateness not negative");
+        }
+        long panes = Math.round(size / slide);
+        if (panes < 1 || Math.abs(panes * slide - size) > 1e-9 * size) {
+            throw new IllegalArgumentException("Window size must be a whole number of slides");
+        }
+        this.size = size;
+        this.slide = slide;
+        this.panesPerWindow = (int) panes;
+        this.allowedLateness = allowedLateness;
+        this.groupBy = groupBy;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a processed event to the pane of its time stamp, and emits the windows it closes
+     * @param event the processed event
+     */
+    @Override
+    public synchronized void eventProcessed(Event event) {
+        double timeStamp = event.getTimeStamp();
+        long pane = (long) Math.floor(timeStamp / slide);
+        if (pane < closedPanes) {
+            LATE_EVENTS.increment();
+            return;
+        }
+        groups.computeIfAbsent(keyOf(event), key -> new Group())
+              .openPanes.computeIfAbsent(pane, p -> new Partial())
+              .add(TimeRollups.valueOf(event), timeStamp);
+        if (timeStamp - allowedLateness > watermark) {
+            watermark = timeStamp - allowedLateness;
+            closePanes((long) Math.floor(watermark / slide));
+        }
+    }
+
+    /**
+     * Closes every window that has events, e.g. once the server stops. Events before the end of
+     * the last window emitted are late from then on.
+     */
+    public synchronized void flush() {
+        long lastPane = Long.MIN_VALUE;
+        for (Group group : groups.values()) {
+            if (!group.openPanes.isEmpty()) {
+                lastPane = Math.max(lastPane, group.openPanes.lastKey());
+            }
+        }
+        if (lastPane != Long.MIN_VALUE) {
+            closePanes(lastPane + panesPerWindow);
+            watermark = Math.max(watermark, closedPanes * slide);
+        }
+    }
+
+    /**
+     * Gets the watermark
+     * @return the latest time stamp processed minus the allowed lateness, -infinity before any event
+     */
+    public synchronized double getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * Gets the length of each window
+     * @return the size, in s of event time
+     */
+    public double getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the time between the starts of windows
+     * @return the slide, in s of event time
+     */
+    public double getSlide() {
+        return slide;
+    }
+
+    /**
+     * Closes the panes before an index and emits every window that closes with them
+     * @param panes the index of the first pane left open
+     */
+    private void closePanes(long panes) {
+        if (panes <= closedPanes) {
+            return;
+        }
+        closedPanes = panes;
+        long lastWindow = closedPanes - panesPerWindow;
+        Iterator<Map.Entry<String, Group>> iterator = groups.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Group> entry = iterator.next();
+            Group group = entry.getValue();
+            emitWindows(entry.getKey(), group, lastWindow);
+            if (!group.isStacked() && group.openPanes.isEmpty()) {
+                //nothing left to emit, a later event starts the group again
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Emits the windows of a group up to an index, skipping the ones with no panes
+     * @param key the entity id or entity type of the group
+     * @param group the group
+     * @param lastWindow the index of the last window that is closed
+     */
+    private void emitWindows(String key, Group group, long lastWindow) {
+        while (group.nextWindow <= lastWindow) {
+            long window = group.nextWindow;
+            long windowEnd = window + panesPerWindow; //the first pane after the window
+            if (!group.isStacked()) {
+                //jump over the windows before the first pane, they have no events
+                long first = group.openPanes.isEmpty() ? Long.MAX_VALUE : group.openPanes.firstKey();
+                if (first >= windowEnd) {
+                    group.nextWindow = first == Long.MAX_VALUE ? lastWindow + 1
+                                                               : Math.min(first - panesPerWindow + 1, lastWindow + 1);
+                    continue;
+                }
+            }
+            while (!group.openPanes.isEmpty() && group.openPanes.firstKey() < windowEnd) {
+                Map.Entry<Long, Partial> pane = group.openPanes.pollFirstEntry();
+                group.push(new StackEntry(pane.getKey(), pane.getValue()));
+            }
+            while (group.isStacked() && group.oldestPane() < window) {
+                group.popOldest();
+            }
+            Partial combined = group.window();
+            if (combined.aggregate.getCount() > 0) {
+                WINDOWS_EMITTED.increment();
+                listener.windowClosed(new WindowResult(key, new TimeWindow(window * slide, windowEnd * slide),
+                        combined.aggregate, combined.last, combined.lastTimeStamp));
+            }
+            group.nextWindow = window + 1;
+        }
+        //the panes of the emitted windows are not in any later one
+        while (group.isStacked() && group.oldestPane() < group.nextWindow) {
+            group.popOldest();
+        }
+    }
+
+    /**
+     * Gets the group of an event
+     * @param event the event
+     * @return its entity id or entity type
+     */
+    private String keyOf(Event event) {
+        return groupBy == GroupBy.ENTITY ? String.valueOf(event.getEntityId()) : event.getEntityType();
+    }
+}
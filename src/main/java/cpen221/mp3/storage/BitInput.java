@@ -0,0 +1,74 @@
+package cpen221.mp3.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads bits written by BitOutput out of a buffer, most significant bit first. The buffer is
+ * read with absolute gets, so many inputs can read one buffer at once.
+ */
+//REP INVARIANTS: data != null, 0 <= position <= data.limit() * 8
+class BitInput {
+    private final ByteBuffer data;
+    private long position;
+
+    /**
+     * Creates an input
+     * @param data the buffer to read
+     * @param byteOffset where in the buffer to start
+     */
+    BitInput(ByteBuffer data, int byteOffset) {
+        this.data = data;
+        this.position = (long) byteOffset * 8;
+    }
+
+    /**
+     * Moves to a byte of the buffer
+     * @param byteOffset the byte to read next
+     */
+    void seek(int byteOffset) {
+        position = (long) byteOffset * 8;
+    }
+
+    /**
+     * Reads bits as the low bits of a value
+     * @param count the number of bits, 0 <= count <= 64
+     * @return the value, its other bits are 0
+     * @throws IndexOutOfBoundsException if the buffer ends first
+     */
+    long read(int count) {
+        if (count > 32) {
+            long high = read(count - 32);
+            return (high << 32) | read(32);
+        }
+        long value = 0;
+        while (count > 0) {
+            int current = data.get((int) (position >>> 3)) & 0xFF;
+            int available = 8 - (int) (position & 7);
+            int taken = Math.min(available, count);
+            value = (value << taken) | ((current >>> (available - taken)) & ((1 << taken) - 1));
+            count -= taken;
+            position += taken;
+        }
+        return value;
+    }
+
+    /**
+     * Reads one bit
+     * @return true if the bit is 1
+     */
+    boolean readBit() {
+        return read(1) != 0;
+    }
+
+    /**
+     * Reads a number written by BitOutput.writeGamma
+     * @return the number, >= 1
+     */
+    long readGamma() {
+        int zeros = 0;
+        while (!readBit()) {
+            zeros++;
+        }
+        return (1L << zeros) | read(zeros);
+    }
+}
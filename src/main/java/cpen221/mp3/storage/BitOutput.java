@@ -0,0 +1,82 @@
+package cpen221.mp3.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable buffer written a few bits at a time, most significant bit first
+ */
+//REP INVARIANTS: bytes != null, 0 <= size <= bytes.length, 0 <= pendingBits < 8,
+//                the low pendingBits bits of pending are written but not yet in bytes
+class BitOutput {
+    private byte[] bytes = new byte[256];
+    private int size = 0;
+    private long pending = 0;
+    private int pendingBits = 0;
+
+    /**
+     * Writes the low bits of a value
+     * @param value the value
+     * @param count the number of its low bits to write, 0 <= count <= 64
+     */
+    void write(long value, int count) {
+        if (count > 32) {
+            write(value >>> 32, count - 32);
+            write(value, 32);
+            return;
+        }
+        pending = (pending << count) | (value & ((1L << count) - 1));
+        pendingBits += count;
+        while (pendingBits >= 8) {
+            pendingBits -= 8;
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) (pending >>> pendingBits);
+        }
+    }
+
+    /**
+     * Writes one bit
+     * @param bit the bit
+     */
+    void writeBit(boolean bit) {
+        write(bit ? 1 : 0, 1);
+    }
+
+    /**
+     * Writes a number >= 1 as an Elias gamma code: as many 0 bits as it has bits after its
+     * leading 1, then its bits. Small numbers take few bits, 1 takes one.
+     * @param value the number, >= 1
+     */
+    void writeGamma(long value) {
+        int bits = 64 - Long.numberOfLeadingZeros(value);
+        write(0, bits - 1);
+        write(value, bits);
+    }
+
+    /**
+     * Pads what is written with 0 bits up to a whole byte
+     */
+    void alignToByte() {
+        if (pendingBits > 0) {
+            write(0, 8 - pendingBits);
+        }
+    }
+
+    /**
+     * Gets the number of whole bytes written
+     * @return the number of bytes
+     */
+    int byteLength() {
+        return size;
+    }
+
+    /**
+     * Copies the whole bytes written into a buffer
+     * @param buffer the buffer, requires byteLength() bytes remaining
+     */
+    void copyTo(ByteBuffer buffer) {
+        buffer.put(bytes, 0, size);
+    }
+}
@@ -0,0 +1,92 @@
+package cpen221.mp3.storage;
+
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts events to and from a compact binary form, used by the storage formats.
+ *
+ * An event is: kind (1 byte, SENSOR or ACTUATOR), time stamp (8), client id (4), entity id (4),
+ * entity type (2 byte length then UTF-8 bytes) and the value, 8 bytes for a sensor's double
+ * and 1 byte for an actuator's boolean. The arrival time is not kept.
+ */
+public final class EventCodec {
+    public static final byte SENSOR = 0;
+    public static final byte ACTUATOR = 1;
+
+    private EventCodec() {
+    }
+
+    /**
+     * Gets the number of bytes an event is encoded in
+     * @param event the event
+     * @return the encoded size, in bytes
+     */
+    public static int encodedSize(Event event) {
+        int typeLength = event.getEntityType().getBytes(StandardCharsets.UTF_8).length;
+        return 1 + 8 + 4 + 4 + 2 + typeLength + (event instanceof ActuatorEvent ? 1 : 8);
+    }
+
+    /**
+     * Encodes an event
+     * @param event the event, its entity type must be at most 65535 bytes in UTF-8
+     * @return the encoded event
+     */
+    public static byte[] encode(Event event) {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize(event));
+        encode(event, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Encodes an event at the position of a buffer, advancing it
+     * @param event the event
+     * @param buffer the buffer, with at least encodedSize(event) bytes remaining
+     */
+    public static void encode(Event event, ByteBuffer buffer) {
+        byte[] type = event.getEntityType().getBytes(StandardCharsets.UTF_8);
+        if (type.length > 0xFFFF) {
+            throw new IllegalArgumentException("Entity type too long to store: " + type.length + " bytes");
+        }
+        boolean actuator = event instanceof ActuatorEvent;
+        buffer.put(actuator ? ACTUATOR : SENSOR);
+        buffer.putDouble(event.getTimeStamp());
+        buffer.putInt(event.getClientId());
+        buffer.putInt(event.getEntityId());
+        buffer.putShort((short) type.length);
+        buffer.put(type);
+        if (actuator) {
+            buffer.put((byte) (event.getValueBoolean() ? 1 : 0));
+        } else {
+            buffer.putDouble(event.getValueDouble());
+        }
+    }
+
+    /**
+     * Decodes the event at the position of a buffer, advancing it
+     * @param buffer the buffer
+     * @return the event, its arrival time is not set
+     * @throws IllegalArgumentException if the bytes are not an event
+     * @throws java.nio.BufferUnderflowException if the buffer ends inside the event
+     */
+    public static Event decode(ByteBuffer buffer) {
+        byte kind = buffer.get();
+        double timeStamp = buffer.getDouble();
+        int clientId = buffer.getInt();
+        int entityId = buffer.getInt();
+        byte[] type = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(type);
+        String entityType = new String(type, StandardCharsets.UTF_8);
+
+        if (kind == ACTUATOR) {
+            return new ActuatorEvent(timeStamp, clientId, entityId, entityType, buffer.get() != 0);
+        } else if (kind == SENSOR) {
+            return new SensorEvent(timeStamp, clientId, entityId, entityType, buffer.getDouble());
+        }
+        throw new IllegalArgumentException("Unknown event kind " + kind);
+    }
+}
@@ -0,0 +1,718 @@
+package cpen221.mp3.storage;
+
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sealed, read-only run of events sorted by time stamp, kept compressed in a file and
+ * memory-mapped, so reading it touches only the pages it needs and none of it lives on the heap.
+ *
+ * The events are split into blocks of BLOCK_SIZE, each compressed on its own the way Gorilla
+ * compresses time series, so one block can be decoded without the ones before it:
+ * - which entity sent an event is an index into a table of series (client id, entity id,
+ *   kind and entity type), as few bits as the table needs
+ * - the first time stamp of a block is written whole, every other one as the change in its
+ *   delta from the previous one (delta-of-delta) over the bits of the double, which is a
+ *   single 0 bit for evenly spaced time stamps
+ * - a sensor value is XORed with the previous value of the same entity type, and only the
+ *   bits that differ are written, reusing the previous count of leading and trailing zero bits
+ *   when they fit. A block holds few events per entity but many per type, and entities of
+ *   one type report values in the same range.
+ * - actuator values are kept after the rest of the block, as runs of equal values
+ *
+ * The file is a header, the blocks, and nothing else. The header is MAGIC (4 bytes), the number
+ * of events (4), the latest time stamp (8), the dictionary of entity types (their number (2),
+ * then each as a 2 byte length and its UTF-8 bytes), the series (their number (4), then each as
+ * client id (4), entity id (4), kind (1) and index of its entity type (2)), and the blocks
+ * (their number (4), then each as its first time stamp (8), the offset of its events (4) and
+ * the offset of its actuator values (4)).
+ *
+ * The first time stamps of the blocks are kept on the heap as a sparse index, so finding a
+ * time decodes one block instead of the whole segment.
+ */
+//REP INVARIANTS: file, data, types, the series arrays, sparseIndex, eventOffsets, booleanOffsets != null,
+//                size >= 1, sparseIndex.length == eventOffsets.length == booleanOffsets.length == the number of blocks,
+//                the time stamps of the events are in ascending order,
+//                sparseIndex[i] is the time stamp of event i * BLOCK_SIZE
+public class EventSegment {
+    public static final int MAGIC = 0x4556535A; //"EVSZ"
+    public static final int BLOCK_SIZE = 256; //in events
+
+    private static final int SERIES_SIZE = 4 + 4 + 1 + 2;
+    private static final int BLOCK_ENTRY_SIZE = 8 + 4 + 4;
+    //the widths a change in time stamp delta is written in, after a prefix of 10, 110 and 1110
+    //a change that fits none is written whole after 1111
+    private static final int[] TIME_CHANGE_BITS = {12, 24, 48};
+
+    private final Path file;
+    private final MappedByteBuffer data;
+    private final int size;
+    private final double maxTimeStamp;
+    private final String[] types;
+    private final int[] seriesClientIds;
+    private final int[] seriesEntityIds;
+    private final boolean[] seriesActuators;
+    private final int[] seriesTypes;
+    private final int seriesWidth;
+    private final double[] sparseIndex;
+    private final int[] eventOffsets;
+    private final int[] booleanOffsets;
+
+    /**
+     * Writes events to a new segment file and maps it
+     * @param file the file to create, it must not exist
+     * @param events the events, requires at least one and that they are sorted by time stamp
+     * @return the segment, its file and the directory entry forced to disk
+     * @throws IOException if the file cannot be written
+     */
+    public static EventSegment write(Path file, List<Event> events) throws IOException {
+        if (events.isEmpty()) {
+            throw new IllegalArgumentException("A segment needs at least one event");
+        }
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<byte[]> typeNames = new ArrayList<>();
+        int dictionarySize = 0;
+        Map<List<Integer>, Integer> seriesIndex = new HashMap<>();
+        List<List<Integer>> series = new ArrayList<>();
+        int[] eventSeries = new int[events.size()];
+        for (int i = 0; i < events.size(); i++) {
+            Event event = events.get(i);
+            Integer type = dictionary.get(event.getEntityType());
+            if (type == null) {
+                byte[] name = event.getEntityType().getBytes(StandardCharsets.UTF_8);
+                type = dictionary.size();
+                dictionary.put(event.getEntityType(), type);
+                typeNames.add(name);
+                dictionarySize += 2 + name.length;
+            }
+            List<Integer> key = List.of(event.getClientId(), event.getEntityId(),
+                    event instanceof ActuatorEvent ? 1 : 0, type);
+            Integer index = seriesIndex.get(key);
+            if (index == null) {
+                index = series.size();
+                seriesIndex.put(key, index);
+                series.add(key);
+            }
+            eventSeries[i] = index;
+        }
+        if (dictionary.size() > 0xFFFF) {
+            throw new IllegalArgumentException("Too many entity types for one segment");
+        }
+
+        boolean[] actuators = new boolean[series.size()];
+        int[] seriesTypes = new int[series.size()];
+        for (int i = 0; i < series.size(); i++) {
+            actuators[i] = series.get(i).get(2) == 1;
+            seriesTypes[i] = series.get(i).get(3);
+        }
+        int seriesWidth = widthOf(series.size());
+        int blocks = (events.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        List<BitOutput> encodedEvents = new ArrayList<>(blocks);
+        List<BitOutput> encodedBooleans = new ArrayList<>(blocks);
+        XorState values = new XorState(typeNames.size());
+        int blocksSize = 0;
+        for (int start = 0; start < events.size(); start += BLOCK_SIZE) {
+            BitOutput blockEvents = new BitOutput();
+            BitOutput blockBooleans = new BitOutput();
+            encodeBlock(events, eventSeries, start, Math.min(events.size(), start + BLOCK_SIZE),
+                    seriesWidth, actuators, seriesTypes, values, blockEvents, blockBooleans);
+            encodedEvents.add(blockEvents);
+            encodedBooleans.add(blockBooleans);
+            blocksSize += blockEvents.byteLength() + blockBooleans.byteLength();
+        }
+
+        int headerSize = 4 + 4 + 8 + 2 + dictionarySize + 4 + series.size() * SERIES_SIZE + 4 + blocks * BLOCK_ENTRY_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(headerSize + blocksSize);
+        buffer.putInt(MAGIC);
+        buffer.putInt(events.size());
+        buffer.putDouble(events.get(events.size() - 1).getTimeStamp());
+        buffer.putShort((short) typeNames.size());
+        for (byte[] name : typeNames) {
+            buffer.putShort((short) name.length);
+            buffer.put(name);
+        }
+        buffer.putInt(series.size());
+        for (List<Integer> key : series) {
+            buffer.putInt(key.get(0));
+            buffer.putInt(key.get(1));
+            buffer.put(key.get(2) == 1 ? EventCodec.ACTUATOR : EventCodec.SENSOR);
+            buffer.putShort((short) (int) key.get(3));
+        }
+        buffer.putInt(blocks);
+        int offset = headerSize;
+        for (int block = 0; block < blocks; block++) {
+            buffer.putDouble(events.get(block * BLOCK_SIZE).getTimeStamp());
+            buffer.putInt(offset);
+            offset += encodedEvents.get(block).byteLength();
+            buffer.putInt(offset);
+            offset += encodedBooleans.get(block).byteLength();
+        }
+        for (int block = 0; block < blocks; block++) {
+            encodedEvents.get(block).copyTo(buffer);
+            encodedBooleans.get(block).copyTo(buffer);
+        }
+        buffer.flip();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            //a snapshot names the segment once it is sealed, it must survive a crash from then on
+            channel.force(true);
+        }
+        syncDirectory(file.toAbsolutePath().getParent());
+        return open(file);
+    }
+
+    /**
+     * Forces the entries of a directory to disk, so a file just created in it is found after
+     * a crash. Not every platform can open a directory, there the file system is trusted.
+     * @param directory the directory
+     * @throws IOException if forcing the opened directory fails
+     */
+    public static void syncDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Compresses the events of one block, from start inclusive to end exclusive
+     */
+    private static void encodeBlock(List<Event> events, int[] eventSeries, int start, int end, int seriesWidth,
+                                    boolean[] actuators, int[] seriesTypes, XorState values,
+                                    BitOutput out, BitOutput booleans) {
+        values.reset();
+        long previousTime = 0;
+        long previousDelta = 0;
+        boolean runValue = false;
+        long runLength = 0;
+        for (int i = start; i < end; i++) {
+            Event event = events.get(i);
+            int series = eventSeries[i];
+            out.write(series, seriesWidth);
+
+            long time = Double.doubleToRawLongBits(event.getTimeStamp());
+            if (i == start) {
+                out.write(time, 64);
+            } else {
+                long delta = time - previousTime;
+                writeTimeChange(out, delta - previousDelta);
+                previousDelta = delta;
+            }
+            previousTime = time;
+
+            if (!actuators[series]) {
+                values.write(out, seriesTypes[series], Double.doubleToRawLongBits(event.getValueDouble()));
+            } else if (runLength == 0) {
+                runValue = event.getValueBoolean();
+                booleans.writeBit(runValue);
+                runLength = 1;
+            } else if (event.getValueBoolean() == runValue) {
+                runLength++;
+            } else {
+                booleans.writeGamma(runLength);
+                runValue = !runValue;
+                runLength = 1;
+            }
+        }
+        if (runLength > 0) {
+            booleans.writeGamma(runLength);
+        }
+        out.alignToByte();
+        booleans.alignToByte();
+    }
+
+    /**
+     * Maps an existing segment file
+     * @param file the segment file
+     * @return the segment
+     * @throws IOException if the file cannot be read or is not a segment
+     */
+    public static EventSegment open(Path file) throws IOException {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            //the mapping stays valid after the channel is closed
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (data.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a compressed event segment");
+            }
+            int size = data.getInt(4);
+            double maxTimeStamp = data.getDouble(8);
+            String[] types = new String[data.getShort(16) & 0xFFFF];
+            int position = 18;
+            for (int i = 0; i < types.length; i++) {
+                byte[] name = new byte[data.getShort(position) & 0xFFFF];
+                data.get(position + 2, name);
+                types[i] = new String(name, StandardCharsets.UTF_8);
+                position += 2 + name.length;
+            }
+            int seriesCount = data.getInt(position);
+            position += 4;
+            if (seriesCount < 1 || (long) position + (long) seriesCount * SERIES_SIZE > data.capacity()) {
+                throw new IOException(file + " is cut short");
+            }
+            int[] clientIds = new int[seriesCount];
+            int[] entityIds = new int[seriesCount];
+            boolean[] actuators = new boolean[seriesCount];
+            int[] seriesTypes = new int[seriesCount];
+            for (int i = 0; i < seriesCount; i++) {
+                clientIds[i] = data.getInt(position);
+                entityIds[i] = data.getInt(position + 4);
+                actuators[i] = data.get(position + 8) == EventCodec.ACTUATOR;
+                seriesTypes[i] = data.getShort(position + 9) & 0xFFFF;
+                if (seriesTypes[i] >= types.length) {
+                    throw new IOException(file + " has a series of an unknown entity type");
+                }
+                position += SERIES_SIZE;
+            }
+            int blocks = data.getInt(position);
+            position += 4;
+            if (size < 1 || blocks != (size + BLOCK_SIZE - 1) / BLOCK_SIZE
+                    || (long) position + (long) blocks * BLOCK_ENTRY_SIZE > data.capacity()) {
+                throw new IOException(file + " is cut short");
+            }
+            double[] sparseIndex = new double[blocks];
+            int[] eventOffsets = new int[blocks];
+            int[] booleanOffsets = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                sparseIndex[i] = data.getDouble(position);
+                eventOffsets[i] = data.getInt(position + 8);
+                booleanOffsets[i] = data.getInt(position + 12);
+                if (eventOffsets[i] < 0 || booleanOffsets[i] < eventOffsets[i] || booleanOffsets[i] > data.capacity()) {
+                    throw new IOException(file + " is cut short");
+                }
+                position += BLOCK_ENTRY_SIZE;
+            }
+            return new EventSegment(file, data, size, maxTimeStamp, types, clientIds, entityIds, actuators,
+                    seriesTypes, sparseIndex, eventOffsets, booleanOffsets);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException(file + " is cut short", e);
+        }
+    }
+
+    /**
+     * Creates a segment over mapped data
+     */
+    private EventSegment(Path file, MappedByteBuffer data, int size, double maxTimeStamp, String[] types,
+                         int[] seriesClientIds, int[] seriesEntityIds, boolean[] seriesActuators, int[] seriesTypes,
+                         double[] sparseIndex, int[] eventOffsets, int[] booleanOffsets) {
+        this.file = file;
+        this.data = data;
+        this.size = size;
+        this.maxTimeStamp = maxTimeStamp;
+        this.types = types;
+        this.seriesClientIds = seriesClientIds;
+        this.seriesEntityIds = seriesEntityIds;
+        this.seriesActuators = seriesActuators;
+        this.seriesTypes = seriesTypes;
+        this.seriesWidth = widthOf(seriesTypes.length);
+        this.sparseIndex = sparseIndex;
+        this.eventOffsets = eventOffsets;
+        this.booleanOffsets = booleanOffsets;
+    }
+
+    /**
+     * Gets the file of this segment
+     * @return the segment file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the number of events in this segment
+     * @return the number of events
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the size of this segment's file
+     * @return the number of bytes in the file
+     */
+    public long getByteSize() {
+        return data.capacity();
+    }
+
+    /**
+     * Gets the earliest time stamp in this segment
+     * @return the time stamp of the first event
+     */
+    public double getMinTimeStamp() {
+        return sparseIndex[0];
+    }
+
+    /**
+     * Gets the latest time stamp in this segment
+     * @return the time stamp of the last event
+     */
+    public double getMaxTimeStamp() {
+        return maxTimeStamp;
+    }
+
+    /**
+     * Reads the time stamp of an event, decoding its block up to it
+     * @param index the position of the event, 0 <= index < size()
+     * @return its time stamp
+     */
+    public double timeStampAt(int index) {
+        return new Cursor(index).timeStamp;
+    }
+
+    /**
+     * Reads an event, decoding its block up to it. Reading a run of events is cheaper with
+     * events(from, to).
+     * @param index the position of the event, 0 <= index < size()
+     * @return the event, its arrival time is not set
+     */
+    public Event get(int index) {
+        return new Cursor(index).event();
+    }
+
+    /**
+     * Reads a run of events
+     * @param from the position of the first event, 0 <= from <= to
+     * @param to the position after the last event, to <= size()
+     * @return the events, in time stamp order
+     */
+    public List<Event> events(int from, int to) {
+        List<Event> events = new ArrayList<>(Math.max(0, to - from));
+        if (from >= to) {
+            return events;
+        }
+        Cursor cursor = new Cursor(from);
+        events.add(cursor.event());
+        for (int i = from + 1; i < to; i++) {
+            cursor.next();
+            events.add(cursor.event());
+        }
+        return events;
+    }
+
+    /**
+     * Counts the events of each entity, without building the events
+     * @return the number of events in this segment of each entity id that has any
+     */
+    public Map<Integer, Integer> countByEntity() {
+        Map<Integer, Integer> counts = new HashMap<>();
+        Cursor cursor = new Cursor(0);
+        do {
+            counts.merge(seriesEntityIds[cursor.series], 1, Integer::sum);
+        } while (cursor.next());
+        return counts;
+    }
+
+    /**
+     * Finds the first event at or after a time
+     * @param timeStamp the time
+     * @return the position of the first event with a time stamp >= timeStamp, size() if there is none
+     */
+    public int lowerBound(double timeStamp) {
+        return search(timeStamp, false);
+    }
+
+    /**
+     * Finds the first event after a time
+     * @param timeStamp the time
+     * @return the position of the first event with a time stamp > timeStamp, size() if there is none
+     */
+    public int upperBound(double timeStamp) {
+        return search(timeStamp, true);
+    }
+
+    /**
+     * Reads the events of a time window, decoding from the block the window starts in and
+     * building only the events in the window
+     * @param startTime the start of the window, inclusive
+     * @param endTime the end of the window, inclusive
+     * @return the events in the window, in time stamp order
+     */
+    public List<Event> eventsBetween(double startTime, double endTime) {
+        List<Event> events = new ArrayList<>();
+        if (endTime < getMinTimeStamp() || startTime > getMaxTimeStamp()) {
+            return events;
+        }
+        Cursor cursor = new Cursor(firstBlock(startTime, false) * BLOCK_SIZE);
+        do {
+            if (cursor.timeStamp > endTime) {
+                break;
+            }
+            if (cursor.timeStamp >= startTime) {
+                events.add(cursor.event());
+            }
+        } while (cursor.next());
+        return events;
+    }
+
+    /**
+     * Deletes the file of this segment, the segment must not be read afterwards
+     * @throws IOException if the file cannot be deleted
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Finds the first event at or after (strictly after if exclusive) a time: first in the
+     * sparse index to pick a block, then by decoding the block
+     */
+    private int search(double timeStamp, boolean exclusive) {
+        int block = firstBlock(timeStamp, exclusive);
+        if (block == 0 && (exclusive ? sparseIndex[0] > timeStamp : sparseIndex[0] >= timeStamp)) {
+            return 0;
+        }
+        Cursor cursor = new Cursor(block * BLOCK_SIZE);
+        do {
+            if (exclusive ? cursor.timeStamp > timeStamp : cursor.timeStamp >= timeStamp) {
+                return cursor.position;
+            }
+        } while (cursor.next());
+        return size;
+    }
+
+    /**
+     * Finds the block that holds the first event at or after (strictly after if exclusive) a time
+     * @return the block before the first one whose first time stamp is past the time, 0 if there is none
+     */
+    private int firstBlock(double timeStamp, boolean exclusive) {
+        int low = 0;
+        int high = sparseIndex.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (exclusive ? sparseIndex[middle] > timeStamp : sparseIndex[middle] >= timeStamp) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return Math.max(0, low - 1);
+    }
+
+    /**
+     * Gets the number of bits that hold the numbers below a count
+     */
+    private static int widthOf(int count) {
+        return count <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(count - 1);
+    }
+
+    /**
+     * Writes a change in time stamp delta in the smallest width it fits
+     */
+    private static void writeTimeChange(BitOutput out, long change) {
+        if (change == 0) {
+            out.writeBit(false);
+            return;
+        }
+        for (int i = 0; i < TIME_CHANGE_BITS.length; i++) {
+            int bits = TIME_CHANGE_BITS[i];
+            if (change >= -(1L << (bits - 1)) && change < (1L << (bits - 1))) {
+                //i + 1 one bits, then a zero bit
+                out.write(((1L << (i + 1)) - 1) << 1, i + 2);
+                out.write(change, bits);
+                return;
+            }
+        }
+        out.write((1L << (TIME_CHANGE_BITS.length + 1)) - 1, TIME_CHANGE_BITS.length + 1);
+        out.write(change, 64);
+    }
+
+    /**
+     * Reads a change in time stamp delta written by writeTimeChange
+     */
+    private static long readTimeChange(BitInput in) {
+        if (!in.readBit()) {
+            return 0;
+        }
+        for (int bits : TIME_CHANGE_BITS) {
+            if (!in.readBit()) {
+                //sign extend
+                return (in.read(bits) << (64 - bits)) >> (64 - bits);
+            }
+        }
+        return in.read(64);
+    }
+
+    /**
+     * The previous value of each entity type in a block, and the window of bits that differed
+     * from the one before it. Writing and reading a block go through the same states.
+     */
+    //REP INVARIANTS: previous, leading, trailing have one entry per entity type,
+    //                leading[t] == -1 if type t has no window yet, else leading[t] + trailing[t] < 64
+    private static class XorState {
+        private final long[] previous;
+        private final int[] leading;
+        private final int[] trailing;
+
+        XorState(int types) {
+            previous = new long[types];
+            leading = new int[types];
+            trailing = new int[types];
+        }
+
+        /**
+         * Forgets every value, at the start of a block
+         */
+        void reset() {
+            Arrays.fill(previous, 0);
+            Arrays.fill(leading, -1);
+        }
+
+        /**
+         * Writes a value: 0 if it is the previous value of its type, 10 and the differing bits if
+         * they fit in the previous window, else 11, the number of leading zero bits (6), the
+         * number of differing bits less one (6), and the differing bits
+         */
+        void write(BitOutput out, int type, long value) {
+            long xor = value ^ previous[type];
+            previous[type] = value;
+            if (xor == 0) {
+                out.writeBit(false);
+                return;
+            }
+            int leadingZeros = Long.numberOfLeadingZeros(xor);
+            int trailingZeros = Long.numberOfTrailingZeros(xor);
+            if (leading[type] >= 0 && leadingZeros >= leading[type] && trailingZeros >= trailing[type]) {
+                out.write(0b10, 2);
+                out.write(xor >>> trailing[type], 64 - leading[type] - trailing[type]);
+            } else {
+                int meaningful = 64 - leadingZeros - trailingZeros;
+                out.write(0b11, 2);
+                out.write(leadingZeros, 6);
+                out.write(meaningful - 1, 6);
+                out.write(xor >>> trailingZeros, meaningful);
+                leading[type] = leadingZeros;
+                trailing[type] = trailingZeros;
+            }
+        }
+
+        /**
+         * Reads a value written by write
+         */
+        long read(BitInput in, int type) {
+            if (in.readBit()) {
+                if (in.readBit()) {
+                    leading[type] = (int) in.read(6);
+                    trailing[type] = 64 - leading[type] - ((int) in.read(6) + 1);
+                }
+                previous[type] ^= in.read(64 - leading[type] - trailing[type]) << trailing[type];
+            }
+            return previous[type];
+        }
+    }
+
+    /**
+     * Decodes the events of this segment one at a time, from any position, without building an
+     * Event until one is asked for. The fields hold the event at position.
+     */
+    //REP INVARIANTS: 0 <= position < size once created, the fields hold the event at position
+    private class Cursor {
+        private final BitInput events = new BitInput(data, 0);
+        private final BitInput booleans = new BitInput(data, 0);
+        private final XorState values = new XorState(types.length);
+        private long time;
+        private long delta;
+        private boolean runValue;
+        private long runRemaining;
+        private boolean runStarted;
+
+        int position = -1;
+        int series;
+        double timeStamp;
+        double value;
+        boolean booleanValue;
+
+        /**
+         * Creates a cursor at an event, decoding its block up to it
+         * @param position the position of the event, 0 <= position < size()
+         */
+        Cursor(int position) {
+            if (position < 0 || position >= size) {
+                throw new IndexOutOfBoundsException("Event " + position + " of a segment of " + size);
+            }
+            this.position = position / BLOCK_SIZE * BLOCK_SIZE - 1;
+            while (this.position < position) {
+                next();
+            }
+        }
+
+        /**
+         * Moves to the next event
+         * @return false if there is none, and the cursor stays at the last event
+         */
+        boolean next() {
+            if (position + 1 >= size) {
+                return false;
+            }
+            position++;
+            boolean blockStart = position % BLOCK_SIZE == 0;
+            if (blockStart) {
+                int block = position / BLOCK_SIZE;
+                events.seek(eventOffsets[block]);
+                booleans.seek(booleanOffsets[block]);
+                values.reset();
+                runRemaining = 0;
+                runStarted = false;
+            }
+
+            series = (int) events.read(seriesWidth);
+            if (blockStart) {
+                time = events.read(64);
+                delta = 0;
+            } else {
+                delta += readTimeChange(events);
+                time += delta;
+            }
+            timeStamp = Double.longBitsToDouble(time);
+
+            if (!seriesActuators[series]) {
+                value = Double.longBitsToDouble(values.read(events, seriesTypes[series]));
+            } else {
+                if (runRemaining == 0) {
+                    runValue = runStarted ? !runValue : booleans.readBit();
+                    runStarted = true;
+                    runRemaining = booleans.readGamma();
+                }
+                runRemaining--;
+                booleanValue = runValue;
+            }
+            return true;
+        }
+
+        /**
+         * Builds the event at the cursor
+         * @return the event, its arrival time is not set
+         */
+        Event event() {
+            String entityType = types[seriesTypes[series]];
+            if (seriesActuators[series]) {
+                return new ActuatorEvent(timeStamp, seriesClientIds[series], seriesEntityIds[series], entityType, booleanValue);
+            }
+            return new SensorEvent(timeStamp, seriesClientIds[series], seriesEntityIds[series], entityType, value);
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package cpen221.mp3.storage;
+
+import cpen221.mp3.event.Event;
+import cpen221.mp3.metrics.Counter;
+import cpen221.mp3.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The sealed part of a server's event history: a list of memory-mapped EventSegments in the
+ * order they were sealed. The server keeps its newest events on the heap (its active segment)
+ * and hands them here once there are segmentSize of them. sealLater writes the segment on a
+ * background thread, and until it is written the events are kept as an unsealed run that
+ * queries read like a segment.
+ *
+ * Each segment is sorted by time stamp, but an event arriving late can be older than events
+ * already sealed, so the time ranges of segments may overlap. Queries therefore skip segments
+ * by their time range and merge what they find, rather than assuming the segments are disjoint.
+ */
+//REP INVARIANTS: directory, segments, unsealed != null, segmentSize >= 1, sealedEvents is the sum of the
+//                segment sizes, unsealedEvents the sum of the run sizes, sealedBytes the sum of the
+//                segment file sizes, pending >= 0
+public class SegmentedEventStore {
+    public static final int DEFAULT_SEGMENT_SIZE = 65536; //in events
+    public static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final Counter SEGMENTS_SEALED = MetricsRegistry.shared().counter("storage.segments_sealed");
+    private static final Counter EVENTS_SEALED = MetricsRegistry.shared().counter("storage.events_sealed");
+    private static final Counter BYTES_SEALED = MetricsRegistry.shared().counter("storage.bytes_sealed");
+
+    private static final Comparator<Event> TIME_ORDER = Comparator.comparingDouble(Event::getTimeStamp);
+    private static final Comparator<Event> TIME_THEN_ENTITY_ORDER = Comparator.comparingDouble(Event::getTimeStamp)
+            .thenComparingInt(Event::getEntityId);
+
+    //writes the segments of every store handed to sealLater, in the order they were handed over
+    private static final ExecutorService SEALER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "segment-sealer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The events of a store at one moment: its segments and the runs still being sealed
+     */
+    //REP INVARIANTS: segments, unsealed != null
+    public static final class Contents {
+        public final List<EventSegment> segments;
+        public final List<List<Event>> unsealed;
+
+        private Contents(List<EventSegment> segments, List<List<Event>> unsealed) {
+            this.segments = segments;
+            this.unsealed = unsealed;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final List<EventSegment> segments = new CopyOnWriteArrayList<>();
+    //runs handed to sealLater and not written yet, oldest first, they are never changed
+    private final List<List<Event>> unsealed = new CopyOnWriteArrayList<>();
+    private volatile long sealedEvents = 0;
+    private volatile long unsealedEvents = 0;
+    private volatile long sealedBytes = 0;
+    private volatile boolean failed = false;
+    private int nextSegment = 0;
+    //the runs handed to sealLater whose write has not finished, guarded by this
+    private int pending = 0;
+
+    /**
+     * Creates an empty store. Segment files left in the directory by an earlier store are
+     * deleted, the events in them come back by replaying the write-ahead log.
+     *
+     * @param directory the directory of the segment files, created if it does not exist
+     * @param segmentSize the number of events per segment, >= 1
+     * @throws IOException if the directory cannot be created or cleared
+     */
+    public SegmentedEventStore(Path directory, int segmentSize) throws IOException {
+        this(directory, segmentSize, Set.of());
+    }
+
+    /**
+     * Creates a store holding segments an earlier store sealed, e.g. the ones named in a server
+     * snapshot. The other segment files in the directory are deleted, and a named segment that
+     * no longer exists is skipped with a warning.
+     *
+     * @param directory the directory of the segment files, created if it does not exist
+     * @param segmentSize the number of events per segment, >= 1
+     * @param fileNames the file names of the segments to keep, oldest first
+     * @return the store
+     * @throws IOException if the directory cannot be used or a segment cannot be read
+     */
+    public static SegmentedEventStore restore(Path directory, int segmentSize, List<String> fileNames) throws IOException {
+        SegmentedEventStore store = new SegmentedEventStore(directory, segmentSize, new HashSet<>(fileNames));
+        for (String name : fileNames) {
+            Path file = directory.resolve(name);
+            if (!Files.exists(file)) {
+                System.out.println("WARNING -> segment " + file + " is missing, its events are lost");
+                continue;
+            }
+            EventSegment segment = EventSegment.open(file);
+            store.segments.add(segment);
+            store.sealedEvents += segment.size();
+            store.sealedBytes += segment.getByteSize();
+            store.nextSegment = Math.max(store.nextSegment, segmentNumber(name) + 1);
+        }
+        return store;
+    }
+
+    /**
+     * Creates a store with no segments, deleting the segment files in the directory not kept
+     */
+    private SegmentedEventStore(Path directory, int segmentSize, Set<String> keep) throws IOException {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("Segments need at least one event");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, "segment-*" + SEGMENT_SUFFIX)) {
+            for (Path file : stale) {
+                if (!keep.contains(file.getFileName().toString())) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the directory of the segment files
+     * @return the directory
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Gets the number of events the server should hold on the heap before sealing them
+     * @return the number of events per segment
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Writes events to a new segment, on disk to stay once this returns
+     * @param events the events, requires that they are sorted by time stamp
+     * @throws IOException if the segment cannot be written
+     */
+    public synchronized void seal(List<Event> events) throws IOException {
+        if (events.isEmpty()) {
+            return;
+        }
+        awaitSealed();
+        addSegment(EventSegment.write(nextFile(), events));
+    }
+
+    /**
+     * Writes events to a new segment on a background thread, so the caller does not wait for
+     * them to be encoded and forced to disk. Until the segment is written the events are read
+     * from the list. If it cannot be written the error is printed, the events stay in the
+     * list and hasFailed is true.
+     *
+     * @param events the events, requires that they are sorted by time stamp and that the list
+     *               is never changed again
+     */
+    public synchronized void sealLater(List<Event> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        Path file = nextFile();
+        unsealed.add(events);
+        unsealedEvents += events.size();
+        pending++;
+        SEALER.execute(() -> {
+            EventSegment segment = null;
+            try {
+                //copied for the random access of the encoder
+                segment = EventSegment.write(file, new ArrayList<>(events));
+            } catch (IOException e) {
+                System.out.println("ERROR sealing events into " + file + ", keeping them on the heap: " + e.getMessage());
+                failed = true;
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                    //the store deletes stale segment files when it is created again
+                }
+            }
+            synchronized (this) {
+                if (segment != null) {
+                    //the segment and the run are swapped together, so a reader sees one of them
+                    addSegment(segment);
+                    removeUnsealed(events);
+                }
+                pending--;
+                notifyAll();
+            }
+        });
+    }
+
+    /**
+     * Tells whether a segment handed to sealLater could not be written
+     * @return true if a write failed, its events are still in the store
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Waits until the segments handed to sealLater so far are written or have failed
+     */
+    public synchronized void awaitSealed() {
+        boolean interrupted = false;
+        while (pending > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the number of events in the store
+     * @return the number of events in every segment and every run still being sealed
+     */
+    public long size() {
+        return sealedEvents + unsealedEvents;
+    }
+
+    /**
+     * Gets the size of the sealed segments
+     * @return the number of bytes in every segment file
+     */
+    public long getByteSize() {
+        return sealedBytes;
+    }
+
+    /**
+     * Gets the segment sealed first
+     * @return the oldest segment, null if nothing is sealed
+     */
+    public EventSegment oldest() {
+        List<EventSegment> current = getSegments();
+        return current.isEmpty() ? null : current.get(0);
+    }
+
+    /**
+     * Takes a segment out of the store, leaving its file in place. Queries already reading
+     * the segment finish reading it.
+     * @param segment the segment
+     * @return true if the segment was in the store
+     */
+    public synchronized boolean remove(EventSegment segment) {
+        if (!segments.remove(segment)) {
+            return false;
+        }
+        sealedEvents -= segment.size();
+        sealedBytes -= segment.getByteSize();
+        return true;
+    }
+
+    /**
+     * Gets the sealed segments
+     * @return the segments, oldest first
+     */
+    public List<EventSegment> getSegments() {
+        return List.copyOf(segments);
+    }
+
+    /**
+     * Gets the segments and the runs still being sealed, as of one moment, so an event being
+     * sealed is in exactly one of them
+     * @return the contents of the store
+     */
+    public synchronized Contents contents() {
+        return new Contents(List.copyOf(segments), List.copyOf(unsealed));
+    }
+
+    /**
+     * Reads the sealed events of a time window
+     * @param startTime the start of the window, inclusive
+     * @param endTime the end of the window, inclusive
+     * @return the events in the window, in time stamp order
+     */
+    public List<Event> eventsBetween(double startTime, double endTime) {
+        Contents contents = contents();
+        List<Event> events = new ArrayList<>();
+        int overlapping = 0;
+        for (EventSegment segment : contents.segments) {
+            if (segment.getMaxTimeStamp() >= startTime && segment.getMinTimeStamp() <= endTime) {
+                events.addAll(segment.eventsBetween(startTime, endTime));
+                overlapping++;
+            }
+        }
+        for (List<Event> run : contents.unsealed) {
+            if (run.get(run.size() - 1).getTimeStamp() >= startTime && run.get(0).getTimeStamp() <= endTime) {
+                for (Event event : run) {
+                    if (event.getTimeStamp() >= startTime && event.getTimeStamp() <= endTime) {
+                        events.add(event);
+                    }
+                }
+                overlapping++;
+            }
+        }
+        if (overlapping > 1) {
+            events.sort(TIME_ORDER);
+        }
+        return events;
+    }
+
+    /**
+     * Reads the sealed events that could be among the latest n: the latest n of each segment
+     * and every event tied with the earliest of them, from the segments recent enough to matter
+     * @param n the number of latest events wanted
+     * @return the candidates, sorted by time stamp then entity id, at least the latest n sealed events
+     */
+    public List<Event> latestCandidates(int n) {
+        List<Event> candidates = new ArrayList<>();
+        if (n <= 0) {
+            return candidates;
+        }
+        Contents contents = contents();
+        for (List<Event> run : contents.unsealed) {
+            //at most a segment or two are being sealed, their latest n are simply added
+            int first = Math.max(0, run.size() - n);
+            double earliest = run.get(first).getTimeStamp();
+            while (first > 0 && run.get(first - 1).getTimeStamp() == earliest) {
+                first--;
+            }
+            candidates.addAll(run.subList(first, run.size()));
+        }
+        candidates.sort(TIME_THEN_ENTITY_ORDER);
+        double boundary = candidates.size() >= n ? candidates.get(candidates.size() - n).getTimeStamp()
+                : Double.NEGATIVE_INFINITY;
+
+        List<EventSegment> byNewest = new ArrayList<>(contents.segments);
+        byNewest.sort(Comparator.comparingDouble(EventSegment::getMaxTimeStamp).reversed());
+
+        //boundary is the n-th latest time stamp found so far, older segments can't have anything later
+        for (EventSegment segment : byNewest) {
+            if (candidates.size() >= n && segment.getMaxTimeStamp() < boundary) {
+                break;
+            }
+            int first = Math.max(0, segment.size() - n);
+            first = segment.lowerBound(segment.timeStampAt(first));
+            candidates.addAll(segment.events(first, segment.size()));
+            candidates.sort(TIME_THEN_ENTITY_ORDER);
+            if (candidates.size() >= n) {
+                boundary = candidates.get(candidates.size() - n).getTimeStamp();
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Gets the latest sealed event
+     * @return the sealed event with the largest time stamp, null if nothing is sealed
+     */
+    public Event latest() {
+        Contents contents = contents();
+        EventSegment newest = null;
+        for (EventSegment segment : contents.segments) {
+            if (newest == null || segment.getMaxTimeStamp() >= newest.getMaxTimeStamp()) {
+                newest = segment;
+            }
+        }
+        Event latest = newest == null ? null : newest.get(newest.size() - 1);
+        for (List<Event> run : contents.unsealed) {
+            Event last = run.get(run.size() - 1);
+            if (latest == null || last.getTimeStamp() >= latest.getTimeStamp()) {
+                latest = last;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Names the file of the next segment
+     */
+    private Path nextFile() {
+        return directory.resolve(String.format("segment-%08d%s", nextSegment++, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Adds a written segment to the store and the metrics, requires the lock of this store
+     */
+    private void addSegment(EventSegment segment) {
+        segments.add(segment);
+        sealedEvents += segment.size();
+        sealedBytes += segment.getByteSize();
+        SEGMENTS_SEALED.increment();
+        EVENTS_SEALED.add(segment.size());
+        BYTES_SEALED.add(segment.getByteSize());
+    }
+
+    /**
+     * Takes a written run out of the unsealed runs, by identity, requires the lock of this store
+     */
+    private void removeUnsealed(List<Event> run) {
+        for (int i = 0; i < unsealed.size(); i++) {
+            if (unsealed.get(i) == run) {
+                unsealed.remove(i);
+                unsealedEvents -= run.size();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the number out of a segment file name
+     * @return the number, -1 if the name is not one this store writes
+     */
+    private static int segmentNumber(String fileName) {
+        try {
+            return Integer.parseInt(fileName.substring("segment-".length(), fileName.length() - SEGMENT_SUFFIX.length()));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Deletes every segment, after the ones being sealed are written, and every unsealed run
+     * @throws IOException if a segment file cannot be deleted
+     */
+    public synchronized void clear() throws IOException {
+        awaitSealed();
+        unsealed.clear();
+        unsealedEvents = 0;
+        for (EventSegment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+        sealedEvents = 0;
+        sealedBytes = 0;
+    }
+}
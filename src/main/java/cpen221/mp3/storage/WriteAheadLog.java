@@ -0,0 +1,531 @@
+package cpen221.mp3.storage;
+
+import cpen221.mp3.event.Event;
+import cpen221.mp3.metrics.Counter;
+import cpen221.mp3.metrics.LatencyHistogram;
+import cpen221.mp3.metrics.MetricsRegistry;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only log of the events a server has received, so they survive the process dying.
+ *
+ * Appending only encodes the event and queues it, a dedicated writer thread takes everything
+ * queued since its last write and writes it with one FileChannel.write (group commit). The file
+ * is forced to disk at most every fsync interval, so durability costs one sequential write per
+ * batch instead of one sync per event. An interval of 0 forces after every batch, and sync()
+ * waits until everything appended so far is on disk.
+ *
+ * Each record is: body length (4 bytes), CRC32C of the body (4), then the body, which is the
+ * log sequence number (8) followed by the event as written by EventCodec. A crash can leave a
+ * torn record at the end of the file, reading stops at the first record that is cut short or
+ * fails its CRC, and opening the log cuts the file back to the last good record.
+ *
+ * Once a snapshot holds the events up to some lsn, checkpoint rolls the log over to a new file
+ * holding only the records after it and deletes the old one, so the log only grows between two
+ * snapshots and a restart reads only the tail the snapshot does not hold.
+ */
+//REP INVARIANTS: file, channel, writer != null, fsyncInterval >= 0,
+//                durableLsn <= writtenLsn <= lastLsn, records in the file have increasing lsns,
+//                checkpointedLsn <= writtenLsn, the file holds no record with lsn <= checkpointedLsn
+public class WriteAheadLog implements Closeable {
+    public static final long DEFAULT_FSYNC_INTERVAL = 10; //in ms
+    public static final int MAX_BATCH = 4096; //in records
+    static final int HEADER_SIZE = 8; //length and CRC
+    static final int MAX_BODY_SIZE = 8 + 1 + 8 + 4 + 4 + 2 + 0xFFFF + 8;
+
+    private static final Counter RECORDS = MetricsRegistry.shared().counter("wal.records");
+    private static final Counter BYTES = MetricsRegistry.shared().counter("wal.bytes");
+    private static final Counter BATCHES = MetricsRegistry.shared().counter("wal.batches");
+    private static final Counter FSYNCS = MetricsRegistry.shared().counter("wal.fsyncs");
+    private static final Counter CHECKPOINTS = MetricsRegistry.shared().counter("wal.checkpoints");
+    private static final LatencyHistogram FSYNC_TIME = MetricsRegistry.shared().histogram("wal.fsync_time_us");
+
+    //markers queued after the records to tell the writer to force, or to force and stop
+    private static final Pending SYNC = new Pending(-1, null);
+    private static final Pending CLOSE = new Pending(-1, null);
+
+    private final Path file;
+    private FileChannel channel;              // replaced by a checkpoint, only used by the writer
+    private final long fsyncInterval;
+    private final BlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    private long lastLsn;                     // the last lsn handed out, guarded by this
+    private volatile long writtenLsn;         // the last lsn written to the file
+    private volatile long durableLsn;         // the last lsn forced to disk
+    private volatile long checkpointedLsn;    // the records up to this lsn were dropped
+    private final Object durableChanged = new Object();
+    private volatile IOException failure = null;
+    private volatile boolean closed = false;
+
+    /**
+     * A record waiting for the writer, or a checkpoint through lsn if event is null
+     */
+    private static final class Pending {
+        final long lsn;
+        final byte[] event;
+
+        Pending(long lsn, byte[] event) {
+            this.lsn = lsn;
+            this.event = event;
+        }
+    }
+
+    /**
+     * What reading a log found
+     */
+    private static final class Scan {
+        long validLength = 0;   // bytes up to the end of the last good record
+        long firstLsn = 0;      // 0 if there is no good record
+        long lastLsn = 0;
+        long records = 0;       // records handed to the consumer
+    }
+
+    /**
+     * Opens a log for appending, creating the file if it does not exist. A torn record left
+     * at the end by a crash is cut off. Read the events already in the file with read first.
+     *
+     * @param file the log file
+     * @param fsyncIntervalMillis the max time written records wait to be forced to disk, in ms, >= 0
+     * @throws IOException if the file cannot be opened
+     */
+    public WriteAheadLog(Path file, long fsyncIntervalMillis) throws IOException {
+        this(file, fsyncIntervalMillis, 0);
+    }
+
+    /**
+     * Opens a log for appending that continues after a given lsn, creating the file if it does
+     * not exist. A log checkpointed after its last record is empty, so the lsn a snapshot was
+     * taken at is needed to keep handing out larger lsns.
+     *
+     * @param file the log file
+     * @param fsyncIntervalMillis the max time written records wait to be forced to disk, in ms, >= 0
+     * @param afterLsn the lsn to continue after if the file holds no larger one, >= 0
+     * @throws IOException if the file cannot be opened
+     */
+    public WriteAheadLog(Path file, long fsyncIntervalMillis, long afterLsn) throws IOException {
+        if (fsyncIntervalMillis < 0) {
+            throw new IllegalArgumentException("fsync interval can't be negative");
+        }
+        this.file = file;
+        this.fsyncInterval = fsyncIntervalMillis;
+
+        Scan scan = Files.exists(file) ? scan(file, Long.MAX_VALUE, null) : new Scan();
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() > scan.validLength) {
+            System.out.println("WARNING -> cutting " + (channel.size() - scan.validLength)
+                    + " bytes of torn records off the end of " + file);
+            channel.truncate(scan.validLength);
+            channel.force(true);
+        }
+        channel.position(scan.validLength);
+        this.lastLsn = Math.max(scan.lastLsn, afterLsn);
+        this.writtenLsn = lastLsn;
+        this.durableLsn = lastLsn;
+        this.checkpointedLsn = scan.firstLsn > 0 ? scan.firstLsn - 1 : lastLsn;
+
+        this.writer = new Thread(this::writeForever, "wal-writer-" + file.getFileName());
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Reads every good record of a log, in the order they were appended. Reading stops at the
+     * first torn or corrupt record.
+     *
+     * @param file the log file
+     * @param consumer gets each event, its arrival time is not set
+     * @return the number of events read, 0 if the file does not exist
+     * @throws IOException if the file cannot be read
+     */
+    public static long read(Path file, Consumer<Event> consumer) throws IOException {
+        return read(file, 0, consumer);
+    }
+
+    /**
+     * Reads the good records of a log appended after a given one, e.g. the tail not yet in a
+     * snapshot. Reading stops at the first torn or corrupt record.
+     *
+     * @param file the log file
+     * @param afterLsn only records with a larger lsn are read
+     * @param consumer gets each event, its arrival time is not set
+     * @return the number of events read, 0 if the file does not exist
+     * @throws IOException if the file cannot be read
+     */
+    public static long read(Path file, long afterLsn, Consumer<Event> consumer) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        return scan(file, afterLsn, consumer).records;
+    }
+
+    /**
+     * Appends an event to the log without waiting for it to be written
+     * @param event the event to append
+     * @return the log sequence number of the event, or -1 if the log is closed or has failed
+     */
+    public long append(Event event) {
+        if (closed || failure != null) {
+            return -1;
+        }
+        byte[] encoded = EventCodec.encode(event);
+        synchronized (this) {
+            long lsn = ++lastLsn;
+            pending.add(new Pending(lsn, encoded));
+            return lsn;
+        }
+    }
+
+    /**
+     * Waits until every event appended before this call is forced to disk
+     * @throws IOException if the log failed to write or force them
+     */
+    public void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            target = lastLsn;
+        }
+        if (durableLsn >= target) {
+            return;
+        }
+        pending.add(SYNC);
+        synchronized (durableChanged) {
+            while (durableLsn < target && failure == null && writer.isAlive()) {
+                try {
+                    durableChanged.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted waiting for the write-ahead log", e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Drops the records up to an lsn, once a snapshot holds their events: the records after it
+     * are copied to a new file that atomically replaces the log. Waits until the log is rolled
+     * over. Records appended meanwhile are kept.
+     *
+     * @param lsn the last lsn the snapshot holds
+     * @throws IOException if the log failed to write or roll over
+     */
+    public void checkpoint(long lsn) throws IOException {
+        lsn = Math.min(lsn, getLastLsn());
+        if (closed || lsn <= checkpointedLsn) {
+            return;
+        }
+        pending.add(new Pending(lsn, null));
+        synchronized (durableChanged) {
+            while (checkpointedLsn < lsn && failure == null && writer.isAlive()) {
+                try {
+                    durableChanged.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted waiting for the write-ahead log", e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Gets the sequence number of the last record dropped by a checkpoint
+     * @return the checkpointed lsn, the file holds only records after it
+     */
+    public long getCheckpointedLsn() {
+        return checkpointedLsn;
+    }
+
+    /**
+     * Gets the sequence number of the last event appended
+     * @return the last lsn, 0 if the log is empty
+     */
+    public synchronized long getLastLsn() {
+        return lastLsn;
+    }
+
+    /**
+     * Gets the sequence number of the last event forced to disk
+     * @return the last durable lsn
+     */
+    public long getDurableLsn() {
+        return durableLsn;
+    }
+
+    /**
+     * Gets the file of this log
+     * @return the log file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Writes and forces everything appended so far, then closes the file.
+     * Events appended while closing may be lost.
+     * @throws IOException if the file fails to close
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pending.add(CLOSE);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * The writer thread: writes each batch of queued records with one write, and forces the
+     * file when the fsync interval has passed since the last force
+     */
+    private void writeForever() {
+        List<Pending> batch = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+        ByteBuffer lsnBytes = ByteBuffer.allocate(8);
+        CRC32C crc = new CRC32C();
+        long lastForce = System.currentTimeMillis();
+
+        try {
+            while (true) {
+                Pending first;
+                if (writtenLsn > durableLsn) {
+                    //something is waiting to be forced, wake up when its interval is over
+                    long remaining = fsyncInterval - (System.currentTimeMillis() - lastForce);
+                    first = remaining > 0 ? pending.poll(remaining, TimeUnit.MILLISECONDS) : pending.poll();
+                } else {
+                    first = pending.take();
+                }
+
+                boolean force = false;
+                boolean close = false;
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, MAX_BATCH - 1);
+                    long last = 0;
+                    for (Pending record : batch) {
+                        if (record == SYNC) {
+                            force = true;
+                        } else if (record == CLOSE) {
+                            close = true;
+                        } else if (record.event == null) {
+                            //the records queued before the checkpoint go to the new file
+                            if (last > 0) {
+                                writeFully(buffer);
+                                writtenLsn = last;
+                            }
+                            rollOver(Math.min(record.lsn, writtenLsn));
+                        } else {
+                            int size = HEADER_SIZE + 8 + record.event.length;
+                            if (buffer.remaining() < size) {
+                                writeFully(buffer);
+                                if (buffer.capacity() < size) {
+                                    buffer = ByteBuffer.allocateDirect(size);
+                                }
+                            }
+                            lsnBytes.clear();
+                            lsnBytes.putLong(record.lsn);
+                            crc.reset();
+                            crc.update(lsnBytes.array());
+                            crc.update(record.event);
+
+                            buffer.putInt(8 + record.event.length);
+                            buffer.putInt((int) crc.getValue());
+                            buffer.putLong(record.lsn);
+                            buffer.put(record.event);
+                            last = record.lsn;
+                            RECORDS.increment();
+                            BYTES.add(size);
+                        }
+                    }
+                    batch.clear();
+                    if (last > 0) {
+                        writeFully(buffer);
+                        BATCHES.increment();
+                        writtenLsn = last;
+                    }
+                }
+
+                if (writtenLsn > durableLsn && (force || close || fsyncInterval == 0
+                        || System.currentTimeMillis() - lastForce >= fsyncInterval)) {
+                    long target = writtenLsn;
+                    long start = System.nanoTime();
+                    channel.force(false);
+                    FSYNC_TIME.record((System.nanoTime() - start) / 1000);
+                    FSYNCS.increment();
+                    lastForce = System.currentTimeMillis();
+                    setDurable(target);
+                } else if (force) {
+                    setDurable(writtenLsn);
+                }
+                if (close) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+            System.out.println("ERROR -> write-ahead log " + file + " failed, no more events are logged: " + e.getMessage());
+            setDurable(durableLsn);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replaces the log with a new file holding only the records after an lsn, on the writer
+     * thread. The old file only holds records since the last checkpoint, so finding where the
+     * tail starts reads one header per record of that much. A crash leaves either file whole.
+     * @param throughLsn the last lsn to drop, <= writtenLsn
+     * @throws IOException if the new file cannot be written or moved into place
+     */
+    private void rollOver(long throughLsn) throws IOException {
+        long end = channel.position();
+        long start = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 8);
+        while (start < end) {
+            header.clear();
+            while (header.hasRemaining()) {
+                if (channel.read(header, start + header.position()) < 0) {
+                    throw new EOFException("write-ahead log " + file + " ends inside a record");
+                }
+            }
+            if (header.getLong(HEADER_SIZE) > throughLsn) {
+                break;
+            }
+            start += HEADER_SIZE + header.getInt(0);
+        }
+
+        if (start > 0) {
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel tail = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (long copied = 0; copied < end - start; ) {
+                    copied += channel.transferTo(start + copied, end - start - copied, tail);
+                }
+                tail.force(true);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            EventSegment.syncDirectory(file.toAbsolutePath().getParent());
+            channel.close();
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(end - start);
+            CHECKPOINTS.increment();
+            //everything written is in the forced new file
+            setDurable(writtenLsn);
+        }
+        synchronized (durableChanged) {
+            checkpointedLsn = Math.max(checkpointedLsn, throughLsn);
+            durableChanged.notifyAll();
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the file and empties the buffer
+     */
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Records how far the file is on disk and wakes up threads waiting in sync
+     */
+    private void setDurable(long lsn) {
+        synchronized (durableChanged) {
+            durableLsn = lsn;
+            durableChanged.notifyAll();
+        }
+    }
+
+    /**
+     * Reads the good records of a log, only the records that are handed to the consumer are decoded
+     * @param file the log file
+     * @param afterLsn only records with a larger lsn are handed to the consumer and counted
+     * @param consumer gets each event, null to only find where the good records end
+     * @return where the good records end, the last lsn and the number of records handed over
+     */
+    private static Scan scan(Path file, long afterLsn, Consumer<Event> consumer) throws IOException {
+        Scan scan = new Scan();
+        CRC32C crc = new CRC32C();
+        try (InputStream stream = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16))) {
+            byte[] body = new byte[256];
+            while (true) {
+                int length;
+                int checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 8 || length > MAX_BODY_SIZE) {
+                        return scan;
+                    }
+                    if (body.length < length) {
+                        body = new byte[Math.max(length, body.length * 2)];
+                    }
+                    in.readFully(body, 0, length);
+                } catch (EOFException e) {
+                    //a record cut short by a crash, or the end of the file
+                    return scan;
+                }
+
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    return scan;
+                }
+
+                ByteBuffer record = ByteBuffer.wrap(body, 0, length);
+                long lsn = record.getLong();
+                if (consumer != null && lsn > afterLsn) {
+                    Event event;
+                    try {
+                        event = EventCodec.decode(record);
+                    } catch (RuntimeException e) {
+                        //the CRC matched but the body is not an event, treat it as the end of the log
+                        System.out.println("WARNING -> unreadable record " + lsn + " in " + file + ": " + e.getMessage());
+                        return scan;
+                    }
+                    consumer.accept(event);
+                    scan.records++;
+                }
+                scan.validLength += HEADER_SIZE + length;
+                if (scan.firstLsn == 0) {
+                    scan.firstLsn = lsn;
+                }
+                scan.lastLsn = lsn;
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package cpen221.mp3.entity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchingWriterTests {
+
+    private static String written(ByteArrayOutputStream sink) {
+        return sink.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testUnbatchedFlushesEveryLine() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        BatchingWriter writer = new BatchingWriter(sink);
+
+        writer.writeLine("first");
+        assertEquals("first\n", written(sink));
+        writer.writeLine("second");
+        assertEquals("first\nsecond\n", written(sink));
+    }
+
+    @Test
+    public void testBatchFlushesOnSize() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        BatchingWriter writer = new BatchingWriter(sink);
+        writer.setBatching(10, 10000);
+
+        for (int i = 0; i < 9; i++) {
+            writer.writeLine("event" + i);
+        }
+        assertEquals("", written(sink));
+        assertEquals(9, writer.pendingLines());
+
+        writer.writeLine("event9");
+        assertEquals(10, written(sink).split("\n").length);
+        assertEquals(0, writer.pendingLines());
+    }
+
+    @Test
+    public void testBatchFlushesAfterLinger() throws IOException, InterruptedException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        BatchingWriter writer = new BatchingWriter(sink);
+        writer.setBatching(100, 20);
+
+        writer.writeLine("lonely");
+        Thread.sleep(300);
+
+        assertEquals("lonely\n", written(sink));
+    }
+
+    @Test
+    public void testFailedFlushKeepsTheUnflushedLines() throws IOException {
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("connection reset");
+            }
+        };
+        BatchingWriter writer = new BatchingWriter(broken);
+        writer.setBatching(3, 10000);
+
+        writer.writeLine("event0");
+        writer.writeLine("event1");
+        assertThrows(IOException.class, () -> writer.writeLine("event2"));
+        assertEquals(List.of("event0", "event1", "event2"), writer.takeUnflushed());
+        assertEquals(List.of(), writer.takeUnflushed());
+    }
+}
@@ -0,0 +1,203 @@
+package cpen221.mp3.entity;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EntityConnectionTests {
+
+    private static Thread recordLines(ServerSocket serverSocket, List<String> lines) {
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    for (String line = in.readLine(); line != null; line = in.readLine()) {
+                        lines.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                // server socket closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return acceptor;
+    }
+
+    @Test
+    public void testSpoolDropsOldestWhenFull() {
+        EventSpool spool = new EventSpool(3);
+        for (int i = 0; i < 5; i++) {
+            spool.add("event" + i);
+        }
+
+        assertEquals(3, spool.size());
+        assertEquals(2, spool.dropped());
+        assertEquals(List.of("event2", "event3", "event4"), spool.drain());
+        assertEquals(0, spool.size());
+    }
+
+    @Test
+    public void testLinesPutBackGoInFrontInOrder() {
+        EventSpool spool = new EventSpool(4);
+        spool.add("event3");
+        spool.add("event4");
+        spool.addFirst(List.of("event1", "event2"));
+        assertEquals(List.of("event1", "event2", "event3", "event4"), spool.drain());
+
+        //once full the oldest of them are dropped
+        spool.add("event3");
+        spool.add("event4");
+        spool.add("event5");
+        spool.addFirst(List.of("event0", "event1", "event2"));
+        assertEquals(2, spool.dropped());
+        assertEquals(List.of("event2", "event3", "event4", "event5"), spool.drain());
+    }
+
+    @Test
+    public void testBackoffGrowsWithJitterUpToMax() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 1000);
+        long first = backoff.nextDelay();
+        long second = backoff.nextDelay();
+        assertTrue(first >= 50 && first <= 100, "first delay " + first);
+        assertTrue(second >= 100 && second <= 200, "second delay " + second);
+
+        for (int i = 0; i < 40; i++) {
+            assertTrue(backoff.nextDelay() <= 1000);
+        }
+        backoff.reset();
+        assertTrue(backoff.nextDelay() <= 100);
+    }
+
+    @Test
+    public void testSpooledEventsAreSentOnReconnect() throws Exception {
+        ServerSocket unused = new ServerSocket(0);
+        int port = unused.getLocalPort();
+        unused.close();
+
+        EntityConnection connection = new EntityConnection("Sensor 1", 100, new ReconnectBackoff(20, 100));
+        connection.connect("127.0.0.1", port);
+        assertFalse(connection.isConnected());
+
+        for (int i = 0; i < 10; i++) {
+            connection.send("event" + i);
+        }
+        assertEquals(10, connection.spooledEvents());
+
+        List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        ServerSocket server = new ServerSocket(port);
+        recordLines(server, lines);
+
+        for (int i = 0; i < 50 && lines.size() < 10; i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(connection.isConnected());
+        assertEquals(0, connection.spooledEvents());
+        assertEquals(10, lines.size());
+        assertEquals("event0", lines.get(0));
+
+        connection.close();
+        server.close();
+    }
+
+    @Test
+    public void testLingeringLinesFollowANewEndpoint() throws Exception {
+        List<String> oldLines = Collections.synchronizedList(new ArrayList<>());
+        List<String> newLines = Collections.synchronizedList(new ArrayList<>());
+        ServerSocket oldServer = new ServerSocket(0);
+        ServerSocket newServer = new ServerSocket(0);
+        recordLines(oldServer, oldLines);
+        recordLines(newServer, newLines);
+
+        EntityConnection connection = new EntityConnection("Sensor 3", 100, new ReconnectBackoff(20, 100));
+        connection.setBatching(100, 60_000);
+        connection.connect("127.0.0.1", oldServer.getLocalPort());
+        assertTrue(connection.isConnected());
+        for (int i = 0; i < 5; i++) {
+            connection.send("event" + i);
+        }
+
+        //still lingering when the endpoint changes
+        connection.connect("127.0.0.1", newServer.getLocalPort());
+        assertTrue(connection.isConnected());
+        connection.setBatching(1, 0);
+        connection.send("event5");
+        for (int i = 0; i < 50 && newLines.size() < 6; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(List.of("event0", "event1", "event2", "event3", "event4", "event5"), newLines);
+        assertEquals(List.of(), oldLines);
+
+        connection.close();
+        oldServer.close();
+        newServer.close();
+    }
+
+    @Test
+    public void testFlowControlSendsOnlyWithCredit() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        EntityConnection connection = new EntityConnection("Sensor 2", 100, new ReconnectBackoff(20, 100));
+        connection.setFlowControl(true);
+        connection.connect("127.0.0.1", server.getLocalPort());
+        Socket socket = server.accept();
+        socket.setSoTimeout(2000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        Writer credit = new OutputStreamWriter(socket.getOutputStream());
+        assertEquals(CreditGate.HELLO, in.readLine());
+
+        for (int i = 0; i < 10; i++) {
+            connection.send("event" + i);
+        }
+        assertEquals(10, connection.spooledEvents()); //no credit yet
+        credit.write(CreditGate.creditLine(3) + "\n");
+        credit.flush();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("event" + i, in.readLine());
+        }
+        socket.setSoTimeout(300);
+        assertThrows(SocketTimeoutException.class, in::readLine);
+        assertEquals(7, connection.spooledEvents());
+
+        socket.setSoTimeout(2000);
+        credit.write(CreditGate.creditLine(10) + "\n");
+        credit.flush();
+        for (int i = 3; i < 10; i++) {
+            assertEquals("event" + i, in.readLine());
+        }
+        assertEquals(0, connection.spooledEvents());
+        assertEquals(3, connection.availableCredits());
+        connection.send("event10"); //sent straight away with credit left
+        assertEquals("event10", in.readLine());
+        assertEquals(0, connection.droppedEvents());
+
+        connection.close();
+        socket.close();
+        server.close();
+    }
+
+    @Test
+    public void testCreditLines() {
+        assertEquals(12, CreditGate.parseCredit(CreditGate.creditLine(12)));
+        assertEquals(-1, CreditGate.parseCredit("CREDIT -4"));
+        assertEquals(-1, CreditGate.parseCredit("SensorEvent{}"));
+        assertTrue(CreditGate.isHello("FLOW_CONTROL"));
+
+        CreditGate gate = new CreditGate();
+        assertFalse(gate.tryAcquire());
+        gate.grant(2);
+        assertTrue(gate.tryAcquire());
+        assertEquals(1, gate.available());
+    }
+}
@@ -0,0 +1,45 @@
+package cpen221.mp3.entity;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EventGenerationSchedulerTests {
+
+    @Test
+    public void testTasksRunAtTheirFrequency() throws InterruptedException {
+        EventGenerationScheduler scheduler = new EventGenerationScheduler(2);
+        AtomicInteger fast = new AtomicInteger();
+        AtomicInteger slow = new AtomicInteger();
+
+        ScheduledFuture<?> fastTask = scheduler.scheduleAtFrequency(fast::incrementAndGet, 50);
+        ScheduledFuture<?> slowTask = scheduler.scheduleAtFrequency(slow::incrementAndGet, 5);
+        Thread.sleep(1010);
+        fastTask.cancel(false);
+        slowTask.cancel(false);
+
+        assertTrue(fast.get() >= 45 && fast.get() <= 51, "fast ran " + fast.get() + " times");
+        assertTrue(slow.get() >= 4 && slow.get() <= 5, "slow ran " + slow.get() + " times");
+    }
+
+    @Test
+    public void testManyEntitiesShareFewThreads() throws InterruptedException {
+        EventGenerationScheduler scheduler = new EventGenerationScheduler(1);
+        AtomicInteger ticks = new AtomicInteger();
+
+        for (int i = 0; i < 1000; i++) {
+            scheduler.scheduleAtFrequency(ticks::incrementAndGet, 10);
+        }
+        Thread.sleep(550);
+
+        assertTrue(ticks.get() >= 4000, "ticked " + ticks.get() + " times");
+    }
+
+    @Test
+    public void testRejectsNonPositiveFrequency() {
+        EventGenerationScheduler scheduler = new EventGenerationScheduler(1);
+        assertThrows(IllegalArgumentException.class, () -> scheduler.scheduleAtFrequency(() -> { }, 0));
+    }
+}
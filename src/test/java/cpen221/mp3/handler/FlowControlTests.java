@@ -0,0 +1,86 @@
+package cpen221.mp3.handler;
+
+import cpen221.mp3.entity.CreditGate;
+import cpen221.mp3.event.SensorEvent;
+import cpen221.mp3.server.Server;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FlowControlTests {
+
+    @Test
+    public void testProducerWaitsAtTheIngestCapacity() throws InterruptedException {
+        Server server = new Server();
+        server.setIngestCapacity(5);
+        server.updateMaxWaitTime(0.3);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 30; i++) {
+                SensorEvent event = new SensorEvent(i, 0, 1, "TempSensor", i);
+                event.setTimeArrived(System.currentTimeMillis());
+                server.processIncomingEvent(event);
+            }
+        });
+        producer.start();
+        Thread.sleep(100);
+        assertTrue(producer.isAlive()); //held back until the worker catches up
+        assertEquals(5, server.getQueuedEventCount());
+
+        producer.join(10_000);
+        assertFalse(producer.isAlive());
+        for (int i = 0; i < 100 && server.isRunning; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(30, server.getEventCount());
+        assertEquals(0, server.getQueuedEventCount());
+        assertThrows(IllegalArgumentException.class, () -> server.setIngestCapacity(0));
+    }
+
+    @Test
+    public void testHandlerGrantsCreditAsTheServerHasRoom() throws Exception {
+        System.setProperty(MessageHandler.CREDIT_WINDOW_PROPERTY, "8");
+        try (ServerSocket handler = new ServerSocket(0);
+             Socket sender = new Socket("127.0.0.1", handler.getLocalPort());
+             Socket accepted = handler.accept()) {
+            Server server = new Server();
+            server.setIngestCapacity(10);
+            server.updateMaxWaitTime(1);
+            ConcurrentMap<Integer, Server> servers = new ConcurrentHashMap<>();
+            servers.put(5, server);
+            Thread handlerThread = new Thread(new MessageHandlerThread(accepted, servers));
+            handlerThread.setDaemon(true);
+            handlerThread.start();
+
+            sender.setSoTimeout(5000);
+            BufferedReader credits = new BufferedReader(new InputStreamReader(sender.getInputStream()));
+            Writer out = new OutputStreamWriter(sender.getOutputStream());
+            out.write(CreditGate.HELLO + "\n");
+            out.flush();
+            assertEquals(8, CreditGate.parseCredit(credits.readLine()));
+
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 8; i++) {
+                out.write(new SensorEvent(i, 5, 1, "TempSensor", i) + ",5,test@test.com\n");
+            }
+            out.flush();
+            //room for the first 4 straight away
+            assertEquals(4, CreditGate.parseCredit(credits.readLine()));
+            assertTrue(System.currentTimeMillis() - start < 900);
+            //the next 4 only fit once the first events are processed, after the max wait time
+            assertEquals(4, CreditGate.parseCredit(credits.readLine()));
+            assertTrue(System.currentTimeMillis() - start >= 900);
+            assertTrue(server.getQueuedEventCount() <= 6);
+        } finally {
+            System.clearProperty(MessageHandler.CREDIT_WINDOW_PROPERTY);
+        }
+    }
+}
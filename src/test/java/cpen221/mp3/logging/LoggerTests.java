@@ -0,0 +1,131 @@
+package cpen221.mp3.logging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoggerTests {
+
+    @Test
+    public void testLevelGating() {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        AsyncLog log = new AsyncLog(16, new PrintStream(text), false);
+        Logger logger = new Logger("test.gating", log);
+        logger.setLevel(Level.WARN);
+
+        logger.debug("debug");
+        logger.info("info");
+        logger.warn("warn");
+        logger.error("error");
+        log.drain();
+
+        assertEquals("warn" + System.lineSeparator() + "error" + System.lineSeparator(), text.toString());
+        assertFalse(logger.isEnabled(Level.INFO));
+
+        logger.setLevel(Level.OFF);
+        assertFalse(logger.isEnabled(Level.ERROR));
+        assertFalse(logger.isEnabled(Level.OFF));
+    }
+
+    @Test
+    public void testLevelFromSystemProperty() {
+        System.setProperty(Logger.CATEGORY_PROPERTY_PREFIX + "test.property", "debug");
+        try {
+            Logger logger = new Logger("test.property", new AsyncLog(16, null, false));
+            assertEquals(Level.DEBUG, logger.getLevel());
+        } finally {
+            System.clearProperty(Logger.CATEGORY_PROPERTY_PREFIX + "test.property");
+        }
+        assertEquals(Level.INFO, new Logger("test.property", new AsyncLog(16, null, false)).getLevel());
+    }
+
+    @Test
+    public void testSamplingCountsSuppressedMessages() {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        AsyncLog log = new AsyncLog(64, new PrintStream(text), false);
+        Logger logger = new Logger("test.sampling", log);
+        logger.setSamplesPerSecond(3);
+
+        for (int i = 0; i < 10; i++) {
+            logger.sampled(Level.INFO, "Event processed");
+        }
+        log.drain();
+
+        assertEquals(7, logger.getSuppressedCount());
+        assertEquals(3, text.toString().split(System.lineSeparator()).length);
+        assertTrue(logger.takeSample(System.currentTimeMillis() + 1000));
+    }
+
+    @Test
+    public void testNextSampleReportsSuppressed() {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        AsyncLog log = new AsyncLog(64, new PrintStream(text), false);
+        Logger logger = new Logger("test.report", log);
+        logger.setSamplesPerSecond(1);
+
+        logger.sampled(Level.INFO, "a");
+        logger.sampled(Level.INFO, "b");
+        logger.sampled(Level.INFO, "c");
+        logger.setSamplesPerSecond(4);
+        logger.sampled(Level.INFO, "d");
+        log.drain();
+
+        assertTrue(text.toString().contains("d (2 similar suppressed)"), text.toString());
+    }
+
+    @Test
+    public void testFullRingDropsAndCounts() {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        AsyncLog log = new AsyncLog(4, new PrintStream(text), false);
+
+        for (int i = 0; i < 6; i++) {
+            log.publish("line " + i);
+        }
+        assertEquals(2, log.dropped());
+        assertEquals(4, log.pending());
+
+        assertEquals(4, log.drain());
+        assertEquals(0, log.pending());
+        assertTrue(log.publish("line 6"));
+        log.drain();
+        assertFalse(text.toString().contains("line 4"));
+        assertTrue(text.toString().contains("line 6"));
+    }
+
+    @Test
+    public void testConcurrentProducersKeepEveryLine() throws Exception {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        AsyncLog log = new AsyncLog(1 << 16, new PrintStream(text), true);
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            int producer = p;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 5000; i++) {
+                    log.publish(producer + ":" + i);
+                }
+            });
+            producers.add(thread);
+            thread.start();
+        }
+        for (Thread thread : producers) {
+            thread.join();
+        }
+        log.flush();
+
+        assertEquals(0, log.dropped());
+        String[] lines = text.toString().split(System.lineSeparator());
+        assertEquals(20000, lines.length);
+
+        //lines of one producer stay in the order it published them
+        int[] next = new int[4];
+        for (String line : lines) {
+            String[] parts = line.split(":");
+            int producer = Integer.parseInt(parts[0]);
+            assertEquals(next[producer]++, Integer.parseInt(parts[1]));
+        }
+    }
+}
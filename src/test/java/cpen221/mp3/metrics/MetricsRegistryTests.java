@@ -0,0 +1,75 @@
+package cpen221.mp3.metrics;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsRegistryTests {
+
+    @Test
+    public void testMetricsAreCreatedOnce() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter counter = registry.counter("test.counter");
+        counter.increment();
+        counter.add(4);
+        counter.decrement();
+
+        assertSame(counter, registry.counter("test.counter"));
+        assertSame(registry.histogram("test.latency_ms"), registry.histogram("test.latency_ms"));
+        assertEquals(4L, registry.snapshot().get("test.counter"));
+    }
+
+    @Test
+    public void testSnapshotReadsGaugesAndFlattensHistograms() {
+        MetricsRegistry registry = new MetricsRegistry();
+        AtomicLong depth = new AtomicLong(7);
+        registry.gauge("test.depth", depth::get);
+        LatencyHistogram histogram = registry.histogram("test.latency_ms");
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        Map<String, Number> snapshot = registry.snapshot();
+        assertEquals(7L, snapshot.get("test.depth"));
+        assertEquals(1000L, snapshot.get("test.latency_ms.count"));
+        assertEquals(1000L, snapshot.get("test.latency_ms.max"));
+        assertTrue(Math.abs(snapshot.get("test.latency_ms.p50").longValue() - 500) <= 8);
+        assertTrue(snapshot.containsKey("test.latency_ms.p999"));
+
+        depth.set(3);
+        assertEquals(3L, registry.snapshot().get("test.depth"));
+    }
+
+    @Test
+    public void testDump() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test.b").add(2);
+        registry.counter("test.a").add(1);
+
+        String dump = registry.dump();
+        assertTrue(dump.indexOf("test.a 1") < dump.indexOf("test.b 2"), dump);
+
+        Path file = Files.createTempFile("metrics", ".txt");
+        registry.writeDump(file);
+        assertTrue(Files.readString(file).contains("test.b 2"));
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testReadableOverJmx() throws Exception {
+        MetricsRegistry registry = MetricsRegistry.shared();
+        registry.counter("test.jmx").add(42);
+        registry.registerMBean();
+        registry.registerMBean();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(42L, server.getAttribute(new ObjectName(MetricsRegistry.OBJECT_NAME), "test.jmx"));
+    }
+}
@@ -0,0 +1,144 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.client.Request;
+import cpen221.mp3.client.RequestCommand;
+import cpen221.mp3.client.RequestType;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ActuatorCommandCoalescerTests {
+
+    private static Request set(boolean state) {
+        return new Request(RequestType.CONTROL, RequestCommand.SET_STATE, String.valueOf(state));
+    }
+
+    private static Request toggle() {
+        return new Request(RequestType.CONTROL, RequestCommand.TOGGLE_STATE, "toggle");
+    }
+
+    private static ServerSocket recordLines(List<String> lines) throws IOException {
+        ServerSocket actuatorSocket = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = actuatorSocket.accept();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    for (String line = in.readLine(); line != null; line = in.readLine()) {
+                        lines.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                // socket closed at the end of the test
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return actuatorSocket;
+    }
+
+    @Test
+    public void testSetFollowedByTogglesSendsOneSet() throws Exception {
+        List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        ServerSocket actuatorSocket = recordLines(lines);
+        ActuatorCommandDispatcher dispatcher = new ActuatorCommandDispatcher();
+        ActuatorCommandCoalescer coalescer = new ActuatorCommandCoalescer(50);
+        ActuatorHandle actuator = new ActuatorHandle(97, 0, "Switch", "127.0.0.1", actuatorSocket.getLocalPort());
+
+        CountDownLatch done = new CountDownLatch(5);
+        coalescer.submit(dispatcher, actuator, toggle(), (command, error) -> done.countDown());
+        coalescer.submit(dispatcher, actuator, set(true), (command, error) -> done.countDown());
+        coalescer.submit(dispatcher, actuator, toggle(), (command, error) -> done.countDown());
+        coalescer.submit(dispatcher, actuator, toggle(), (command, error) -> done.countDown());
+        coalescer.submit(dispatcher, actuator, toggle(), (command, error) -> done.countDown());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("RequestCommand=SET_STATE,requestData={false}"));
+
+        dispatcher.shutdown();
+        actuatorSocket.close();
+    }
+
+    @Test
+    public void testEvenTogglesCancelOut() throws Exception {
+        List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        ServerSocket actuatorSocket = recordLines(lines);
+        ActuatorCommandDispatcher dispatcher = new ActuatorCommandDispatcher();
+        ActuatorCommandCoalescer coalescer = new ActuatorCommandCoalescer(50);
+        ActuatorHandle actuator = new ActuatorHandle(97, 0, "Switch", "127.0.0.1", actuatorSocket.getLocalPort());
+
+        CountDownLatch done = new CountDownLatch(2);
+        coalescer.submit(dispatcher, actuator, toggle(), (command, error) -> done.countDown());
+        coalescer.submit(dispatcher, actuator, toggle(), (command, error) -> done.countDown());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertEquals(0, lines.size());
+        assertEquals(0, coalescer.pendingActuators());
+
+        dispatcher.shutdown();
+        actuatorSocket.close();
+    }
+
+    @Test
+    public void testThrowingCallbackDoesNotStopTheOthers() throws Exception {
+        ActuatorCommandDispatcher dispatcher = new ActuatorCommandDispatcher();
+        ActuatorCommandCoalescer coalescer = new ActuatorCommandCoalescer(20);
+        ActuatorHandle actuator = new ActuatorHandle(98, 0, "Switch", "127.0.0.1", 1);
+
+        CountDownLatch done = new CountDownLatch(2);
+        coalescer.submit(dispatcher, actuator, toggle(), (command, error) -> {
+            throw new IllegalStateException("callback failed");
+        });
+        coalescer.submit(dispatcher, actuator, toggle(), (command, error) -> done.countDown());
+        //the timer thread is still alive for the next window
+        coalescer.submit(dispatcher, new ActuatorHandle(99, 0, "Switch", "127.0.0.1", 1), set(true), null);
+        Thread.sleep(100);
+        coalescer.submit(dispatcher, new ActuatorHandle(99, 0, "Switch", "127.0.0.1", 1), toggle(), (command, error) -> done.countDown());
+        coalescer.submit(dispatcher, new ActuatorHandle(99, 0, "Switch", "127.0.0.1", 1), toggle(), null);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, coalescer.pendingActuators());
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testDisablingTheWindowKeepsCommandsInOrder() throws Exception {
+        List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        ServerSocket actuatorSocket = recordLines(lines);
+        ActuatorCommandDispatcher dispatcher = new ActuatorCommandDispatcher();
+        ActuatorCommandCoalescer coalescer = new ActuatorCommandCoalescer(60_000);
+        ActuatorHandle actuator = new ActuatorHandle(97, 0, "Switch", "127.0.0.1", actuatorSocket.getLocalPort());
+
+        CountDownLatch done = new CountDownLatch(2);
+        coalescer.submit(dispatcher, actuator, set(true), (command, error) -> done.countDown());
+        assertEquals(1, coalescer.pendingActuators());
+        coalescer.setWindow(0);
+        assertEquals(0, coalescer.pendingActuators());
+        coalescer.submit(dispatcher, actuator, set(false), (command, error) -> done.countDown());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && lines.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).contains("requestData={true}"));
+        assertTrue(lines.get(1).contains("requestData={false}"));
+
+        dispatcher.shutdown();
+        actuatorSocket.close();
+    }
+}
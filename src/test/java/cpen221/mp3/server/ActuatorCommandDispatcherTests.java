@@ -0,0 +1,112 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.client.Request;
+import cpen221.mp3.client.RequestCommand;
+import cpen221.mp3.client.RequestType;
+import cpen221.mp3.entity.Actuator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ActuatorCommandDispatcherTests {
+
+    private static Request command(RequestCommand requestCommand, String data) {
+        Request request = new Request(RequestType.CONTROL, requestCommand, data);
+        request.setEmail("");
+        request.setClientId(0);
+        return request;
+    }
+
+    @Test
+    public void testCommandsReuseOneConnection() throws Exception {
+        ActuatorCommandDispatcher dispatcher = new ActuatorCommandDispatcher();
+        ServerSocket actuatorSocket = new ServerSocket(0);
+        AtomicInteger connections = new AtomicInteger();
+        List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch received = new CountDownLatch(10);
+
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = actuatorSocket.accept();
+                    connections.incrementAndGet();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    for (String line = in.readLine(); line != null; line = in.readLine()) {
+                        lines.add(line);
+                        received.countDown();
+                    }
+                }
+            } catch (IOException e) {
+                // socket closed at the end of the test
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        CountDownLatch sent = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(dispatcher.dispatch("127.0.0.1", actuatorSocket.getLocalPort(),
+                    command(RequestCommand.SET_STATE, "true"), (request, error) -> {
+                        if (error == null) {
+                            sent.countDown();
+                        }
+                    }));
+        }
+
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertEquals(1, connections.get());
+        assertEquals(10, lines.size());
+
+        dispatcher.shutdown();
+        actuatorSocket.close();
+    }
+
+    @Test
+    public void testUnreachableActuatorFailsCallback() throws Exception {
+        ActuatorCommandDispatcher dispatcher = new ActuatorCommandDispatcher();
+        ServerSocket unused = new ServerSocket(0);
+        int port = unused.getLocalPort();
+        unused.close();
+
+        CountDownLatch failed = new CountDownLatch(1);
+        dispatcher.dispatch("127.0.0.1", port, command(RequestCommand.TOGGLE_STATE, "toggle"), (request, error) -> {
+            if (error != null) {
+                failed.countDown();
+            }
+        });
+
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testActuatorReceivesCommands() throws Exception {
+        ActuatorCommandDispatcher dispatcher = new ActuatorCommandDispatcher();
+        Actuator actuator = new Actuator(97, 0, "Switch", true);
+        actuator.createServerSocket(0);
+
+        CountDownLatch sent = new CountDownLatch(2);
+        dispatcher.dispatch(actuator.getIP(), actuator.getServerPort(), command(RequestCommand.SET_STATE, "false"), (request, error) -> sent.countDown());
+        dispatcher.dispatch(actuator.getIP(), actuator.getServerPort(), command(RequestCommand.TOGGLE_STATE, "toggle"), (request, error) -> sent.countDown());
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+
+        Thread.sleep(500);
+        assertTrue(actuator.getState());
+
+        dispatcher.shutdown();
+        actuator.close();
+    }
+}
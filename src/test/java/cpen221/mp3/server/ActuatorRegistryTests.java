@@ -0,0 +1,45 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.entity.Actuator;
+import cpen221.mp3.event.ActuatorEvent;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ActuatorRegistryTests {
+
+    @Test
+    public void testRegisterFromString() {
+        ActuatorRegistry registry = new ActuatorRegistry();
+        Actuator actuator = new Actuator(97, 0, "Switch", true);
+
+        ActuatorHandle handle = registry.register(actuator.toString());
+
+        assertEquals(97, handle.getId());
+        assertEquals(0, handle.getClientId());
+        assertEquals("Switch", handle.getType());
+        assertNull(handle.getHost());
+        assertTrue(handle.hasEndpoint());
+        assertSame(handle, registry.get(97));
+    }
+
+    @Test
+    public void testLearnFromEvents() {
+        ActuatorRegistry registry = new ActuatorRegistry();
+
+        registry.recordEvent(new ActuatorEvent(1.0, 0, 11, "Switch", true));
+        ActuatorHandle handle = registry.get(11);
+        assertTrue(handle.hasSentEvent());
+        assertTrue(handle.getState());
+        assertFalse(handle.hasEndpoint());
+
+        registry.recordLateEvent(new ActuatorEvent(0.5, 0, 11, "Switch", false));
+        assertTrue(handle.getState());
+
+        registry.register(11, 0, "Switch", "127.0.0.1", 4000);
+        assertSame(handle, registry.get(11));
+        assertTrue(handle.hasEndpoint());
+        assertEquals(4000, handle.getCommandPort());
+        assertEquals(1, registry.size());
+    }
+}
@@ -0,0 +1,153 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.client.Request;
+import cpen221.mp3.client.RequestCommand;
+import cpen221.mp3.client.RequestType;
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdmissionTests {
+
+    /**
+     * Creates a server with a small ingest capacity that holds its events for a while
+     */
+    private static Server slowServer(int capacity, double maxWaitTime) {
+        Server server = new Server();
+        server.setWorkers(new ServerWorkers(1));
+        server.setIngestCapacity(capacity);
+        server.updateMaxWaitTime(maxWaitTime);
+        return server;
+    }
+
+    private static void queueSensorEvents(Server server, int count) {
+        for (int i = 0; i < count; i++) {
+            SensorEvent event = new SensorEvent(i, 0, 1, "TempSensor", i);
+            event.setTimeArrived(System.currentTimeMillis());
+            server.processIncomingEvent(event);
+        }
+    }
+
+    @Test
+    public void testLowPriorityClassesAreShedFirst() {
+        AdmissionController controller = new AdmissionController();
+        Server server = slowServer(10, 60);
+        Request analysis = new Request(RequestType.ANALYSIS, RequestCommand.ANALYSIS_GET_EVENTS_IN_WINDOW, "TimeWindow{StartTime=0,EndTime=1}");
+        Request control = new Request(RequestType.CONTROL, RequestCommand.CONTROL_SET_ACTUATOR_STATE, "");
+        ActuatorEvent actuatorEvent = new ActuatorEvent(1, 0, 2, "Switch", true);
+
+        queueSensorEvents(server, 5);
+        assertTrue(controller.admit(server, analysis)); //below every threshold
+
+        queueSensorEvents(server, 4);
+        assertFalse(controller.admit(server, analysis)); //past 60%
+        assertTrue(controller.admit(server, control));
+        assertTrue(controller.admit(server, actuatorEvent));
+        assertEquals(1, controller.getShed(AdmissionController.TrafficClass.ANALYSIS_REQUEST));
+        assertEquals(0, controller.getShed(AdmissionController.TrafficClass.CONTROL_REQUEST));
+
+        controller.setShedding(AdmissionController.TrafficClass.SENSOR_EVENT, 0.5, AdmissionController.Policy.REJECT);
+        assertFalse(controller.admit(server, new SensorEvent(20, 0, 1, "TempSensor", 1)));
+        assertEquals(1, controller.getShed(AdmissionController.TrafficClass.SENSOR_EVENT));
+        assertThrows(IllegalArgumentException.class,
+                () -> controller.setShedding(AdmissionController.TrafficClass.SENSOR_EVENT, 0, AdmissionController.Policy.SAMPLE));
+    }
+
+    @Test
+    public void testQueuedRequestsCountTowardsTheLoad() {
+        AdmissionController controller = new AdmissionController();
+        Server server = slowServer(10, 60);
+        Request analysis = new Request(RequestType.ANALYSIS, RequestCommand.ANALYSIS_GET_EVENTS_IN_WINDOW, "TimeWindow{StartTime=0,EndTime=1}");
+        for (int i = 0; i < 7; i++) {
+            Request queued = new Request(RequestType.ANALYSIS, RequestCommand.ANALYSIS_GET_EVENTS_IN_WINDOW, "TimeWindow{StartTime=0,EndTime=1}");
+            queued.setReceptionTime(System.currentTimeMillis());
+            server.processIncomingRequest(queued);
+        }
+
+        assertEquals(0, server.getQueuedEventCount());
+        assertEquals(7, server.getQueuedRequestCount());
+        assertEquals(0.7, server.getLoad(), 1e-9);
+        assertFalse(controller.admit(server, analysis)); //past 60% with no events queued
+        assertEquals(1, controller.getShed(AdmissionController.TrafficClass.ANALYSIS_REQUEST));
+    }
+
+    @Test
+    public void testSamplingKeepsLessAsTheLoadGrows() {
+        AdmissionController controller = new AdmissionController();
+        controller.setShedding(AdmissionController.TrafficClass.SENSOR_EVENT, 0.5, AdmissionController.Policy.SAMPLE);
+        Server server = slowServer(100, 60);
+        queueSensorEvents(server, 75); //half way from the threshold to full
+
+        int admitted = 0;
+        for (int i = 0; i < 4000; i++) {
+            if (controller.admit(server, new SensorEvent(100 + i, 0, 1, "TempSensor", i))) {
+                admitted++;
+            }
+        }
+        assertEquals(2000, admitted, 200);
+        assertEquals(4000 - admitted, controller.getShed(AdmissionController.TrafficClass.SENSOR_EVENT));
+    }
+
+    @Test
+    public void testDropOldestKeepsActuatorEvents() throws InterruptedException {
+        AdmissionController controller = new AdmissionController(); //sensor events drop the oldest past 80%
+        Server server = slowServer(10, 1);
+        List<Double> processed = Collections.synchronizedList(new ArrayList<>());
+        server.addEventListener(event -> processed.add(event.getTimeStamp()));
+
+        ActuatorEvent actuatorEvent = new ActuatorEvent(-1, 0, 2, "Switch", true);
+        actuatorEvent.setTimeArrived(System.currentTimeMillis());
+        server.processIncomingEvent(actuatorEvent);
+        queueSensorEvents(server, 8);
+
+        SensorEvent latest = new SensorEvent(100, 0, 1, "TempSensor", 100);
+        assertTrue(controller.admit(server, latest));
+        latest.setTimeArrived(System.currentTimeMillis());
+        server.processIncomingEvent(latest);
+        for (int i = 0; i < 100 && server.getShedCount(AdmissionController.TrafficClass.SENSOR_EVENT) == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, server.getShedCount(AdmissionController.TrafficClass.SENSOR_EVENT));
+        assertEquals(9, server.getQueuedEventCount());
+
+        for (int i = 0; i < 300 && server.isRunning; i++) {
+            Thread.sleep(10);
+        }
+        //the sensor event at 0 was dropped, the older actuator event was not
+        assertEquals(List.of(-1.0, 1.0, 2.0, 3.0, 4.0, 5.0, 6.0, 7.0, 100.0), processed);
+        assertEquals(0, server.getQueuedEventCount());
+    }
+
+    @Test
+    public void testDropOldestDropsTheOldestOfALargeQueue() throws InterruptedException {
+        Server server = slowServer(100_000, 1);
+        List<Double> processed = Collections.synchronizedList(new ArrayList<>());
+        server.addEventListener(event -> processed.add(event.getTimeStamp()));
+
+        //queued newest first, so the oldest are at the back of the order they arrived in
+        long arrived = System.currentTimeMillis();
+        for (int i = 50_000; i > 0; i--) {
+            Event event = i % 2 == 0 ? new SensorEvent(i, 0, 1, "TempSensor", i) : new ActuatorEvent(i, 0, 2, "Switch", true);
+            event.setTimeArrived(arrived);
+            server.processIncomingEvent(event);
+        }
+        for (int i = 0; i < 1000; i++) {
+            server.shedOldest(AdmissionController.TrafficClass.SENSOR_EVENT);
+        }
+        for (int i = 0; i < 500 && server.isRunning; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1000, server.getShedCount(AdmissionController.TrafficClass.SENSOR_EVENT));
+        assertEquals(49_000, processed.size());
+        //sensor events 2 to 2000 were dropped, every actuator event was kept
+        assertEquals(List.of(1.0, 3.0, 5.0), processed.subList(0, 3));
+        assertEquals(List.of(1999.0, 2001.0, 2002.0), processed.subList(999, 1002));
+    }
+}
@@ -0,0 +1,69 @@
+package cpen221.mp3.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkedListTests {
+
+    @Test
+    public void testBehavesLikeAnArrayList() {
+        Random random = new Random(221);
+        List<Integer> expected = new ArrayList<>();
+        ChunkedList<Integer> list = new ChunkedList<>();
+        for (int i = 0; i < 20_000; i++) {
+            int operation = random.nextInt(10);
+            if (operation < 5 || expected.isEmpty()) {
+                expected.add(i);
+                list.add(i);
+            } else if (operation < 7) {
+                int index = random.nextInt(expected.size() + 1);
+                expected.add(index, i);
+                list.add(index, i);
+            } else if (operation < 9) {
+                //mostly from the front, like evictions
+                int index = random.nextBoolean() ? 0 : random.nextInt(expected.size());
+                assertEquals(expected.remove(index), list.remove(index));
+            } else {
+                int index = random.nextInt(expected.size());
+                assertEquals(expected.set(index, -i), list.set(index, -i));
+            }
+        }
+        assertEquals(expected.size(), list.size());
+        assertEquals(expected, list);
+        assertEquals(expected, new ArrayList<>(list));
+        for (int i = 0; i < expected.size(); i += 97) {
+            assertEquals(expected.get(i), list.get(i));
+        }
+
+        list.clear();
+        assertTrue(list.isEmpty());
+        assertThrows(IndexOutOfBoundsException.class, () -> list.get(0));
+    }
+
+    @Test
+    public void testSnapshotDoesNotChangeWithTheList() {
+        ChunkedList<Integer> list = new ChunkedList<>();
+        for (int i = 0; i < 3 * ChunkedList.CHUNK_SIZE; i++) {
+            list.add(i);
+        }
+        List<Integer> before = new ArrayList<>(list);
+        List<Integer> snapshot = list.snapshot();
+
+        list.add(-1);
+        list.add(10, -2);
+        list.set(ChunkedList.CHUNK_SIZE + 1, -3);
+        list.remove(0);
+        assertEquals(before, snapshot);
+        assertEquals(-2, list.get(9).intValue());
+        assertEquals(-3, list.get(ChunkedList.CHUNK_SIZE).intValue());
+
+        list.clear();
+        assertEquals(before, snapshot);
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.add(1));
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.remove(0));
+    }
+}
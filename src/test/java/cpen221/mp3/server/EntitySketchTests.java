@@ -0,0 +1,115 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.SensorEvent;
+import cpen221.mp3.handler.MessageHandler;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EntitySketchTests {
+
+    /**
+     * Draws an entity id from a Zipf-like distribution: entity i is about twice as likely as i + 1
+     * among the first few, with a long tail of rare ones
+     */
+    private static int skewedEntity(Random random) {
+        if (random.nextDouble() < 0.6) {
+            int entity = 0;
+            while (random.nextBoolean() && entity < 7) {
+                entity++;
+            }
+            return entity;
+        }
+        return 100 + random.nextInt(20_000);
+    }
+
+    @Test
+    public void testCountMinOverestimatesWithinItsBound() {
+        CountMinSketch sketch = new CountMinSketch(0.001, 0.01);
+        Map<Integer, Long> exact = new HashMap<>();
+        Random random = new Random(221);
+        for (int i = 0; i < 200_000; i++) {
+            int key = skewedEntity(random);
+            sketch.add(key, 1);
+            exact.merge(key, 1L, Long::sum);
+        }
+        long bound = (long) Math.ceil(0.001 * sketch.getTotal());
+        int pastBound = 0;
+        for (Map.Entry<Integer, Long> entry : exact.entrySet()) {
+            long estimate = sketch.estimate(entry.getKey());
+            assertTrue(estimate >= entry.getValue());
+            if (estimate > entry.getValue() + bound) {
+                pastBound++;
+            }
+        }
+        //at most delta of the keys, with room for chance
+        assertTrue(pastBound <= 0.02 * exact.size(), pastBound + " keys past the bound");
+        assertTrue(sketch.estimate(-5) <= bound); //never seen, only collisions
+    }
+
+    @Test
+    public void testHeavyHittersFindTheMostActiveEntities() {
+        HeavyHitters hitters = new HeavyHitters(8, 0.002, 0.01);
+        Random random = new Random(5);
+        for (int i = 0; i < 100_000; i++) {
+            hitters.add(skewedEntity(random));
+        }
+        assertEquals(List.of(0, 1, 2, 3), hitters.top(4));
+        assertEquals(100_000, hitters.getTotal());
+    }
+
+    @Test
+    public void testHyperLogLogIsWithinItsError() {
+        HyperLogLog small = new HyperLogLog(12);
+        HyperLogLog large = new HyperLogLog(12);
+        for (int i = 0; i < 100; i++) {
+            small.add(i);
+            small.add(i); //counted once
+        }
+        for (int i = 0; i < 500_000; i++) {
+            large.add(i * 31 + 7);
+        }
+        assertEquals(100, small.estimate(), 3);
+        //3 standard errors of 1.6%
+        assertEquals(500_000, large.estimate(), 500_000 * 0.05);
+        assertEquals(0, new HyperLogLog(12).estimate());
+    }
+
+    @Test
+    public void testServerSketchesMergeAcrossServers() {
+        Server first = new Server();
+        Server second = new Server();
+        Server untracked = new Server();
+        first.runEvent(new SensorEvent(0, 1, 42, "TempSensor", 1)); //stored before the sketches
+        first.enableEntitySketches();
+        second.enableEntitySketches();
+        for (int i = 1; i <= 3000; i++) {
+            //entity 5 is the busiest overall, but never the busiest on either server
+            first.runEvent(new SensorEvent(i, 1, i % 3 == 0 ? 5 : 1000 + i % 40, "TempSensor", i));
+            first.runEvent(new SensorEvent(i + 0.5, 1, i % 2 == 0 ? 7 : 2000 + i, "TempSensor", i));
+            second.runEvent(new SensorEvent(i, 2, i % 3 == 0 ? 5 : 3000 + i % 40, "TempSensor", i));
+            second.runEvent(new SensorEvent(i + 0.5, 2, i % 2 == 0 ? 8 : 1000 + i % 40, "TempSensor", i));
+            untracked.runEvent(new SensorEvent(i, 3, 5, "TempSensor", i));
+        }
+        assertEquals(List.of(7), first.topEntities(1));
+        assertEquals(List.of(8), second.topEntities(1));
+        assertEquals(List.of(5), untracked.topEntities(1)); //exact, without sketches
+        assertEquals(1, untracked.distinctEntityCount());
+
+        List<Server> servers = List.of(first, second, untracked);
+        HeavyHitters merged = MessageHandler.mergeHeavyHitters(servers);
+        assertEquals(List.of(5), merged.top(1));
+        assertTrue(merged.estimate(42) >= 1);
+        assertEquals(12_001, merged.getTotal());
+
+        //42, 5, 7 and 8, 1000 to 1039 on both servers counted once, 3000 to 3039, and the 1500 odd 2001 to 2999
+        long distinct = MessageHandler.mergeDistinctEntities(servers).estimate();
+        assertEquals(4 + 40 + 40 + 1500, distinct, 1584 * 0.05);
+        assertNull(MessageHandler.mergeHeavyHitters(List.of(untracked)));
+    }
+}
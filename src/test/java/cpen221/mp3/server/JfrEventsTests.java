@@ -0,0 +1,60 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.SensorEvent;
+import cpen221.mp3.metrics.RunEventJfrEvent;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JfrEventsTests {
+
+    @Test
+    public void testRunAndReprocessEventsAreRecorded() throws Exception {
+        Server server = new Server();
+        Path file = Files.createTempFile("server", ".jfr");
+
+        try (Recording recording = new Recording()) {
+            recording.enable("cpen221.mp3.RunEvent").withThreshold(java.time.Duration.ZERO);
+            recording.enable("cpen221.mp3.ReprocessEvent").withThreshold(java.time.Duration.ZERO);
+            recording.start();
+
+            server.runEvent(new SensorEvent(1.0, 3, 10, "TempSensor", 21.0));
+            server.runEvent(new SensorEvent(2.0, 3, 11, "TempSensor", 22.0));
+            server.runEvent(new SensorEvent(1.5, 3, 12, "TempSensor", 23.0)); //late by 0.5
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.deleteIfExists(file);
+
+        List<RecordedEvent> runs = events.stream().filter(e -> e.getEventType().getName().equals("cpen221.mp3.RunEvent")).toList();
+        List<RecordedEvent> reprocessed = events.stream().filter(e -> e.getEventType().getName().equals("cpen221.mp3.ReprocessEvent")).toList();
+        assertEquals(3, runs.size());
+        assertEquals(1, reprocessed.size());
+
+        assertEquals(3, reprocessed.get(0).getInt("clientId"));
+        assertEquals(12, reprocessed.get(0).getInt("entityId"));
+        assertEquals(0.5, reprocessed.get(0).getDouble("lateness"), 1e-9);
+        assertEquals(1, reprocessed.get(0).getInt("displacedEvents"));
+
+        RecordedEvent late = runs.stream().filter(e -> e.getInt("entityId") == 12).findFirst().orElseThrow();
+        assertEquals(0.5, late.getDouble("lateness"), 1e-9);
+    }
+
+    @Test
+    public void testNothingIsCommittedWithoutARecording() {
+        RunEventJfrEvent event = new RunEventJfrEvent();
+        event.begin();
+        event.end();
+        assertFalse(event.shouldCommit());
+    }
+}
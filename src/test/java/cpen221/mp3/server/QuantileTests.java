@@ -0,0 +1,127 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QuantileTests {
+    //the sketches are randomized, 2% of the values is well past their expected rank error
+    private static final double RANK_TOLERANCE = 0.02;
+
+    /**
+     * Checks that an estimate is at a rank close enough to the requested one
+     */
+    private static void assertRankClose(double[] sortedValues, double quantile, double estimate) {
+        int below = 0;
+        while (below < sortedValues.length && sortedValues[below] <= estimate) {
+            below++;
+        }
+        double rank = (double) below / sortedValues.length;
+        //the value at a rank of a few values can be one value off
+        assertEquals(quantile, rank, RANK_TOLERANCE + 1.0 / sortedValues.length, "estimate " + estimate + " of quantile " + quantile);
+    }
+
+    @Test
+    public void testSketchIsAccurateInBoundedMemory() {
+        KllSketch sketch = new KllSketch();
+        Random random = new Random(221);
+        double[] values = new double[200_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextGaussian() * 5 + 20;
+            sketch.update(values[i]);
+        }
+        Arrays.sort(values);
+
+        assertEquals(values.length, sketch.getCount());
+        assertTrue(sketch.getItemCount() < 4 * KllSketch.DEFAULT_K, "kept " + sketch.getItemCount() + " items");
+        for (double quantile : new double[] {0.01, 0.25, 0.5, 0.9, 0.95, 0.99}) {
+            assertRankClose(values, quantile, sketch.getQuantile(quantile));
+        }
+        assertEquals(values[0], sketch.getQuantile(0));
+        assertEquals(values[values.length - 1], sketch.getQuantile(1));
+        assertTrue(Double.isNaN(new KllSketch().getQuantile(0.5)));
+        assertThrows(IllegalArgumentException.class, () -> sketch.getQuantile(1.5));
+    }
+
+    @Test
+    public void testMergedSketchesAndTheirCopies() throws Exception {
+        Random random = new Random(7);
+        double[] values = new double[50_000];
+        KllSketch merged = new KllSketch();
+        for (int part = 0; part < 10; part++) {
+            KllSketch sketch = new KllSketch();
+            for (int i = part * 5000; i < (part + 1) * 5000; i++) {
+                //each part has its own range, so a bad merge shows
+                values[i] = part * 100 + random.nextDouble() * 100;
+                sketch.update(values[i]);
+            }
+            merged.merge(sketch);
+        }
+        Arrays.sort(values);
+        assertEquals(values.length, merged.getCount());
+        assertRankClose(values, 0.5, merged.getQuantile(0.5));
+        assertRankClose(values, 0.95, merged.getQuantile(0.95));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        merged.writeTo(new DataOutputStream(bytes));
+        KllSketch read = KllSketch.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        KllSketch copy = merged.copy();
+        merged.update(1e9); //changes neither the copy nor the one read
+        for (double quantile : new double[] {0.1, 0.5, 0.95}) {
+            assertEquals(copy.getQuantile(quantile), read.getQuantile(quantile));
+        }
+        assertEquals(values.length, copy.getCount());
+        assertEquals(values[values.length - 1], read.getMax());
+    }
+
+    @Test
+    public void testServerQuantilesOverWindows() throws Exception {
+        Server server = new Server();
+        Random random = new Random(221);
+        for (double t = 0; t < 3 * 3600; t += 0.25 + random.nextDouble() * 0.5) {
+            server.runEvent(new SensorEvent(t, 2, 1, "TempSensor", 20 + 5 * Math.sin(t / 600) + random.nextGaussian()));
+            server.runEvent(new SensorEvent(t, 2, 2, "PressureSensor", 101 + random.nextGaussian()));
+        }
+        List<TimeWindow> windows = List.of(
+                new TimeWindow(0, 3 * 3600),
+                new TimeWindow(1234.5, 9000.25),
+                new TimeWindow(61.1, 70.9));
+        for (TimeWindow window : windows) {
+            double[] values = server.eventsInTimeWindow(window).stream()
+                    .filter(event -> event.getEntityId() == 1)
+                    .mapToDouble(Event::getValueDouble)
+                    .sorted()
+                    .toArray();
+            for (double quantile : new double[] {0.05, 0.5, 0.95}) {
+                assertRankClose(values, quantile, server.quantileInTimeWindow(1, quantile, window));
+            }
+            assertEquals(values[values.length - 1], server.quantileInTimeWindow(1, 1, window));
+        }
+        assertTrue(Double.isNaN(server.quantileInTimeWindow(3, 0.5, new TimeWindow(0, 100))));
+
+        Path file = Files.createTempFile("quantiles", ".snap");
+        server.writeSnapshot(file);
+        Server restored = new Server();
+        restored.restoreSnapshot(file);
+        TimeWindow hour = new TimeWindow(3600, 7200);
+        double[] values = server.eventsInTimeWindow(hour).stream()
+                .filter(event -> event.getEntityId() == 2)
+                .mapToDouble(Event::getValueDouble)
+                .sorted()
+                .toArray();
+        assertRankClose(values, 0.95, restored.quantileInTimeWindow(2, 0.95, hour));
+        Files.delete(file);
+    }
+}
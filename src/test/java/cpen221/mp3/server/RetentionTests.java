@@ -0,0 +1,154 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RetentionTests {
+
+    private static void deleteDirectory(Path directory) throws Exception {
+        try (var files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testHeapEventsAreEvictedByCount() {
+        Server server = new Server();
+        server.enableRetention(new RetentionPolicy(0, 10, 0, null), 60_000);
+        for (int i = 0; i < 25; i++) {
+            server.runEvent(new SensorEvent(i, 3, i, "TempSensor", i));
+        }
+
+        assertEquals(10, server.getEventCount());
+        assertEquals(15.0, server.allEvents.get(0).getTimeStamp());
+        assertEquals(Set.of(15, 16, 17, 18, 19, 20, 21, 22, 23, 24), new HashSet<>(server.getAllEntities()));
+        assertEquals(24, server.mostActiveEntity());
+        assertTrue(server.eventsInTimeWindow(new TimeWindow(0, 14)).isEmpty());
+    }
+
+    @Test
+    public void testEvictedEventsLeaveTheEntitySketches() {
+        Server server = new Server();
+        server.enableEntitySketches();
+        server.enableRetention(new RetentionPolicy(0, 50, 0, null), 60_000);
+        for (int i = 0; i < 100; i++) {
+            //entity 1 sends the 50 events that are evicted, 50 other entities the rest
+            server.runEvent(new SensorEvent(i, 3, i < 50 ? 1 : 100 + i, "TempSensor", i));
+        }
+
+        assertEquals(50, server.getHeavyHitters().getTotal());
+        assertTrue(server.getHeavyHitters().estimate(1) <= 1);
+        assertFalse(server.topEntities(5).contains(1));
+        assertEquals(50, server.distinctEntityCount(), 2);
+    }
+
+    @Test
+    public void testHeapEventsAreEvictedByAge() {
+        Server server = new Server();
+        server.enableRetention(new RetentionPolicy(5, 0, 0, null), 60_000);
+        for (int i = 0; i <= 20; i++) {
+            server.runEvent(new SensorEvent(i, 3, i % 2, "TempSensor", i));
+        }
+        server.runEvent(new ActuatorEvent(17, 3, 9, "Switch", true)); //late, but not too old
+
+        List<Event> kept = server.eventsInTimeWindow(new TimeWindow(0, 20));
+        assertEquals(7, kept.size());
+        assertEquals(15.0, kept.get(0).getTimeStamp());
+        assertEquals(Set.of(0, 1, 9), new HashSet<>(server.getAllEntities()));
+    }
+
+    @Test
+    public void testOldestSegmentsAreArchived() throws Exception {
+        Path directory = Files.createTempDirectory("retention");
+        Path archive = directory.resolve("archive");
+        Server server = new Server();
+        server.enableSegmentStorage(directory.resolve("segments"), 4);
+        server.enableRetention(new RetentionPolicy(0, 10, 0, archive), 60_000);
+        for (int i = 0; i < 30; i++) {
+            server.runEvent(new SensorEvent(i, 3, i % 5, "TempSensor", i));
+        }
+        assertEquals(30, server.getEventCount()); //sealed events wait for the retention task
+
+        server.getEventStore().awaitSealed();
+        assertEquals(20, server.enforceRetention());
+        assertEquals(10, server.getEventCount());
+        assertEquals(2, server.getEventStore().getSegments().size());
+        assertEquals(5, archive.toFile().list().length);
+        assertEquals(20.0, server.eventsInTimeWindow(new TimeWindow(0, 30)).get(0).getTimeStamp());
+        //entities 0 to 4 sent 2 of each of the last 10 events
+        assertEquals(4, server.mostActiveEntity());
+        assertEquals(5, server.getAllEntities().size());
+
+        server.getEventStore().clear();
+        deleteDirectory(archive);
+        deleteDirectory(directory.resolve("segments"));
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testRetentionTaskEvictsByBytesInTheBackground() throws Exception {
+        Path directory = Files.createTempDirectory("retention");
+        Server server = new Server();
+        server.enableSegmentStorage(directory, 8);
+        for (int i = 0; i < 8; i++) {
+            server.runEvent(new SensorEvent(i, 3, 1, "TempSensor", 20 + i * 0.5));
+        }
+        server.getEventStore().awaitSealed();
+        long segmentBytes = server.getEventStore().getByteSize();
+        for (int i = 8; i < 40; i++) {
+            server.runEvent(new SensorEvent(i, 3, 1, "TempSensor", 20 + i * 0.5));
+        }
+        server.getEventStore().awaitSealed();
+
+        server.enableRetention(new RetentionPolicy(0, 0, segmentBytes * 2, null), 10);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getEventStore().getByteSize() > segmentBytes * 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(server.getEventStore().getByteSize() <= segmentBytes * 2);
+        assertTrue(server.getEventStore().getSegments().size() >= 1);
+        assertTrue(server.getEventCount() < 40);
+        assertEquals(List.of(1), server.getAllEntities());
+
+        server.enableRetention(null, 0);
+        server.getEventStore().clear();
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testRestoreRecountsSegmentsEvictedAfterTheSnapshot() throws Exception {
+        Path directory = Files.createTempDirectory("retention");
+        Path snapshot = directory.resolve("server.snap");
+        Server server = new Server();
+        server.enableSegmentStorage(directory.resolve("segments"), 4);
+        server.enableRetention(new RetentionPolicy(0, 6, 0, null), 60_000);
+        for (int i = 0; i < 10; i++) {
+            server.runEvent(new SensorEvent(i, 3, i < 4 ? 7 : 8, "TempSensor", i));
+        }
+        server.getEventStore().awaitSealed();
+        server.writeSnapshot(snapshot);
+        server.enforceRetention();
+
+        Server restored = new Server();
+        assertEquals(6, restored.restoreSnapshot(snapshot));
+        assertEquals(List.of(8), restored.getAllEntities());
+
+        restored.getEventStore().clear();
+        Files.delete(snapshot);
+        Files.delete(directory.resolve("segments"));
+        Files.delete(directory);
+    }
+}
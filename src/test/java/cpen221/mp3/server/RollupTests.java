@@ -0,0 +1,186 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RollupTests {
+
+    /**
+     * Aggregates the stored events of an entity in a window one by one
+     */
+    private static Aggregate scan(Server server, int entityId, TimeWindow window) {
+        Aggregate aggregate = Aggregate.EMPTY;
+        for (Event event : server.eventsInTimeWindow(window)) {
+            if (event.getEntityId() == entityId) {
+                double value = TimeRollups.valueOf(event);
+                aggregate = aggregate.merge(new Aggregate(1, value, value, value, value * value));
+            }
+        }
+        return aggregate;
+    }
+
+    private static void assertSameAggregate(Aggregate expected, Aggregate actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getMin(), actual.getMin());
+        assertEquals(expected.getMax(), actual.getMax());
+        assertEquals(expected.getSum(), actual.getSum(), 1e-6 * Math.max(1, Math.abs(expected.getSum())));
+        assertEquals(expected.getSumOfSquares(), actual.getSumOfSquares(), 1e-6 * Math.max(1, expected.getSumOfSquares()));
+    }
+
+    private static Server serverWithHistory(double until) {
+        Server server = new Server();
+        Random random = new Random(221);
+        for (double t = 0; t < until; t += 0.5 + random.nextDouble()) {
+            server.runEvent(new SensorEvent(t, 2, 1, "CO2Sensor", 400 + random.nextGaussian() * 20));
+            server.runEvent(new SensorEvent(t + 0.1, 2, 2, "TempSensor", 22 + random.nextGaussian()));
+        }
+        return server;
+    }
+
+    @Test
+    public void testAggregatesMatchAScanOfTheEvents() {
+        Server server = serverWithHistory(3 * 3600);
+        List<TimeWindow> windows = List.of(
+                new TimeWindow(0, 3 * 3600),              //whole hours
+                new TimeWindow(12.25, 7300.75),           //every level, and parts of a second
+                new TimeWindow(59.5, 121),                //minutes only, ends on a second
+                new TimeWindow(100.2, 100.9),             //inside one second
+                new TimeWindow(3599, 3601));              //across an hour boundary
+        for (TimeWindow window : windows) {
+            assertSameAggregate(scan(server, 1, window), server.aggregateInTimeWindow(1, window));
+            assertSameAggregate(scan(server, 2, window), server.aggregateInTimeWindow(2, window));
+        }
+        assertEquals(0, server.aggregateInTimeWindow(3, new TimeWindow(0, 3600)).getCount());
+    }
+
+    @Test
+    public void testLateEventsLandInTheirOwnBuckets() {
+        Server server = new Server();
+        for (int i = 0; i < 300; i++) {
+            server.runEvent(new SensorEvent(i, 2, 1, "TempSensor", 20));
+        }
+        server.runEvent(new SensorEvent(61.5, 2, 1, "TempSensor", 30)); //late
+        server.runEvent(new ActuatorEvent(62, 2, 5, "Switch", true));
+        server.runEvent(new ActuatorEvent(10, 2, 5, "Switch", false)); //late
+
+        Aggregate minute = server.aggregateInTimeWindow(1, new TimeWindow(60, 119.999));
+        assertEquals(61, minute.getCount());
+        assertEquals(30, minute.getMax());
+        assertEquals(60 * 20 + 30, minute.getSum());
+
+        Aggregate switches = server.aggregateInTimeWindow(5, new TimeWindow(0, 300));
+        assertEquals(2, switches.getCount());
+        assertEquals(0.5, switches.getMean());
+    }
+
+    @Test
+    public void testPrunedSecondsAreReadFromTheStoredEvents() {
+        Server server = serverWithHistory(600);
+        //an hour and a half later, the 1 s buckets of the first 10 minutes are dropped
+        server.runEvent(new SensorEvent(5400, 2, 1, "CO2Sensor", 400));
+        TimeWindow window = new TimeWindow(10.5, 500.5);
+        assertSameAggregate(scan(server, 1, window), server.aggregateInTimeWindow(1, window));
+    }
+
+    @Test
+    public void testRollupsCoverTheRetainedEventsAndSurviveARestart() throws Exception {
+        Server server = new Server();
+        server.enableRetention(new RetentionPolicy(0, 100, 0, null), 60_000);
+        for (int i = 0; i < 7200; i++) {
+            server.runEvent(new SensorEvent(i, 2, 1, "TempSensor", i % 10));
+        }
+        assertEquals(100, server.getEventCount());
+
+        //only the retained events 7100 to 7199, no bucket or edge counts an evicted one
+        Aggregate twoHours = server.aggregateInTimeWindow(1, new TimeWindow(0, 7200));
+        assertEquals(100, twoHours.getCount());
+        assertEquals(4.5, twoHours.getMean(), 1e-9);
+        assertEquals(8.25, twoHours.getVariance(), 1e-9);
+        assertSameAggregate(scan(server, 1, new TimeWindow(7050.5, 7150.5)),
+                server.aggregateInTimeWindow(1, new TimeWindow(7050.5, 7150.5)));
+        assertEquals(0, server.aggregateInTimeWindow(1, new TimeWindow(0, 7099)).getCount());
+
+        Path file = Files.createTempFile("rollups", ".snap");
+        server.writeSnapshot(file);
+        Server restored = new Server();
+        restored.restoreSnapshot(file);
+        assertSameAggregate(twoHours, restored.aggregateInTimeWindow(1, new TimeWindow(0, 7200)));
+        assertSameAggregate(server.aggregateInTimeWindow(1, new TimeWindow(7150.5, 7199)),
+                restored.aggregateInTimeWindow(1, new TimeWindow(7150.5, 7199)));
+        Files.delete(file);
+    }
+
+    @Test
+    public void testEvictionDropsTheBucketsOfEvictedEvents() {
+        TimeRollups rollups = new TimeRollups();
+        for (int t = 0; t < 4 * 3600; t++) {
+            rollups.add(new SensorEvent(t, 2, t % 2, "TempSensor", t));
+        }
+        rollups.evictThrough(3 * 3600 + 0.5);
+        //per entity every other second, and the minutes and hour, from the evicted second on
+        assertEquals(2 * (1800 + 60 + 1), rollups.bucketCount());
+
+        TimeRollups.StoredEvents none = (entityId, startTime, endTime) -> List.of();
+        assertEquals(0, rollups.aggregate(0, new TimeWindow(0, 3 * 3600), none).getCount());
+        //whole seconds after the evicted one come from the buckets, nothing is read for its rest
+        assertEquals(1800, rollups.aggregate(1, new TimeWindow(0, 4 * 3600), none).getCount());
+
+        rollups.evictThrough(5 * 3600);
+        assertEquals(0, rollups.bucketCount());
+    }
+
+    @Test
+    public void testEveryLevelIsBoundedByItsSpan() {
+        Server server = new Server();
+        TimeRollups rollups = new TimeRollups();
+        for (int t = 0; t < 60 * 24 * 3600; t += 600) {
+            SensorEvent event = new SensorEvent(t, 2, 1, "TempSensor", t % 7);
+            server.runEvent(event);
+            rollups.add(event);
+        }
+        //an event every 10 minutes: the last hour, week and 30 days of buckets, with a bucket of slack each
+        assertTrue(rollups.bucketCount() <= 6 + 7 * 24 * 6 + 30 * 24 + 3, rollups.bucketCount() + " buckets");
+
+        //the hours dropped are read from the stored events
+        TimeWindow firstWeek = new TimeWindow(0, 7 * 24 * 3600);
+        assertSameAggregate(scan(server, 1, firstWeek), server.aggregateInTimeWindow(1, firstWeek));
+    }
+
+    @Test
+    public void testCopiesDoNotSeeEachOthersChanges() {
+        TimeRollups rollups = new TimeRollups();
+        for (int t = 0; t < 7200; t += 10) {
+            rollups.add(new SensorEvent(t, 2, 1, "TempSensor", t));
+        }
+        TimeWindow window = new TimeWindow(0, 7200);
+        TimeRollups.StoredEvents none = (entityId, startTime, endTime) -> List.of();
+        Aggregate before = rollups.aggregate(1, window, none);
+        double medianBefore = rollups.quantile(1, 0.5, window, none);
+
+        TimeRollups copy = rollups.copy();
+        rollups.add(new SensorEvent(100, 2, 1, "TempSensor", 1e6));
+        rollups.add(new SensorEvent(100, 2, 3, "TempSensor", 1));
+        copy.add(new SensorEvent(5000, 2, 1, "TempSensor", -1e6));
+
+        assertEquals(before.getCount() + 1, rollups.aggregate(1, window, none).getCount());
+        assertEquals(1e6, rollups.aggregate(1, window, none).getMax());
+        assertEquals(before.getMin(), rollups.aggregate(1, window, none).getMin());
+        assertEquals(before.getCount() + 1, copy.aggregate(1, window, none).getCount());
+        assertEquals(before.getMax(), copy.aggregate(1, window, none).getMax());
+        assertEquals(-1e6, copy.aggregate(1, window, none).getMin());
+        assertEquals(0, copy.aggregate(3, window, none).getCount());
+
+        TimeRollups second = copy.copy();
+        assertSameAggregate(copy.aggregate(1, window, none), second.aggregate(1, window, none));
+        assertEquals(medianBefore, rollups.copy().quantile(1, 0.5, new TimeWindow(0, 7200), none), 100);
+    }
+}
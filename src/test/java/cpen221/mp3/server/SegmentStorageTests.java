@@ -0,0 +1,70 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentStorageTests {
+
+    @Test
+    public void testQueriesSpanSealedAndActiveEvents() throws Exception {
+        Path directory = Files.createTempDirectory("server-segments");
+        Server server = new Server();
+        server.enableSegmentStorage(directory, 10);
+
+        for (int i = 0; i < 25; i++) {
+            server.runEvent(new SensorEvent(i, 2, i % 4, "TempSensor", i));
+        }
+        assertEquals(25, server.getEventCount()); //counted while the segments are still being sealed
+        server.getEventStore().awaitSealed();
+        assertEquals(2, server.getEventStore().getSegments().size());
+        assertEquals(5, server.allEvents.size());
+        assertEquals(25, server.getEventCount());
+
+        List<Event> window = server.eventsInTimeWindow(new TimeWindow(8, 12));
+        assertEquals(5, window.size());
+        assertEquals(8.0, window.get(0).getTimeStamp());
+        assertEquals(12.0, window.get(4).getTimeStamp());
+
+        List<Event> latest = server.lastNEvents(7);
+        assertEquals(7, latest.size());
+        assertEquals(18.0, latest.get(0).getTimeStamp());
+        assertEquals(24.0, latest.get(6).getTimeStamp());
+
+        assertEquals(Set.of(0, 1, 2, 3), new HashSet<>(server.getAllEntities()));
+        assertEquals(0, server.mostActiveEntity()); //entity 0 sent 7 events, the others 6
+
+        server.getEventStore().clear();
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testLateEventOlderThanSealedEvents() throws Exception {
+        Path directory = Files.createTempDirectory("server-segments");
+        Server server = new Server();
+        server.enableSegmentStorage(directory, 4);
+
+        for (int i = 10; i < 16; i++) {
+            server.runEvent(new SensorEvent(i, 2, 1, "TempSensor", i));
+        }
+        server.runEvent(new SensorEvent(5, 2, 9, "TempSensor", 5)); //late, older than every sealed event
+
+        assertEquals(7, server.getEventCount());
+        List<Event> window = server.eventsInTimeWindow(new TimeWindow(0, 11));
+        assertEquals(3, window.size());
+        assertEquals(5.0, window.get(0).getTimeStamp());
+        assertEquals(15.0, server.lastNEvents(1).get(0).getTimeStamp());
+        assertEquals(1, server.mostActiveEntity());
+
+        server.getEventStore().clear();
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,185 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+import cpen221.mp3.storage.WriteAheadLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotTests {
+
+    /**
+     * Waits for the server to process events, one at a time since the processing thread
+     * re-sorts its queue
+     */
+    private static void waitForEvents(Server server, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getEventCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, server.getEventCount());
+    }
+
+    @Test
+    public void testRestoredServerAnswersLikeTheOriginal() throws Exception {
+        Server original = new Server();
+        Filter warm = new Filter(List.of(new Filter("value", DoubleOperator.GREATER_THAN, 20),
+                new Filter("timestamp", DoubleOperator.LESS_THAN, 100)));
+        original.logIf(warm);
+        for (int i = 0; i < 20; i++) {
+            original.runEvent(new SensorEvent(i, 4, i % 3, "TempSensor", 15 + i));
+        }
+        original.runEvent(new ActuatorEvent(20, 4, 7, "Switch", true));
+        original.runEvent(new SensorEvent(2.5, 4, 9, "TempSensor", 30)); //late and logged
+
+        Path file = Files.createTempFile("server", ".snap");
+        original.writeSnapshot(file);
+
+        Server restored = new Server();
+        assertEquals(22, restored.restoreSnapshot(file));
+        TimeWindow window = new TimeWindow(2, 6);
+        assertEquals(original.eventsInTimeWindow(window).size(), restored.eventsInTimeWindow(window).size());
+        assertEquals(original.mostActiveEntity(), restored.mostActiveEntity());
+        assertEquals(original.getAllEntities().size(), restored.getAllEntities().size());
+        assertEquals(original.lastNEvents(3).get(0).getTimeStamp(), restored.lastNEvents(3).get(0).getTimeStamp());
+
+        //the filter came back too, new events are still logged by it
+        restored.runEvent(new SensorEvent(30, 4, 11, "TempSensor", 40));
+        original.runEvent(new SensorEvent(30, 4, 11, "TempSensor", 40));
+        assertEquals(original.readLogs(), restored.readLogs());
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testRestoreKeepsSegmentsAndReplaysTheLogTail() throws Exception {
+        Path directory = Files.createTempDirectory("snapshot");
+        Path segments = directory.resolve("segments");
+        Path log = directory.resolve("events.wal");
+        Path snapshot = directory.resolve("events.snap");
+
+        Server crashed = new Server();
+        crashed.updateMaxWaitTime(0);
+        crashed.enableSegmentStorage(segments, 4);
+        crashed.enableWriteAheadLog(log, 0);
+        for (int i = 0; i < 10; i++) {
+            crashed.processIncomingEvent(new SensorEvent(i, 6, i % 2, "TempSensor", i));
+            waitForEvents(crashed, i + 1);
+        }
+        crashed.writeSnapshot(snapshot);
+        for (int i = 10; i < 13; i++) {
+            crashed.processIncomingEvent(new SensorEvent(i, 6, 5, "TempSensor", i));
+            waitForEvents(crashed, i + 1);
+        }
+        crashed.getWriteAheadLog().sync();
+
+        Server restarted = new Server();
+        assertEquals(10, restarted.restoreSnapshot(snapshot));
+        restarted.enableSegmentStorage(segments, 4);
+        restarted.getEventStore().awaitSealed();
+        assertEquals(2, restarted.getEventStore().getSegments().size());
+        assertEquals(3, restarted.enableWriteAheadLog(log, 0));
+        assertEquals(13, restarted.getEventCount());
+        assertEquals(Set.of(0, 1, 5), new HashSet<>(restarted.getAllEntities()));
+        assertEquals(List.of(10.0, 11.0, 12.0), restarted.lastNEvents(3).stream().map(Event::getTimeStamp).toList());
+
+        crashed.disableWriteAheadLog();
+        restarted.disableWriteAheadLog();
+        restarted.getEventStore().clear();
+        Files.deleteIfExists(log);
+        Files.deleteIfExists(snapshot);
+        Files.deleteIfExists(segments);
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void testSnapshotCheckpointsTheLog() throws Exception {
+        Path directory = Files.createTempDirectory("snapshot");
+        Path log = directory.resolve("events.wal");
+        Path snapshot = directory.resolve("events.snap");
+
+        Server crashed = new Server();
+        crashed.updateMaxWaitTime(0);
+        crashed.enableWriteAheadLog(log, 0);
+        for (int i = 0; i < 100; i++) {
+            crashed.processIncomingEvent(new SensorEvent(i, 6, i % 4, "TempSensor", i));
+        }
+        waitForEvents(crashed, 100);
+        crashed.getWriteAheadLog().sync();
+        long fullSize = Files.size(log);
+
+        crashed.writeSnapshot(snapshot);
+        assertEquals(0, Files.size(log)); //the snapshot holds every logged event
+        assertEquals(100, crashed.getWriteAheadLog().getCheckpointedLsn());
+        for (int i = 100; i < 103; i++) {
+            crashed.processIncomingEvent(new SensorEvent(i, 6, 5, "TempSensor", i));
+        }
+        waitForEvents(crashed, 103);
+        crashed.getWriteAheadLog().sync();
+        assertTrue(Files.size(log) * 10 < fullSize);
+        List<Event> tail = new ArrayList<>();
+        WriteAheadLog.read(log, tail::add);
+        assertEquals(List.of(100.0, 101.0, 102.0), tail.stream().map(Event::getTimeStamp).toList());
+        crashed.disableWriteAheadLog();
+
+        Server restarted = new Server();
+        assertEquals(100, restarted.restoreSnapshot(snapshot));
+        assertEquals(3, restarted.enableWriteAheadLog(log, 0));
+        assertEquals(103, restarted.getEventCount());
+        assertEquals(103, restarted.getWriteAheadLog().getLastLsn());
+
+        //checkpointed to an empty log, the lsns still go on from the snapshot's
+        restarted.writeSnapshot(snapshot);
+        assertEquals(0, Files.size(log));
+        restarted.disableWriteAheadLog();
+        Server again = new Server();
+        assertEquals(103, again.restoreSnapshot(snapshot));
+        assertEquals(0, again.enableWriteAheadLog(log, 0));
+        assertEquals(104, again.getWriteAheadLog().append(new SensorEvent(103, 6, 5, "TempSensor", 103)));
+
+        again.disableWriteAheadLog();
+        Files.deleteIfExists(log);
+        Files.deleteIfExists(snapshot);
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void testPeriodicSnapshotIsWrittenInTheBackground() throws Exception {
+        Path file = Files.createTempFile("server", ".snap");
+        Files.delete(file);
+        Server server = new Server();
+        server.enableSnapshots(file, 0);
+        server.runEvent(new SensorEvent(1, 8, 1, "TempSensor", 1));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Files.exists(file) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        assertEquals(1, new Server().restoreSnapshot(file));
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testCorruptSnapshotIsRejected() throws Exception {
+        Server server = new Server();
+        server.runEvent(new SensorEvent(1, 8, 1, "TempSensor", 1));
+        Path file = Files.createTempFile("server", ".snap");
+        server.writeSnapshot(file);
+
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 12] ^= 0x01;
+        Files.write(file, bytes);
+        assertThrows(IOException.class, () -> new Server().restoreSnapshot(file));
+        Files.deleteIfExists(file);
+    }
+}
@@ -0,0 +1,136 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WindowTests {
+
+    /**
+     * Checks a window result against its events, aggregated one by one
+     */
+    private static void assertMatchesEvents(WindowResult result, List<Event> events, boolean byEntity) {
+        double start = result.getTimeWindow().getStartTime();
+        double end = result.getTimeWindow().getEndTime();
+        long count = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        Event last = null;
+        for (Event event : events) {
+            String key = byEntity ? String.valueOf(event.getEntityId()) : event.getEntityType();
+            if (key.equals(result.getKey()) && event.getTimeStamp() >= start && event.getTimeStamp() < end) {
+                double value = TimeRollups.valueOf(event);
+                count++;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+                if (last == null || event.getTimeStamp() >= last.getTimeStamp()) {
+                    last = event;
+                }
+            }
+        }
+        assertEquals(count, result.getAggregate().getCount());
+        assertEquals(min, result.getAggregate().getMin());
+        assertEquals(max, result.getAggregate().getMax());
+        assertEquals(sum, result.getAggregate().getSum(), 1e-9 * Math.max(1, Math.abs(sum)));
+        assertEquals(TimeRollups.valueOf(last), result.getLast());
+    }
+
+    @Test
+    public void testTumblingWindowsPerEntity() {
+        List<WindowResult> results = new ArrayList<>();
+        WindowedAggregation windows = new WindowedAggregation(2, WindowedAggregation.GroupBy.ENTITY, results::add);
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            events.add(new SensorEvent(i * 0.5, 1, 1, "TempSensor", i));
+            events.add(new SensorEvent(i * 0.5 + 0.25, 1, 2, "TempSensor", -i));
+        }
+        events.forEach(windows::eventProcessed);
+
+        //[0, 2) to [6, 8) closed when the events at 8 and after came in
+        assertEquals(8, results.size());
+        windows.flush();
+        assertEquals(10, results.size());
+        for (WindowResult result : results) {
+            assertMatchesEvents(result, events, true);
+        }
+        assertEquals(4, results.get(0).getAggregate().getCount());
+        assertEquals(1.5, results.get(0).getAggregate().getMean());
+        assertEquals(3.0, results.get(0).getLast());
+    }
+
+    @Test
+    public void testSlidingWindowsPerEntityTypeSkipEmptyWindows() {
+        List<WindowResult> results = new ArrayList<>();
+        WindowedAggregation windows = new WindowedAggregation(6, 2, 0, WindowedAggregation.GroupBy.ENTITY_TYPE,
+                results::add);
+        Random random = new Random(221);
+        List<Event> events = new ArrayList<>();
+        for (double t = 0; t < 30; t += random.nextDouble()) {
+            events.add(new SensorEvent(t, 1, random.nextInt(3), "CO2Sensor", random.nextGaussian()));
+            events.add(new ActuatorEvent(t, 1, 9, "Switch", random.nextBoolean()));
+        }
+        //a long quiet gap, then a few more
+        for (double t = 1000; t < 1004; t += 0.5) {
+            events.add(new SensorEvent(t, 1, 0, "CO2Sensor", t));
+        }
+        events.forEach(windows::eventProcessed);
+        windows.flush();
+
+        List<Double> co2Starts = new ArrayList<>();
+        for (WindowResult result : results) {
+            assertMatchesEvents(result, events, false);
+            if (result.getKey().equals("CO2Sensor")) {
+                co2Starts.add(result.getTimeWindow().getStartTime());
+            }
+        }
+        //windows start every 2 s from -4 (which holds [0, 2)) to 28, then only around the burst at 1000
+        assertEquals(List.of(-4.0, -2.0, 0.0), co2Starts.subList(0, 3));
+        assertEquals(List.of(996.0, 998.0, 1000.0, 1002.0), co2Starts.subList(co2Starts.size() - 4, co2Starts.size()));
+        assertEquals(17 + 4, co2Starts.size());
+    }
+
+    @Test
+    public void testAllowedLatenessKeepsOutOfOrderEvents() {
+        List<WindowResult> results = new ArrayList<>();
+        WindowedAggregation windows = new WindowedAggregation(10, 10, 5, WindowedAggregation.GroupBy.ENTITY,
+                results::add);
+        windows.eventProcessed(new SensorEvent(1, 1, 1, "TempSensor", 1));
+        windows.eventProcessed(new SensorEvent(12, 1, 1, "TempSensor", 2));
+        windows.eventProcessed(new SensorEvent(9, 1, 1, "TempSensor", 3)); //late, but within 5 s
+        assertTrue(results.isEmpty());
+
+        windows.eventProcessed(new SensorEvent(16, 1, 1, "TempSensor", 4)); //closes [0, 10)
+        windows.eventProcessed(new SensorEvent(8, 1, 1, "TempSensor", 100)); //too late, dropped
+        assertEquals(1, results.size());
+        assertEquals(2, results.get(0).getAggregate().getCount());
+        assertEquals(3.0, results.get(0).getLast());
+        assertEquals(11.0, windows.getWatermark());
+    }
+
+    @Test
+    public void testWindowsFollowTheServersProcessingOrder() {
+        List<WindowResult> results = new ArrayList<>();
+        Server server = new Server();
+        server.addEventListener(new WindowedAggregation(5, 5, 2, WindowedAggregation.GroupBy.ENTITY, results::add));
+        server.runEvent(new SensorEvent(1, 1, 4, "TempSensor", 10));
+        server.runEvent(new SensorEvent(4, 1, 4, "TempSensor", 20));
+        server.runEvent(new SensorEvent(6, 1, 4, "TempSensor", 30));
+        server.runEvent(new SensorEvent(3, 1, 4, "TempSensor", 40)); //reprocessed by the server
+        server.runEvent(new SensorEvent(7.5, 1, 4, "TempSensor", 50));
+
+        assertEquals(1, results.size());
+        assertEquals(new TimeWindow(0, 5).toString(), results.get(0).getTimeWindow().toString());
+        assertEquals(3, results.get(0).getAggregate().getCount());
+        assertEquals(70, results.get(0).getAggregate().getSum());
+        assertEquals(20.0, results.get(0).getLast());
+    }
+}
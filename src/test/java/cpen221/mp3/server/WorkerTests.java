@@ -0,0 +1,276 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.client.Client;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WorkerTests {
+
+    /**
+     * Waits until none of the servers has anything queued
+     */
+    private static void awaitIdle(List<Server> servers) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        for (Server server : servers) {
+            while (server.isRunning) {
+                assertTrue(System.currentTimeMillis() < deadline, "server still running");
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @Test
+    public void testServersAreSpreadOverTheWorkers() {
+        ServerWorkers workers = new ServerWorkers(4);
+        Set<Integer> used = new HashSet<>();
+        for (int i = 0; i < 64; i++) {
+            Server server = new Server();
+            //a server stays on one worker
+            assertEquals(workers.workerOf(server), workers.workerOf(server));
+            assertEquals(-1, server.getClientId());
+            used.add(workers.workerOf(server));
+        }
+        assertEquals(4, used.size());
+        assertFalse(new Server().equals(new Server())); //servers without a client are only equal to themselves
+    }
+
+    @Test
+    public void testClientsProcessInTimeStampOrderOnTheWorkers() throws InterruptedException {
+        ServerWorkers workers = new ServerWorkers(3);
+        List<Server> servers = new ArrayList<>();
+        List<List<Double>> processed = new ArrayList<>();
+        Set<String> threads = Collections.synchronizedSet(new HashSet<>());
+        for (int clientId = 0; clientId < 12; clientId++) {
+            Server server = new Server();
+            server.setWorkers(workers);
+            server.updateMaxWaitTime(0.2);
+            List<Double> timeStamps = new ArrayList<>(); //only added to by the server's worker
+            server.addEventListener(event -> {
+                timeStamps.add(event.getTimeStamp());
+                threads.add(Thread.currentThread().getName());
+            });
+            servers.add(server);
+            processed.add(timeStamps);
+        }
+
+        //every client gets its events shuffled, arriving together from several threads
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < servers.size(); i++) {
+            Server server = servers.get(i);
+            int clientId = i;
+            senders.add(new Thread(() -> {
+                List<Event> events = new ArrayList<>();
+                for (int t = 0; t < 200; t++) {
+                    events.add(new SensorEvent(t, clientId, t % 5, "TempSensor", t));
+                }
+                Collections.shuffle(events, new Random(clientId));
+                for (Event event : events) {
+                    event.setTimeArrived(System.currentTimeMillis());
+                    server.processIncomingEvent(event);
+                }
+            }));
+        }
+        senders.forEach(Thread::start);
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        awaitIdle(servers);
+
+        for (int i = 0; i < servers.size(); i++) {
+            List<Double> timeStamps = processed.get(i);
+            assertEquals(200, timeStamps.size());
+            for (int t = 0; t < 200; t++) {
+                assertEquals(t, timeStamps.get(t).doubleValue());
+            }
+            assertEquals(200, servers.get(i).getEventCount());
+            assertTrue(servers.get(i).eventsToProcess.isEmpty());
+        }
+        assertTrue(threads.size() > 1 && threads.size() <= 3, threads.toString());
+        for (String thread : threads) {
+            assertTrue(thread.startsWith("server-worker-"), thread);
+        }
+    }
+
+    @Test
+    public void testServerIsRunningOnlyWhileWorkIsQueued() throws InterruptedException {
+        Server server = new Server();
+        server.setWorkers(new ServerWorkers(1));
+        server.updateMaxWaitTime(0.3);
+        assertFalse(server.isRunning);
+
+        SensorEvent event = new SensorEvent(1, 7, 1, "TempSensor", 20);
+        event.setTimeArrived(System.currentTimeMillis());
+        server.processIncomingEvent(event);
+        assertTrue(server.isRunning);
+        Thread.sleep(100);
+        assertEquals(0, server.getEventCount()); //still waiting for earlier events
+        awaitIdle(List.of(server));
+        assertEquals(1, server.getEventCount());
+
+        //it is scheduled again by the next event
+        SensorEvent next = new SensorEvent(2, 7, 1, "TempSensor", 21);
+        next.setTimeArrived(System.currentTimeMillis());
+        server.processIncomingEvent(next);
+        assertTrue(server.isRunning);
+        awaitIdle(List.of(server));
+        assertEquals(2, server.getEventCount());
+    }
+
+    @Test
+    public void testWorkerOutlivesAnErrorWhileProcessing() throws InterruptedException {
+        ServerWorkers workers = new ServerWorkers(1);
+        Server failing = new Server();
+        Server other = new Server();
+        List<Double> processed = Collections.synchronizedList(new ArrayList<>());
+        for (Server server : List.of(failing, other)) {
+            server.setWorkers(workers);
+            server.updateMaxWaitTime(0);
+        }
+        failing.addEventListener(event -> {
+            if (event.getTimeStamp() == 1) {
+                throw new StackOverflowError("listener failed");
+            }
+            processed.add(event.getTimeStamp());
+        });
+
+        queueEvents(failing, 4, System.currentTimeMillis());
+        awaitIdle(List.of(failing));
+        assertEquals(List.of(0.0, 2.0, 3.0), processed);
+        assertFalse(failing.isRunning);
+
+        //the worker and the failed server are both still going
+        queueEvents(other, 3, System.currentTimeMillis());
+        SensorEvent next = new SensorEvent(10, 0, 1, "TempSensor", 10);
+        next.setTimeArrived(System.currentTimeMillis());
+        failing.processIncomingEvent(next);
+        awaitIdle(List.of(failing, other));
+        assertEquals(3, other.getEventCount());
+        assertEquals(List.of(0.0, 2.0, 3.0, 10.0), processed);
+    }
+
+    /**
+     * Queues events that all arrived at the same time, so they become due together
+     */
+    private static void queueEvents(Server server, int count, long arrived) {
+        for (int t = 0; t < count; t++) {
+            SensorEvent event = new SensorEvent(t, 0, 1, "TempSensor", t);
+            event.setTimeArrived(arrived);
+            server.processIncomingEvent(event);
+        }
+    }
+
+    @Test
+    public void testQuietClientIsNotStarvedByAFlood() throws InterruptedException {
+        ServerWorkers workers = new ServerWorkers(1, 4);
+        Server noisy = new Server();
+        Server quiet = new Server();
+        int[] noisyProcessed = {0};
+        int[] noisyWhenQuietDone = {-1};
+        int[] quietProcessed = {0};
+        noisy.addEventListener(event -> noisyProcessed[0]++);
+        quiet.addEventListener(event -> {
+            //on the same worker as the noisy server's listener
+            if (++quietProcessed[0] == 10) {
+                noisyWhenQuietDone[0] = noisyProcessed[0];
+            }
+        });
+        for (Server server : List.of(noisy, quiet)) {
+            server.setWorkers(workers);
+            server.updateMaxWaitTime(1);
+        }
+
+        long arrived = System.currentTimeMillis();
+        queueEvents(noisy, 20_000, arrived);
+        queueEvents(quiet, 10, arrived);
+        awaitIdle(List.of(noisy, quiet));
+
+        assertEquals(20_000, noisy.getEventCount());
+        assertEquals(10, quiet.getEventCount());
+        //the quiet server got a quantum every round, not after the flood
+        assertTrue(noisyWhenQuietDone[0] >= 0 && noisyWhenQuietDone[0] <= 100, "noisy ran " + noisyWhenQuietDone[0]);
+    }
+
+    @Test
+    public void testClientsShareAWorkerByWeight() throws Exception {
+        try (ServerSocket handler = new ServerSocket(0)) {
+            ServerWorkers workers = new ServerWorkers(1, 8);
+            Server heavy = new Server(new Client(1, "heavy@test.com", "127.0.0.1", handler.getLocalPort()));
+            Server light = new Server(new Client(2, "light@test.com", "127.0.0.1", handler.getLocalPort()));
+            workers.setWeight(1, 3);
+            assertEquals(3, workers.getWeight(1));
+            assertEquals(ServerWorkers.DEFAULT_WEIGHT, workers.getWeight(2));
+
+            int[] lightProcessed = {0};
+            int[] heavyProcessed = {0};
+            int[] lightWhenHeavyDone = {-1};
+            light.addEventListener(event -> lightProcessed[0]++);
+            heavy.addEventListener(event -> {
+                if (++heavyProcessed[0] == 6000) {
+                    lightWhenHeavyDone[0] = lightProcessed[0];
+                }
+            });
+            for (Server server : List.of(heavy, light)) {
+                server.setWorkers(workers);
+                server.updateMaxWaitTime(1);
+            }
+
+            long arrived = System.currentTimeMillis();
+            queueEvents(heavy, 6000, arrived);
+            queueEvents(light, 6000, arrived);
+            awaitIdle(List.of(heavy, light));
+
+            //the light client ran a third as much while both were backlogged
+            assertEquals(2000, lightWhenHeavyDone[0], 100);
+            assertEquals(6000, light.getEventCount());
+        }
+    }
+
+    @Test
+    public void testBadArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new ServerWorkers(0));
+        assertThrows(IllegalArgumentException.class, () -> new ServerWorkers(1, 0));
+        assertThrows(IllegalArgumentException.class, () -> ServerWorkers.shared().setWeight(1, 0));
+        assertThrows(IllegalArgumentException.class, () -> ServerWorkers.shared().setWeight(1, Double.NaN));
+        assertTrue(ServerWorkers.shared().getWorkerCount() >= 1);
+    }
+
+    @Test
+    public void testQueriesWhileTheWorkerProcesses() throws InterruptedException {
+        Server server = new Server();
+        server.setWorkers(new ServerWorkers(1));
+        server.updateMaxWaitTime(0);
+        server.logIf(new Filter("value", DoubleOperator.GREATER_THAN_OR_EQUALS, 0));
+
+        Thread sender = new Thread(() -> {
+            for (int t = 0; t < 20_000; t++) {
+                Event event = new SensorEvent(t, 0, t % 5, "TempSensor", t);
+                event.setTimeArrived(System.currentTimeMillis());
+                server.processIncomingEvent(event);
+            }
+        });
+        sender.start();
+        //every logged event is read exactly once, however reads and processing interleave
+        int read = 0;
+        while (sender.isAlive() || server.isRunning) {
+            read += server.readLogs().size();
+            server.eventsInTimeWindow(new TimeWindow(0, 20_000));
+            server.lastNEvents(10);
+        }
+        sender.join();
+        awaitIdle(List.of(server));
+        read += server.readLogs().size();
+        assertEquals(20_000, read);
+        assertEquals(20_000, server.getEventCount());
+    }
+}
@@ -0,0 +1,188 @@
+package cpen221.mp3.storage;
+
+import cpen221.mp3.CSVEventReader;
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EventSegmentTests {
+
+    private static List<Event> events(double from, int count) {
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            //two events per time stamp, so bounds have ties to step over
+            double timeStamp = from + i / 2;
+            if (i % 5 == 0) {
+                events.add(new ActuatorEvent(timeStamp, 1, i, "Switch", i % 2 == 0));
+            } else {
+                events.add(new SensorEvent(timeStamp, 1, i, i % 3 == 0 ? "TempSensor" : "PressureSensor", i * 0.5));
+            }
+        }
+        return events;
+    }
+
+    private static void assertSameEvents(List<Event> expected, List<Event> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getClass(), actual.get(i).getClass());
+            assertEquals(expected.get(i).getTimeStamp(), actual.get(i).getTimeStamp());
+            assertEquals(expected.get(i).getClientId(), actual.get(i).getClientId());
+            assertEquals(expected.get(i).getEntityId(), actual.get(i).getEntityId());
+            assertEquals(expected.get(i).getEntityType(), actual.get(i).getEntityType());
+            assertEquals(expected.get(i).getValueDouble(), actual.get(i).getValueDouble());
+            assertEquals(expected.get(i).getValueBoolean(), actual.get(i).getValueBoolean());
+        }
+    }
+
+    @Test
+    public void testEventsAreReadBackFromTheMappedFile() throws Exception {
+        Path directory = Files.createTempDirectory("segments");
+        List<Event> written = events(0, 300);
+        EventSegment segment = EventSegment.write(directory.resolve("a.seg"), written);
+
+        EventSegment reopened = EventSegment.open(directory.resolve("a.seg"));
+        assertEquals(300, reopened.size());
+        assertEquals(0.0, reopened.getMinTimeStamp());
+        assertEquals(149.0, reopened.getMaxTimeStamp());
+        List<Event> read = new ArrayList<>();
+        for (int i = 0; i < written.size(); i++) {
+            read.add(reopened.get(i));
+        }
+        assertSameEvents(written, read);
+        assertSameEvents(written.subList(250, 300), reopened.events(250, 300));
+
+        segment.delete();
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testUnusualValuesSurviveCompression() throws Exception {
+        Path directory = Files.createTempDirectory("segments");
+        double[] values = {0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, -1e300, Double.MIN_VALUE, 22.5, 22.5};
+        List<Event> written = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            //uneven gaps, negative time stamps, and long runs of one actuator value across blocks
+            double timeStamp = -50 + i * 0.1 + (i % 7 == 0 ? 1e-9 : 0);
+            if (i % 3 == 0) {
+                written.add(new ActuatorEvent(timeStamp, i % 2, 7, "Switch", i < 400));
+            } else {
+                written.add(new SensorEvent(timeStamp, i % 2, i % 11, "TempSensor", values[i % values.length]));
+            }
+        }
+        EventSegment segment = EventSegment.write(directory.resolve("a.seg"), written);
+        assertSameEvents(written, segment.events(0, segment.size()));
+
+        segment.delete();
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testCompressionOfTheBundledRecordings() throws Exception {
+        Path directory = Files.createTempDirectory("segments");
+        for (String recording : List.of("in-order", "out-of-order")) {
+            List<Event> events = new CSVEventReader("data/tests/single_client_1000_events_" + recording + ".csv").readEvents();
+            events.sort(Comparator.comparingDouble(Event::getTimeStamp));
+            EventSegment segment = EventSegment.write(directory.resolve(recording + ".seg"), events);
+            assertSameEvents(events, segment.events(0, segment.size()));
+
+            double bytesPerEvent = (double) segment.getByteSize() / segment.size();
+            System.out.printf("%s: %d events in %d bytes, %.2f bytes/event%n",
+                    recording, segment.size(), segment.getByteSize(), bytesPerEvent);
+            //an uncompressed event is 27 bytes: kind, time stamp, client id, entity id, type and value
+            assertTrue(bytesPerEvent < 27);
+            segment.delete();
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testBoundsUseTheSparseIndex() throws Exception {
+        Path directory = Files.createTempDirectory("segments");
+        EventSegment segment = EventSegment.write(directory.resolve("a.seg"), events(0, 1000));
+
+        assertEquals(0, segment.lowerBound(-5));
+        assertEquals(128, segment.lowerBound(64));
+        assertEquals(130, segment.upperBound(64));
+        assertEquals(130, segment.lowerBound(64.5));
+        assertEquals(1000, segment.lowerBound(500));
+        assertEquals(1000, segment.upperBound(499));
+
+        List<Event> window = segment.eventsBetween(63, 65);
+        assertEquals(6, window.size());
+        assertEquals(126, window.get(0).getEntityId());
+        assertTrue(segment.eventsBetween(600, 700).isEmpty());
+
+        segment.delete();
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testStoreMergesOverlappingSegments() throws Exception {
+        Path directory = Files.createTempDirectory("segments");
+        SegmentedEventStore store = new SegmentedEventStore(directory, 100);
+        store.seal(events(0, 100));      //time stamps 0 to 49
+        store.seal(events(40, 100));     //late events overlapping the first segment, 40 to 89
+
+        assertEquals(200, store.size());
+        List<Event> window = store.eventsBetween(45, 50);
+        assertEquals(10 + 12, window.size());
+        for (int i = 1; i < window.size(); i++) {
+            assertTrue(window.get(i - 1).getTimeStamp() <= window.get(i).getTimeStamp());
+        }
+        assertEquals(89.0, store.latest().getTimeStamp());
+
+        List<Event> latest = store.latestCandidates(3);
+        assertTrue(latest.size() >= 3);
+        assertEquals(89.0, latest.get(latest.size() - 1).getTimeStamp());
+
+        store.clear();
+        assertEquals(0, store.size());
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testEventsBeingSealedCanBeRead() throws Exception {
+        Path directory = Files.createTempDirectory("segments");
+        SegmentedEventStore store = new SegmentedEventStore(directory, 100);
+        store.sealLater(events(0, 100));
+        store.sealLater(events(40, 100));
+
+        //read from the segments or the runs, whichever the sealing thread has got to
+        assertEquals(200, store.size());
+        assertEquals(10 + 12, store.eventsBetween(45, 50).size());
+        assertEquals(89.0, store.latest().getTimeStamp());
+        SegmentedEventStore.Contents contents = store.contents();
+        assertEquals(2, contents.segments.size() + contents.unsealed.size());
+
+        store.awaitSealed();
+        assertFalse(store.hasFailed());
+        assertEquals(2, store.getSegments().size());
+        assertTrue(store.contents().unsealed.isEmpty());
+        assertEquals(200, store.size());
+        assertEquals(10 + 12, store.eventsBetween(45, 50).size());
+
+        store.clear();
+        assertEquals(0, store.size());
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testNewStoreDeletesStaleSegments() throws Exception {
+        Path directory = Files.createTempDirectory("segments");
+        new SegmentedEventStore(directory, 10).seal(events(0, 10));
+        assertEquals(1, directory.toFile().list().length);
+
+        new SegmentedEventStore(directory, 10);
+        assertEquals(0, directory.toFile().list().length);
+        Files.delete(directory);
+    }
+}
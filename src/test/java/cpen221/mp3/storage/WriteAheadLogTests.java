@@ -0,0 +1,157 @@
+package cpen221.mp3.storage;
+
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+import cpen221.mp3.server.Server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteAheadLogTests {
+
+    private static List<Event> readAll(Path file) throws IOException {
+        List<Event> events = new ArrayList<>();
+        WriteAheadLog.read(file, events::add);
+        return events;
+    }
+
+    @Test
+    public void testAppendedEventsAreReadBack() throws Exception {
+        Path file = Files.createTempFile("events", ".wal");
+        try (WriteAheadLog log = new WriteAheadLog(file, 0)) {
+            assertEquals(1, log.append(new SensorEvent(1.5, 7, 3, "TempSensor", 21.25)));
+            assertEquals(2, log.append(new ActuatorEvent(2.5, 7, 4, "Switch", true)));
+            log.sync();
+            assertEquals(2, log.getDurableLsn());
+        }
+
+        List<Event> events = readAll(file);
+        assertEquals(2, events.size());
+        assertEquals(1.5, events.get(0).getTimeStamp());
+        assertEquals(7, events.get(0).getClientId());
+        assertEquals(3, events.get(0).getEntityId());
+        assertEquals("TempSensor", events.get(0).getEntityType());
+        assertEquals(21.25, events.get(0).getValueDouble());
+        assertTrue(events.get(1) instanceof ActuatorEvent);
+        assertTrue(events.get(1).getValueBoolean());
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testReopenContinuesSequence() throws Exception {
+        Path file = Files.createTempFile("events", ".wal");
+        try (WriteAheadLog log = new WriteAheadLog(file, 5)) {
+            log.append(new SensorEvent(1, 1, 1, "TempSensor", 1));
+            log.append(new SensorEvent(2, 1, 1, "TempSensor", 2));
+        }
+        try (WriteAheadLog log = new WriteAheadLog(file, 5)) {
+            assertEquals(2, log.getLastLsn());
+            assertEquals(3, log.append(new SensorEvent(3, 1, 1, "TempSensor", 3)));
+        }
+        assertEquals(3, readAll(file).size());
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testTornTailIsCutOff() throws Exception {
+        Path file = Files.createTempFile("events", ".wal");
+        try (WriteAheadLog log = new WriteAheadLog(file, 0)) {
+            log.append(new SensorEvent(1, 1, 1, "TempSensor", 1));
+            log.append(new SensorEvent(2, 1, 1, "TempSensor", 2));
+        }
+        long goodLength = Files.size(file);
+
+        //half of a third record, as a crash in the middle of a write would leave
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(goodLength - 10);
+        }
+        assertEquals(1, readAll(file).size());
+
+        try (WriteAheadLog log = new WriteAheadLog(file, 0)) {
+            assertEquals(1, log.getLastLsn());
+            log.append(new SensorEvent(3, 1, 1, "TempSensor", 3));
+        }
+        List<Event> events = readAll(file);
+        assertEquals(2, events.size());
+        assertEquals(3.0, events.get(1).getTimeStamp());
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testCorruptRecordEndsTheLog() throws Exception {
+        Path file = Files.createTempFile("events", ".wal");
+        try (WriteAheadLog log = new WriteAheadLog(file, 0)) {
+            for (int i = 0; i < 3; i++) {
+                log.append(new SensorEvent(i, 1, 1, "TempSensor", i));
+            }
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        int recordSize = bytes.length / 3;
+        bytes[recordSize + WriteAheadLog.HEADER_SIZE + 10] ^= 0x5A; //inside the second record's body
+        Files.write(file, bytes);
+
+        assertEquals(1, readAll(file).size());
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testCheckpointKeepsOnlyTheTail() throws Exception {
+        Path file = Files.createTempFile("events", ".wal");
+        try (WriteAheadLog log = new WriteAheadLog(file, 5)) {
+            for (int i = 0; i < 50; i++) {
+                log.append(new SensorEvent(i, 1, 1, "TempSensor", i));
+            }
+            log.checkpoint(45); //the records up to 45 are written first, the rest are kept
+            assertEquals(45, log.getCheckpointedLsn());
+            assertEquals(51, log.append(new SensorEvent(50, 1, 1, "TempSensor", 50)));
+            log.sync();
+        }
+        List<Event> events = readAll(file);
+        assertEquals(6, events.size());
+        assertEquals(45.0, events.get(0).getTimeStamp());
+        assertEquals(50.0, events.get(5).getTimeStamp());
+        assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+
+        try (WriteAheadLog log = new WriteAheadLog(file, 5)) {
+            assertEquals(51, log.getLastLsn());
+            assertEquals(45, log.getCheckpointedLsn());
+            log.checkpoint(51);
+            assertEquals(0, Files.size(file));
+        }
+        //an empty log goes on from the lsn it is told to
+        try (WriteAheadLog log = new WriteAheadLog(file, 5, 51)) {
+            assertEquals(52, log.append(new SensorEvent(51, 1, 1, "TempSensor", 51)));
+        }
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testServerReplaysItsLog() throws Exception {
+        Path file = Files.createTempFile("server", ".wal");
+        Server crashed = new Server();
+        assertEquals(0, crashed.enableWriteAheadLog(file, 0));
+        crashed.processIncomingEvent(new SensorEvent(2.0, 5, 11, "TempSensor", 22.0));
+        crashed.processIncomingEvent(new SensorEvent(1.0, 5, 10, "TempSensor", 21.0));
+        crashed.processIncomingEvent(new SensorEvent(3.0, 5, 12, "TempSensor", 23.0));
+        crashed.getWriteAheadLog().sync();
+
+        Server restarted = new Server();
+        assertEquals(3, restarted.enableWriteAheadLog(file, 0));
+        assertEquals(3, restarted.allEvents.size());
+        assertEquals(1.0, restarted.allEvents.get(0).getTimeStamp());
+        assertEquals(3.0, restarted.allEvents.get(2).getTimeStamp());
+
+        crashed.disableWriteAheadLog();
+        restarted.disableWriteAheadLog();
+        Files.deleteIfExists(file);
+    }
+}